@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.bench;
+
+/**
+ * <p>
+ * A micro-benchmark run by the {@link BenchmarkRunner}. The runner calls {@link #setup()}
+ * once, then {@link #op()} repeatedly during warm-up and measurement iterations and
+ * finally {@link #teardown()}. Everything that should not be measured (loading fixtures,
+ * creating graphs, parsing sentences) belongs in <code>setup</code>.
+ * </p>
+ *
+ * <p>
+ * The value returned by <code>op</code> is consumed by the runner so that the JIT
+ * can't eliminate the benchmarked code as dead.
+ * </p>
+ */
+public abstract class Benchmark
+{
+	/**
+	 * <p>Thrown from {@link #setup()} when a benchmark can't run in the current
+	 * environment, e.g. when a native parser is not available. The benchmark is then
+	 * reported as skipped rather than failed.</p>
+	 */
+	public static class Skip extends RuntimeException
+	{
+		private static final long serialVersionUID = 1L;
+		public Skip(String reason) { super(reason); }
+	}
+
+	public String getName()
+	{
+		String name = getClass().getName();
+		return name.substring(name.lastIndexOf('.') + 1);
+	}
+
+	/**
+	 * <p>Return a short description of the work done by one call to {@link #op()}.</p>
+	 */
+	public String getUnit()
+	{
+		return "op";
+	}
+
+	public void setup() throws Exception
+	{
+	}
+
+	public abstract Object op() throws Exception;
+
+	public void teardown() throws Exception
+	{
+	}
+}
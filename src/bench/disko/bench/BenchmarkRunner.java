@@ -0,0 +1,194 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.bench;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * <p>
+ * Runs the Disko micro-benchmarks and writes their results as JSON. Each benchmark
+ * goes through a number of timed warm-up iterations followed by timed measurement
+ * iterations; the throughput of every measurement iteration is recorded, together with
+ * the mean and standard deviation.
+ * </p>
+ *
+ * <p>
+ * Usage: <code>java disko.bench.BenchmarkRunner [-warmup n] [-iterations n] [-time ms]
+ * [-out file] [name...]</code>. When names are given, only benchmarks whose name contains
+ * one of them are run. All fixtures are read from the <code>test</code> directory (or
+ * the one given by the <code>disko.bench.fixtures</code> system property) and all graphs
+ * are temporary, so the benchmarks run offline.
+ * </p>
+ */
+public class BenchmarkRunner
+{
+	private int warmupIterations = 3;
+	private int measurementIterations = 5;
+	private long iterationMillis = 1000;
+
+	public static List<Benchmark> all()
+	{
+		return Arrays.asList(new Benchmark[] {
+			new SentenceDetectorBenchmark(),
+			new SentenceDetectorBenchmark(4),
+			new ParseToRelationsBenchmark(),
+			new ComputeScoresBenchmark(),
+			new RelationCountFindBenchmark(),
+			new HGDBSaverBenchmark(1),
+			new HGDBSaverBenchmark(50),
+			new DiskoSearchBenchmark(false),
+			new DiskoSearchBenchmark(true),
+			new TrieBestMatchBenchmark(TrieBestMatchBenchmark.TIMED),
+			new TrieBestMatchBenchmark(TrieBestMatchBenchmark.FUZZY),
+			new TrieBestMatchBenchmark(TrieBestMatchBenchmark.COMPACT),
+			new TrieTopNBenchmark(false),
+			new TrieTopNBenchmark(true)
+		});
+	}
+
+	public static File fixture(String name)
+	{
+		return new File(System.getProperty("disko.bench.fixtures", "test"), name);
+	}
+
+	// Written after every operation so that the benchmarked code can't be optimized away.
+	private volatile Object sink;
+
+	private long iteration(Benchmark b, long millis) throws Exception
+	{
+		long ops = 0;
+		long deadline = System.nanoTime() + millis*1000000L;
+		do
+		{
+			sink = b.op();
+			ops++;
+		} while (System.nanoTime() < deadline);
+		return ops;
+	}
+
+	public JSONObject run(Benchmark b) throws Exception
+	{
+		JSONObject result = new JSONObject();
+		result.put("name", b.getName());
+		result.put("unit", b.getUnit() + "/s");
+		try
+		{
+			b.setup();
+		}
+		catch (Benchmark.Skip skip)
+		{
+			System.out.println(b.getName() + ": skipped - " + skip.getMessage());
+			result.put("skipped", skip.getMessage());
+			return result;
+		}
+		try
+		{
+			for (int i = 0; i < warmupIterations; i++)
+				iteration(b, iterationMillis);
+			JSONArray scores = new JSONArray();
+			double sum = 0, sumSquares = 0;
+			for (int i = 0; i < measurementIterations; i++)
+			{
+				long start = System.nanoTime();
+				long ops = iteration(b, iterationMillis);
+				double score = ops * 1e9 / (System.nanoTime() - start);
+				scores.put(score);
+				sum += score;
+				sumSquares += score*score;
+			}
+			double mean = sum / measurementIterations;
+			double stddev = Math.sqrt(Math.max(0.0, sumSquares / measurementIterations - mean*mean));
+			result.put("score", mean);
+			result.put("stddev", stddev);
+			result.put("iterations", scores);
+			System.out.println(String.format("%-30s %14.3f %s/s  +- %.3f", b.getName(), mean, b.getUnit(), stddev));
+		}
+		finally
+		{
+			b.teardown();
+		}
+		return result;
+	}
+
+	public static void main(String [] args) throws Exception
+	{
+		BenchmarkRunner runner = new BenchmarkRunner();
+		String out = "bench-results.json";
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++)
+		{
+			if ("-warmup".equals(args[i]))
+				runner.warmupIterations = Integer.parseInt(args[++i]);
+			else if ("-iterations".equals(args[i]))
+				runner.measurementIterations = Integer.parseInt(args[++i]);
+			else if ("-time".equals(args[i]))
+				runner.iterationMillis = Long.parseLong(args[++i]);
+			else if ("-out".equals(args[i]))
+				out = args[++i];
+			else
+				names.add(args[i]);
+		}
+
+		JSONArray results = new JSONArray();
+		for (Benchmark b : all())
+		{
+			boolean selected = names.isEmpty();
+			for (String n : names)
+				selected |= b.getName().contains(n);
+			if (!selected)
+				continue;
+			try
+			{
+				results.put(runner.run(b));
+			}
+			catch (Throwable t)
+			{
+				System.err.println(b.getName() + " failed:");
+				t.printStackTrace(System.err);
+				JSONObject failed = new JSONObject();
+				failed.put("name", b.getName());
+				failed.put("error", t.toString());
+				results.put(failed);
+			}
+		}
+
+		JSONObject report = new JSONObject();
+		report.put("timestamp", System.currentTimeMillis());
+		report.put("java", System.getProperty("java.version"));
+		report.put("warmupIterations", runner.warmupIterations);
+		report.put("measurementIterations", runner.measurementIterations);
+		report.put("iterationMillis", runner.iterationMillis);
+		report.put("benchmarks", results);
+		File outFile = new File(out);
+		if (outFile.getParentFile() != null)
+			outFile.getParentFile().mkdirs();
+		Writer writer = new FileWriter(outFile);
+		try
+		{
+			writer.write(report.toString(2));
+		}
+		finally
+		{
+			writer.close();
+		}
+		System.out.println("Results written to " + outFile.getAbsolutePath());
+		System.exit(0);
+	}
+}
@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import disko.data.relex.RelationCount;
+import disko.flow.analyzers.ParseSelectAnalyzer;
+import disko.flow.analyzers.hgdb.RelationCountStore;
+import disko.flow.analyzers.hgdb.RelationCounterAnalyzer;
+
+/**
+ * <p>
+ * Parse scoring with {@link ParseSelectAnalyzer#computeScores} against an in-memory
+ * {@link RelationCountStore} holding synthetic counts. One operation scores a parse
+ * of 20 relations.
+ * </p>
+ */
+public class ComputeScoresBenchmark extends Benchmark
+{
+	private static final int WORDS = 2000;
+	private static final int RELATIONS = 100000;
+	private static final int PARSES = 512;
+	private static final String [] PREDICATES = { "_subj", "_obj", "_amod", "_nn", "_advmod", "of", "in", "to" };
+	private static final String [] POS = { "noun", "verb", "adj", "adv" };
+
+	private RelationCountStore store;
+	private List<List<RelationCount>> parses = new ArrayList<List<RelationCount>>();
+	private int next = 0;
+
+	public String getUnit()
+	{
+		return "parse";
+	}
+
+	static RelationCount randomRelation(Random random)
+	{
+		return new RelationCount(PREDICATES[random.nextInt(PREDICATES.length)],
+								 "w" + random.nextInt(WORDS),
+								 "w" + random.nextInt(WORDS),
+								 POS[random.nextInt(POS.length)],
+								 POS[random.nextInt(POS.length)]);
+	}
+
+	public void setup()
+	{
+		Random random = new Random(42);
+		store = new RelationCountStore();
+		for (int i = 0; i < RELATIONS; i++)
+		{
+			RelationCount r = randomRelation(random);
+			double count = 1 + random.nextInt(10);
+			for (RelationCount m : RelationCounterAnalyzer.marginals(r))
+			{
+				m.setCount(count);
+				store.add(m);
+			}
+		}
+		for (int i = 0; i < PARSES; i++)
+		{
+			List<RelationCount> parse = new ArrayList<RelationCount>();
+			for (int j = 0; j < 20; j++)
+				parse.add(randomRelation(random));
+			parses.add(parse);
+		}
+	}
+
+	public Object op()
+	{
+		List<RelationCount> parse = parses.get(next);
+		next = (next + 1) % PARSES;
+		return ParseSelectAnalyzer.computeScores(store, parse);
+	}
+}
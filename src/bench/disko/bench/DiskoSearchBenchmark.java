@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HyperGraph;
+import org.hypergraphdb.app.wordnet.data.Word;
+import org.hypergraphdb.indexing.TargetToTargetIndexer;
+
+import disko.ScopeLink;
+import disko.SentenceAnn;
+import disko.StringTextDocument;
+import disko.data.relex.SynRel;
+import disko.saca.DiskoSearch;
+
+/**
+ * <p>
+ * Searches with {@link DiskoSearch} over a synthetic corpus of 100 documents, 40 sentences
+ * each, in a temporary graph, with either the generational set intersection or the top-K
+ * search. Queries are made of the relations of existing sentences plus a few random ones.
+ * </p>
+ */
+public class DiskoSearchBenchmark extends Benchmark
+{
+	private static final int WORDS = 300;
+	private static final int RELATIONS = 3000;
+	private static final int DOCUMENTS = 100;
+	private static final int SENTENCES = 40;
+	private static final int QUERIES = 64;
+
+	private TempGraph temp;
+	private List<List<HGHandle>> queries = new ArrayList<List<HGHandle>>();
+	private int next = 0;
+	private boolean topK;
+
+	public DiskoSearchBenchmark(boolean topK)
+	{
+		this.topK = topK;
+	}
+
+	public String getName()
+	{
+		return super.getName() + (topK ? "[topK]" : "[generations]");
+	}
+
+	public String getUnit()
+	{
+		return "query";
+	}
+
+	public void setup()
+	{
+		temp = new TempGraph("search");
+		HyperGraph graph = temp.getGraph();
+		HGHandle scopeLinkType = graph.getTypeSystem().getTypeHandle(ScopeLink.class);
+		graph.getIndexManager().register(new TargetToTargetIndexer(scopeLinkType, 1, 0));
+		graph.runMaintenance();
+		Random random = new Random(42);
+		HGHandle [] words = new HGHandle[WORDS];
+		for (int i = 0; i < WORDS; i++)
+			words[i] = graph.add(new Word("w" + i));
+		HGHandle [] relations = new HGHandle[RELATIONS];
+		for (int i = 0; i < RELATIONS; i++)
+			relations[i] = graph.add(new SynRel(new HGHandle[] {
+					words[random.nextInt(20)], 
+					words[20 + random.nextInt(WORDS - 20)], 
+					words[20 + random.nextInt(WORDS - 20)] }));
+		List<List<HGHandle>> sentences = new ArrayList<List<HGHandle>>();
+		for (int d = 0; d < DOCUMENTS; d++)
+		{
+			HGHandle doc = graph.add(new StringTextDocument("document " + d));
+			for (int s = 0; s < SENTENCES; s++)
+			{
+				HGHandle sentence = graph.add(new SentenceAnn(s, s + 1, "sentence " + s + " of " + d));
+				graph.add(new ScopeLink(doc, sentence));
+				List<HGHandle> rels = new ArrayList<HGHandle>();
+				for (int r = 0; r < 8; r++)
+				{
+					// skew towards the first relations so that some are frequent
+					HGHandle rel = relations[Math.min(random.nextInt(RELATIONS), random.nextInt(RELATIONS))];
+					graph.add(new ScopeLink(sentence, rel));
+					rels.add(rel);
+				}
+				sentences.add(rels);
+			}
+		}
+		for (int i = 0; i < QUERIES; i++)
+		{
+			List<HGHandle> q = new ArrayList<HGHandle>(sentences.get(random.nextInt(sentences.size())).subList(0, 4));
+			q.add(relations[random.nextInt(RELATIONS)]);
+			q.add(relations[random.nextInt(RELATIONS)]);
+			queries.add(q);
+		}
+	}
+
+	public Object op()
+	{
+		List<HGHandle> q = queries.get(next);
+		next = (next + 1) % QUERIES;
+		DiskoSearch search = new DiskoSearch(temp.getGraph(), q);
+		return topK ? search.searchTopK(20) : search.search(temp.getGraph(), 20);
+	}
+
+	public void teardown()
+	{
+		temp.close();
+	}
+}
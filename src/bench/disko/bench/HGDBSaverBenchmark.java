@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.bench;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.app.dataflow.Channel;
+import org.hypergraphdb.app.dataflow.InputPort;
+import org.hypergraphdb.app.dataflow.OutputPort;
+import org.hypergraphdb.app.dataflow.Ports;
+import org.hypergraphdb.app.wordnet.data.Word;
+
+import disko.AnalysisContext;
+import disko.SentenceAnn;
+import disko.StringTextDocument;
+import disko.TextDocument;
+import disko.data.relex.RelOccurrence;
+import disko.data.relex.SentenceInterpretation;
+import disko.flow.analyzers.ParseSelectAnalyzer;
+import disko.flow.analyzers.SentenceAnalyzer;
+import disko.flow.analyzers.hgdb.HGDBSaver;
+
+/**
+ * <p>
+ * Persistence of a document's sentences and relations with {@link HGDBSaver} into a
+ * temporary graph. One operation saves a document of 20 sentences with 10 relations
+ * each, drawn from a vocabulary of 500 words so that many relations already exist.
+ * </p>
+ */
+public class HGDBSaverBenchmark extends Benchmark
+{
+	private static final int SENTENCES = 20;
+	private static final int RELATIONS = 10;
+	private static final int WORDS = 500;
+
+	private int batchSize;
+	private TempGraph temp;
+	private HGHandle [] words = new HGHandle[WORDS];
+	private Random random = new Random(42);
+	private HGDBSaver saver;
+
+	public HGDBSaverBenchmark(int batchSize)
+	{
+		this.batchSize = batchSize;
+	}
+
+	public String getName()
+	{
+		return super.getName() + "[batch=" + batchSize + "]";
+	}
+
+	public String getUnit()
+	{
+		return "document";
+	}
+
+	public void setup()
+	{
+		temp = new TempGraph("saver");
+		for (int i = 0; i < WORDS; i++)
+			words[i] = temp.getGraph().add(new Word("w" + i));
+		saver = new HGDBSaver(batchSize);
+	}
+
+	public Object op() throws Exception
+	{
+		Channel<SentenceAnn> sentences = new Channel<SentenceAnn>(SentenceAnalyzer.SENTENCE_CHANNEL, 
+																  new SentenceAnn(0, 0), 
+																  SENTENCES + 1);
+		Channel<SentenceInterpretation> parses = new Channel<SentenceInterpretation>(
+				ParseSelectAnalyzer.SELECTED_PARSE_CHANNEL, new SentenceInterpretation(null, null), SENTENCES + 1);
+		Ports ports = new Ports();
+		InputPort<SentenceAnn> sentenceIn = sentences.newInputPort(); 
+		InputPort<SentenceInterpretation> parseIn = parses.newInputPort();
+		OutputPort<SentenceAnn> sentenceOut = sentences.newOutputPort();
+		OutputPort<SentenceInterpretation> parseOut = parses.newOutputPort();
+		ports.addPort(sentenceIn);
+		ports.addPort(parseIn);
+		sentenceIn.open(); parseIn.open(); sentenceOut.open(); parseOut.open();
+		StringBuilder text = new StringBuilder();
+		for (int s = 0; s < SENTENCES; s++)
+		{
+			String sentence = "Sentence " + s + " of a benchmark document.";
+			Set<RelOccurrence> relations = new HashSet<RelOccurrence>();
+			for (int r = 0; r < RELATIONS; r++)
+				relations.add(new RelOccurrence(new HGHandle[] { 
+						words[random.nextInt(20)], 
+						words[random.nextInt(WORDS)], 
+						words[random.nextInt(WORDS)] }, r, r + 1));
+			sentenceOut.put(new SentenceAnn(text.length(), text.length() + sentence.length(), sentence));
+			parseOut.put(new SentenceInterpretation(sentence, relations));
+			text.append(sentence).append(' ');
+		}
+		sentenceOut.close();
+		parseOut.close();
+		AnalysisContext<TextDocument> ctx = new AnalysisContext<TextDocument>(temp.getGraph(), 
+				new StringTextDocument(text.toString()));
+		saver.process(ctx, ports);
+		return ctx;
+	}
+
+	public void teardown()
+	{
+		temp.close();
+	}
+}
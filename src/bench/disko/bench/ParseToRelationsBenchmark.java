@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.bench;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import disko.AnalysisContext;
+import disko.DU;
+import disko.StringTextDocument;
+import disko.TextDocument;
+import disko.relex.ParseToRelations;
+import disko.relex.RelexParserPool;
+import disko.taca.OpenNLPSentenceDetector;
+
+import relex.ParsedSentence;
+import relex.concurrent.RelexTaskResult;
+import relex.corpus.EntityMaintainerFactory;
+import relex.corpus.TextInterval;
+import relex.entity.EntityMaintainer;
+
+/**
+ * <p>
+ * Conversion of Relex parses to relation occurrences with
+ * {@link ParseToRelations#getRelations}. The sentences of the <code>headstart.txt</code>
+ * fixture are parsed once during setup with an in-process link grammar parser, so only the
+ * conversion is measured. The benchmark is skipped when the native parser isn't available.
+ * </p>
+ */
+public class ParseToRelationsBenchmark extends Benchmark
+{
+	private static final int MAX_SENTENCES = 50;
+
+	private TempGraph temp;
+	private AnalysisContext<TextDocument> ctx;
+	private ParseToRelations parseToRelations;
+	private List<EntityMaintainer> entities = new ArrayList<EntityMaintainer>();
+	private List<ParsedSentence> parses = new ArrayList<ParsedSentence>();
+	private int next = 0;
+
+	public String getUnit()
+	{
+		return "parse";
+	}
+
+	public void setup() throws Exception
+	{
+		String text = DU.readFile(BenchmarkRunner.fixture("headstart.txt").getPath());
+		RelexParserPool pool;
+		try
+		{
+			pool = RelexParserPool.getShared(Collections.singletonList(new RelexParserPool.Endpoint(null, -1)), 
+											 4, 1000, 30);
+		}
+		catch (Throwable t)
+		{
+			throw new Skip("no link grammar parser: " + t);
+		}
+		try
+		{
+			EntityMaintainerFactory entityDetector = EntityMaintainerFactory.get();
+			int index = 0;
+			for (TextInterval ivl : new OpenNLPSentenceDetector().process(text))
+			{
+				if (index >= MAX_SENTENCES)
+					break;
+				String sentence = text.substring(ivl.getStart(), ivl.getEnd()).replaceAll("\n", " ").trim();
+				if (sentence.length() == 0)
+					continue;
+				EntityMaintainer em = entityDetector.makeEntityMaintainer(sentence);
+				RelexTaskResult result = pool.submit(index++, sentence, em).get();
+				if (result.result == null)
+					continue;
+				for (ParsedSentence parse : result.result.getParses())
+				{
+					entities.add(em);
+					parses.add(parse);
+				}
+			}
+		}
+		catch (Throwable t)
+		{
+			throw new Skip("parsing failed: " + t);
+		}
+		finally
+		{
+			pool.release();
+		}
+		if (parses.isEmpty())
+			throw new Skip("no parses obtained for the fixture");
+		temp = new TempGraph("relations");
+		ctx = new AnalysisContext<TextDocument>(temp.getGraph(), new StringTextDocument(text));
+		parseToRelations = new ParseToRelations(temp.getGraph());
+	}
+
+	public Object op()
+	{
+		int i = next;
+		next = (next + 1) % parses.size();
+		return parseToRelations.getRelations(ctx, entities.get(i), parses.get(i));
+	}
+
+	public void teardown()
+	{
+		RelexParserPool.shutdownAll();
+		if (temp != null)
+			temp.close();
+	}
+}
@@ -0,0 +1,72 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import disko.data.relex.RelationCount;
+import disko.flow.analyzers.hgdb.RelationCountFactory;
+
+/**
+ * <p>
+ * Index lookups of relation counts with {@link RelationCountFactory#find} in a temporary
+ * count graph. One query in four is for a relation that isn't in the graph.
+ * </p>
+ */
+public class RelationCountFindBenchmark extends Benchmark
+{
+	private static final int RELATIONS = 20000;
+	private static final int QUERIES = 1024;
+
+	private TempGraph temp;
+	private RelationCount [] queries = new RelationCount[QUERIES];
+	private int next = 0;
+
+	public String getUnit()
+	{
+		return "lookup";
+	}
+
+	public void setup()
+	{
+		temp = new TempGraph("counts");
+		RelationCountFactory.createCountingIndices(temp.getGraph());
+		Random random = new Random(42);
+		List<RelationCount> added = new ArrayList<RelationCount>();
+		for (int i = 0; i < RELATIONS; i++)
+		{
+			RelationCount r = ComputeScoresBenchmark.randomRelation(random);
+			if (RelationCountFactory.find(temp.getGraph(), r) != null)
+				continue;
+			r.setCount(1);
+			temp.getGraph().add(r);
+			added.add(r);
+		}
+		for (int i = 0; i < QUERIES; i++)
+			queries[i] = i % 4 == 0 ? new RelationCount("_missing", "w0", "w1", "noun", "noun")
+									: added.get(random.nextInt(added.size()));
+	}
+
+	public Object op()
+	{
+		RelationCount r = queries[next];
+		next = (next + 1) % QUERIES;
+		return RelationCountFactory.find(temp.getGraph(), r);
+	}
+
+	public void teardown()
+	{
+		temp.close();
+	}
+}
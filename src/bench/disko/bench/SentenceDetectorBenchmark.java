@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import disko.DU;
+import disko.taca.OpenNLPSentenceDetector;
+
+import relex.corpus.TextInterval;
+
+/**
+ * <p>Sentence splitting of a whole document with the OpenNLP detector. With more than
+ * one thread, each operation splits one copy of the document per thread in parallel,
+ * all with the same detector instance.</p>
+ */
+public class SentenceDetectorBenchmark extends Benchmark
+{
+	private int threads;
+	private OpenNLPSentenceDetector detector;
+	private String text;
+	private ExecutorService executor;
+
+	public SentenceDetectorBenchmark()
+	{
+		this(1);
+	}
+
+	public SentenceDetectorBenchmark(int threads)
+	{
+		this.threads = threads;
+	}
+
+	public String getName()
+	{
+		return threads == 1 ? super.getName() : super.getName() + "[" + threads + " threads]";
+	}
+
+	public String getUnit()
+	{
+		return threads == 1 ? "document" : threads + " documents";
+	}
+
+	public void setup() throws Exception
+	{
+		File model = new File(System.getProperty("EnglishModelFilename", 
+		                                         "data/sentence-detector/EnglishSD.bin.gz"));
+		if (!model.exists())
+			throw new Skip("no sentence detection model at " + model);
+		text = DU.readFile(BenchmarkRunner.fixture("headstart.txt").getPath());
+		detector = new OpenNLPSentenceDetector();
+		detector.setEnglishModelFilename(model.getPath());
+		if (threads > 1)
+			executor = Executors.newFixedThreadPool(threads);
+	}
+
+	public Object op() throws Exception
+	{
+		if (threads == 1)
+		{
+			List<TextInterval> sentences = detector.process(text);
+			return sentences;
+		}
+		List<Future<List<TextInterval>>> futures = new ArrayList<Future<List<TextInterval>>>();
+		for (int i = 0; i < threads; i++)
+			futures.add(executor.submit(new Callable<List<TextInterval>>() {
+				public List<TextInterval> call()
+				{
+					return detector.process(text);
+				}
+			}));
+		int count = 0;
+		for (Future<List<TextInterval>> f : futures)
+			count += f.get().size();
+		return count;
+	}
+
+	public void teardown()
+	{
+		if (executor != null)
+			executor.shutdown();
+	}
+}
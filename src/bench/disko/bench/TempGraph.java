@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.bench;
+
+import java.io.File;
+
+import org.hypergraphdb.HGEnvironment;
+import org.hypergraphdb.HyperGraph;
+
+import disko.Disko;
+
+/**
+ * <p>A HyperGraph instance in a fresh temporary directory, deleted on close. If the
+ * graph can't be opened, the benchmark creating it is skipped.</p>
+ */
+public class TempGraph
+{
+	private File location;
+	private HyperGraph graph;
+
+	public TempGraph(String name)
+	{
+		try
+		{
+			location = File.createTempFile("disko-bench-" + name, "");
+			location.delete();
+			location.mkdirs();
+		}
+		catch (Exception ex)
+		{
+			throw new RuntimeException(ex);
+		}
+		try
+		{
+			graph = HGEnvironment.get(location.getAbsolutePath());
+		}
+		catch (Throwable t)
+		{
+			Disko.deleteDirectory(location);
+			throw new Benchmark.Skip("can't open a graph, native storage unavailable? " + t);
+		}
+	}
+
+	public HyperGraph getGraph()
+	{
+		return graph;
+	}
+
+	public void close()
+	{
+		if (graph != null)
+			graph.close();
+		graph = null;
+		Disko.deleteDirectory(location);
+	}
+}
@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.bench;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import disko.saca.trie.CompactTrie;
+import disko.saca.trie.Trie;
+
+/**
+ * <p>
+ * Spelling correction with <code>bestMatch</code> over the weighted search terms
+ * fixture. Queries are terms of the fixture with one character replaced. The
+ * <code>timed</code> variant runs the original time limited search of {@link Trie},
+ * the <code>fuzzy</code> variant the exact incremental edit distance search, and
+ * the <code>compact</code> variant the latter on a {@link CompactTrie}.
+ * </p>
+ */
+public class TrieBestMatchBenchmark extends Benchmark
+{
+	private static final int QUERIES = 256;
+	private static final long MAX_TIME = 1000;
+
+	public static final String TIMED = "timed", FUZZY = "fuzzy", COMPACT = "compact";
+
+	private String variant;
+	private Trie trie;
+	private CompactTrie compactTrie;
+	private String [] queries;
+	private int next = 0;
+
+	public TrieBestMatchBenchmark(String variant)
+	{
+		this.variant = variant;
+	}
+
+	public String getName()
+	{
+		return super.getName() + "[" + variant + "]";
+	}
+
+	public String getUnit()
+	{
+		return "match";
+	}
+
+	public void setup() throws Exception
+	{
+		trie = new Trie(false);
+		List<String> terms = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(BenchmarkRunner.fixture("searchterms.txt.weighted")));
+		try
+		{
+			for (String line = reader.readLine(); line != null; line = reader.readLine())
+			{
+				int comma = line.lastIndexOf(',');
+				if (comma <= 0)
+					continue;
+				String term = line.substring(0, comma).trim();
+				trie.insert(term, Double.parseDouble(line.substring(comma + 1)));
+				terms.add(term);
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+		if (COMPACT.equals(variant))
+			compactTrie = new CompactTrie(trie);
+		Random random = new Random(42);
+		queries = new String[QUERIES];
+		for (int i = 0; i < QUERIES; i++)
+		{
+			char [] q = terms.get(random.nextInt(terms.size())).toCharArray();
+			q[random.nextInt(q.length)] = (char)('a' + random.nextInt(26));
+			queries[i] = new String(q);
+		}
+	}
+
+	@SuppressWarnings("deprecation")
+	public Object op()
+	{
+		String q = queries[next];
+		next = (next + 1) % QUERIES;
+		if (TIMED.equals(variant))
+			return trie.bestMatch(q, MAX_TIME);
+		else if (FUZZY.equals(variant))
+			return trie.bestMatch(q);
+		else
+			return compactTrie.bestMatch(q);
+	}
+}
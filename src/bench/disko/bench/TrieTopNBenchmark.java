@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import disko.saca.trie.CompactTrie;
+import disko.saca.trie.Trie;
+
+/**
+ * <p>
+ * Autocompletion with <code>topN</code> over the weighted search terms fixture, either
+ * with a {@link Trie} or with a memory mapped {@link CompactTrie}. Queries are prefixes
+ * of one to four characters of the fixture's terms.
+ * </p>
+ */
+public class TrieTopNBenchmark extends Benchmark
+{
+	private static final int QUERIES = 256;
+	private static final int N = 10;
+
+	private boolean compact;
+	private Trie trie;
+	private CompactTrie compactTrie;
+	private File file;
+	private String [] queries;
+	private int next = 0;
+
+	public TrieTopNBenchmark(boolean compact)
+	{
+		this.compact = compact;
+	}
+
+	public String getName()
+	{
+		return super.getName() + (compact ? "[compact]" : "[hashmap]");
+	}
+
+	public String getUnit()
+	{
+		return "query";
+	}
+
+	public void setup() throws Exception
+	{
+		File terms = BenchmarkRunner.fixture("searchterms.txt.weighted");
+		compactTrie = CompactTrie.fromWeightedTerms(terms, false);
+		if (compact)
+		{
+			file = File.createTempFile("disko-bench-trie", ".trie");
+			compactTrie.save(file);
+			compactTrie = CompactTrie.load(file);
+		}
+		else
+		{
+			trie = new Trie(false);
+			for (String t : compactTrie.topN("", compactTrie.size()))
+				trie.insert(t, compactTrie.weight(t));
+		}
+		List<String> all = compactTrie.topN("", compactTrie.size());
+		Random random = new Random(42);
+		queries = new String[QUERIES];
+		for (int i = 0; i < QUERIES; i++)
+		{
+			String t = all.get(random.nextInt(all.size()));
+			queries[i] = t.substring(0, Math.min(t.length(), 1 + random.nextInt(4)));
+		}
+	}
+
+	public Object op()
+	{
+		String q = queries[next];
+		next = (next + 1) % QUERIES;
+		return compact ? compactTrie.topN(q, N) : trie.topN(q, N);
+	}
+
+	public void teardown()
+	{
+		if (file != null)
+			file.delete();
+	}
+}
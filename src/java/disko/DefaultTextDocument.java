@@ -39,6 +39,11 @@ public class DefaultTextDocument extends UrlTextDocument
 		super(url);
 	}
 	
+	public DefaultTextDocument(URL url, String content)
+	{
+		super(url, content);
+	}
+	
 	public DefaultTextDocument(File f)
 	{
 		super(f);
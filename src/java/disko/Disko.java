@@ -13,13 +13,16 @@ package disko;
 
 import java.io.File;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
 import org.hypergraphdb.HGEnvironment;
 import org.hypergraphdb.HGHandle;
 import org.hypergraphdb.HGQuery.hg;
 import org.hypergraphdb.HyperGraph;
 import org.hypergraphdb.app.management.HGManagement;
+import disko.flow.metrics.PipelineMetrics;
 import disko.flow.networks.IENetworkCoarse;
+import disko.flow.networks.NetworkPool;
 
 public class Disko
 {
@@ -40,6 +43,7 @@ public class Disko
     public String hgdbURL = DEFAULT_HGDB;
 
     private HyperGraph graph;
+    private NetworkPool<AnalysisContext<TextDocument>, IENetworkCoarse> networks;
 
     public static final boolean DETECT_SENTENCES = true;
 
@@ -138,6 +142,8 @@ public class Disko
 
     public void destroy()
     {
+        if (networks != null)
+            networks.shutdown();
         if (graph != null)
             graph.close();
     }
@@ -160,12 +166,58 @@ public class Disko
         return ctx;
     }
 
+    /**
+     * <p>
+     * Return the pool of warm IE networks used to process documents. Its size, i.e. the
+     * maximum number of documents processed concurrently, is given by the <code>disko.networks</code>
+     * system property and defaults to 1. When the <code>disko.metrics</code> system property is
+     * set, the networks are instrumented with the "disko" {@link PipelineMetrics}.
+     * </p>
+     * 
+     * <p>
+     * Concurrent networks share relex's entity detector, whose use is serialized, and
+     * add new words and entities to the graph transactionally, so that two documents 
+     * mentioning the same new entity don't create it twice.
+     * </p>
+     */
+    public synchronized NetworkPool<AnalysisContext<TextDocument>, IENetworkCoarse> getNetworks()
+    {
+        if (networks == null)
+        {
+            int size = Integer.parseInt(System.getProperty("disko.networks", "1"));
+            final PipelineMetrics metrics = PipelineMetrics.fromSystemProperties("disko");
+            networks = new NetworkPool<AnalysisContext<TextDocument>, IENetworkCoarse>(
+                new Callable<IENetworkCoarse>() 
+                {
+                    public IENetworkCoarse call()
+                    {
+                        IENetworkCoarse net = new IENetworkCoarse();
+                        net.create();
+                        net.setDaemon(true);
+                        if (metrics != null)
+                            metrics.instrument(net);
+                        return net;
+                    }
+                },
+                size);
+        }
+        return networks;
+    }
+
+    /**
+     * <p>
+     * Process a document asynchronously. Several documents can be kept in flight this way,
+     * up to the size of the network pool.
+     * </p>
+     */
+    public Future<Boolean> submit(AnalysisContext<TextDocument> ctx)
+    {
+        return getNetworks().submit(ctx);
+    }
+
     public void process(AnalysisContext<TextDocument> ctx)
     {
-        IENetworkCoarse net = new IENetworkCoarse();
-        net.create();
-        net.setDaemon(true);
-        Future<Boolean> f = (Future<Boolean>)net.start(ctx);
+        Future<Boolean> f = submit(ctx);
         try
         {
             System.out.println("Processing completed: " + f.get());
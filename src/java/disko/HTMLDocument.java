@@ -226,6 +226,15 @@ public class HTMLDocument extends UrlTextDocument
         super(url);
     }
 
+    /**
+     * <p>Create a document from HTML already downloaded from <code>url</code>.</p>
+     */
+    public HTMLDocument(URL url, String htmlText)
+    {
+        super(url);
+        this.htmlText = htmlText;
+    }
+
     public HTMLDocument(File f)
     {
         super(f);
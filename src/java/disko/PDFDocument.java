@@ -11,6 +11,7 @@
  ******************************************************************************/
 package disko;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 
 import java.io.FilenameFilter;
@@ -21,6 +22,7 @@ import java.net.URL;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.hypergraphdb.annotation.HGIgnore;
 import org.pdfbox.pdmodel.PDDocument;
 import org.pdfbox.pdmodel.PDPage;
 import org.pdfbox.util.PDFTextStripper;
@@ -31,13 +33,18 @@ public class PDFDocument extends DefaultTextDocument
 	
 	private static Log log = LogFactory.getLog(PDFDocument.class);
 	
+	// The PDF file already downloaded by the creator of the document, if any.
+	@HGIgnore
+	private byte [] data;
+	
 	protected synchronized String load()
 	{
 		final StringWriter stringOutput = new StringWriter();
         PDDocument document = null;
         try 
         {
-        	document = PDDocument.load(ContentDownloader.getInstance().getInputStream(getUrlString()));
+        	document = PDDocument.load(data != null ? new ByteArrayInputStream(data) :
+        							   ContentDownloader.getInstance().getInputStream(getUrlString()));
         	title = document.getDocumentInformation().getTitle();
             PDFTextStripper stripper = new PDFTextStripper()
             {
@@ -104,6 +111,16 @@ public class PDFDocument extends DefaultTextDocument
 		super(url);
 	}
 	
+	/**
+	 * <p>Create a document from the contents of a PDF file already downloaded from
+	 * <code>url</code>.</p>
+	 */
+	public PDFDocument(URL url, byte [] data)
+	{
+		super(url);
+		this.data = data;
+	}
+	
 	public PDFDocument(File f)
 	{
 		super(f);
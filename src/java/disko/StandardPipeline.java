@@ -31,6 +31,7 @@ import disko.flow.analyzers.SentenceAnalyzer;
 import disko.flow.analyzers.ToRelOccAnalyzer;
 import disko.flow.analyzers.hgdb.HGDBSaver;
 import disko.flow.analyzers.socket.SocketTransmitter;
+import disko.flow.networks.NetworkPool;
 
 import relex.concurrent.RelexTaskResult;
 import relex.entity.EntityMaintainer;
@@ -145,6 +146,8 @@ public class StandardPipeline
 	{
 		AnalysisContext<TextDocument> ctx = new AnalysisContext<TextDocument>(graph, doc);
 		ctx.pushScoping(graph.add(doc));
+		// The network is re-used for all documents, so clean up channels from the previous run.
+		NetworkPool.reset(network);
 		return network.start(ctx);
 	}
 	
@@ -36,6 +36,9 @@ public class UrlTextDocument implements TextDocument
     protected WeakReference<String> fullText = new WeakReference<String>(null);
     @HGIgnore
     protected ArrayList<Ann> annotations = new ArrayList<Ann>();
+    // Text already downloaded by the creator of the document, e.g. the crawler.
+    @HGIgnore
+    protected String content;
 
     public UrlTextDocument()
     {
@@ -61,6 +64,18 @@ public class UrlTextDocument implements TextDocument
             urlString = url.toExternalForm();
     }
 
+    /**
+     * <p>
+     * Create a document whose text has already been downloaded from <code>url</code>,
+     * so that it is never fetched again.
+     * </p>
+     */
+    public UrlTextDocument(URL url, String content)
+    {
+        this(url);
+        this.content = content;
+    }
+
     public UrlTextDocument(File f)
     {
         try
@@ -78,7 +93,7 @@ public class UrlTextDocument implements TextDocument
     {    	
         try
         {
-        	return (fullText = new WeakReference<String>(
+        	return (fullText = new WeakReference<String>(content != null ? content :
         			ContentDownloader.getInstance().readText(urlString))).get();         	
         }		
         catch (Exception ex)
@@ -107,6 +122,8 @@ public class UrlTextDocument implements TextDocument
     public Reader createReader() throws IOException
     {
         String s = fullText.get();
+        if (s == null)
+            s = content;
         if (s != null)
             return new CharSequenceReader(s);
         else
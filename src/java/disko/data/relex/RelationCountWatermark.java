@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ * 
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.data.relex;
+
+/**
+ * <p>
+ * Records how far relation counting has progressed: the document being counted,
+ * the number of its sentences whose counts are stored and global totals. It is
+ * updated in the same transaction as the counts themselves so that, after a crash,
+ * the count graph reflects exactly the sentences described by the watermark.
+ * </p>
+ */
+public class RelationCountWatermark
+{
+	private String document;
+	private int sentence;
+	private long totalSentences;
+	private long totalCounts;
+	private long timestamp;
+	
+	public RelationCountWatermark()
+	{		
+	}
+
+	public String getDocument()
+	{
+		return document;
+	}
+
+	public void setDocument(String document)
+	{
+		this.document = document;
+	}
+
+	/**
+	 * <p>Return the number of sentences of the current document that have been 
+	 * counted.</p> 
+	 */
+	public int getSentence()
+	{
+		return sentence;
+	}
+
+	public void setSentence(int sentence)
+	{
+		this.sentence = sentence;
+	}
+
+	public long getTotalSentences()
+	{
+		return totalSentences;
+	}
+
+	public void setTotalSentences(long totalSentences)
+	{
+		this.totalSentences = totalSentences;
+	}
+
+	public long getTotalCounts()
+	{
+		return totalCounts;
+	}
+
+	public void setTotalCounts(long totalCounts)
+	{
+		this.totalCounts = totalCounts;
+	}
+
+	public long getTimestamp()
+	{
+		return timestamp;
+	}
+
+	public void setTimestamp(long timestamp)
+	{
+		this.timestamp = timestamp;
+	}
+	
+	public String toString()
+	{
+		return "RelationCountWatermark[" + document + ":" + sentence + ", sentences=" + 
+			totalSentences + ", counts=" + totalCounts + "]";
+	}
+}
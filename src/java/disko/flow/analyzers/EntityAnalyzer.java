@@ -12,6 +12,7 @@
 package disko.flow.analyzers;
 
 import java.util.ArrayList;
+import java.util.List;
 
 
 import org.apache.commons.logging.Log;
@@ -24,10 +25,21 @@ import org.hypergraphdb.app.dataflow.Ports;
 import disko.AnalysisContext;
 import disko.SentenceAnn;
 import disko.TextDocument;
+import disko.relex.OpenNLPEntityMaintainerFactory;
 import relex.corpus.EntityMaintainerFactory;
 import relex.entity.EntityInfo;
 import relex.entity.EntityMaintainer;
 
+/**
+ * <p>
+ * Detects the entities of each sentence with an <code>EntityMaintainerFactory</code>, by
+ * default relex's shared one. The sentences already waiting on the input channel, up to
+ * <code>batchSize</code>, are handed to an {@link OpenNLPEntityMaintainerFactory} as one
+ * batch, without locking since it is thread-safe. Other detectors (GATE in particular)
+ * keep per-call state, so they are called one sentence at a time and never by two
+ * analyzers at once.
+ * </p>
+ */
 public class EntityAnalyzer extends AbstractProcessor<AnalysisContext<TextDocument>>
 {
     private static Log log = LogFactory.getLog(EntityAnalyzer.class);
@@ -39,6 +51,7 @@ public class EntityAnalyzer extends AbstractProcessor<AnalysisContext<TextDocume
     private EntityMaintainerFactory entityDetector;
     private String inputChannel = SentenceAnalyzer.SENTENCE_CHANNEL;
     private String outputChannel = ENTITY_CHANNEL;
+    private int batchSize = 32;
 
     public EntityAnalyzer()
     {
@@ -65,22 +78,53 @@ public class EntityAnalyzer extends AbstractProcessor<AnalysisContext<TextDocume
     {
         InputPort<SentenceAnn> inputPort = ports.getInput(inputChannel);
         OutputPort<EntityMaintainer> outputPort = ports.getOutput(outputChannel);
-        for (SentenceAnn sentence = inputPort.take(); !inputPort.isEOS(sentence); sentence = inputPort.take())
+        List<String> batch = new ArrayList<String>();
+        boolean eos = false;
+        while (!eos)
         {
-            log.debug("Read: '" + sentence + "'" + " on detector "
-                      + entityDetector);
-            EntityMaintainer entityMaintainer = entityDetector.makeEntityMaintainer(sentence.getSentence());
-            if (entityMaintainer.getOriginalSentence() == null)
+            // Block for one sentence, then take those already waiting.
+            batch.clear();
+            SentenceAnn sentence = inputPort.take();
+            while (sentence != null && !inputPort.isEOS(sentence))
             {
-                entityMaintainer = entityDetector.makeEntityMaintainer(sentence.getSentence());
+                log.debug("Read: '" + sentence + "'" + " on detector "
+                          + entityDetector);
+                batch.add(sentence.getSentence());
+                sentence = batch.size() < batchSize ? inputPort.poll() : null;
             }
-            log.debug("Writing: '" + entityMaintainer.getConvertedSentence()
-                      + "'");
-            if (!outputPort.put(entityMaintainer))
+            eos = sentence != null;
+            if (batch.isEmpty())
                 break;
+            for (EntityMaintainer entityMaintainer : detect(batch))
+            {
+                log.debug("Writing: '" + entityMaintainer.getConvertedSentence()
+                          + "'");
+                if (!outputPort.put(entityMaintainer))
+                    return;
+            }
         }
     }
 
+    private List<EntityMaintainer> detect(List<String> batch)
+    {
+        if (entityDetector instanceof OpenNLPEntityMaintainerFactory)
+            return ((OpenNLPEntityMaintainerFactory)entityDetector).makeEntityMaintainers(batch);
+        List<EntityMaintainer> result = new ArrayList<EntityMaintainer>(batch.size());
+        synchronized (entityDetector)
+        {
+            for (String sentence : batch)
+            {
+                EntityMaintainer entityMaintainer = entityDetector.makeEntityMaintainer(sentence);
+                if (entityMaintainer.getOriginalSentence() == null)
+                {
+                    entityMaintainer = entityDetector.makeEntityMaintainer(sentence);
+                }
+                result.add(entityMaintainer);
+            }
+        }
+        return result;
+    }
+
     public EntityMaintainerFactory getEntityDetector()
     {
         return entityDetector;
@@ -91,6 +135,19 @@ public class EntityAnalyzer extends AbstractProcessor<AnalysisContext<TextDocume
         this.entityDetector = entityDetector;
     }
 
+    public int getBatchSize()
+    {
+        return batchSize;
+    }
+
+    /**
+     * <p>Set the maximum number of waiting sentences handed to the detector at once.</p>
+     */
+    public void setBatchSize(int batchSize)
+    {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
     public String getInputChannel()
     {
         return inputChannel;
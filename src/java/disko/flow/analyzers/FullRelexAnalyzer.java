@@ -11,17 +11,13 @@
  ******************************************************************************/
 package disko.flow.analyzers;
 
+import java.io.File;
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
@@ -33,16 +29,10 @@ import org.hypergraphdb.app.dataflow.Ports;
 
 import disko.AnalysisContext;
 import disko.TextDocument;
-import relex.algs.SentenceAlgorithmApplier;
-import relex.concurrent.RelexContext;
-import relex.concurrent.RelexTask;
+import disko.relex.RelexParserPool;
+import disko.relex.RelexResultCache;
 import relex.concurrent.RelexTaskResult;
 import relex.entity.EntityMaintainer;
-import relex.morphy.Morphy;
-import relex.morphy.MorphyFactory;
-import relex.parser.LGParser;
-import relex.parser.LocalLGParser;
-import relex.parser.RemoteLGParser;
 
 // import relex.tree.PhraseMarkup;
 
@@ -61,6 +51,18 @@ import relex.parser.RemoteLGParser;
  * are configured just be setting how many threads you want with the
  * {@link setInProcessParsers} method.  
  * </p>
+ * 
+ * <p>
+ * Parsers are obtained from a {@link RelexParserPool} shared by all identically
+ * configured processors, so link grammar connections and parsing threads survive
+ * from one document (and one network run) to the next.
+ * </p>
+ * 
+ * <p>
+ * The pool caches parse results, so repeated sentences (navigation, footers etc.)
+ * are not parsed again. Set a {@link #setResultCacheDirectory result cache directory}
+ * to keep the results on disk as well, across runs.
+ * </p>
  */
 public class FullRelexAnalyzer extends AbstractProcessor<AnalysisContext<TextDocument>>
 {
@@ -88,35 +90,14 @@ public class FullRelexAnalyzer extends AbstractProcessor<AnalysisContext<TextDoc
     public static final int DEFAULT_FIRST_PORT = 9000;
     public static final String PARSE_CHANNEL = "PARSE_CHANNEL";
 
-    private transient ExecutorService exec;
-    private transient BlockingQueue<RelexContext> pool;
+    private transient RelexParserPool pool;
     private ArrayList<HostPort> hosts;
     private int inProcessParsers = 0;
     public int count = 0;
 
-    /** Syntactic processing */
-    // private LinkParser linkParser = new LinkParser();
-    // Morphological analysis
-    private transient Morphy morphy = null;
-
-    /** Semantic (RelEx) processing */
-    private transient SentenceAlgorithmApplier sentenceAlgorithmApplier;
-
-    /** Penn tree-bank style phrase structure markup. */
-    // private PhraseMarkup phraseMarkup;
     private int maxParses = -1, maxCost = -1, maxParseSeconds = -1;
+    private String resultCacheDirectory = null;
 
-    private void configureParser(LGParser parser)
-    {
-        parser.getConfig().setAllowSkippedWords(true);
-        if (maxParses > -1)
-            parser.getConfig().setMaxLinkages(maxParses);
-        if (maxCost > -1)
-            parser.getConfig().setMaxCost(maxCost);
-        if (maxParseSeconds > -1)
-            parser.getConfig().setMaxParseSeconds(maxParseSeconds);        
-    }
-    
     public FullRelexAnalyzer()
     {
     }
@@ -139,17 +120,14 @@ public class FullRelexAnalyzer extends AbstractProcessor<AnalysisContext<TextDoc
     }
 
     /**
-     * Initialize the pool of LinkParserClients, creating CLIENT_POOL_SIZE
-     * instances, which connects to ports FIRST_PORT, FIRST_PORT+1, ...,
-     * FIRST_PORT+(CLIENT_POOL_SIZE-1)
+     * Obtain the shared parser pool for this processor's configuration: one parser
+     * per configured host/port pair (connecting to DEFAULT_FIRST_PORT, 
+     * DEFAULT_FIRST_PORT+1, ..., on localhost if none were configured) plus 
+     * the in-process parsers. The pool outlives this processor and is reused
+     * by all identically configured processors.
      */
-    private void initializePool() throws InterruptedException
+    private void initializePool()
     {
-        sentenceAlgorithmApplier = new SentenceAlgorithmApplier();
-        // phraseMarkup = new PhraseMarkup();
-        if (morphy == null)
-            morphy = MorphyFactory.getImplementation();
-
         if ((hosts == null) || (hosts.size() == 0))
         {
             for (int i = 0; i < DEFAULT_CLIENT_COUNT; i++)
@@ -157,40 +135,15 @@ public class FullRelexAnalyzer extends AbstractProcessor<AnalysisContext<TextDoc
                 addHost(DEFAULT_HOST, DEFAULT_FIRST_PORT + i);
             }
         }
-        
-        final ClassLoader loader = Thread.currentThread().getContextClassLoader();
-        // +1 submission thread
-        exec = Executors.newFixedThreadPool(hosts.size() + 1,
-                                            new ThreadFactory()
-                                            {
-                                                public Thread newThread(Runnable r)
-                                                {
-                                                    Thread t = new Thread(r);
-                                                    t.setContextClassLoader(loader);
-                                                    t.setDaemon(true);
-                                                    return t;
-                                                }
-                                            }                                    
-                                            );
-        pool = new ArrayBlockingQueue<RelexContext>(hosts.size() + inProcessParsers);
-
+        ArrayList<RelexParserPool.Endpoint> endpoints = new ArrayList<RelexParserPool.Endpoint>();
         for (HostPort hp : hosts)
-        {
-            RemoteLGParser parser = new RemoteLGParser();
-            parser.getLinkGrammarClient().setHostname(hp.host);
-            parser.getLinkGrammarClient().setPort(hp.port);
-            configureParser(parser);
-            RelexContext context = new RelexContext(parser, morphy);
-            pool.put(context);
-        }
-        
-        for (int i = hosts.size(); i < pool.size(); i++)
-        {
-            LocalLGParser parser = new LocalLGParser();
-            configureParser(parser);
-            RelexContext context = new RelexContext(parser, morphy);            
-            pool.put(context);
-        }
+            endpoints.add(new RelexParserPool.Endpoint(hp.host, hp.port));
+        for (int i = 0; i < inProcessParsers; i++)
+            endpoints.add(new RelexParserPool.Endpoint(null, -1));
+        pool = RelexParserPool.getShared(endpoints, maxParses, maxCost, maxParseSeconds);
+        RelexResultCache cache = pool.getResultCache();
+        if (resultCacheDirectory != null && cache != null && cache.getDirectory() == null)
+            cache.setDirectory(new File(resultCacheDirectory));
     }
 
     public void addHost(String host, int port)
@@ -200,44 +153,49 @@ public class FullRelexAnalyzer extends AbstractProcessor<AnalysisContext<TextDoc
         hosts.add(new HostPort(host, port));
     }
 
-    public void init()
+    public synchronized void init()
     {
-        try
-        {
+        if (pool == null)
             initializePool();
-        }
-        catch (InterruptedException ex)
-        {
-            throw new RuntimeException("Initialization interrupted.");
-        }
     }
 
-    public void destroy()
+    /**
+     * <p>
+     * Release this processor's hold on its parser pool. The pool itself stays
+     * alive for other documents and networks - use {@link RelexParserPool#shutdownAll()} 
+     * to actually close all parsers.
+     * </p>
+     */
+    public synchronized void destroy()
     {
-        // for (RelexContext ctx : pool)
-        // ctx.getLinkParserClient().close();
         if (pool != null)
         {
-            pool.clear();
+            pool.release();
             pool = null;
         }
-        if (exec != null)
-        {
-            exec.shutdownNow();
-            exec = null;
-        }
+    }
+
+    /**
+     * <p>Return the parser pool used by this processor, or <code>null</code> if
+     * it hasn't been initialized yet.</p>
+     */
+    public RelexParserPool getPool()
+    {
+        return pool;
     }
 
     public void process(AnalysisContext<TextDocument> ctx, Ports ports) throws InterruptedException
     {
-        if (pool == null)
-            init();
+        init();
+        // Sentences are numbered from 0 in each run, pooled networks run many documents.
+        count = 0;
+        final RelexParserPool pool = this.pool;
         final InputPort<EntityMaintainer> inputPort = ports.getInput(EntityAnalyzer.ENTITY_CHANNEL);
         final OutputPort<RelexTaskResult> outputPort = ports.getOutput(PARSE_CHANNEL);
         final LinkedBlockingQueue<Future<RelexTaskResult>> futureResults = 
             new LinkedBlockingQueue<Future<RelexTaskResult>>(outputPort.getChannel().getCapacity());
         log.debug("Starting LinkGrammarAnalyzer...");
-        exec.submit(new Callable<Integer>()
+        pool.submitBackground(new Callable<Integer>()
         {
             public Integer call() throws Exception
             {
@@ -245,7 +203,7 @@ public class FullRelexAnalyzer extends AbstractProcessor<AnalysisContext<TextDoc
                 {
                     log.debug("LinkGrammarAnalyzer from channel + " + inputPort.getChannel());
                     for (EntityMaintainer em = inputPort.take(); !inputPort.isEOS(em); em = inputPort.take())
-                        submitTask(em, futureResults);
+                        submitTask(pool, em, futureResults);
                 }
                 catch (Throwable t)
                 {
@@ -306,28 +264,20 @@ public class FullRelexAnalyzer extends AbstractProcessor<AnalysisContext<TextDoc
         finally
         {
             outputPort.close();
-            /*
-             * exec.shutdown(); for (RelexContext context: pool){
-             * context.getLinkParserClient().close(); }
-             */
-            destroy();
         }
     }
 
-    protected void submitTask(EntityMaintainer input, LinkedBlockingQueue<Future<RelexTaskResult>> results)
+    protected void submitTask(RelexParserPool pool, 
+                              EntityMaintainer input, 
+                              LinkedBlockingQueue<Future<RelexTaskResult>> results)
         throws InterruptedException
     {
-        RelexContext context = pool.take();
-        Callable<RelexTaskResult> callable = new RelexTask(count++,
-                                                           input.getOriginalSentence()
-                                                               .replace('\n',' ')
-                                                               .replace('\r',' '),
-                                                           input,
-                                                           sentenceAlgorithmApplier,
-                                                           null /* phraseMarkup */,
-                                                           context, pool);
-        Future<RelexTaskResult> submit = exec.submit(callable);
-        log.debug("LinkGrammarAnalyzer submitted " + callable);
+        Future<RelexTaskResult> submit = pool.submit(count++,
+                                                     input.getOriginalSentence()
+                                                         .replace('\n',' ')
+                                                         .replace('\r',' '),
+                                                     input);
+        log.debug("LinkGrammarAnalyzer submitted sentence " + (count - 1));
         results.put(submit);
     }
 
@@ -361,6 +311,23 @@ public class FullRelexAnalyzer extends AbstractProcessor<AnalysisContext<TextDoc
         this.maxParseSeconds = maxParseSeconds;
     }
 
+    public String getResultCacheDirectory()
+    {
+        return resultCacheDirectory;
+    }
+
+    /**
+     * <p>
+     * Set the directory where parse results are cached on disk, in addition to memory.
+     * The directory is shared by all identically configured processors; the first one
+     * initialized with a directory sets it.
+     * </p>
+     */
+    public void setResultCacheDirectory(String resultCacheDirectory)
+    {
+        this.resultCacheDirectory = resultCacheDirectory;
+    }
+
     /**
      * <p>Return the number of threads dedicated to in-process instances of the
      * LinkGrammar parser.</p>
@@ -33,6 +33,7 @@ import disko.data.relex.RelOccurrence;
 import disko.data.relex.RelationCount;
 import disko.data.relex.SentenceInterpretation;
 import disko.flow.analyzers.hgdb.RelationCountFactory;
+import disko.flow.analyzers.hgdb.RelationCountStore;
 
 import relex.entity.EntityMaintainer;
 
@@ -43,6 +44,11 @@ import relex.entity.EntityMaintainer;
  * SentenceInterpretation with the highest rank.
  * </p>
  * 
+ * <p>
+ * Relation counts are read from the in-memory {@link RelationCountStore} of 
+ * the count graph rather than from the database.
+ * </p>
+ * 
  * @author Borislav Iordanov, Murilo Queiroz
  * 
  */
@@ -60,14 +66,14 @@ public class ParseSelectAnalyzer extends AbstractProcessor<AnalysisContext<TextD
         if (!DU.isEmpty(graphLocation))
         {
             graph = HGEnvironment.get(graphLocation);
-            RelationCountFactory.loadCounts(graph);
+            RelationCountStore.get(graph);
         }
     }
 
     public ParseSelectAnalyzer(HyperGraph graph)
     {
         this.graph = graph;
-        RelationCountFactory.loadCounts(graph);
+        RelationCountStore.get(graph);
     }
 
     public void process(AnalysisContext<TextDocument> ctx, Ports ports) throws InterruptedException
@@ -75,7 +81,7 @@ public class ParseSelectAnalyzer extends AbstractProcessor<AnalysisContext<TextD
         final HyperGraph graph = this.graph != null ? this.graph
                                                    : ctx.getGraph();
 
-        RelationCountFactory.createCountingIndices(graph);
+        final RelationCountStore counts = RelationCountStore.get(graph);
 
         InputPort<EntityMaintainer> entityInput = ports.getInput(EntityAnalyzer.ENTITY_CHANNEL);
         InputPort<Set<SentenceInterpretation>> sentenceInput = ports.getInput(ToRelOccAnalyzer.SENTENCE_INTERPRETATIONS);
@@ -104,7 +110,7 @@ public class ParseSelectAnalyzer extends AbstractProcessor<AnalysisContext<TextD
                 }
 //                    RelationCountFactory.getRelationCounts(entityTypes, i.getParse());
 
-                double score = computeScores(graph, relationCounts);
+                double score = computeScores(counts, relationCounts);
                 ranked.put(score, i);
             }
             SentenceInterpretation best = ranked.get(ranked.lastKey());            
@@ -113,61 +119,24 @@ public class ParseSelectAnalyzer extends AbstractProcessor<AnalysisContext<TextD
         out.close();
     }
 
-    private double computeScores(final HyperGraph graph,
-                                 ArrayList<RelationCount> relationCounts)
+    /**
+     * <p>Return the average log-likelihood score of a parse given the counts of
+     * its relations.</p>
+     */
+    public static double computeScores(final RelationCountStore counts,
+                                       List<RelationCount> relationCounts)
     {
         double score = 0;
         for (RelationCount r : relationCounts)
         {
-            String pred = r.getPredicate();
-            String arg0 = r.getArg0();
-            String arg1 = r.getArg1();
-            String pos0 = r.getPos0();
-            String pos1 = r.getPos1();
-            final String ANY = RelationCountFactory.ANY;
-            double T = RelationCountFactory.getCount(
-                                                     graph,
-                                                     new RelationCount(ANY,
-                                                                       ANY,
-                                                                       ANY,
-                                                                       ANY, ANY));
-            double P01 = RelationCountFactory.getCount(graph,
-                                                       new RelationCount(pred,
-                                                                         arg0,
-                                                                         arg1,
-                                                                         pos0,
-                                                                         pos1));
-            double PXX = RelationCountFactory.getCount(graph,
-                                                       new RelationCount(pred,
-                                                                         ANY,
-                                                                         ANY,
-                                                                         pos0,
-                                                                         pos1));
-            double PX1 = RelationCountFactory.getCount(graph,
-                                                       new RelationCount(pred,
-                                                                         ANY,
-                                                                         arg1,
-                                                                         pos0,
-                                                                         pos1));
-            double P0X = RelationCountFactory.getCount(graph,
-                                                       new RelationCount(pred,
-                                                                         arg0,
-                                                                         ANY,
-                                                                         pos0,
-                                                                         pos1));
-            double X0X = RelationCountFactory.getCount(graph,
-                                                       new RelationCount(ANY,
-                                                                         arg0,
-                                                                         ANY,
-                                                                         pos0,
-                                                                         ANY));
-            double XX1 = RelationCountFactory.getCount(graph,
-                                                       new RelationCount(ANY,
-                                                                         ANY,
-                                                                         arg1,
-                                                                         ANY,
-                                                                         pos1));
-            ;
+            double [] marginals = counts.getMarginals(r);
+            double T = marginals[RelationCountStore.T];
+            double P01 = marginals[RelationCountStore.P01];
+            double PXX = marginals[RelationCountStore.PXX];
+            double PX1 = marginals[RelationCountStore.PX1];
+            double P0X = marginals[RelationCountStore.P0X];
+            double X0X = marginals[RelationCountStore.X0X];
+            double XX1 = marginals[RelationCountStore.XX1];
 
             if (T == 0)
                 T = 1;
@@ -15,7 +15,6 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.UUID;
 
-import org.hypergraphdb.HyperGraph;
 import org.hypergraphdb.app.dataflow.AbstractProcessor;
 import org.hypergraphdb.app.dataflow.DataFlowException;
 import org.hypergraphdb.app.dataflow.InputPort;
@@ -29,6 +28,7 @@ import disko.TextDocument;
 import disko.data.relex.RelationCount;
 import disko.data.relex.RelexParse;
 import disko.flow.analyzers.hgdb.RelationCountFactory;
+import disko.flow.analyzers.hgdb.RelationCountStore;
 
 import relex.entity.EntityMaintainer;
 
@@ -43,7 +43,7 @@ public class ParseSelectProcessor extends AbstractProcessor<AnalysisContext<Text
         InputPort<RelexParse> parseInput = ports.getInput(RelexProcessor.RELEX_ANNOTATED_CHANNEL);       
         OutputPort<RelexParse> out = ports.getOutput(SELECTED_PARSE_CHANNEL);
         
-        RelationCountFactory.createCountingIndices(ctx.getGraph());
+        RelationCountStore counts = RelationCountStore.get(ctx.getGraph());
         
         RelexParse parse = parseInput.take();
         RelexParse best = parse;
@@ -66,7 +66,7 @@ public class ParseSelectProcessor extends AbstractProcessor<AnalysisContext<Text
             
             while (currentSentence.equals(parse.getSentenceId()))
             {
-                double score = computeScores(ctx.getGraph(), 
+                double score = computeScores(counts, 
                                              RelationCountFactory.getRelationCounts(entityTypes, 
                                                                                     parse));
                 double linkageFactor = 1.0;
@@ -90,7 +90,7 @@ public class ParseSelectProcessor extends AbstractProcessor<AnalysisContext<Text
             throw new DataFlowException("EntityMaintainer and Sentence Parse channels are out of sync.");            
     }
     
-    private double computeScores(final HyperGraph graph,
+    private double computeScores(final RelationCountStore counts,
                                  List<RelationCount> relationCounts)
     {
         if (relationCounts.isEmpty())
@@ -98,33 +98,14 @@ public class ParseSelectProcessor extends AbstractProcessor<AnalysisContext<Text
         double score = 0;
         for (RelationCount r : relationCounts)
         {
-            String pred = r.getPredicate();
-            String arg0 = r.getArg0();
-            String arg1 = r.getArg1();
-            String pos0 = r.getPos0();
-            String pos1 = r.getPos1();
-            final String ANY = RelationCountFactory.ANY;
-            double T = RelationCountFactory.getCount(
-                 graph,
-                 new RelationCount(ANY, ANY, ANY, ANY, ANY));
-            double P01 = RelationCountFactory.getCount(
-                 graph,
-                 new RelationCount(pred, arg0, arg1, pos0, pos1));
-            double PXX = RelationCountFactory.getCount(
-                 graph,
-                 new RelationCount(pred, ANY, ANY, pos0, pos1));
-            double PX1 = RelationCountFactory.getCount(
-                 graph,
-                 new RelationCount(pred, ANY, arg1, pos0, pos1));
-            double P0X = RelationCountFactory.getCount(
-                 graph,
-                 new RelationCount(pred, arg0, ANY, pos0, pos1));
-            double X0X = RelationCountFactory.getCount(
-                 graph,
-                 new RelationCount(ANY, arg0, ANY, pos0, ANY));
-            double XX1 = RelationCountFactory.getCount(
-                 graph,
-                 new RelationCount(ANY, ANY, arg1, ANY, pos1));
+            double [] marginals = counts.getMarginals(r);
+            double T = marginals[RelationCountStore.T];
+            double P01 = marginals[RelationCountStore.P01];
+            double PXX = marginals[RelationCountStore.PXX];
+            double PX1 = marginals[RelationCountStore.PX1];
+            double P0X = marginals[RelationCountStore.P0X];
+            double X0X = marginals[RelationCountStore.X0X];
+            double XX1 = marginals[RelationCountStore.XX1];
             if (T == 0)
                 T = 1;
             if (P01 == 0)
@@ -11,20 +11,28 @@
  ******************************************************************************/
 package disko.flow.analyzers.hgdb;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 
-
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HGPersistentHandle;
+import org.hypergraphdb.HyperGraph;
 import org.hypergraphdb.HGQuery.hg;
 import org.hypergraphdb.app.dataflow.AbstractProcessor;
 import org.hypergraphdb.app.dataflow.DataFlowException;
 import org.hypergraphdb.app.dataflow.InputPort;
 import org.hypergraphdb.app.dataflow.Ports;
 import org.hypergraphdb.util.HGUtils;
+import org.hypergraphdb.util.Pair;
 
 import disko.AnalysisContext;
+import disko.ScopeLink;
 import disko.SentenceAnn;
 import disko.TextDocument;
 import disko.data.relex.RelOccurrence;
@@ -33,11 +41,127 @@ import disko.data.relex.SynRel;
 import disko.flow.analyzers.ParseSelectAnalyzer;
 import disko.flow.analyzers.SentenceAnalyzer;
 import disko.flow.analyzers.ToRelOccProcessor;
+import disko.utils.LatencyHistogram;
 
+/**
+ * <p>
+ * Saves the selected interpretation of each sentence: the sentence annotation is
+ * added in the current scope and all its syntactic relations, as unique {@link SynRel} 
+ * atoms, in the scope of the sentence.
+ * </p>
+ * 
+ * <p>
+ * By default, each sentence is saved in its own transaction. When the batch size
+ * is set to more than 1, sentences are saved in bulk: that many sentences go into 
+ * a single transaction, SynRel handles are looked up through the graph's 
+ * {@link SynRelCache} and all ScopeLinks of a batch are created together at the
+ * end of the batch. If a batch fails to commit, its sentences are saved again one
+ * per transaction, so only the failing sentence is lost. The latency of each batch
+ * commit is recorded in a histogram available through {@link #getCommitLatency()}.
+ * </p>
+ */
 public class HGDBSaver extends AbstractProcessor<AnalysisContext<TextDocument>> 
 {
 	private static Log log = LogFactory.getLog(HGDBSaver.class);
 
+	private int batchSize = 1;
+	private transient LatencyHistogram commitLatency;
+	
+	public HGDBSaver()
+	{		
+	}
+	
+	public HGDBSaver(int batchSize)
+	{
+		this.batchSize = batchSize;
+	}
+	
+	/**
+	 * Save the sentences of the batch in a single transaction.
+	 */
+	private void commitBatch(final AnalysisContext<TextDocument> context, 
+							 final List<Pair<SentenceAnn, SentenceInterpretation>> batch)
+	{
+		final HyperGraph graph = context.getGraph();
+		final SynRelCache cache = SynRelCache.get(graph);
+		final HGHandle scope = context.getScoping();
+		final Map<List<HGPersistentHandle>, HGHandle> added = new HashMap<List<HGPersistentHandle>, HGHandle>();
+		long startTime = System.nanoTime();
+		graph.getTransactionManager().transact(new Callable<Object>() {
+			public Object call()
+			{
+				added.clear();
+				ArrayList<ScopeLink> links = new ArrayList<ScopeLink>();
+				for (Pair<SentenceAnn, SentenceInterpretation> p : batch)
+				{
+					HGHandle sentenceHandle = graph.add(p.getFirst());
+					links.add(new ScopeLink(scope, sentenceHandle));
+					for (RelOccurrence occ : p.getSecond().getRelOccs())
+					{
+						HGHandle [] targets = HGUtils.toHandleArray(occ);
+						List<HGPersistentHandle> key = SynRelCache.key(graph, targets);
+						HGHandle synRelHandle = added.get(key);
+						if (synRelHandle == null)
+							synRelHandle = cache.find(key, targets);
+						if (synRelHandle == null)
+						{
+							synRelHandle = graph.add(new SynRel(targets));
+							added.put(key, synRelHandle);
+						}
+						links.add(new ScopeLink(sentenceHandle, synRelHandle));
+					}
+				}
+				for (ScopeLink link : links)
+					graph.add(link);
+				return null;
+			}
+		});
+		// Only now that the transaction has committed can new SynRels be cached.
+		for (Map.Entry<List<HGPersistentHandle>, HGHandle> e : added.entrySet())
+			cache.put(e.getKey(), e.getValue());
+		getCommitLatency().recordSince(startTime);
+	}
+	
+	/**
+	 * Save the batch in a single transaction. If that fails, the sentences are saved
+	 * one by one so that a single bad sentence doesn't lose the others.
+	 */
+	private void saveBatch(final AnalysisContext<TextDocument> context, 
+						   final List<Pair<SentenceAnn, SentenceInterpretation>> batch)
+	{
+		if (batch.isEmpty())
+			return;
+		SynRelCache cache = SynRelCache.get(context.getGraph());
+		try
+		{
+			commitBatch(context, batch);
+		}
+		catch (Throwable t)
+		{
+			log.warn("While saving relations for batch of " + batch.size() + 
+					 " sentences starting at '" + batch.get(0).getFirst().getSentence() + 
+					 "', retrying sentence by sentence", t);
+			for (Pair<SentenceAnn, SentenceInterpretation> p : batch)
+			{
+				try
+				{
+					commitBatch(context, Collections.singletonList(p));
+				}
+				catch (Throwable t2)
+				{
+					log.error("While saving relations for '" + p.getFirst().getSentence() + "'", t2);
+				}
+			}
+		}
+		finally
+		{
+			log.debug("Saved batch of " + batch.size() + " sentences, SynRel cache " + 
+					  cache.getHits() + " hits/" + cache.getMisses() + " misses, commit latency " + 
+					  getCommitLatency());
+			batch.clear();
+		}
+	}
+
 	public void process(final AnalysisContext<TextDocument> context, Ports ports) throws InterruptedException 
 	{
 	    HGHandle docHandle = context.getGraph().getHandle(context.getDocument());
@@ -53,6 +177,8 @@ public class HGDBSaver extends AbstractProcessor<AnalysisContext<TextDocument>>
 			parseInput = ports.getInput(ParseSelectAnalyzer.SELECTED_PARSE_CHANNEL);
 		
 		final int [] C = new int[] { 0 };
+		final List<Pair<SentenceAnn, SentenceInterpretation>> batch = 
+			new ArrayList<Pair<SentenceAnn, SentenceInterpretation>>();
 		
 		for (SentenceAnn sentence = sentenceInput.take(); 
 			!sentenceInput.isEOS(sentence); 
@@ -85,6 +211,20 @@ public class HGDBSaver extends AbstractProcessor<AnalysisContext<TextDocument>>
 			
 			final SentenceAnn S = sentence;			
 			
+			if (batchSize > 1)
+			{
+				for (RelOccurrence occ : si.getRelOccs())
+				{
+					int [] positions = occ.getPositions();
+					for (int i = 0; i < positions.length; i++)
+						positions[i] += S.getInterval().getStart();
+				}
+				batch.add(new Pair<SentenceAnn, SentenceInterpretation>(S, si));
+				if (batch.size() >= batchSize)
+					saveBatch(context, batch);
+				continue;
+			}
+			
 			try
 			{
 				context.getGraph().getTransactionManager().transact(new Callable<Object>() {
@@ -132,7 +272,33 @@ public class HGDBSaver extends AbstractProcessor<AnalysisContext<TextDocument>>
 				log.debug("Total synrel lookup: " + C[0]);
 			}
 		}
+		saveBatch(context, batch);
 		log.debug("HGDB Saver ended");
-		System.out.println("HGDB Saver ended");
+	}
+
+	public int getBatchSize()
+	{
+		return batchSize;
+	}
+
+	/**
+	 * <p>
+	 * Set the number of sentences saved in a single transaction. A value greater 
+	 * than 1 enables bulk saving.
+	 * </p>
+	 */
+	public void setBatchSize(int batchSize)
+	{
+		this.batchSize = batchSize;
+	}
+	
+	/**
+	 * <p>Return the histogram of bulk-mode batch commit latencies.</p>
+	 */
+	public synchronized LatencyHistogram getCommitLatency()
+	{
+		if (commitLatency == null)
+			commitLatency = new LatencyHistogram();
+		return commitLatency;
 	}
 }
@@ -0,0 +1,250 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.flow.analyzers.hgdb;
+
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HyperGraph;
+import org.hypergraphdb.HGQuery.hg;
+
+import disko.data.relex.RelationCount;
+import disko.data.relex.RelationCountWatermark;
+
+/**
+ * <p>
+ * Write-behind accumulator of relation counts. Count increments are summed up in
+ * memory, keyed by the five components of the relation, and written to the count
+ * graph in a single transaction when either the number of distinct pending relations
+ * reaches <code>maxPending</code> or <code>flushInterval</code> milliseconds have
+ * elapsed since the last flush.
+ * </p>
+ *
+ * <p>
+ * Flushes only ever happen on sentence boundaries and the {@link RelationCountWatermark}
+ * of the graph is updated within the same transaction as the counts. Hence, after
+ * a crash, the graph holds the counts of exactly the sentences the watermark describes
+ * and counting can resume right after them. Pending deltas are discarded only once
+ * the flush transaction has committed. Once a document is completely counted, the
+ * watermark is cleared so that the document is counted in full if it is processed
+ * again.
+ * </p>
+ */
+public class RelationCountBuffer
+{
+	private static Log log = LogFactory.getLog(RelationCountBuffer.class);
+
+	public static final int DEFAULT_MAX_PENDING = 50000;
+	public static final long DEFAULT_FLUSH_INTERVAL = 60*1000;
+
+	private final HyperGraph graph;
+	private HashMap<RelationCount, RelationCount> pending = new HashMap<RelationCount, RelationCount>();
+	private int maxPending = DEFAULT_MAX_PENDING;
+	private long flushInterval = DEFAULT_FLUSH_INTERVAL;
+	private long lastFlush = System.currentTimeMillis();
+	private long pendingCounts = 0;
+	private int pendingSentences = 0;
+	private String document;
+	private int sentence;
+	// the watermark must be written even if no sentence is pending
+	private boolean watermarkChanged = false;
+
+	private long flushedCounts = 0;
+	private long flushedRelations = 0;
+	private long flushNanos = 0;
+	private int flushes = 0;
+
+	public RelationCountBuffer(HyperGraph graph)
+	{
+		this.graph = graph;
+	}
+
+	/**
+	 * <p>Return the watermark stored in the count graph, or <code>null</code> if
+	 * nothing was ever counted with a buffer.</p>
+	 */
+	public static RelationCountWatermark getWatermark(HyperGraph graph)
+	{
+		HGHandle h = hg.findOne(graph, hg.type(RelationCountWatermark.class));
+		return h == null ? null : (RelationCountWatermark)graph.get(h);
+	}
+
+	/**
+	 * <p>Add <code>delta</code> to the count of the relation. The <code>count</code>
+	 * property of the argument is ignored and the argument is not retained.</p>
+	 */
+	public void add(RelationCount r, double delta)
+	{
+		RelationCount existing = pending.get(r);
+		if (existing == null)
+		{
+			existing = new RelationCount(r.getPredicate(), r.getArg0(), r.getArg1(), r.getPos0(), r.getPos1());
+			pending.put(existing, existing);
+		}
+		existing.setCount(existing.getCount() + delta);
+		pendingCounts++;
+	}
+
+	/**
+	 * <p>
+	 * Declare that all counts of the given sentence (1-based position within the document)
+	 * have been added. Flushes if the buffer is full or the flush interval has elapsed.
+	 * </p>
+	 */
+	public void sentenceCompleted(String document, int sentence)
+	{
+		this.document = document;
+		this.sentence = sentence;
+		pendingSentences++;
+		if (pending.size() >= maxPending ||
+			System.currentTimeMillis() - lastFlush >= flushInterval)
+			flush();
+	}
+
+	/**
+	 * <p>
+	 * Declare that all sentences of the current document have been counted: the pending
+	 * counts are flushed and the watermark is cleared.
+	 * </p>
+	 */
+	public void documentCompleted()
+	{
+		document = null;
+		sentence = 0;
+		watermarkChanged = true;
+		flush();
+	}
+
+	/**
+	 * <p>Write all pending counts and the current watermark to the graph in a single
+	 * transaction.</p>
+	 */
+	public void flush()
+	{
+		lastFlush = System.currentTimeMillis();
+		if (pendingSentences == 0 && !watermarkChanged)
+			return;
+		long startTime = System.nanoTime();
+		graph.getTransactionManager().transact(new Callable<Object>()
+		{
+			public Object call()
+			{
+				for (RelationCount delta : pending.values())
+				{
+					HGHandle found = RelationCountFactory.find(graph, delta);
+					if (found == null)
+					{
+						RelationCount r = new RelationCount(delta.getPredicate(),
+															delta.getArg0(),
+															delta.getArg1(),
+															delta.getPos0(),
+															delta.getPos1());
+						r.setCount(delta.getCount());
+						graph.add(r);
+					}
+					else
+					{
+						RelationCount existing = graph.get(found);
+						existing.setCount(existing.getCount() + delta.getCount());
+						graph.update(existing);
+					}
+				}
+				RelationCountWatermark watermark = getWatermark(graph);
+				boolean isNew = watermark == null;
+				if (isNew)
+					watermark = new RelationCountWatermark();
+				watermark.setDocument(document);
+				watermark.setSentence(sentence);
+				watermark.setTotalSentences(watermark.getTotalSentences() + pendingSentences);
+				watermark.setTotalCounts(watermark.getTotalCounts() + pendingCounts);
+				watermark.setTimestamp(System.currentTimeMillis());
+				if (isNew)
+					graph.add(watermark);
+				else
+					graph.update(watermark);
+				return null;
+			}
+		});
+		long elapsed = System.nanoTime() - startTime;
+		RelationCountStore store = RelationCountStore.getIfLoaded(graph);
+		if (store != null)
+			for (RelationCount delta : pending.values())
+				store.add(delta);
+		flushes++;
+		flushNanos += elapsed;
+		flushedCounts += pendingCounts;
+		flushedRelations += pending.size();
+		log.info("Flushed " + pendingCounts + " counts of " + pending.size() + " relations from " +
+				 pendingSentences + " sentences in " + elapsed/1000000 + "ms, " +
+				 (long)getFlushRate() + " counts/s overall.");
+		pending = new HashMap<RelationCount, RelationCount>();
+		pendingCounts = 0;
+		pendingSentences = 0;
+		watermarkChanged = false;
+	}
+
+	public HyperGraph getGraph()
+	{
+		return graph;
+	}
+
+	/**
+	 * <p>Return the number of relation increments written per second of flush time.</p>
+	 */
+	public double getFlushRate()
+	{
+		return flushNanos == 0 ? 0.0 : flushedCounts * 1000000000.0 / flushNanos;
+	}
+
+	public long getFlushedCounts()
+	{
+		return flushedCounts;
+	}
+
+	public long getFlushedRelations()
+	{
+		return flushedRelations;
+	}
+
+	public int getFlushCount()
+	{
+		return flushes;
+	}
+
+	public int getPendingRelations()
+	{
+		return pending.size();
+	}
+
+	public int getMaxPending()
+	{
+		return maxPending;
+	}
+
+	public void setMaxPending(int maxPending)
+	{
+		this.maxPending = maxPending;
+	}
+
+	public long getFlushInterval()
+	{
+		return flushInterval;
+	}
+
+	public void setFlushInterval(long flushInterval)
+	{
+		this.flushInterval = flushInterval;
+	}
+}
@@ -0,0 +1,537 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.flow.analyzers.hgdb;
+
+import gnu.trove.TObjectIntHashMap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HGSearchResult;
+import org.hypergraphdb.HyperGraph;
+import org.hypergraphdb.HGQuery.hg;
+
+import disko.DU;
+import disko.data.relex.RelationCount;
+
+/**
+ * <p>
+ * An in-memory image of all {@link RelationCount} atoms of a count graph, meant to
+ * take parse selection off the database read path.
+ * </p>
+ *
+ * <p>
+ * The five components of a relation (predicate, arg0, arg1, pos0, pos1) are
+ * dictionary-encoded into integers and counts are kept in an open-addressing
+ * hash table of primitive arrays - 5 ints of key and one double of count per
+ * entry. The wildcard {@link RelationCountFactory#ANY} always encodes to the same
+ * id so that the marginals needed by parse selection can all be obtained with
+ * a single call to {@link #getMarginals} which encodes the relation once.
+ * </p>
+ *
+ * <p>
+ * A store can be saved to and loaded from a compact binary snapshot file which is
+ * much faster to read than iterating over all counts in the graph. Use
+ * {@link #get(HyperGraph)} to obtain the store for a given graph - when the
+ * <code>disko.relation.counts.snapshot</code> system property names a directory,
+ * each graph's snapshot is kept there in a file named after the graph's location.
+ * A snapshot records the location of its graph, the number of counts and the grand
+ * total of all counts, and it is only used if they still match the graph. Otherwise
+ * the store is loaded from the graph and the snapshot rewritten.
+ * </p>
+ *
+ * <p>
+ * A loaded store is kept up to date by the {@link RelationCounterAnalyzer} as it
+ * commits new counts to the graph.
+ * </p>
+ */
+public class RelationCountStore
+{
+	public static final String SNAPSHOT_PROPERTY = "disko.relation.counts.snapshot";
+
+	/**
+	 * Indices of marginals in the array returned by {@link #getMarginals}.
+	 */
+	public static final int T = 0, P01 = 1, PXX = 2, PX1 = 3, P0X = 4, X0X = 5, XX1 = 6;
+
+	private static final int SNAPSHOT_MAGIC = 0x44524353; // "DRCS"
+	private static final int SNAPSHOT_VERSION = 2;
+	private static final int UNKNOWN = 0;
+	private static final int ANY_ID = 1;
+	private static final int KEY_WIDTH = 5;
+	private static final float LOAD_FACTOR = 0.6f;
+
+	private static final Map<HyperGraph, RelationCountStore> stores = new HashMap<HyperGraph, RelationCountStore>();
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private TObjectIntHashMap dictionary = new TObjectIntHashMap();
+	private ArrayList<String> symbols = new ArrayList<String>();
+	private int [] keys;
+	private double [] counts;
+	private int size = 0;
+
+	/**
+	 * <p>
+	 * Return the store for the given graph, loading it on first access either from
+	 * its snapshot file (when configured, present and up to date) or from the graph
+	 * itself. In the latter case, the snapshot is written for the benefit of future runs.
+	 * </p>
+	 */
+	public static RelationCountStore get(HyperGraph graph)
+	{
+		synchronized (stores)
+		{
+			RelationCountStore store = stores.get(graph);
+			if (store == null)
+			{
+				store = new RelationCountStore();
+				File snapshotFile = snapshotFile(graph);
+				boolean loaded = false;
+				try
+				{
+					if (snapshotFile != null && snapshotFile.exists())
+						loaded = store.loadSnapshot(snapshotFile, graph);
+				}
+				catch (IOException ex)
+				{
+					DU.log.warn("Ignoring unreadable relation counts snapshot " + snapshotFile, ex);
+				}
+				if (!loaded)
+				{
+					store.load(graph);
+					if (snapshotFile != null)
+					{
+						try
+						{
+							store.saveSnapshot(snapshotFile, graph);
+						}
+						catch (IOException ex)
+						{
+							DU.log.warn("Failed to save relation counts snapshot " + snapshotFile, ex);
+						}
+					}
+				}
+				stores.put(graph, store);
+			}
+			return store;
+		}
+	}
+
+	/**
+	 * <p>Return the snapshot file of the given graph, or <code>null</code> if no snapshot
+	 * directory is configured.</p>
+	 */
+	public static File snapshotFile(HyperGraph graph)
+	{
+		String dir = System.getProperty(SNAPSHOT_PROPERTY);
+		if (DU.isEmpty(dir))
+			return null;
+		String location = new File(graph.getLocation()).getAbsolutePath();
+		return new File(dir, "relation-counts-" + Integer.toHexString(location.hashCode()) + ".snapshot");
+	}
+
+	/**
+	 * What a snapshot must agree with to be used for a graph: its location, the number
+	 * of counts in it and the grand total, which changes with every counted relation.
+	 */
+	private static class Signature
+	{
+		String location;
+		long relations;
+		double total;
+
+		static Signature of(HyperGraph graph)
+		{
+			Signature sig = new Signature();
+			sig.location = new File(graph.getLocation()).getAbsolutePath();
+			sig.relations = hg.count(graph, hg.type(RelationCount.class));
+			String ANY = RelationCountFactory.ANY;
+			HGHandle h = hg.findOne(graph, hg.and(hg.type(RelationCount.class),
+												  hg.eq("predicate", ANY),
+												  hg.eq("arg0", ANY),
+												  hg.eq("arg1", ANY),
+												  hg.eq("pos0", ANY),
+												  hg.eq("pos1", ANY)));
+			sig.total = h == null ? 0 : ((RelationCount)graph.get(h)).getCount();
+			return sig;
+		}
+
+		boolean matches(Signature other)
+		{
+			return location.equals(other.location) && relations == other.relations && total == other.total;
+		}
+	}
+
+	/**
+	 * <p>Return the store of the given graph if it has already been loaded, or
+	 * <code>null</code> otherwise.</p>
+	 */
+	public static RelationCountStore getIfLoaded(HyperGraph graph)
+	{
+		synchronized (stores)
+		{
+			return stores.get(graph);
+		}
+	}
+
+	/**
+	 * <p>Forget the store associated with the given graph (e.g. because the graph
+	 * is being closed).</p>
+	 */
+	public static void remove(HyperGraph graph)
+	{
+		synchronized (stores)
+		{
+			stores.remove(graph);
+		}
+	}
+
+	public RelationCountStore()
+	{
+		clear();
+	}
+
+	private void clear()
+	{
+		dictionary = new TObjectIntHashMap();
+		symbols = new ArrayList<String>();
+		symbols.add(null); // UNKNOWN
+		symbols.add(RelationCountFactory.ANY);
+		dictionary.put(RelationCountFactory.ANY, ANY_ID);
+		keys = new int[KEY_WIDTH*1024];
+		counts = new double[1024];
+		size = 0;
+	}
+
+	private int lookupSymbol(String s)
+	{
+		return dictionary.get(s == null ? "" : s); // UNKNOWN when missing
+	}
+
+	private int encodeSymbol(String s)
+	{
+		if (s == null)
+			s = "";
+		int id = dictionary.get(s);
+		if (id == UNKNOWN)
+		{
+			id = symbols.size();
+			symbols.add(s);
+			dictionary.put(s, id);
+		}
+		return id;
+	}
+
+	private static int hash(int a, int b, int c, int d, int e)
+	{
+		int h = a;
+		h = h*0x9E3779B1 + b;
+		h = h*0x9E3779B1 + c;
+		h = h*0x9E3779B1 + d;
+		h = h*0x9E3779B1 + e;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Return the slot of the given key or the (negative - 1) of the free slot
+	 * where it would be inserted. Since all valid symbols are > 0, a slot whose
+	 * first key component is 0 is free.
+	 */
+	private int slot(int a, int b, int c, int d, int e)
+	{
+		int mask = counts.length - 1;
+		for (int i = hash(a, b, c, d, e) & mask; ; i = (i + 1) & mask)
+		{
+			int k = i*KEY_WIDTH;
+			if (keys[k] == UNKNOWN)
+				return -i - 1;
+			else if (keys[k] == a && keys[k+1] == b && keys[k+2] == c &&
+					 keys[k+3] == d && keys[k+4] == e)
+				return i;
+		}
+	}
+
+	private double count(int a, int b, int c, int d, int e)
+	{
+		if (a == UNKNOWN || b == UNKNOWN || c == UNKNOWN || d == UNKNOWN || e == UNKNOWN)
+			return 0;
+		int i = slot(a, b, c, d, e);
+		return i < 0 ? 0 : counts[i];
+	}
+
+	private void rehash()
+	{
+		int [] oldKeys = keys;
+		double [] oldCounts = counts;
+		keys = new int[oldKeys.length*2];
+		counts = new double[oldCounts.length*2];
+		for (int i = 0; i < oldCounts.length; i++)
+		{
+			int k = i*KEY_WIDTH;
+			if (oldKeys[k] == UNKNOWN)
+				continue;
+			int j = -slot(oldKeys[k], oldKeys[k+1], oldKeys[k+2], oldKeys[k+3], oldKeys[k+4]) - 1;
+			System.arraycopy(oldKeys, k, keys, j*KEY_WIDTH, KEY_WIDTH);
+			counts[j] = oldCounts[i];
+		}
+	}
+
+	private void addEncoded(int a, int b, int c, int d, int e, double delta)
+	{
+		int i = slot(a, b, c, d, e);
+		if (i >= 0)
+		{
+			counts[i] += delta;
+			return;
+		}
+		if (size + 1 > counts.length*LOAD_FACTOR)
+		{
+			rehash();
+			i = slot(a, b, c, d, e);
+		}
+		i = -i - 1;
+		int k = i*KEY_WIDTH;
+		keys[k] = a; keys[k+1] = b; keys[k+2] = c; keys[k+3] = d; keys[k+4] = e;
+		counts[i] = delta;
+		size++;
+	}
+
+	/**
+	 * <p>Add <code>delta</code> to the count of the given relation, creating
+	 * an entry for it if necessary.</p>
+	 */
+	public void add(String predicate, String arg0, String arg1, String pos0, String pos1, double delta)
+	{
+		lock.writeLock().lock();
+		try
+		{
+			addEncoded(encodeSymbol(predicate),
+					   encodeSymbol(arg0),
+					   encodeSymbol(arg1),
+					   encodeSymbol(pos0),
+					   encodeSymbol(pos1),
+					   delta);
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void add(RelationCount r)
+	{
+		add(r.getPredicate(), r.getArg0(), r.getArg1(), r.getPos0(), r.getPos1(), r.getCount());
+	}
+
+	/**
+	 * <p>Return the count of the given relation (ignoring its <code>count</code>
+	 * property) or 0 if it's not in the store.</p>
+	 */
+	public double getCount(RelationCount r)
+	{
+		lock.readLock().lock();
+		try
+		{
+			return count(lookupSymbol(r.getPredicate()),
+						 lookupSymbol(r.getArg0()),
+						 lookupSymbol(r.getArg1()),
+						 lookupSymbol(r.getPos0()),
+						 lookupSymbol(r.getPos1()));
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * <p>
+	 * Return all counts needed to score the given relation during parse selection,
+	 * indexed by the {@link #T}, {@link #P01}, {@link #PXX}, {@link #PX1}, {@link #P0X},
+	 * {@link #X0X} and {@link #XX1} constants.
+	 * </p>
+	 */
+	public double [] getMarginals(RelationCount r)
+	{
+		double [] result = new double[7];
+		lock.readLock().lock();
+		try
+		{
+			int p = lookupSymbol(r.getPredicate());
+			int a0 = lookupSymbol(r.getArg0());
+			int a1 = lookupSymbol(r.getArg1());
+			int p0 = lookupSymbol(r.getPos0());
+			int p1 = lookupSymbol(r.getPos1());
+			result[T] = count(ANY_ID, ANY_ID, ANY_ID, ANY_ID, ANY_ID);
+			result[P01] = count(p, a0, a1, p0, p1);
+			result[PXX] = count(p, ANY_ID, ANY_ID, p0, p1);
+			result[PX1] = count(p, ANY_ID, a1, p0, p1);
+			result[P0X] = count(p, a0, ANY_ID, p0, p1);
+			result[X0X] = count(ANY_ID, a0, ANY_ID, p0, ANY_ID);
+			result[XX1] = count(ANY_ID, ANY_ID, a1, ANY_ID, p1);
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+		return result;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * <p>Replace the content of this store with all {@link RelationCount} atoms
+	 * of the given graph.</p>
+	 */
+	public void load(HyperGraph graph)
+	{
+		DU.log.info("Loading all relation counts from " + graph.getLocation());
+		long startTime = System.currentTimeMillis();
+		lock.writeLock().lock();
+		HGSearchResult<HGHandle> rs = graph.find(hg.type(RelationCount.class));
+		try
+		{
+			clear();
+			while (rs.hasNext())
+			{
+				RelationCount r = graph.get(rs.next());
+				addEncoded(encodeSymbol(r.getPredicate()),
+						   encodeSymbol(r.getArg0()),
+						   encodeSymbol(r.getArg1()),
+						   encodeSymbol(r.getPos0()),
+						   encodeSymbol(r.getPos1()),
+						   r.getCount());
+			}
+		}
+		finally
+		{
+			rs.close();
+			lock.writeLock().unlock();
+		}
+		DU.log.info("Loaded " + size + " relation counts, " + symbols.size() + " symbols in " +
+					(System.currentTimeMillis() - startTime) + "ms");
+	}
+
+	/**
+	 * <p>
+	 * Write this store, loaded from the given graph, to a binary file: the graph's
+	 * signature, the symbol table and all entries as five symbol ids and a count.
+	 * The file is first written to a temporary location and then renamed so an
+	 * existing snapshot is never left half-written.
+	 * </p>
+	 */
+	public void saveSnapshot(File file, HyperGraph graph) throws IOException
+	{
+		Signature sig = Signature.of(graph);
+		if (file.getParentFile() != null)
+			file.getParentFile().mkdirs();
+		File tmp = new File(file.getAbsolutePath() + ".tmp");
+		lock.readLock().lock();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 64*1024));
+		try
+		{
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(SNAPSHOT_VERSION);
+			out.writeUTF(sig.location);
+			out.writeLong(sig.relations);
+			out.writeDouble(sig.total);
+			out.writeInt(symbols.size());
+			for (int i = 2; i < symbols.size(); i++)
+				out.writeUTF(symbols.get(i));
+			out.writeInt(size);
+			for (int i = 0; i < counts.length; i++)
+			{
+				int k = i*KEY_WIDTH;
+				if (keys[k] == UNKNOWN)
+					continue;
+				for (int j = 0; j < KEY_WIDTH; j++)
+					out.writeInt(keys[k + j]);
+				out.writeDouble(counts[i]);
+			}
+		}
+		finally
+		{
+			out.close();
+			lock.readLock().unlock();
+		}
+		if (file.exists() && !file.delete() || !tmp.renameTo(file))
+			throw new IOException("Could not move " + tmp + " to " + file);
+	}
+
+	/**
+	 * <p>Replace the content of this store with a snapshot previously written
+	 * with {@link #saveSnapshot(File, HyperGraph)}, provided it is up to date with
+	 * the given graph. Return <code>false</code>, leaving the store unchanged, if
+	 * it's not.</p>
+	 */
+	public boolean loadSnapshot(File file, HyperGraph graph) throws IOException
+	{
+		long startTime = System.currentTimeMillis();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64*1024));
+		lock.writeLock().lock();
+		try
+		{
+			if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION)
+			{
+				DU.log.info("Ignoring " + file + ": not a relation counts snapshot of the current version.");
+				return false;
+			}
+			Signature saved = new Signature();
+			saved.location = in.readUTF();
+			saved.relations = in.readLong();
+			saved.total = in.readDouble();
+			if (!saved.matches(Signature.of(graph)))
+			{
+				DU.log.info("Ignoring stale relation counts snapshot " + file);
+				return false;
+			}
+			clear();
+			int symbolCount = in.readInt();
+			for (int i = 2; i < symbolCount; i++)
+				encodeSymbol(in.readUTF());
+			int entries = in.readInt();
+			int capacity = counts.length;
+			while (entries > capacity*LOAD_FACTOR)
+				capacity *= 2;
+			keys = new int[capacity*KEY_WIDTH];
+			counts = new double[capacity];
+			for (int i = 0; i < entries; i++)
+			{
+				int a = in.readInt(), b = in.readInt(), c = in.readInt(), d = in.readInt(), e = in.readInt();
+				addEncoded(a, b, c, d, e, in.readDouble());
+			}
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+			in.close();
+		}
+		DU.log.info("Loaded " + size + " relation counts from " + file + " in " +
+					(System.currentTimeMillis() - startTime) + "ms");
+		return true;
+	}
+}
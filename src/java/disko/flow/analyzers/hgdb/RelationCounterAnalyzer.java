@@ -32,7 +32,9 @@ import disko.AnalysisContext;
 import disko.DU;
 import disko.DefaultTextDocument;
 import disko.TextDocument;
+import disko.UrlTextDocument;
 import disko.data.relex.RelationCount;
+import disko.data.relex.RelationCountWatermark;
 import disko.data.relex.SyntacticPredicate;
 import disko.flow.analyzers.EntityAnalyzer;
 import disko.flow.analyzers.FullRelexAnalyzer;
@@ -42,11 +44,30 @@ import relex.ParsedSentence;
 import relex.concurrent.RelexTaskResult;
 import relex.entity.EntityMaintainer;
 
+/**
+ * <p>
+ * Counts relations (and their wildcard marginals) over all parses of each sentence, 
+ * each parse contributing <code>1/numParses</code>.
+ * </p>
+ * 
+ * <p>
+ * By default, counts are updated in the graph sentence by sentence. In <em>write-behind</em>
+ * mode (see {@link #setWriteBehind(boolean)}) they are accumulated in a {@link RelationCountBuffer}
+ * and flushed in large transactions instead. In that mode, the count graph's 
+ * {@link RelationCountWatermark} records how many sentences of the current document
+ * are already counted, and re-processing the same document after a crash resumes right 
+ * after them. 
+ * </p>
+ */
 public class RelationCounterAnalyzer<T> extends AbstractProcessor<AnalysisContext<TextDocument>>
 {
     private static Log log = LogFactory.getLog(RelationCounterAnalyzer.class);
 
     private transient HyperGraph graph = null;
+    private boolean writeBehind = false;
+    private int maxPending = RelationCountBuffer.DEFAULT_MAX_PENDING;
+    private long flushInterval = RelationCountBuffer.DEFAULT_FLUSH_INTERVAL;
+    private transient RelationCountBuffer buffer = null;
 
     public RelationCounterAnalyzer()
     {
@@ -65,6 +86,12 @@ public class RelationCounterAnalyzer<T> extends AbstractProcessor<AnalysisContex
         InputPort<EntityMaintainer> entityInput = ports.getInput(EntityAnalyzer.ENTITY_CHANNEL);
         InputPort<RelexTaskResult> parseInput = ports.getInput(FullRelexAnalyzer.PARSE_CHANNEL);
 
+        if (writeBehind)
+        {
+            processWriteBehind(graph, getDocumentId(context), entityInput, parseInput);
+            return;
+        }
+        
         for (RelexTaskResult parses = parseInput.take(); !parseInput.isEOS(parses); parses = parseInput.take())
         {
 
@@ -78,6 +105,8 @@ public class RelationCounterAnalyzer<T> extends AbstractProcessor<AnalysisContex
                       + em.getOriginalSentence());
 
             final RelexTaskResult currentParses = parses;
+            // The increments of the sentence, for the in-memory count store once committed.
+            final ArrayList<RelationCount> committed = new ArrayList<RelationCount>();
             //
             // We encapsulate the processing of a single in a HGDB transaction.
             // This gives a considerable
@@ -96,6 +125,7 @@ public class RelationCounterAnalyzer<T> extends AbstractProcessor<AnalysisContex
                 {
                     public Object call()
                     {
+                        committed.clear(); // in case the transaction is retried
                         for (ParsedSentence parsedSentence : currentParses.result.getParses())
                         {
                             log.debug(parsedSentence);
@@ -105,16 +135,27 @@ public class RelationCounterAnalyzer<T> extends AbstractProcessor<AnalysisContex
                                                                        parsedSentence);
                             HashMap<HGHandle, RelationCount> counts = new HashMap<HGHandle, RelationCount>();
                             for (RelationCount r : relationCounts)
+                            {
                                 incrementCounts(graph,
                                                 counts,
                                                 r,
                                                 currentParses.result.getParses().size());
+                                committed.add(r);
+                            }
                             for (RelationCount r : counts.values())
                                 graph.update(r);
                         }
                         return null;
                     }
                 });
+                RelationCountStore store = RelationCountStore.getIfLoaded(graph);
+                if (store != null)
+                {
+                    double delta = 1.0 / currentParses.result.getParses().size();
+                    for (RelationCount r : committed)
+                        for (RelationCount m : marginals(r))
+                            store.add(m.getPredicate(), m.getArg0(), m.getArg1(), m.getPos0(), m.getPos1(), delta);
+                }
                 log.info("Parses saved, total time elapsed="
                          + (System.currentTimeMillis() - startTime) / 1000.0);
             }
@@ -128,9 +169,73 @@ public class RelationCounterAnalyzer<T> extends AbstractProcessor<AnalysisContex
         log.debug("RelationCounterProcessor ended");
     }
 
-    private void incrementCounts(HyperGraph graph,
-                                 Map<HGHandle, RelationCount> counts,
-                                 RelationCount r, int numParses)
+    private static String getDocumentId(AnalysisContext<TextDocument> context)
+    {
+        if (context.getDocument() instanceof UrlTextDocument)
+            return ((UrlTextDocument)context.getDocument()).getUrlString();
+        else 
+            return context.getGraph().getPersistentHandle(context.getTopScope()).toString();
+    }
+    
+    private void processWriteBehind(HyperGraph graph,
+                                    String documentId,
+                                    InputPort<EntityMaintainer> entityInput,
+                                    InputPort<RelexTaskResult> parseInput) throws InterruptedException
+    {
+        if (buffer == null || buffer.getGraph() != graph)
+        {
+            buffer = new RelationCountBuffer(graph);
+            buffer.setMaxPending(maxPending);
+            buffer.setFlushInterval(flushInterval);
+        }
+        RelationCountWatermark watermark = RelationCountBuffer.getWatermark(graph);
+        int skip = watermark != null && documentId.equals(watermark.getDocument()) ?
+                   watermark.getSentence() : 0;
+        if (skip > 0)
+            log.info("Resuming count of " + documentId + " after sentence " + skip);
+        int sentence = 0;
+        boolean completed = false;
+        try
+        {
+            for (RelexTaskResult parses = parseInput.take(); !parseInput.isEOS(parses); parses = parseInput.take())
+            {
+                EntityMaintainer em = entityInput.take();
+                if (entityInput.isEOS(em))
+                    break;
+                if (++sentence <= skip)
+                    continue;
+                // Collect the whole sentence first, so a failure half way leaves
+                // nothing of it in the buffer.
+                HashMap<String, String> entityTypes = RelationCountFactory.getEntityTypes(em);
+                ArrayList<RelationCount> increments = new ArrayList<RelationCount>();
+                for (ParsedSentence parsedSentence : parses.result.getParses())
+                    for (RelationCount r : RelationCountFactory.getRelationCounts(entityTypes, parsedSentence))
+                        for (RelationCount m : marginals(r))
+                            increments.add(m);
+                double delta = 1.0 / parses.result.getParses().size();
+                for (RelationCount m : increments)
+                    buffer.add(m, delta);
+                buffer.sentenceCompleted(documentId, sentence);
+            }
+            completed = true;
+        }
+        finally
+        {
+            // After a failure, only the completed sentences are written and the
+            // watermark points right after them.
+            if (completed)
+                buffer.documentCompleted();
+            else
+                buffer.flush();
+        }
+        log.debug("RelationCounterProcessor ended");
+    }
+    
+    /**
+     * Return the relation itself together with all the wildcard relations whose 
+     * counts it contributes to.
+     */
+    public static RelationCount [] marginals(RelationCount r)
     {
         String pred = r.getPredicate();
         String arg0 = r.getArg0();
@@ -138,20 +243,23 @@ public class RelationCounterAnalyzer<T> extends AbstractProcessor<AnalysisContex
         String pos0 = r.getPos0();
         String pos1 = r.getPos1();
         final String ANY = RelationCountFactory.ANY;
-        incrementCount(graph, counts,
-                       new RelationCount(ANY, ANY, ANY, ANY, ANY), numParses);
-        incrementCount(graph, counts, new RelationCount(pred, arg0, arg1, pos0,
-                                                        pos1), numParses);
-        incrementCount(graph, counts, new RelationCount(pred, ANY, arg1, pos0,
-                                                        pos1), numParses);
-        incrementCount(graph, counts, new RelationCount(pred, arg0, ANY, pos0,
-                                                        pos1), numParses);
-        incrementCount(graph, counts, new RelationCount(pred, ANY, ANY, pos0,
-                                                        pos1), numParses);
-        incrementCount(graph, counts, new RelationCount(ANY, arg0, ANY, pos0,
-                                                        ANY), numParses);
-        incrementCount(graph, counts, new RelationCount(ANY, ANY, arg1, ANY,
-                                                        pos1), numParses);
+        return new RelationCount[] {
+            new RelationCount(ANY, ANY, ANY, ANY, ANY),
+            new RelationCount(pred, arg0, arg1, pos0, pos1),
+            new RelationCount(pred, ANY, arg1, pos0, pos1),
+            new RelationCount(pred, arg0, ANY, pos0, pos1),
+            new RelationCount(pred, ANY, ANY, pos0, pos1),
+            new RelationCount(ANY, arg0, ANY, pos0, ANY),
+            new RelationCount(ANY, ANY, arg1, ANY, pos1)
+        };
+    }
+    
+    private void incrementCounts(HyperGraph graph,
+                                 Map<HGHandle, RelationCount> counts,
+                                 RelationCount r, int numParses)
+    {
+        for (RelationCount m : marginals(r))
+            incrementCount(graph, counts, m, numParses);
     }
 
     public static void incrementCount(final HyperGraph graph,
@@ -187,6 +295,60 @@ public class RelationCounterAnalyzer<T> extends AbstractProcessor<AnalysisContex
         }
     }
     
+    public boolean isWriteBehind()
+    {
+        return writeBehind;
+    }
+
+    /**
+     * <p>
+     * Enable or disable write-behind counting: counts are accumulated in memory and 
+     * written in large transactions, with a watermark allowing a document's counting
+     * to resume after a crash.
+     * </p>
+     */
+    public void setWriteBehind(boolean writeBehind)
+    {
+        this.writeBehind = writeBehind;
+    }
+
+    public int getMaxPending()
+    {
+        return maxPending;
+    }
+
+    /**
+     * <p>Set the number of distinct relations accumulated in write-behind mode
+     * before counts are flushed to the graph.</p>
+     */
+    public void setMaxPending(int maxPending)
+    {
+        this.maxPending = maxPending;
+    }
+
+    public long getFlushInterval()
+    {
+        return flushInterval;
+    }
+
+    /**
+     * <p>Set the maximum time in milliseconds between two flushes in write-behind 
+     * mode.</p>
+     */
+    public void setFlushInterval(long flushInterval)
+    {
+        this.flushInterval = flushInterval;
+    }
+    
+    /**
+     * <p>Return the write-behind buffer or <code>null</code> if not in write-behind
+     * mode or nothing was processed yet. Useful for monitoring the flush rate.</p>
+     */
+    public RelationCountBuffer getBuffer()
+    {
+        return buffer;
+    }
+    
     public static void main(String[] args) throws InterruptedException,
                                           ExecutionException
     {
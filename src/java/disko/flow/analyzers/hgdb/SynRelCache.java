@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.flow.analyzers.hgdb;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HGPersistentHandle;
+import org.hypergraphdb.HyperGraph;
+import org.hypergraphdb.HGQuery.hg;
+import org.hypergraphdb.event.HGAtomRemovedEvent;
+import org.hypergraphdb.event.HGEvent;
+import org.hypergraphdb.event.HGListener;
+
+import disko.data.relex.SynRel;
+
+/**
+ * <p>
+ * A bounded LRU cache mapping the target tuple of a {@link SynRel} to the handle
+ * of the (unique) SynRel atom with those targets. Entries are evicted when the
+ * SynRel atom is removed from the graph. Callers adding SynRels within a transaction
+ * must only {@link #put} them once the transaction has committed, so that the cache
+ * never refers to atoms that were rolled back.
+ * </p>
+ */
+public class SynRelCache
+{
+	public static final int DEFAULT_CAPACITY = 200000;
+
+	private static final Map<HyperGraph, SynRelCache> caches = new HashMap<HyperGraph, SynRelCache>();
+
+	private final HyperGraph graph;
+	private final Map<List<HGPersistentHandle>, HGPersistentHandle> byTargets;
+	private final Map<HGPersistentHandle, List<HGPersistentHandle>> byHandle =
+		new HashMap<HGPersistentHandle, List<HGPersistentHandle>>();
+	private long hits = 0, misses = 0;
+
+	/**
+	 * <p>Return the cache for the given graph, creating it if necessary.</p>
+	 */
+	public static SynRelCache get(HyperGraph graph)
+	{
+		synchronized (caches)
+		{
+			SynRelCache cache = caches.get(graph);
+			if (cache == null)
+			{
+				cache = new SynRelCache(graph, DEFAULT_CAPACITY);
+				caches.put(graph, cache);
+			}
+			return cache;
+		}
+	}
+
+	public SynRelCache(HyperGraph graph, final int capacity)
+	{
+		this.graph = graph;
+		this.byTargets = new LinkedHashMap<List<HGPersistentHandle>, HGPersistentHandle>(1024, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+			protected boolean removeEldestEntry(Map.Entry<List<HGPersistentHandle>, HGPersistentHandle> eldest)
+			{
+				if (size() <= capacity)
+					return false;
+				byHandle.remove(eldest.getValue());
+				return true;
+			}
+		};
+		graph.getEventManager().addListener(HGAtomRemovedEvent.class, new HGListener()
+		{
+			public Result handle(HyperGraph graph, HGEvent event)
+			{
+				evict(((HGAtomRemovedEvent)event).getAtomHandle());
+				return Result.ok;
+			}
+		});
+	}
+
+	public static List<HGPersistentHandle> key(HyperGraph graph, HGHandle [] targets)
+	{
+		HGPersistentHandle [] A = new HGPersistentHandle[targets.length];
+		for (int i = 0; i < targets.length; i++)
+			A[i] = graph.getPersistentHandle(targets[i]);
+		return Arrays.asList(A);
+	}
+
+	/**
+	 * <p>Return the cached handle of the SynRel with the given targets, or
+	 * <code>null</code> if not in the cache.</p>
+	 */
+	public synchronized HGHandle lookup(List<HGPersistentHandle> key)
+	{
+		HGHandle h = byTargets.get(key);
+		if (h == null)
+			misses++;
+		else
+			hits++;
+		return h;
+	}
+
+	/**
+	 * <p>Return the handle of the SynRel with the given targets, looking it up in the
+	 * graph on a cache miss. Returns <code>null</code> if there's no such SynRel.</p>
+	 */
+	public HGHandle find(List<HGPersistentHandle> key, HGHandle [] targets)
+	{
+		HGHandle h = lookup(key);
+		if (h == null)
+		{
+			h = hg.findOne(graph, hg.and(hg.type(SynRel.class), hg.link(targets)));
+			if (h != null)
+				put(key, h);
+		}
+		return h;
+	}
+
+	public synchronized void put(List<HGPersistentHandle> key, HGHandle synRel)
+	{
+		HGPersistentHandle h = graph.getPersistentHandle(synRel);
+		byTargets.put(key, h);
+		byHandle.put(h, key);
+	}
+
+	public synchronized void evict(HGHandle synRel)
+	{
+		List<HGPersistentHandle> key = byHandle.remove(graph.getPersistentHandle(synRel));
+		if (key != null)
+			byTargets.remove(key);
+	}
+
+	public synchronized void clear()
+	{
+		byTargets.clear();
+		byHandle.clear();
+	}
+
+	public synchronized int size()
+	{
+		return byTargets.size();
+	}
+
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+}
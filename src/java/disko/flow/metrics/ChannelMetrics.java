@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.flow.metrics;
+
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hypergraphdb.app.dataflow.InputPort;
+import org.json.JSONObject;
+
+/**
+ * <p>
+ * Counters of one dataflow channel, aggregated over all networks instrumented with the
+ * same {@link PipelineMetrics}. The depth of a channel is the number of items queued,
+ * and not yet read, in the input ports of all its readers.
+ * </p>
+ */
+public class ChannelMetrics implements ChannelMetricsMBean
+{
+	private final String id;
+	private volatile int capacity;
+	final AtomicLong items = new AtomicLong();
+	final AtomicLong putBlocked = new AtomicLong();
+	final AtomicLong takeBlocked = new AtomicLong();
+	private volatile int maxDepth = 0;
+	private final Set<InputPort<?>> readers = new CopyOnWriteArraySet<InputPort<?>>();
+
+	public ChannelMetrics(String id, int capacity)
+	{
+		this.id = id;
+		this.capacity = capacity;
+	}
+
+	void addReader(InputPort<?> port)
+	{
+		readers.add(port);
+	}
+
+	void removeReader(InputPort<?> port)
+	{
+		readers.remove(port);
+	}
+
+	void put()
+	{
+		items.incrementAndGet();
+		int depth = getDepth();
+		if (depth > maxDepth)
+			maxDepth = depth;
+	}
+
+	public String getId()
+	{
+		return id;
+	}
+
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	public long getItems()
+	{
+		return items.get();
+	}
+
+	public int getDepth()
+	{
+		int depth = 0;
+		for (InputPort<?> port : readers)
+			depth += port.getCurrentDataCount();
+		return depth;
+	}
+
+	/**
+	 * <p>Return the largest depth observed after a write to the channel.</p>
+	 */
+	public int getMaxDepth()
+	{
+		return maxDepth;
+	}
+
+	public double getPutBlockedMillis()
+	{
+		return putBlocked.get() / 1000000.0;
+	}
+
+	public double getTakeBlockedMillis()
+	{
+		return takeBlocked.get() / 1000000.0;
+	}
+
+	public void reset()
+	{
+		items.set(0);
+		putBlocked.set(0);
+		takeBlocked.set(0);
+		maxDepth = 0;
+	}
+
+	public JSONObject toJSON()
+	{
+		JSONObject json = new JSONObject();
+		try
+		{
+			json.put("id", id);
+			json.put("capacity", capacity);
+			json.put("items", getItems());
+			json.put("depth", getDepth());
+			json.put("maxDepth", getMaxDepth());
+			json.put("putBlockedMillis", getPutBlockedMillis());
+			json.put("takeBlockedMillis", getTakeBlockedMillis());
+		}
+		catch (Exception ex)
+		{
+			throw new RuntimeException(ex);
+		}
+		return json;
+	}
+
+	public String toString()
+	{
+		return String.format("%s: items=%d depth=%d/%d maxDepth=%d putBlocked=%.1fms takeBlocked=%.1fms",
+							 id, getItems(), getDepth(), capacity, getMaxDepth(),
+							 getPutBlockedMillis(), getTakeBlockedMillis());
+	}
+}
@@ -0,0 +1,27 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.flow.metrics;
+
+/**
+ * <p>JMX view of the {@link ChannelMetrics} of a dataflow channel.</p>
+ */
+public interface ChannelMetricsMBean
+{
+	String getId();
+	int getCapacity();
+	long getItems();
+	int getDepth();
+	int getMaxDepth();
+	double getPutBlockedMillis();
+	double getTakeBlockedMillis();
+	void reset();
+}
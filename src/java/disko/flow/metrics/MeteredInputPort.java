@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.flow.metrics;
+
+import org.hypergraphdb.app.dataflow.Channel;
+import org.hypergraphdb.app.dataflow.InputPort;
+
+/**
+ * <p>An input port that delegates to the port created by the network and records the
+ * items read and the time spent waiting for them.</p>
+ */
+class MeteredInputPort<V> extends InputPort<V>
+{
+	private final InputPort<V> wrapped;
+	private final MeteredProcessor<?>.Run run;
+	private final ChannelMetrics channelMetrics;
+	private final boolean primary;
+
+	MeteredInputPort(InputPort<V> wrapped, 
+					 MeteredProcessor<?>.Run run, 
+					 ChannelMetrics channelMetrics, 
+					 boolean primary)
+	{
+		this.wrapped = wrapped;
+		this.run = run;
+		this.channelMetrics = channelMetrics;
+		this.primary = primary;
+		this.channel = wrapped.getChannel();
+		channelMetrics.addReader(wrapped);
+	}
+
+	void detach()
+	{
+		channelMetrics.removeReader(wrapped);
+	}
+
+	public V take() throws InterruptedException
+	{
+		long start = System.nanoTime();
+		V x = wrapped.take();
+		long end = System.nanoTime();
+		boolean eos = wrapped.isEOS(x);
+		channelMetrics.takeBlocked.addAndGet(end - start);
+		run.blockedOnInput(start, end, primary, eos);
+		return x;
+	}
+
+	public V poll()
+	{
+		V x = wrapped.poll();
+		if (x != null && !wrapped.isEOS(x))
+			run.getMetrics().itemsIn.incrementAndGet();
+		return x;
+	}
+
+	public boolean put(V v) throws InterruptedException
+	{
+		return wrapped.put(v);
+	}
+
+	public boolean isEOS(Object x)
+	{
+		return wrapped.isEOS(x);
+	}
+
+	public int getCurrentDataCount()
+	{
+		return wrapped.getCurrentDataCount();
+	}
+
+	public void clear()
+	{
+		wrapped.clear();
+	}
+
+	public void close() throws InterruptedException
+	{
+		wrapped.close();
+	}
+
+	public void open()
+	{
+		wrapped.open();
+	}
+
+	public boolean isOpen()
+	{
+		return wrapped.isOpen();
+	}
+
+	public void await() throws InterruptedException
+	{
+		wrapped.await();
+	}
+
+	public Channel<V> getChannel()
+	{
+		return wrapped.getChannel();
+	}
+
+	public void setChannel(Channel<V> channel)
+	{
+		wrapped.setChannel(channel);
+	}
+
+	public String toString()
+	{
+		return "Metered" + wrapped.toString();
+	}
+}
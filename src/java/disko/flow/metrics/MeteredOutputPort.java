@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.flow.metrics;
+
+import org.hypergraphdb.app.dataflow.Channel;
+import org.hypergraphdb.app.dataflow.OutputPort;
+
+/**
+ * <p>An output port that delegates to the port created by the network and records the
+ * items written and the time spent blocked on a full channel.</p>
+ */
+class MeteredOutputPort<V> extends OutputPort<V>
+{
+	private final OutputPort<V> wrapped;
+	private final MeteredProcessor<?>.Run run;
+	private final ChannelMetrics channelMetrics;
+	private final boolean primary;
+
+	MeteredOutputPort(OutputPort<V> wrapped, 
+					  MeteredProcessor<?>.Run run, 
+					  ChannelMetrics channelMetrics, 
+					  boolean primary)
+	{
+		this.wrapped = wrapped;
+		this.run = run;
+		this.channelMetrics = channelMetrics;
+		this.primary = primary;
+		this.channel = wrapped.getChannel();
+	}
+
+	public boolean put(V v) throws InterruptedException
+	{
+		long start = System.nanoTime();
+		boolean result = wrapped.put(v);
+		long end = System.nanoTime();
+		channelMetrics.putBlocked.addAndGet(end - start);
+		if (result)
+			channelMetrics.put();
+		run.blockedOnOutput(start, end, primary, result);
+		return result;
+	}
+
+	public void close() throws InterruptedException
+	{
+		wrapped.close();
+	}
+
+	public void open()
+	{
+		wrapped.open();
+	}
+
+	public boolean isOpen()
+	{
+		return wrapped.isOpen();
+	}
+
+	public void await() throws InterruptedException
+	{
+		wrapped.await();
+	}
+
+	public Channel<V> getChannel()
+	{
+		return wrapped.getChannel();
+	}
+
+	public void setChannel(Channel<V> channel)
+	{
+		wrapped.setChannel(channel);
+	}
+
+	public String toString()
+	{
+		return "Metered" + wrapped.toString();
+	}
+}
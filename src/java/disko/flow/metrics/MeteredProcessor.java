@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.flow.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hypergraphdb.app.dataflow.InputPort;
+import org.hypergraphdb.app.dataflow.OutputPort;
+import org.hypergraphdb.app.dataflow.Ports;
+import org.hypergraphdb.app.dataflow.Processor;
+
+/**
+ * <p>
+ * Wraps a dataflow node to record its {@link ProcessorMetrics} and the
+ * {@link ChannelMetrics} of the channels it is connected to. The wrapped processor gets
+ * metering copies of its ports and is otherwise unaware of the instrumentation.
+ * Networks are instrumented with {@link PipelineMetrics#instrument}.
+ * </p>
+ *
+ * @param <ContextType>
+ */
+public class MeteredProcessor<ContextType> implements Processor<ContextType>
+{
+	private final Processor<ContextType> processor;
+	private final PipelineMetrics pipeline;
+	private final ProcessorMetrics metrics;
+
+	/**
+	 * <p>The state of one run: the time blocked on channels so far and the end of the
+	 * last read (or write) on the primary port.</p>
+	 */
+	class Run
+	{
+		final AtomicLong blocked = new AtomicLong();
+		long lastPrimary = 0;
+		long blockedAtLastPrimary = 0;
+
+		ProcessorMetrics getMetrics()
+		{
+			return metrics;
+		}
+
+		private void cycle(long start, long end, long blockedBefore, boolean last)
+		{
+			if (lastPrimary != 0)
+				metrics.itemTime.record(start - lastPrimary - (blockedBefore - blockedAtLastPrimary));
+			lastPrimary = last ? 0 : end;
+			blockedAtLastPrimary = blockedBefore + (end - start);
+		}
+
+		void blockedOnInput(long start, long end, boolean primary, boolean eos)
+		{
+			long blockedBefore = blocked.getAndAdd(end - start);
+			metrics.blockedOnInput.addAndGet(end - start);
+			if (!eos)
+				metrics.itemsIn.incrementAndGet();
+			if (primary)
+				cycle(start, end, blockedBefore, eos);
+		}
+
+		void blockedOnOutput(long start, long end, boolean primary, boolean written)
+		{
+			long blockedBefore = blocked.getAndAdd(end - start);
+			metrics.blockedOnOutput.addAndGet(end - start);
+			if (written)
+				metrics.itemsOut.incrementAndGet();
+			if (primary)
+				cycle(start, end, blockedBefore, false);
+		}
+	}
+
+	public MeteredProcessor(Processor<ContextType> processor, PipelineMetrics pipeline)
+	{
+		this.processor = processor;
+		this.pipeline = pipeline;
+		this.metrics = pipeline.getProcessor(processor.getName());
+	}
+
+	@SuppressWarnings("unchecked")
+	public void process(ContextType ctx, Ports ports) throws InterruptedException
+	{
+		long start = System.nanoTime();
+		Run run = new Run();
+		Ports metered = new Ports();
+		List<MeteredInputPort<?>> inputs = new ArrayList<MeteredInputPort<?>>();
+		boolean primary = true;
+		for (InputPort<?> in : ports.getInputPorts())
+		{
+			MeteredInputPort<?> port = new MeteredInputPort<Object>((InputPort<Object>)in, 
+					run, 
+					pipeline.getChannel(in.getChannel().getId(), in.getChannel().getCapacity()),
+					primary);
+			inputs.add(port);
+			metered.addPort(port);
+			primary = false;
+		}
+		for (OutputPort<?> out : ports.getOutputPorts())
+		{
+			metered.addPort(new MeteredOutputPort<Object>((OutputPort<Object>)out, 
+					run, 
+					pipeline.getChannel(out.getChannel().getId(), out.getChannel().getCapacity()),
+					primary));
+			primary = false;
+		}
+		try
+		{
+			processor.process(ctx, metered);
+		}
+		finally
+		{
+			for (MeteredInputPort<?> port : inputs)
+				port.detach();
+			metrics.runTime.recordSince(start);
+			metrics.runs.incrementAndGet();
+		}
+	}
+
+	public String getName()
+	{
+		return processor.getName();
+	}
+
+	/**
+	 * <p>Return the instrumented processor.</p>
+	 */
+	public Processor<ContextType> getProcessor()
+	{
+		return processor;
+	}
+
+	public ProcessorMetrics getMetrics()
+	{
+		return metrics;
+	}
+
+	public String toString()
+	{
+		return "Metered[" + processor + "]";
+	}
+}
@@ -0,0 +1,316 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.flow.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hypergraphdb.app.dataflow.Channel;
+import org.hypergraphdb.app.dataflow.DataFlowNetwork;
+import org.hypergraphdb.app.dataflow.Processor;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * <p>
+ * A registry of the metrics of a dataflow pipeline: per node item counts, processing time
+ * histograms and time blocked on channels, and per channel item counts and queue depths.
+ * A network is instrumented by wrapping each of its nodes in a {@link MeteredProcessor},
+ * so analyzers need not be changed. All networks instrumented with the same registry, typically
+ * the networks of a <code>NetworkPool</code>, report under the same node names and channel ids.
+ * </p>
+ *
+ * <p>
+ * The metrics are exposed as MBeans under the <code>disko.flow</code> domain of the platform
+ * MBean server and can also be written periodically to the log as text or JSON, see
+ * {@link #startDump}. Registries are looked up by name with {@link #get}. The
+ * {@link #fromSystemProperties} method creates a registry as configured by the
+ * <code>disko.metrics</code> (enable), <code>disko.metrics.dump</code> (dump period in
+ * seconds, 0 for none) and <code>disko.metrics.format</code> (<code>text</code> or
+ * <code>json</code>) system properties.
+ * </p>
+ */
+public class PipelineMetrics
+{
+	private static Log log = LogFactory.getLog(PipelineMetrics.class);
+
+	private static final Map<String, PipelineMetrics> registries = new HashMap<String, PipelineMetrics>();
+
+	private final String name;
+	private final ConcurrentMap<String, ProcessorMetrics> processors = new ConcurrentHashMap<String, ProcessorMetrics>();
+	private final ConcurrentMap<String, ChannelMetrics> channels = new ConcurrentHashMap<String, ChannelMetrics>();
+	private final Set<ObjectName> mbeans = new HashSet<ObjectName>();
+	private boolean jmx = true;
+	private ScheduledExecutorService dumper = null;
+
+	/**
+	 * <p>Return the registry with the given name, creating it if it doesn't exist.</p>
+	 */
+	public static synchronized PipelineMetrics get(String name)
+	{
+		PipelineMetrics metrics = registries.get(name);
+		if (metrics == null)
+		{
+			metrics = new PipelineMetrics(name);
+			registries.put(name, metrics);
+		}
+		return metrics;
+	}
+
+	/**
+	 * <p>
+	 * Return the registry with the given name if metrics are enabled with the
+	 * <code>disko.metrics</code> system property, or <code>null</code> otherwise. Periodic
+	 * dumps are started as configured by <code>disko.metrics.dump</code> and
+	 * <code>disko.metrics.format</code>, unless the registry is already being dumped.
+	 * </p>
+	 */
+	public static PipelineMetrics fromSystemProperties(String name)
+	{
+		if (!Boolean.getBoolean("disko.metrics"))
+			return null;
+		PipelineMetrics metrics = get(name);
+		long period = Long.parseLong(System.getProperty("disko.metrics.dump", "0"));
+		synchronized (metrics)
+		{
+			if (period > 0 && metrics.dumper == null)
+				metrics.startDump(period*1000, "json".equals(System.getProperty("disko.metrics.format")));
+		}
+		return metrics;
+	}
+
+	public PipelineMetrics(String name)
+	{
+		this.name = name;
+	}
+
+	/**
+	 * <p>
+	 * Wrap all nodes of an idle network in {@link MeteredProcessor}s. Nodes already
+	 * instrumented are left alone, so this can be called more than once.
+	 * </p>
+	 */
+	public <ContextType> void instrument(DataFlowNetwork<ContextType> network)
+	{
+		if (!network.isIdle())
+			throw new IllegalStateException("Can't instrument a running network.");
+		for (Channel<?> ch : network.getChannels())
+			getChannel(ch.getId(), ch.getCapacity());
+		for (Processor<ContextType> p : new ArrayList<Processor<ContextType>>(network.getNodes()))
+		{
+			if (p instanceof MeteredProcessor<?>)
+				continue;
+			Set<String> inputs = new HashSet<String>(network.getInputs(p));
+			Set<String> outputs = new HashSet<String>(network.getOutputs(p));
+			network.removeNode(p);
+			network.addNode(new MeteredProcessor<ContextType>(p, this), inputs, outputs);
+		}
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * <p>Return the metrics of the node with the given name, creating them if needed.</p>
+	 */
+	public ProcessorMetrics getProcessor(String processorName)
+	{
+		ProcessorMetrics m = processors.get(processorName);
+		if (m == null)
+		{
+			ProcessorMetrics existing = processors.putIfAbsent(processorName, m = new ProcessorMetrics(processorName));
+			if (existing != null)
+				return existing;
+			register("Processor", processorName, m);
+		}
+		return m;
+	}
+
+	/**
+	 * <p>Return the metrics of the channel with the given id, creating them if needed.</p>
+	 */
+	public ChannelMetrics getChannel(String id, int capacity)
+	{
+		ChannelMetrics m = channels.get(id);
+		if (m == null)
+		{
+			ChannelMetrics existing = channels.putIfAbsent(id, m = new ChannelMetrics(id, capacity));
+			if (existing != null)
+				return existing;
+			register("Channel", id, m);
+		}
+		return m;
+	}
+
+	public Collection<ProcessorMetrics> getProcessors()
+	{
+		return new TreeMap<String, ProcessorMetrics>(processors).values();
+	}
+
+	public Collection<ChannelMetrics> getChannels()
+	{
+		return new TreeMap<String, ChannelMetrics>(channels).values();
+	}
+
+	public void reset()
+	{
+		for (ProcessorMetrics m : processors.values())
+			m.reset();
+		for (ChannelMetrics m : channels.values())
+			m.reset();
+	}
+
+	public synchronized boolean isJmx()
+	{
+		return jmx;
+	}
+
+	/**
+	 * <p>Specify whether new metrics are registered as MBeans (the default). Metrics
+	 * already registered stay registered until {@link #unregister()}.</p>
+	 */
+	public synchronized void setJmx(boolean jmx)
+	{
+		this.jmx = jmx;
+	}
+
+	private synchronized void register(String type, String id, Object mbean)
+	{
+		if (!jmx)
+			return;
+		try
+		{
+			ObjectName objectName = new ObjectName("disko.flow:type=" + type + 
+												   ",pipeline=" + ObjectName.quote(name) + 
+												   ",name=" + ObjectName.quote(id));
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (!server.isRegistered(objectName))
+			{
+				server.registerMBean(mbean, objectName);
+				mbeans.add(objectName);
+			}
+		}
+		catch (Exception ex)
+		{
+			log.warn("Failed to register " + type + " " + id + " metrics with JMX.", ex);
+		}
+	}
+
+	/**
+	 * <p>Unregister all MBeans of this registry from the platform MBean server.</p>
+	 */
+	public synchronized void unregister()
+	{
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (ObjectName objectName : mbeans)
+		{
+			try { server.unregisterMBean(objectName); }
+			catch (Exception ex) { log.warn("Failed to unregister " + objectName, ex); }
+		}
+		mbeans.clear();
+	}
+
+	public String toText()
+	{
+		StringBuilder sb = new StringBuilder("Pipeline " + name + "\n");
+		for (ProcessorMetrics m : getProcessors())
+			sb.append("  ").append(m).append('\n');
+		for (ChannelMetrics m : getChannels())
+			sb.append("  ").append(m).append('\n');
+		return sb.toString();
+	}
+
+	public JSONObject toJSON()
+	{
+		JSONObject json = new JSONObject();
+		try
+		{
+			List<JSONObject> list = new ArrayList<JSONObject>();
+			for (ProcessorMetrics m : getProcessors())
+				list.add(m.toJSON());
+			json.put("pipeline", name);
+			json.put("timestamp", System.currentTimeMillis());
+			json.put("processors", new JSONArray(list));
+			list = new ArrayList<JSONObject>();
+			for (ChannelMetrics m : getChannels())
+				list.add(m.toJSON());
+			json.put("channels", new JSONArray(list));
+		}
+		catch (Exception ex)
+		{
+			throw new RuntimeException(ex);
+		}
+		return json;
+	}
+
+	/**
+	 * <p>
+	 * Write the metrics to the log (at the INFO level) every <code>periodMillis</code>
+	 * milliseconds, as JSON if <code>json</code> is true or as text otherwise. Replaces
+	 * any dump already scheduled.
+	 * </p>
+	 */
+	public synchronized void startDump(long periodMillis, final boolean json)
+	{
+		stopDump();
+		dumper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "disko-metrics-" + name);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		dumper.scheduleAtFixedRate(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					log.info(json ? toJSON().toString() : toText());
+				}
+				catch (Throwable t)
+				{
+					log.warn("While dumping pipeline metrics.", t);
+				}
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stopDump()
+	{
+		if (dumper != null)
+			dumper.shutdownNow();
+		dumper = null;
+	}
+}
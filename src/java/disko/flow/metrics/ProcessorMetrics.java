@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.flow.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+import disko.utils.LatencyHistogram;
+
+/**
+ * <p>
+ * Counters and timings of one dataflow node, aggregated over all runs and over all
+ * networks instrumented with the same {@link PipelineMetrics} (e.g. all networks of a
+ * <code>NetworkPool</code>).
+ * </p>
+ *
+ * <p>
+ * The per item processing time is measured without help from the processor, on its
+ * <em>primary</em> port: the first input port, or the first output port for nodes that
+ * have no inputs. It is the time between two consecutive reads (writes) of that port,
+ * less the time the node spent blocked on any of its channels in the meantime.
+ * </p>
+ */
+public class ProcessorMetrics implements ProcessorMetricsMBean
+{
+	private final String name;
+	final AtomicLong runs = new AtomicLong();
+	final AtomicLong itemsIn = new AtomicLong();
+	final AtomicLong itemsOut = new AtomicLong();
+	final AtomicLong blockedOnInput = new AtomicLong();
+	final AtomicLong blockedOnOutput = new AtomicLong();
+	final LatencyHistogram itemTime = new LatencyHistogram();
+	final LatencyHistogram runTime = new LatencyHistogram();
+
+	public ProcessorMetrics(String name)
+	{
+		this.name = name;
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public long getRuns()
+	{
+		return runs.get();
+	}
+
+	public long getItemsIn()
+	{
+		return itemsIn.get();
+	}
+
+	public long getItemsOut()
+	{
+		return itemsOut.get();
+	}
+
+	public double getMeanItemMillis()
+	{
+		return itemTime.getMean();
+	}
+
+	public double getP90ItemMillis()
+	{
+		return itemTime.getPercentile(90);
+	}
+
+	public double getP99ItemMillis()
+	{
+		return itemTime.getPercentile(99);
+	}
+
+	public double getMaxItemMillis()
+	{
+		return itemTime.getMax();
+	}
+
+	public double getMeanRunMillis()
+	{
+		return runTime.getMean();
+	}
+
+	public double getBlockedOnInputMillis()
+	{
+		return blockedOnInput.get() / 1000000.0;
+	}
+
+	public double getBlockedOnOutputMillis()
+	{
+		return blockedOnOutput.get() / 1000000.0;
+	}
+
+	/**
+	 * <p>Return the histogram of per item processing times.</p>
+	 */
+	public LatencyHistogram getItemTime()
+	{
+		return itemTime;
+	}
+
+	/**
+	 * <p>Return the histogram of the durations of whole runs, i.e. of calls to
+	 * <code>Processor.process</code>.</p>
+	 */
+	public LatencyHistogram getRunTime()
+	{
+		return runTime;
+	}
+
+	public void reset()
+	{
+		runs.set(0);
+		itemsIn.set(0);
+		itemsOut.set(0);
+		blockedOnInput.set(0);
+		blockedOnOutput.set(0);
+		itemTime.reset();
+		runTime.reset();
+	}
+
+	public JSONObject toJSON()
+	{
+		JSONObject json = new JSONObject();
+		try
+		{
+			json.put("name", name);
+			json.put("runs", getRuns());
+			json.put("itemsIn", getItemsIn());
+			json.put("itemsOut", getItemsOut());
+			json.put("itemMeanMillis", getMeanItemMillis());
+			json.put("itemP90Millis", getP90ItemMillis());
+			json.put("itemP99Millis", getP99ItemMillis());
+			json.put("itemMaxMillis", getMaxItemMillis());
+			json.put("runMeanMillis", getMeanRunMillis());
+			json.put("blockedOnInputMillis", getBlockedOnInputMillis());
+			json.put("blockedOnOutputMillis", getBlockedOnOutputMillis());
+		}
+		catch (Exception ex)
+		{
+			throw new RuntimeException(ex);
+		}
+		return json;
+	}
+
+	public String toString()
+	{
+		return String.format("%s: runs=%d in=%d out=%d item[%s] blockedIn=%.1fms blockedOut=%.1fms",
+							 name, getRuns(), getItemsIn(), getItemsOut(), itemTime,
+							 getBlockedOnInputMillis(), getBlockedOnOutputMillis());
+	}
+}
@@ -0,0 +1,31 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.flow.metrics;
+
+/**
+ * <p>JMX view of the {@link ProcessorMetrics} of a dataflow node.</p>
+ */
+public interface ProcessorMetricsMBean
+{
+	String getName();
+	long getRuns();
+	long getItemsIn();
+	long getItemsOut();
+	double getMeanItemMillis();
+	double getP90ItemMillis();
+	double getP99ItemMillis();
+	double getMaxItemMillis();
+	double getMeanRunMillis();
+	double getBlockedOnInputMillis();
+	double getBlockedOnOutputMillis();
+	void reset();
+}
@@ -19,6 +19,7 @@ import java.util.Set;
 
 import org.hypergraphdb.app.dataflow.Channel;
 import org.hypergraphdb.app.dataflow.PredefinedNetwork;
+import org.hypergraphdb.app.dataflow.Processor;
 
 import disko.AnalysisContext;
 import disko.ParagraphAnn;
@@ -61,6 +62,7 @@ public class IENetworkCoarse extends PredefinedNetwork<AnalysisContext<TextDocum
 	private String entityHost = null;
 	private List<String> linkGrammarServers = null;
 	private boolean debug = false;
+	private int parallelism = 1;
 	
 	FullRelexAnalyzer lg = null;
 	
@@ -118,10 +120,14 @@ public class IENetworkCoarse extends PredefinedNetwork<AnalysisContext<TextDocum
 					new String[]{EntityAnalyzer.ENTITY_CHANNEL});			
 		}
 		else
+		{
+			// Not replicated: GATE can only be used by one thread at a time, and OpenNLP
+			// already runs its models in parallel.
 			addNode(
 					new EntityAnalyzer(), 
 					new String[]{SentenceAnalyzer.SENTENCE_CHANNEL}, 
 					new String[]{EntityAnalyzer.ENTITY_CHANNEL});
+		}
 		
 		lg = new FullRelexAnalyzer();
 		if (linkGrammarServers != null && !linkGrammarServers.isEmpty())
@@ -144,11 +150,21 @@ public class IENetworkCoarse extends PredefinedNetwork<AnalysisContext<TextDocum
 				new String[]{EntityAnalyzer.ENTITY_CHANNEL}, 
 				new String[]{FullRelexAnalyzer.PARSE_CHANNEL});
 
-		addNode(new ToRelOccAnalyzer(), 
+		List<Processor<AnalysisContext<TextDocument>>> toRelOccs = 
+			new ArrayList<Processor<AnalysisContext<TextDocument>>>();
+		List<Processor<AnalysisContext<TextDocument>>> parseSelects = 
+			new ArrayList<Processor<AnalysisContext<TextDocument>>>();
+		for (int i = 0; i < parallelism; i++)
+		{
+			toRelOccs.add(new ToRelOccAnalyzer());
+			parseSelects.add(new ParseSelectAnalyzer());
+		}
+		
+		addNode(parallel(toRelOccs), 
 				new String[]{EntityAnalyzer.ENTITY_CHANNEL, FullRelexAnalyzer.PARSE_CHANNEL}, 
 				new String[]{ToRelOccAnalyzer.SENTENCE_INTERPRETATIONS});
 
-		addNode(new ParseSelectAnalyzer(), 
+		addNode(parallel(parseSelects), 
 				new String[]{ToRelOccAnalyzer.SENTENCE_INTERPRETATIONS, EntityAnalyzer.ENTITY_CHANNEL}, 
 				new String[]{ParseSelectAnalyzer.SELECTED_PARSE_CHANNEL});
 
@@ -175,6 +191,39 @@ public class IENetworkCoarse extends PredefinedNetwork<AnalysisContext<TextDocum
 	{
 	}
 
+	/**
+	 * <p>Return the single processor if there is only one, otherwise a {@link ParallelStage}
+	 * running all of them.</p>
+	 */
+	private Processor<AnalysisContext<TextDocument>> parallel(List<Processor<AnalysisContext<TextDocument>>> replicas)
+	{
+		if (replicas.size() == 1)
+			return replicas.get(0);
+		else
+			return new ParallelStage<AnalysisContext<TextDocument>>(replicas);
+	}
+
+	public int getParallelism()
+	{
+		return parallelism;
+	}
+
+	/**
+	 * <p>
+	 * Set the number of replicas of the sentence-level stages (conversion to relation
+	 * occurrences and parse selection) running in parallel. The default is 1, i.e. a single
+	 * processor per stage. Replicas resolve words and entities to atoms in transactions, so
+	 * that they don't add duplicates. Entity detection isn't replicated, see 
+	 * {@link EntityAnalyzer}.
+	 * </p>
+	 */
+	public void setParallelism(int parallelism)
+	{
+		if (parallelism < 1)
+			throw new IllegalArgumentException("Parallelism must be at least 1.");
+		this.parallelism = parallelism;
+	}
+
 	public boolean isDebug()
 	{
 		return debug;
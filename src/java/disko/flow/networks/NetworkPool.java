@@ -0,0 +1,287 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.flow.networks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hypergraphdb.app.dataflow.Channel;
+import org.hypergraphdb.app.dataflow.DataFlowNetwork;
+import org.hypergraphdb.app.dataflow.Processor;
+import org.hypergraphdb.util.Pair;
+
+/**
+ * <p>
+ * A bounded pool of built and initialized ("warm") dataflow networks. Constructing a
+ * network and initializing its analyzers (sentence detection models, GATE, parser pools
+ * etc.) is expensive, so instead of creating a new network for every document, a network
+ * is taken from the pool, reset and re-run with the new context.
+ * </p>
+ *
+ * <p>
+ * Networks are created lazily by the factory passed at construction time, which must
+ * return a ready-to-run network (i.e. with <code>create</code> already called for
+ * <code>PredefinedNetwork</code>s). At most <code>size</code> networks exist at any time,
+ * which also bounds the number of documents in flight with {@link #submit}. A network whose
+ * run fails is discarded rather than put back in the pool.
+ * </p>
+ *
+ * <p>
+ * Processors are reused across runs. They must therefore re-initialize any per-document state
+ * at the beginning of their <code>process</code> method, as the analyzers in
+ * <code>disko.flow.analyzers</code> do.
+ * </p>
+ *
+ * @param <ContextType>
+ * @param <N> The network type.
+ */
+public class NetworkPool<ContextType, N extends DataFlowNetwork<ContextType>>
+{
+	private static Log log = LogFactory.getLog(NetworkPool.class);
+
+	private final Callable<N> factory;
+	private final int size;
+	private final LinkedBlockingQueue<N> idle = new LinkedBlockingQueue<N>();
+	private final List<N> all = new ArrayList<N>();
+	private final ExecutorService runner;
+	private volatile boolean shutdown = false;
+	private long runs = 0;
+
+	public NetworkPool(Callable<N> factory, int size)
+	{
+		if (size < 1)
+			throw new IllegalArgumentException("Network pool size must be at least 1.");
+		this.factory = factory;
+		this.size = size;
+		this.runner = Executors.newFixedThreadPool(size, new ThreadFactory()
+		{
+			private AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "disko-network-pool-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * <p>
+	 * Replace all channels of the network with fresh copies (same id, EOS and capacity)
+	 * and reconnect all nodes to them. Channels keep track of all ports ever connected to them,
+	 * so this must be done before every run of a network that has already completed.
+	 * </p>
+	 */
+	@SuppressWarnings("unchecked")
+	public static <ContextType> void reset(DataFlowNetwork<ContextType> network)
+	{
+		if (!network.isIdle())
+			throw new IllegalStateException("Can't reset a running network.");
+		Map<Processor<ContextType>, Pair<Set<String>, Set<String>>> nodes = 
+			new HashMap<Processor<ContextType>, Pair<Set<String>, Set<String>>>();
+		for (Processor<ContextType> p : network.getNodes())
+			nodes.put(p, new Pair<Set<String>, Set<String>>(new HashSet<String>(network.getInputs(p)),
+															 new HashSet<String>(network.getOutputs(p))));
+		for (Channel<?> ch : new ArrayList<Channel<?>>(network.getChannels()))
+		{
+			Channel<Object> c = (Channel<Object>)ch;
+			network.removeChannel(c.getId());
+			network.addChannel(new Channel<Object>(c.getId(), c.getEOS(), c.getCapacity()));
+		}
+		for (Map.Entry<Processor<ContextType>, Pair<Set<String>, Set<String>>> e : nodes.entrySet())
+		{
+			if (network.getNodes().contains(e.getKey()))
+				network.removeNode(e.getKey());
+			network.addNode(e.getKey(), e.getValue().getFirst(), e.getValue().getSecond());
+		}
+	}
+
+	/**
+	 * <p>
+	 * Take a network out of the pool, creating a new one if fewer than <code>size</code> exist,
+	 * otherwise waiting until one is released. The network must be returned with {@link #release}.
+	 * </p>
+	 */
+	public N acquire() throws InterruptedException
+	{
+		if (shutdown)
+			throw new IllegalStateException("Network pool is shut down.");
+		while (true)
+		{
+			N network = idle.poll();
+			if (network != null)
+				return network;
+			synchronized (all)
+			{
+				if (all.size() < size)
+				{
+					try
+					{
+						network = factory.call();
+					}
+					catch (RuntimeException ex)
+					{
+						throw ex;
+					}
+					catch (Exception ex)
+					{
+						throw new RuntimeException(ex);
+					}
+					all.add(network);
+					return network;
+				}
+			}
+			// Wake up periodically in case a network was discarded in the meantime. 
+			network = idle.poll(1, TimeUnit.SECONDS);
+			if (network != null)
+				return network;
+		}
+	}
+
+	/**
+	 * <p>Return a network to the pool.</p>
+	 */
+	public void release(N network)
+	{
+		if (shutdown)
+			network.kill();
+		else
+			idle.add(network);
+	}
+
+	/**
+	 * <p>Remove a network from the pool for good, e.g. after a failed run.</p>
+	 */
+	public void discard(N network)
+	{
+		synchronized (all)
+		{
+			all.remove(network);
+		}
+		try { network.kill(); }
+		catch (Throwable t) { log.warn("While killing discarded network.", t); }
+	}
+
+	/**
+	 * <p>
+	 * Reset an acquired network and run it to completion on the given context. If the run
+	 * fails, the network is discarded and must not be released.
+	 * </p>
+	 */
+	public boolean run(N network, ContextType ctx) throws InterruptedException, ExecutionException
+	{
+		try
+		{
+			reset(network);
+			Future<Boolean> f = network.start(ctx);
+			Boolean result = f.get();
+			synchronized (this) { runs++; }
+			return result != null && result;
+		}
+		catch (InterruptedException ex)
+		{
+			discard(network);
+			throw ex;
+		}
+		catch (ExecutionException ex)
+		{
+			discard(network);
+			throw ex;
+		}
+		catch (RuntimeException ex)
+		{
+			discard(network);
+			throw ex;
+		}
+	}
+
+	/**
+	 * <p>
+	 * Process the context asynchronously with a pooled network. At most <code>size</code>
+	 * contexts are processed at the same time, others wait in line.
+	 * </p>
+	 */
+	public Future<Boolean> submit(final ContextType ctx)
+	{
+		return runner.submit(new Callable<Boolean>()
+		{
+			public Boolean call() throws Exception
+			{
+				return process(ctx);
+			}
+		});
+	}
+
+	/**
+	 * <p>Process the context with a pooled network in the current thread.</p>
+	 */
+	public boolean process(ContextType ctx) throws InterruptedException, ExecutionException
+	{
+		N network = acquire();
+		boolean result = run(network, ctx);
+		release(network);
+		return result;
+	}
+
+	public int getSize()
+	{
+		return size;
+	}
+
+	/**
+	 * <p>Return the number of networks created so far and not discarded.</p>
+	 */
+	public int getCreatedCount()
+	{
+		synchronized (all)
+		{
+			return all.size();
+		}
+	}
+
+	public int getIdleCount()
+	{
+		return idle.size();
+	}
+
+	public synchronized long getRunCount()
+	{
+		return runs;
+	}
+
+	/**
+	 * <p>Stop accepting work and kill all idle networks. Networks currently running are
+	 * killed when released.</p>
+	 */
+	public void shutdown()
+	{
+		shutdown = true;
+		runner.shutdown();
+		for (N network = idle.poll(); network != null; network = idle.poll())
+			network.kill();
+	}
+}
@@ -0,0 +1,310 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.flow.networks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hypergraphdb.app.dataflow.AbstractProcessor;
+import org.hypergraphdb.app.dataflow.Channel;
+import org.hypergraphdb.app.dataflow.InputPort;
+import org.hypergraphdb.app.dataflow.OutputPort;
+import org.hypergraphdb.app.dataflow.Ports;
+import org.hypergraphdb.app.dataflow.Processor;
+
+/**
+ * <p>
+ * A dataflow node that runs several replicas of a stateless processor in parallel while
+ * preserving the order of the data. The stage reads one value from each of its input
+ * channels at a time (as the lock-step analyzers of the IE networks do), tags the resulting
+ * tuple with a sequence number and hands it to the least loaded replica. The outputs of the
+ * replicas are merged back in sequence order, so downstream nodes see exactly the same
+ * stream as with a single processor.
+ * </p>
+ *
+ * <p>
+ * Each replica is connected to private copies of the stage's channels and runs its
+ * normal <code>process</code> loop against them. Replicas must be <em>one-in-one-out</em>:
+ * for every input tuple they must write exactly one value to each of their output channels.
+ * This holds for sentence-level analyzers such as <code>EntityAnalyzer</code>,
+ * <code>ToRelOccAnalyzer</code> or <code>ParseSelectAnalyzer</code>.
+ * </p>
+ *
+ * @param <ContextType>
+ */
+public class ParallelStage<ContextType> extends AbstractProcessor<ContextType>
+{
+	private static Log log = LogFactory.getLog(ParallelStage.class);
+
+	private static final int END = -1;
+
+	private static final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory()
+	{
+		private AtomicInteger count = new AtomicInteger();
+		public Thread newThread(Runnable r)
+		{
+			Thread t = new Thread(r, "disko-parallel-stage-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private List<Processor<ContextType>> replicas = new ArrayList<Processor<ContextType>>();
+	private int channelCapacity = 30;
+	private long processed = 0;
+
+	public ParallelStage()
+	{
+	}
+
+	public ParallelStage(List<Processor<ContextType>> replicas)
+	{
+		this.replicas = replicas;
+	}
+
+	@SuppressWarnings("unchecked")
+	public ParallelStage(Processor<ContextType>...replicas)
+	{
+		Collections.addAll(this.replicas, replicas);
+	}
+
+	/**
+	 * <p>The connection of one replica: the private ports through which the stage feeds
+	 * it and reads its results, and the ports the replica itself works with.</p>
+	 */
+	private class Replica
+	{
+		Processor<ContextType> processor;
+		Ports ports = new Ports();
+		List<OutputPort<Object>> feed = new ArrayList<OutputPort<Object>>();
+		List<InputPort<Object>> results = new ArrayList<InputPort<Object>>();
+		AtomicInteger pending = new AtomicInteger();
+		Future<?> future;
+
+		@SuppressWarnings("unchecked")
+		Replica(Processor<ContextType> processor, Ports stagePorts)
+		{
+			this.processor = processor;
+			for (InputPort<?> in : stagePorts.getInputPorts())
+			{
+				Channel<Object> ch = new Channel<Object>(in.getChannel().getId(),
+														 in.getChannel().getEOS(),
+														 channelCapacity);
+				OutputPort<Object> out = ch.newOutputPort();
+				ports.addPort(ch.newInputPort());
+				feed.add(out);
+				out.open();
+			}
+			for (OutputPort<?> out : stagePorts.getOutputPorts())
+			{
+				Channel<Object> ch = new Channel<Object>(out.getChannel().getId(),
+						 								 out.getChannel().getEOS(),
+						 								 channelCapacity);
+				InputPort<Object> in = ch.newInputPort();
+				ports.addPort(ch.newOutputPort());
+				results.add(in);
+				in.open();
+			}
+			ports.openAll();
+		}
+
+		void start(final ContextType ctx)
+		{
+			future = executor.submit(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						processor.process(ctx, ports);
+					}
+					catch (InterruptedException ex)
+					{
+						Thread.currentThread().interrupt();
+					}
+					catch (Throwable t)
+					{
+						log.error("Replica " + processor.getName() + " failed.", t);
+					}
+					finally
+					{
+						try { ports.closeAll(); }
+						catch (InterruptedException ex) { Thread.currentThread().interrupt(); }
+					}
+				}
+			});
+		}
+
+		void closeFeed() throws InterruptedException
+		{
+			for (OutputPort<Object> out : feed)
+				out.close();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public void process(final ContextType ctx, Ports ports) throws InterruptedException
+	{
+		if (replicas.isEmpty())
+			throw new IllegalStateException("ParallelStage " + getName() + " has no replicas.");
+
+		final List<InputPort<Object>> inputs = new ArrayList<InputPort<Object>>();
+		for (InputPort<?> in : ports.getInputPorts())
+			inputs.add((InputPort<Object>)in);
+		final List<OutputPort<Object>> outputs = new ArrayList<OutputPort<Object>>();
+		for (OutputPort<?> out : ports.getOutputPorts())
+			outputs.add((OutputPort<Object>)out);
+
+		final List<Replica> connected = new ArrayList<Replica>();
+		for (Processor<ContextType> p : replicas)
+		{
+			Replica r = new Replica(p, ports);
+			connected.add(r);
+			r.start(ctx);
+		}
+
+		// The sequence of replicas to which consecutive tuples were dispatched - the
+		// merger reads replica outputs in that same order.
+		final LinkedBlockingQueue<Integer> sequence = new LinkedBlockingQueue<Integer>();
+		final AtomicBoolean stop = new AtomicBoolean(false);
+		Future<?> merger = executor.submit(new Runnable()
+		{
+			public void run()
+			{
+				// Once stopped, keep draining the replicas so that none of them stays
+				// blocked on a full channel.
+				try
+				{
+					for (int r = sequence.take(); r != END; r = sequence.take())
+					{
+						Replica replica = connected.get(r);
+						for (int i = 0; i < outputs.size(); i++)
+						{
+							InputPort<Object> in = replica.results.get(i);
+							Object x = in.take();
+							if (in.isEOS(x))
+							{
+								if (!stop.getAndSet(true))
+									log.warn("Replica " + replica.processor.getName() +
+											 " ended prematurely, stopping stage " + getName());
+							}
+							else if (!stop.get() && !outputs.get(i).put(x))
+								stop.set(true);
+						}
+						replica.pending.decrementAndGet();
+					}
+				}
+				catch (InterruptedException ex)
+				{
+					stop.set(true);
+				}
+			}
+		});
+
+		try
+		{
+			int next = 0;
+			Object [] tuple = new Object[inputs.size()];
+			dispatch: while (!stop.get())
+			{
+				for (int i = 0; i < tuple.length; i++)
+				{
+					tuple[i] = inputs.get(i).take();
+					if (inputs.get(i).isEOS(tuple[i]))
+						break dispatch;
+				}
+				// pick the replica with the fewest tuples in flight, round-robin among equals
+				int best = next;
+				for (int j = 1; j < connected.size(); j++)
+				{
+					int k = (next + j) % connected.size();
+					if (connected.get(k).pending.get() < connected.get(best).pending.get())
+						best = k;
+				}
+				next = (best + 1) % connected.size();
+				Replica replica = connected.get(best);
+				replica.pending.incrementAndGet();
+				sequence.put(best);
+				for (int i = 0; i < tuple.length; i++)
+					replica.feed.get(i).put(tuple[i]);
+				processed++;
+			}
+		}
+		finally
+		{
+			for (Replica r : connected)
+				r.closeFeed();
+			sequence.put(END);
+		}
+		try
+		{
+			merger.get();
+			for (Replica r : connected)
+				r.future.get();
+		}
+		catch (ExecutionException ex)
+		{
+			throw new RuntimeException(ex.getCause());
+		}
+	}
+
+	/**
+	 * <p>Return the name of the replicated processor so that the stage can be looked up
+	 * like the original node.</p>
+	 */
+	public String getName()
+	{
+		return replicas.isEmpty() ? super.getName() : replicas.get(0).getName();
+	}
+
+	public List<Processor<ContextType>> getReplicas()
+	{
+		return replicas;
+	}
+
+	public void setReplicas(List<Processor<ContextType>> replicas)
+	{
+		this.replicas = replicas;
+	}
+
+	public int getChannelCapacity()
+	{
+		return channelCapacity;
+	}
+
+	/**
+	 * <p>Set the capacity of the private channels between the stage and each replica.</p>
+	 */
+	public void setChannelCapacity(int channelCapacity)
+	{
+		this.channelCapacity = channelCapacity;
+	}
+
+	/**
+	 * <p>Return the number of tuples dispatched so far.</p>
+	 */
+	public long getProcessed()
+	{
+		return processed;
+	}
+}
@@ -0,0 +1,348 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.relex;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HGPersistentHandle;
+import org.hypergraphdb.HyperGraph;
+import org.hypergraphdb.event.HGAtomAddedEvent;
+import org.hypergraphdb.event.HGAtomRemovedEvent;
+import org.hypergraphdb.event.HGEvent;
+import org.hypergraphdb.event.HGListener;
+
+import disko.data.owl.OWLClass;
+
+/**
+ * <p>
+ * A bounded, concurrent cache of the atoms that relation arguments resolve to in
+ * {@link ParseToRelations}: words by lemma, ontology individuals and generic named
+ * entities by entity type and name. Lookups that found nothing can be cached as well
+ * (negative entries) - those are represented by the {@link #MISSING} handle.
+ * </p>
+ *
+ * <p>
+ * The cache is split into independently locked LRU segments. It listens to atom
+ * removals in the graph and drops all entries pointing to removed atoms, several keys
+ * may resolve to the same atom. Negative entries are dropped whenever a new ontology
+ * class is added. {@link #invalidate(HGHandle)},
+ * {@link #invalidateMissing()} and {@link #clear()} can also be called explicitly, e.g.
+ * after bulk modifications done with listeners disabled.
+ * </p>
+ */
+public class EntityResolutionCache
+{
+	public static final String WORD = "word";
+	public static final String ONTOLOGY = "ontology";
+	public static final String GENERIC = "generic";
+
+	public static final int DEFAULT_CAPACITY = 100000;
+	private static final int SEGMENTS = 16;
+
+	/**
+	 * <p>The handle returned by {@link #get} for cached negative lookups.</p>
+	 */
+	public static final HGHandle MISSING = new HGHandle()
+	{
+		public HGPersistentHandle getPersistent() { return null; }
+		public String toString() { return "MISSING"; }
+	};
+
+	private static final Map<HyperGraph, EntityResolutionCache> caches = new HashMap<HyperGraph, EntityResolutionCache>();
+
+	private final HyperGraph graph;
+	private final Map<String, HGHandle> [] segments;
+	// All keys resolving to an atom, guarded by its own lock (taken after a segment's).
+	private final Map<HGHandle, Set<String>> keysByHandle = new HashMap<HGHandle, Set<String>>();
+	private final AtomicInteger negatives = new AtomicInteger();
+	private final AtomicLong hits = new AtomicLong(), negativeHits = new AtomicLong(), misses = new AtomicLong(),
+							 evictions = new AtomicLong(), invalidations = new AtomicLong();
+
+	/**
+	 * <p>Return the cache for the given graph, creating it if necessary.</p>
+	 */
+	public static EntityResolutionCache get(HyperGraph graph)
+	{
+		synchronized (caches)
+		{
+			EntityResolutionCache cache = caches.get(graph);
+			if (cache == null)
+			{
+				cache = new EntityResolutionCache(graph, DEFAULT_CAPACITY);
+				caches.put(graph, cache);
+			}
+			return cache;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public EntityResolutionCache(HyperGraph graph, int capacity)
+	{
+		this.graph = graph;
+		final int segmentCapacity = Math.max(1, capacity / SEGMENTS);
+		segments = (Map<String, HGHandle> []) new Map<?, ?>[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; i++)
+			segments[i] = new LinkedHashMap<String, HGHandle>(256, 0.75f, true)
+			{
+				private static final long serialVersionUID = 1L;
+				protected boolean removeEldestEntry(Map.Entry<String, HGHandle> eldest)
+				{
+					if (size() <= segmentCapacity)
+						return false;
+					forgetHandle(eldest.getKey(), eldest.getValue());
+					evictions.incrementAndGet();
+					return true;
+				}
+			};
+		graph.getEventManager().addListener(HGAtomRemovedEvent.class, new HGListener()
+		{
+			public Result handle(HyperGraph graph, HGEvent event)
+			{
+				invalidate(((HGAtomRemovedEvent)event).getAtomHandle());
+				return Result.ok;
+			}
+		});
+		graph.getEventManager().addListener(HGAtomAddedEvent.class, new HGListener()
+		{
+			public Result handle(HyperGraph graph, HGEvent event)
+			{
+				if (negatives.get() == 0)
+					return Result.ok;
+				// compare types rather than load every new atom
+				HGHandle owlClass = graph.getTypeSystem().getTypeHandleIfDefined(OWLClass.class);
+				if (owlClass != null && owlClass.equals(graph.getType(((HGAtomAddedEvent)event).getAtomHandle())))
+					invalidateMissing();
+				return Result.ok;
+			}
+		});
+	}
+
+	private static String key(String kind, String type, String name)
+	{
+		return kind + '\u0000' + (type == null ? "" : type) + '\u0000' + name;
+	}
+
+	private Map<String, HGHandle> segment(String key)
+	{
+		int h = key.hashCode();
+		return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+	}
+
+	private void forgetHandle(String key, HGHandle h)
+	{
+		if (h == MISSING)
+			negatives.decrementAndGet();
+		else
+			synchronized (keysByHandle)
+			{
+				Set<String> keys = keysByHandle.get(h);
+				if (keys != null && keys.remove(key) && keys.isEmpty())
+					keysByHandle.remove(h);
+			}
+	}
+
+	private void rememberHandle(String key, HGHandle h)
+	{
+		synchronized (keysByHandle)
+		{
+			Set<String> keys = keysByHandle.get(h);
+			if (keys == null)
+				keysByHandle.put(h, keys = new HashSet<String>(2));
+			keys.add(key);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Return the cached handle for the entity of the given kind (one of {@link #WORD},
+	 * {@link #ONTOLOGY}, {@link #GENERIC}), type (may be <code>null</code>) and name,
+	 * {@link #MISSING} if it is known not to exist or <code>null</code> if there is no
+	 * cache entry.
+	 * </p>
+	 */
+	public HGHandle get(String kind, String type, String name)
+	{
+		String key = key(kind, type, name);
+		Map<String, HGHandle> segment = segment(key);
+		HGHandle h;
+		synchronized (segment)
+		{
+			h = segment.get(key);
+		}
+		if (h == null)
+			misses.incrementAndGet();
+		else if (h == MISSING)
+			negativeHits.incrementAndGet();
+		else
+			hits.incrementAndGet();
+		return h;
+	}
+
+	/**
+	 * <p>
+	 * Cache the handle of an entity. When <code>created</code> is true, the atom was
+	 * just added by the caller; it is then cached only if there is no enclosing transaction,
+	 * since an abort would otherwise leave the cache pointing to a non-existing atom.
+	 * </p>
+	 */
+	public void put(String kind, String type, String name, HGHandle h, boolean created)
+	{
+		if (created && graph.getTransactionManager().getContext().getCurrent() != null)
+			return;
+		h = graph.getPersistentHandle(h);
+		String key = key(kind, type, name);
+		Map<String, HGHandle> segment = segment(key);
+		synchronized (segment)
+		{
+			HGHandle old = segment.put(key, h);
+			if (old != null)
+				forgetHandle(key, old);
+			rememberHandle(key, h);
+		}
+	}
+
+	/**
+	 * <p>Record that there's no entity of the given kind, type and name.</p>
+	 */
+	public void putMissing(String kind, String type, String name)
+	{
+		String key = key(kind, type, name);
+		Map<String, HGHandle> segment = segment(key);
+		synchronized (segment)
+		{
+			HGHandle old = segment.put(key, MISSING);
+			if (old != null)
+				forgetHandle(key, old);
+			negatives.incrementAndGet();
+		}
+	}
+
+	/**
+	 * <p>Drop all cache entries pointing to the given atom, if any.</p>
+	 */
+	public void invalidate(HGHandle atom)
+	{
+		HGHandle h = graph.getPersistentHandle(atom);
+		if (h == null)
+			return;
+		Set<String> keys;
+		synchronized (keysByHandle)
+		{
+			keys = keysByHandle.remove(h);
+		}
+		if (keys == null)
+			return;
+		for (String key : keys)
+		{
+			Map<String, HGHandle> segment = segment(key);
+			synchronized (segment)
+			{
+				if (h.equals(segment.get(key)))
+					segment.remove(key);
+			}
+			invalidations.incrementAndGet();
+		}
+	}
+
+	/**
+	 * <p>Drop all negative entries.</p>
+	 */
+	public void invalidateMissing()
+	{
+		for (Map<String, HGHandle> segment : segments)
+			synchronized (segment)
+			{
+				for (java.util.Iterator<HGHandle> i = segment.values().iterator(); i.hasNext(); )
+					if (i.next() == MISSING)
+					{
+						i.remove();
+						negatives.decrementAndGet();
+						invalidations.incrementAndGet();
+					}
+			}
+	}
+
+	public void clear()
+	{
+		for (Map<String, HGHandle> segment : segments)
+			synchronized (segment)
+			{
+				segment.clear();
+			}
+		synchronized (keysByHandle)
+		{
+			keysByHandle.clear();
+		}
+		negatives.set(0);
+	}
+
+	public int size()
+	{
+		int size = 0;
+		for (Map<String, HGHandle> segment : segments)
+			synchronized (segment)
+			{
+				size += segment.size();
+			}
+		return size;
+	}
+
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	public long getNegativeHits()
+	{
+		return negativeHits.get();
+	}
+
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	public long getEvictions()
+	{
+		return evictions.get();
+	}
+
+	public long getInvalidations()
+	{
+		return invalidations.get();
+	}
+
+	/**
+	 * <p>Return the fraction of lookups answered from the cache, negative entries
+	 * included.</p>
+	 */
+	public double getHitRatio()
+	{
+		long h = hits.get() + negativeHits.get();
+		long total = h + misses.get();
+		return total == 0 ? 0.0 : (double)h / total;
+	}
+
+	public String toString()
+	{
+		return "EntityResolutionCache[size=" + size() + ", hits=" + getHits() +
+			   ", negativeHits=" + getNegativeHits() + ", misses=" + getMisses() +
+			   ", evictions=" + getEvictions() + ", invalidations=" + getInvalidations() + "]";
+	}
+}
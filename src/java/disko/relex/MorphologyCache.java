@@ -0,0 +1,290 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.relex;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import relex.morphy.Morphy;
+
+/**
+ * <p>
+ * A bounded, concurrent cache of the roots {@link MorphyHGDB} finds for surface forms,
+ * one per part of speech (noun, verb, adjective, adverb). A root is cached once it has
+ * been looked up in WordNet, whether a root was found or not, so a form seen before
+ * doesn't touch the WordNet graph again. Forms are case sensitive since the root found
+ * depends on the case.
+ * </p>
+ *
+ * <p>
+ * Like the {@link EntityResolutionCache}, the cache is split into independently locked
+ * LRU segments. It can be saved to a file and loaded back, e.g. to start warm after a
+ * restart; a snapshot is only valid for the WordNet database it was built with.
+ * </p>
+ */
+public class MorphologyCache
+{
+	public static final int DEFAULT_CAPACITY = 50000;
+	private static final int SEGMENTS = 16;
+	private static final int SNAPSHOT_MAGIC = 0x4d4f5250;
+	private static final int SNAPSHOT_VERSION = 1;
+
+	/** The parts of speech with cached roots, in the order of their slots. */
+	public static final String [] POS = { Morphy.NOUN_F, Morphy.VERB_F, Morphy.ADJ_F, Morphy.ADV_F };
+
+	/** Returned by {@link Entry#getRoot(String)} when the root wasn't looked up yet. */
+	public static final String UNKNOWN = new String("?unknown");
+
+	// The cached value of a looked up part of speech without a root.
+	private static final String NONE = new String("?none");
+
+	/**
+	 * <p>The cached roots of one surface form. Roots are filled in as they are looked up.</p>
+	 */
+	public static class Entry
+	{
+		private final AtomicReferenceArray<String> roots = new AtomicReferenceArray<String>(POS.length);
+
+		/**
+		 * <p>Return the root of the form as the given part of speech, <code>null</code> if
+		 * it has none or {@link MorphologyCache#UNKNOWN} if it wasn't looked up yet.</p>
+		 */
+		public String getRoot(String pos)
+		{
+			int i = slot(pos);
+			if (i < 0)
+				return UNKNOWN;
+			String root = roots.get(i);
+			return root == null ? UNKNOWN : (root == NONE ? null : root);
+		}
+
+		/**
+		 * <p>Record the root of the form as the given part of speech, <code>null</code> for none.</p>
+		 */
+		public void setRoot(String pos, String root)
+		{
+			int i = slot(pos);
+			if (i > -1)
+				roots.set(i, root == null ? NONE : root);
+		}
+	}
+
+	private final Map<String, Entry> [] segments;
+	private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), evictions = new AtomicLong();
+
+	private static int slot(String pos)
+	{
+		for (int i = 0; i < POS.length; i++)
+			if (POS[i].equals(pos))
+				return i;
+		return -1;
+	}
+
+	public MorphologyCache()
+	{
+		this(DEFAULT_CAPACITY);
+	}
+
+	@SuppressWarnings("unchecked")
+	public MorphologyCache(int capacity)
+	{
+		final int segmentCapacity = Math.max(1, capacity / SEGMENTS);
+		segments = (Map<String, Entry> []) new Map<?, ?>[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; i++)
+			segments[i] = new LinkedHashMap<String, Entry>(256, 0.75f, true)
+			{
+				private static final long serialVersionUID = 1L;
+				protected boolean removeEldestEntry(Map.Entry<String, MorphologyCache.Entry> eldest)
+				{
+					if (size() <= segmentCapacity)
+						return false;
+					evictions.incrementAndGet();
+					return true;
+				}
+			};
+	}
+
+	private Map<String, Entry> segment(String form)
+	{
+		int h = form.hashCode();
+		return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+	}
+
+	/**
+	 * <p>Return the entry of a surface form, creating an empty one if necessary.</p>
+	 */
+	public Entry entry(String form)
+	{
+		Map<String, Entry> segment = segment(form);
+		synchronized (segment)
+		{
+			Entry e = segment.get(form);
+			if (e == null)
+				segment.put(form, e = new Entry());
+			return e;
+		}
+	}
+
+	/**
+	 * <p>Record whether a root lookup was answered by the cache, for the statistics.</p>
+	 */
+	void count(boolean hit)
+	{
+		(hit ? hits : misses).incrementAndGet();
+	}
+
+	public int size()
+	{
+		int size = 0;
+		for (Map<String, Entry> segment : segments)
+			synchronized (segment)
+			{
+				size += segment.size();
+			}
+		return size;
+	}
+
+	public void clear()
+	{
+		for (Map<String, Entry> segment : segments)
+			synchronized (segment)
+			{
+				segment.clear();
+			}
+	}
+
+	/**
+	 * <p>Save the looked up roots of all cached forms.</p>
+	 */
+	public void save(File file) throws IOException
+	{
+		List<String> forms = new ArrayList<String>();
+		List<Entry> entries = new ArrayList<Entry>();
+		for (Map<String, Entry> segment : segments)
+			synchronized (segment)
+			{
+				for (Map.Entry<String, MorphologyCache.Entry> e : segment.entrySet())
+				{
+					forms.add(e.getKey());
+					entries.add(e.getValue());
+				}
+			}
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 64*1024));
+		try
+		{
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(SNAPSHOT_VERSION);
+			out.writeInt(forms.size());
+			for (int i = 0; i < forms.size(); i++)
+			{
+				out.writeUTF(forms.get(i));
+				// per part of speech: 0 not looked up, 1 no root, 2 root follows
+				for (int p = 0; p < POS.length; p++)
+				{
+					String root = entries.get(i).roots.get(p);
+					if (root == null)
+						out.writeByte(0);
+					else if (root == NONE)
+						out.writeByte(1);
+					else
+					{
+						out.writeByte(2);
+						out.writeUTF(root);
+					}
+				}
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+		if (!tmp.renameTo(file))
+		{
+			file.delete();
+			if (!tmp.renameTo(file))
+				throw new IOException("Couldn't rename " + tmp + " to " + file);
+		}
+	}
+
+	/**
+	 * <p>Add the entries of a snapshot saved with {@link #save(File)} to the cache and return
+	 * how many were read.</p>
+	 */
+	public int load(File file) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64*1024));
+		try
+		{
+			if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION)
+				throw new IOException("Not a morphology cache snapshot: " + file);
+			int count = in.readInt();
+			for (int i = 0; i < count; i++)
+			{
+				Entry e = entry(in.readUTF());
+				for (int p = 0; p < POS.length; p++)
+				{
+					switch (in.readByte())
+					{
+						case 1: e.roots.set(p, NONE); break;
+						case 2: e.roots.set(p, in.readUTF()); break;
+						default: break;
+					}
+				}
+			}
+			return count;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * <p>Return the number of root lookups answered by the cache.</p>
+	 */
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	/**
+	 * <p>Return the number of root lookups that went to the WordNet graph.</p>
+	 */
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	public double getHitRatio()
+	{
+		long h = hits.get(), total = h + misses.get();
+		return total == 0 ? 0 : (double)h / total;
+	}
+
+	public long getEvictions()
+	{
+		return evictions.get();
+	}
+}
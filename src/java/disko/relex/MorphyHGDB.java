@@ -11,6 +11,11 @@
  ******************************************************************************/
 package disko.relex;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -38,13 +43,26 @@ import relex.morphy.Morphy;
 import relex.morphy.MorphyJWNL;
 import relex.feature.FeatureNode;
 
+/**
+ * <p>
+ * A Relex morphology implementation backed by the WordNet HyperGraphDB database. The roots
+ * found for each surface form and part of speech are kept in a {@link MorphologyCache}, so
+ * the graph is only queried the first time a form is seen. The cache can be warmed from a
+ * word frequency list and saved to a snapshot file that is loaded on initialization when
+ * the <code>morphy.hgdb.cache</code> system property points to it.
+ * </p>
+ *
+ * @author Borislav Iordanov
+ */
 public class MorphyHGDB extends MorphyJWNL
 {
 	public static final String MORPHY_HGDB_LOCATION = "morphy.hgdb.location";
+	public static final String MORPHY_HGDB_CACHE = "morphy.hgdb.cache";
 	
 	private String hgdbLocation;
 	private HyperGraph graph;
 	private Map<String, Stemmer> stemmers = new HashMap<String, Stemmer>();
+	private MorphologyCache cache = new MorphologyCache();
 	
 	private void initHGDB()
 	{
@@ -98,12 +116,14 @@ public class MorphyHGDB extends MorphyJWNL
 	
 	public class LazyMorphed extends Morphed
 	{
+		private MorphologyCache.Entry cached;
 		private HGHandle originalWord;
+		private boolean originalWordFound = false;
 		
 		LazyMorphed(String original)
 		{
 			super(original);
-			originalWord = findWord(original.toLowerCase());
+			cached = cache.entry(original);
 		}
 		
 		public FeatureNode getPos(String pos, 
@@ -115,45 +135,67 @@ public class MorphyHGDB extends MorphyJWNL
 			{
 				n = new FeatureNode();
 				getFeatures().put(pos, n);
-				String stem = null;
-				if (originalWord != null)
+				String root = cached.getRoot(pos);
+				cache.count(root != MorphologyCache.UNKNOWN);
+				if (root == MorphologyCache.UNKNOWN)
 				{
-					if (checkPos(linkType, originalWord))
-						stem = ((Word)graph.get(originalWord)).getLemma();
-					else
-						stem = findException(excLinkType, originalWord);
+					root = findRoot(pos, linkType, excLinkType);
+					cached.setRoot(pos, root);
 				}
-				if (stem == null)
-				{
-					Stemmer stemmer = stemmers.get(pos);
-					if (stemmer != null)
-						for (String stemmed : stemmer.stemIt(original))
+				if (root != null)
+					putRoot(pos, root);
+			}
+			return n.get(Morphy.ROOT_F) == null ? null : n;			
+		}
+		
+		// Look the root up in WordNet.
+		private String findRoot(String pos, 
+								Class<? extends SynsetLink> linkType, 
+								Class<? extends ExcLink> excLinkType)
+		{
+			if (!originalWordFound)
+			{
+				originalWord = findWord(original.toLowerCase());
+				originalWordFound = true;
+			}
+			String stem = null;
+			if (originalWord != null)
+			{
+				if (checkPos(linkType, originalWord))
+					stem = ((Word)graph.get(originalWord)).getLemma();
+				else
+					stem = findException(excLinkType, originalWord);
+			}
+			if (stem == null)
+			{
+				Stemmer stemmer = stemmers.get(pos);
+				if (stemmer != null)
+					for (String stemmed : stemmer.stemIt(original))
+					{
+						HGHandle word = findWord(stemmed.toLowerCase());
+						if (word != null)
 						{
-							HGHandle word = findWord(stemmed.toLowerCase());
-							if (word != null)
-							{
-								if (checkPos(linkType, word))
-									stem = ((Word)graph.get(word)).getLemma();
-								else
-									stem = findException(excLinkType, word);
-							}
-							if (stem != null)
-								break;
+							if (checkPos(linkType, word))
+								stem = ((Word)graph.get(word)).getLemma();
+							else
+								stem = findException(excLinkType, word);
 						}
-				}
-				if (stem != null)
-				{
-					putRoot(pos, maybeChangeFirstLetter(original, stem.replace('_', ' ')));
-				}
-				// Make one last attempt: some nouns start with uppercase, check for them
-				else if (Character.isUpperCase(original.charAt(0)) && pos.equals(Morphy.NOUN_F))
-				{
-					HGHandle word = findWord(original);
-					if (word != null && checkPos(linkType, word))
-						putRoot(pos, original.replace('_', ' '));
-				}
+						if (stem != null)
+							break;
+					}
 			}
-			return n.get(Morphy.ROOT_F) == null ? null : n;			
+			if (stem != null)
+			{
+				return maybeChangeFirstLetter(original, stem.replace('_', ' '));
+			}
+			// Make one last attempt: some nouns start with uppercase, check for them
+			else if (Character.isUpperCase(original.charAt(0)) && pos.equals(Morphy.NOUN_F))
+			{
+				HGHandle word = findWord(original);
+				if (word != null && checkPos(linkType, word))
+					return original.replace('_', ' ');
+			}
+			return null;
 		}
 		
 		public FeatureNode getNoun() 
@@ -204,12 +246,78 @@ public class MorphyHGDB extends MorphyJWNL
 	{		
 		initHGDB();
 		initStemmers();
+		String snapshot = System.getProperty(MORPHY_HGDB_CACHE);
+		if (!DU.isEmpty(snapshot) && new File(snapshot).exists())
+		{
+			try
+			{
+				DU.log.info("Loaded " + cache.load(new File(snapshot)) + " morphology cache entries from " + snapshot);
+			}
+			catch (IOException ex)
+			{
+				DU.log.warn("Couldn't load the morphology cache snapshot " + snapshot, ex);
+			}
+		}
+	}
+	
+	/**
+	 * <p>
+	 * Look up the roots of the most frequent forms of a frequency list in all parts of
+	 * speech, so that they are cached. The list has one form per line, possibly followed by
+	 * whitespace and a count, most frequent first. Lines starting with <code>#</code> are
+	 * ignored. Return the number of forms looked up.
+	 * </p>
+	 */
+	public int warmCache(File frequencyList, int maxForms) throws IOException
+	{
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(frequencyList), "UTF-8"));
+		try
+		{
+			int count = 0;
+			for (String line = reader.readLine(); line != null && count < maxForms; line = reader.readLine())
+			{
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#"))
+					continue;
+				String form = line.split("\\s+")[0];
+				Morphed m = morph(form);
+				m.getNoun();
+				m.getVerb();
+				m.getAdj();
+				m.getAdv();
+				count++;
+			}
+			return count;
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+	
+	/**
+	 * <p>Save the morphology cache to a snapshot file, see {@link MorphologyCache#save(File)}.</p>
+	 */
+	public void saveCache(File file) throws IOException
+	{
+		cache.save(file);
+	}
+	
+	public MorphologyCache getCache()
+	{
+		return cache;
+	}
+	
+	public void setCache(MorphologyCache cache)
+	{
+		this.cache = cache;
 	}
 	
 	public void setGraphLocation(String hgdbLocation)
 	{
 		this.hgdbLocation = hgdbLocation;
 		graph = HGEnvironment.get(hgdbLocation);
+		cache.clear(); // the roots came from another database
 	}
 	
 	public String getGraphLocation()
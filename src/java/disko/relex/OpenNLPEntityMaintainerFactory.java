@@ -13,8 +13,19 @@ package disko.relex;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import disko.DU;
 
@@ -33,6 +44,21 @@ import relex.entity.EntityType;
  * Similar to the GateEntityMaintainer, but uses OpenNLP instead.
  * </p>
  *
+ * <p>
+ * Every <code>.gz</code> name finder model in the models directory is applied to each
+ * sentence. A sentence is tokenized once and the tokens are shared by all models. The
+ * models run in parallel (see {@link #setParallelism(int)}), each on a whole batch of
+ * sentences when {@link #makeEntityMaintainers(List)} is used. An OpenNLP model can't
+ * be evaluated by several threads at once, so each model is locked while it runs;
+ * concurrent callers are thus pipelined through the models.
+ * </p>
+ *
+ * <p>
+ * The entities found in a sentence are cached (see {@link #setCacheCapacity(int)}),
+ * so sentences repeated across documents, such as the boilerplate of web pages, are
+ * only analyzed once.
+ * </p>
+ *
  * TODO: OpenNLP allows one to provide a map of already found entities in previous
  * sentences. This map can be maintained on a per document basis. Not sure how that
  * improves OpenNLP alone (perhaps just speed), but when combined with entities found
@@ -43,9 +69,53 @@ import relex.entity.EntityType;
  */
 public class OpenNLPEntityMaintainerFactory extends EntityMaintainerFactory
 {
+	private static final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory()
+	{
+		private AtomicInteger count = new AtomicInteger();
+		public Thread newThread(Runnable r)
+		{
+			Thread t = new Thread(r, "disko-opennlp-entities-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	// An entity found by a model: its kind and the indices of its first and last token.
+	private static class Found
+	{
+		final String kind;
+		final int first, last;
+		Found(String kind, int first, int last) { this.kind = kind; this.first = first; this.last = last; }
+	}
+
+	// An entity of a sentence with its character offsets, what the cache holds.
+	private static class Detected
+	{
+		final String kind;
+		final int start, end;
+		Detected(String kind, int start, int end) { this.kind = kind; this.start = start; this.end = end; }
+	}
+
+	private static class Tokens
+	{
+		final String sentence;
+		final Span [] spans;
+		final String [] tokens;
+		Tokens(String sentence)
+		{
+			this.sentence = sentence;
+			spans = opennlp.tools.lang.english.NameFinder.tokenizeToSpans(sentence);
+			tokens = opennlp.tools.lang.english.NameFinder.spansToStrings(spans, sentence);
+		}
+	}
+
 	private String modelsPath;
 	private boolean initialized = false;
 	private HashMap<String, NameFinder> finders = new HashMap<String, NameFinder>();
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	private int cacheCapacity = 10000;
+	private Map<String, List<Detected>> cache = null;
+	private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
 
 	private synchronized void init()
 	{
@@ -71,54 +141,232 @@ public class OpenNLPEntityMaintainerFactory extends EntityMaintainerFactory
 		{
 			throw new RuntimeException("Failed to load OpenNLP named entity models.", ex);
 		}
+		final int capacity = cacheCapacity;
+		cache = new LinkedHashMap<String, List<Detected>>(1024, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+			protected boolean removeEldestEntry(Map.Entry<String, List<Detected>> eldest)
+			{
+				return size() > capacity;
+			}
+		};
 		initialized = true;
 	}
 	
-	private EntityInfo getEntityInfo(String kind, String sentence, Span start, Span end)
+	private EntityInfo getEntityInfo(String kind, String sentence, int start, int end)
 	{
 		if ("date".equals(kind))
-			return new EntityInfo(sentence, start.getStart(), end.getEnd(), EntityType.DATE);
+			return new EntityInfo(sentence, start, end, EntityType.DATE);
 		else if ("location".equals(kind))
-			return new EntityInfo(sentence, start.getStart(), end.getEnd(), EntityType.LOCATION);
+			return new EntityInfo(sentence, start, end, EntityType.LOCATION);
 		else if ("money".equals(kind))
-			return new EntityInfo(sentence, start.getStart(), end.getEnd(), EntityType.MONEY);			
+			return new EntityInfo(sentence, start, end, EntityType.MONEY);			
 		else if ("organization".equals(kind))
-			return new EntityInfo(sentence, start.getStart(), end.getEnd(), EntityType.ORGANIZATION);			
+			return new EntityInfo(sentence, start, end, EntityType.ORGANIZATION);			
 		else if ("percentage".equals(kind))
-			return new EntityInfo(sentence, start.getStart(), end.getEnd(), EntityType.PUNCTUATION);			
+			return new EntityInfo(sentence, start, end, EntityType.PUNCTUATION);			
 		else if ("person".equals(kind))
-			return new EntityInfo(sentence, start.getStart(), end.getEnd(), EntityType.PERSON);			
+			return new EntityInfo(sentence, start, end, EntityType.PERSON);			
 		else if ("time".equals(kind))
-			return new EntityInfo(sentence, start.getStart(), end.getEnd(), EntityType.DATE);			
+			return new EntityInfo(sentence, start, end, EntityType.DATE);			
 		else
-			return new EntityInfo(sentence, start.getStart(), end.getEnd(), EntityType.GENERIC);
+			return new EntityInfo(sentence, start, end, EntityType.GENERIC);
 	}
 	
+	// Run one model over a batch of sentences, holding the model's lock.
+	private static List<List<Found>> find(String kind, NameFinder finder, List<Tokens> batch)
+	{
+		List<List<Found>> result = new ArrayList<List<Found>>(batch.size());
+		synchronized (finder)
+		{
+			for (Tokens t : batch)
+			{
+				List<Found> found = new ArrayList<Found>();
+				String [] L = finder.find(t.tokens, new HashMap<String, String>());
+				String prev = NameFinderME.OTHER;
+				int startToken = 0;
+				for (int j = 0; j < t.tokens.length; j++)
+				{
+					String curr = L[j];
+					if (!prev.equals(NameFinderME.OTHER) && !curr.equals(NameFinderME.CONTINUE))
+						found.add(new Found(kind, startToken, j - 1));
+					if (curr.equals(NameFinderME.START))
+						startToken = j;
+					prev = curr;
+				}
+				result.add(found);
+			}
+		}
+		return result;
+	}
+
+	// Detect the entities of sentences not in the cache, with the models in parallel.
+	private List<List<Detected>> detect(final List<Tokens> batch)
+	{
+		List<String> kinds = new ArrayList<String>(finders.keySet());
+		List<List<List<Found>>> perModel = new ArrayList<List<List<Found>>>();
+		int threads = Math.min(parallelism, kinds.size());
+		if (threads <= 1)
+		{
+			for (String kind : kinds)
+				perModel.add(find(kind, finders.get(kind), batch));
+		}
+		else
+		{
+			// Models are split among the threads, the calling thread takes the first share.
+			final List<List<String>> shares = new ArrayList<List<String>>();
+			for (int i = 0; i < threads; i++)
+				shares.add(new ArrayList<String>());
+			for (int i = 0; i < kinds.size(); i++)
+				shares.get(i % threads).add(kinds.get(i));
+			List<Future<List<List<List<Found>>>>> shareFutures = new ArrayList<Future<List<List<List<Found>>>>>();
+			for (int i = 1; i < threads; i++)
+			{
+				final List<String> share = shares.get(i);
+				shareFutures.add(executor.submit(new Callable<List<List<List<Found>>>>()
+				{
+					public List<List<List<Found>>> call()
+					{
+						List<List<List<Found>>> result = new ArrayList<List<List<Found>>>();
+						for (String kind : share)
+							result.add(find(kind, finders.get(kind), batch));
+						return result;
+					}
+				}));
+			}
+			Map<String, List<List<Found>>> byKind = new HashMap<String, List<List<Found>>>();
+			for (String kind : shares.get(0))
+				byKind.put(kind, find(kind, finders.get(kind), batch));
+			try
+			{
+				for (int i = 1; i < threads; i++)
+				{
+					List<List<List<Found>>> results = shareFutures.get(i - 1).get();
+					for (int j = 0; j < results.size(); j++)
+						byKind.put(shares.get(i).get(j), results.get(j));
+				}
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(ex);
+			}
+			catch (ExecutionException ex)
+			{
+				throw new RuntimeException("OpenNLP entity detection failed.", ex.getCause());
+			}
+			for (String kind : kinds)
+				perModel.add(byKind.get(kind));
+		}
+		// Merge in model order, as if the models had run one after the other.
+		List<List<Detected>> result = new ArrayList<List<Detected>>(batch.size());
+		for (int i = 0; i < batch.size(); i++)
+		{
+			Tokens t = batch.get(i);
+			List<Detected> detected = new ArrayList<Detected>();
+			for (List<List<Found>> model : perModel)
+				for (Found f : model.get(i))
+					detected.add(new Detected(f.kind, t.spans[f.first].getStart(), t.spans[f.last].getEnd()));
+			result.add(Collections.unmodifiableList(detected));
+		}
+		return result;
+	}
+
+	private EntityMaintainer toEntityMaintainer(String sentence, List<Detected> detected)
+	{
+		ArrayList<EntityInfo> entities = new ArrayList<EntityInfo>(detected.size());
+		for (Detected d : detected)
+			entities.add(getEntityInfo(d.kind, sentence, d.start, d.end));
+		return new EntityMaintainer(sentence, entities);
+	}
+
 	public EntityMaintainer makeEntityMaintainer(String sentence)
+	{
+		return makeEntityMaintainers(Collections.singletonList(sentence)).get(0);
+	}
+
+	/**
+	 * <p>
+	 * Detect the entities of a batch of sentences. Each distinct sentence not found in
+	 * the cache is tokenized once and all models are applied to the batch in parallel.
+	 * Return an entity maintainer for every sentence, in order.
+	 * </p>
+	 */
+	public List<EntityMaintainer> makeEntityMaintainers(List<String> sentences)
 	{
 		init();
-		ArrayList<EntityInfo> entities = new ArrayList<EntityInfo>();		
-	    Span[] spans = opennlp.tools.lang.english.NameFinder.tokenizeToSpans(sentence);
-	    String[] tokens = opennlp.tools.lang.english.NameFinder.spansToStrings(spans,sentence);
-	    for (Map.Entry<String, NameFinder> finder : finders.entrySet())
-	    {
-	        String [] L = finder.getValue().find(tokens, new HashMap<String, String>());
-	        String prev = NameFinderME.OTHER;
-	        int startToken = 0;
-	        for (int j = 0; j < tokens.length; j++)
-	        {
-	            String curr = L[j];
-	            if (!prev.equals(NameFinderME.OTHER) && !curr.equals(NameFinderME.CONTINUE))
-	            	entities.add(getEntityInfo(finder.getKey(), 
-	            							   sentence, 
-	            							   spans[startToken], 
-	            							   spans[j - 1]));
-	            if (curr.equals(NameFinderME.START))
-	            	startToken = j;
-	            prev = curr;
-	        }
-	    }		
-		return new EntityMaintainer(sentence, entities);
+		Map<String, List<Detected>> known = new HashMap<String, List<Detected>>();
+		List<Tokens> batch = new ArrayList<Tokens>();
+		synchronized (cache)
+		{
+			for (String sentence : sentences)
+			{
+				if (known.containsKey(sentence))
+					continue;
+				List<Detected> detected = cache.get(sentence);
+				known.put(sentence, detected);
+				if (detected == null)
+					batch.add(new Tokens(sentence));
+			}
+		}
+		hits.addAndGet(known.size() - batch.size());
+		misses.addAndGet(batch.size());
+		if (!batch.isEmpty())
+		{
+			List<List<Detected>> detected = detect(batch);
+			synchronized (cache)
+			{
+				for (int i = 0; i < batch.size(); i++)
+				{
+					known.put(batch.get(i).sentence, detected.get(i));
+					if (cacheCapacity > 0)
+						cache.put(batch.get(i).sentence, detected.get(i));
+				}
+			}
+		}
+		List<EntityMaintainer> result = new ArrayList<EntityMaintainer>(sentences.size());
+		for (String sentence : sentences)
+			result.add(toEntityMaintainer(sentence, known.get(sentence)));
+		return result;
+	}
+
+	public int getParallelism()
+	{
+		return parallelism;
+	}
+
+	/**
+	 * <p>Set the maximum number of threads running models for one call, the number of
+	 * processors by default. Use 1 to run the models one after the other in the calling
+	 * thread.</p>
+	 */
+	public void setParallelism(int parallelism)
+	{
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	public int getCacheCapacity()
+	{
+		return cacheCapacity;
+	}
+
+	/**
+	 * <p>Set the number of sentences whose entities are cached, 0 to disable caching.
+	 * Must be called before the first use.</p>
+	 */
+	public void setCacheCapacity(int cacheCapacity)
+	{
+		this.cacheCapacity = cacheCapacity;
+	}
+
+	public long getCacheHits()
+	{
+		return hits.get();
+	}
+
+	public long getCacheMisses()
+	{
+		return misses.get();
 	}
 
 	public String getModelsPath()
@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.relex;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * <p>
+ * Estimates how expensive a sentence is to parse with link grammar, from the sentence
+ * alone. Parsing time grows roughly with the cube of the number of words, and each
+ * coordinating conjunction, relative pronoun or clause separator multiplies the ways the
+ * words can be linked. The estimate is a relative cost, in arbitrary units, used by the
+ * {@link RelexParserPool} to run cheap sentences first and to recognize sentences that
+ * would use up a parser's whole time budget.
+ * </p>
+ *
+ * <p>
+ * A sentence is considered pathological if it has more than {@link #getMaxTokens()}
+ * tokens or its cost exceeds {@link #getMaxCost()}. The estimate only depends on the
+ * sentence text, so the same sentence is always treated the same way. With the default
+ * limits, ordinary long sentences get the full budget: a 50 token sentence must have some
+ * 28 commas, conjunctions and relative pronouns to be considered pathological, a 55 token
+ * one about 20.
+ * </p>
+ */
+public class ParseCostModel
+{
+    public static final int DEFAULT_MAX_TOKENS = 60;
+    public static final double DEFAULT_MAX_COST = 1000000;
+
+    private static final Set<String> branching = new HashSet<String>(Arrays.asList(
+        "and", "or", "but", "nor", "which", "who", "whom", "whose", "that", "where", "when",
+        "while", "because", "although", "if", "unless"));
+
+    private int maxTokens = DEFAULT_MAX_TOKENS;
+    private double maxCost = DEFAULT_MAX_COST;
+
+    /**
+     * <p>Return the number of tokens link grammar will see: runs of letters and digits,
+     * and the other non-blank characters each on its own.</p>
+     */
+    public static int countTokens(String sentence)
+    {
+        int tokens = 0;
+        boolean inWord = false;
+        for (int i = 0; i < sentence.length(); i++)
+        {
+            char c = sentence.charAt(i);
+            if (Character.isLetterOrDigit(c) || c == '\'' || c == '-')
+            {
+                if (!inWord)
+                    tokens++;
+                inWord = true;
+            }
+            else
+            {
+                inWord = false;
+                if (!Character.isWhitespace(c))
+                    tokens++;
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * <p>Return the estimated cost of parsing the sentence.</p>
+     */
+    public double cost(String sentence)
+    {
+        int tokens = 0, branches = 0;
+        int start = -1;
+        for (int i = 0; i <= sentence.length(); i++)
+        {
+            char c = i < sentence.length() ? sentence.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c) || c == '\'' || c == '-')
+            {
+                if (start < 0)
+                    start = i;
+                continue;
+            }
+            if (start > -1)
+            {
+                tokens++;
+                if (i - start <= 8 && branching.contains(sentence.substring(start, i).toLowerCase()))
+                    branches++;
+                start = -1;
+            }
+            if (Character.isWhitespace(c))
+                continue;
+            tokens++;
+            if (c == ',' || c == ';' || c == ':' || c == '(' || c == ')')
+                branches++;
+        }
+        return (double)tokens * tokens * tokens * (1.0 + 0.25 * branches);
+    }
+
+    /**
+     * <p>Return <code>true</code> if the sentence shouldn't get the full parsing budget.</p>
+     */
+    public boolean isPathological(String sentence, double cost)
+    {
+        return cost > maxCost || countTokens(sentence) > maxTokens;
+    }
+
+    public int getMaxTokens()
+    {
+        return maxTokens;
+    }
+
+    public void setMaxTokens(int maxTokens)
+    {
+        this.maxTokens = maxTokens;
+    }
+
+    public double getMaxCost()
+    {
+        return maxCost;
+    }
+
+    public void setMaxCost(double maxCost)
+    {
+        this.maxCost = maxCost;
+    }
+}
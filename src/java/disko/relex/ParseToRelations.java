@@ -17,6 +17,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -56,6 +57,7 @@ public class ParseToRelations
 	
 	private HyperGraph graph;
 	private HashMap<EntityType, OWLClass> eTypeToOWL = new HashMap<EntityType, OWLClass>();
+	private EntityResolutionCache cache;
 	
 	private void init()
 	{
@@ -93,9 +95,18 @@ public class ParseToRelations
 	public ParseToRelations(HyperGraph graph)
 	{
 		this.graph = graph;
+		this.cache = EntityResolutionCache.get(graph);
 		init();
 	}
 	
+	/**
+	 * <p>Return the cache used to resolve words and named entities to atoms.</p>
+	 */
+	public EntityResolutionCache getEntityCache()
+	{
+		return cache;
+	}
+	
 	public Set<RelOccurrence> getAnaphoraRelations(AnalysisContext<TextDocument> context,
 												   EntityMaintainer em,
 												   ParsedSentence parse,												 
@@ -223,6 +234,7 @@ public class ParseToRelations
 		Set<String> ignore; 
 		
 		int positionOffset = 0;
+		HashMap<Integer, EntityInfo> entitiesByPosition = null;
 		
 		public Boolean BinaryHeadCB(FeatureNode node)
 		{
@@ -367,9 +379,13 @@ public class ParseToRelations
 			EntityInfo eInfo = null;
 			if (em != null)
 			{
-				for (EntityInfo ei : em.getEntities())
-					if (ei.getFirstCharIndex() == position)
-						eInfo = ei;
+				if (entitiesByPosition == null)
+				{
+					entitiesByPosition = new HashMap<Integer, EntityInfo>();
+					for (EntityInfo ei : em.getEntities())
+						entitiesByPosition.put(ei.getFirstCharIndex(), ei);
+				}
+				eInfo = entitiesByPosition.get(position);
 			}
 			
 			if (eInfo != null)
@@ -391,20 +407,46 @@ public class ParseToRelations
 			}
 						
 			// A common word
-			result = hg.findOne(context.getGraph(), 
-			                    hg.and(hg.typePlus(Word.class), 
-			                           hg.eq("lemma", lemma.toLowerCase())));
+			String lower = lemma.toLowerCase();
+			result = cache.get(EntityResolutionCache.WORD, null, lower);
+			if (result != null)
+				return result;
+			result = findWord(lower);
 	
 			// Return existing word or...
-			if (result != null) 
+			if (result != null)
+			{
+				cache.put(EntityResolutionCache.WORD, null, lower, result, false);
 			    return result;
+			}
 	
-			DU.log.debug("NEW WORD:" + lemma);
-	
-			result = context.getGraph().add(new UnknownWord(lemma.toLowerCase()));
+			final String word = lower;
+			final boolean [] created = new boolean[1];
+			result = context.getGraph().getTransactionManager().ensureTransaction(new Callable<HGHandle>() {
+				public HGHandle call()
+				{
+					// Another replica may have added the word in the meantime.
+					HGHandle h = findWord(word);
+					created[0] = h == null;
+					if (created[0])
+					{
+						DU.log.debug("NEW WORD:" + word);
+						h = context.getGraph().add(new UnknownWord(word));
+					}
+					return h;
+				}
+			});
+			cache.put(EntityResolutionCache.WORD, null, lower, result, created[0]);
 			return result;		
 		}
 		
+		HGHandle findWord(String lower)
+		{
+			return hg.findOne(context.getGraph(), 
+			                  hg.and(hg.typePlus(Word.class), 
+			                         hg.eq("lemma", lower)));
+		}
+		
 		String getName(FeatureNode fn)
 		{
 			if (fn == null) 
@@ -420,34 +462,83 @@ public class ParseToRelations
 		
 		HGHandle getOntologyEntity(String lemma, EntityInfo eInfo)
 		{
+			HGHandle indHandle = cache.get(EntityResolutionCache.ONTOLOGY, eInfo.getType(), lemma);
+			if (indHandle == EntityResolutionCache.MISSING)
+				return null;
+			else if (indHandle != null)
+				return indHandle;
 			// Check if we have actually loaded an ontology 
 			if (context.getGraph().get(OWLClassConstructor.OWL_CLASS_CONSTRUCTOR_HANDLE) == null)
+			{
+				cache.putMissing(EntityResolutionCache.ONTOLOGY, eInfo.getType(), lemma);
 				return null;
+			}
 			OWLClass owlClass = eTypeToOWL.get(EntityType.valueOf(eInfo.getType()));
 			if (owlClass == null)
+			{
+				cache.putMissing(EntityResolutionCache.ONTOLOGY, eInfo.getType(), lemma);
 				return null;
-			HGHandle indHandle = hg.findOne(graph, 
-										hg.and(hg.type(graph.getHandle(owlClass)), 
-											   hg.eq("localName", lemma)));
+			}
+			indHandle = findIndividual(owlClass, lemma);
 			if (indHandle != null)
+			{
+				cache.put(EntityResolutionCache.ONTOLOGY, eInfo.getType(), lemma, indHandle, false);
 				return indHandle;
-			OWLIndividual owlInd = new OWLIndividual(owlClass);					
-			owlInd.setLocalName(lemma);
-			indHandle = context.getGraph().add(owlInd, context.getGraph().getHandle(owlClass));
-			HGHandle propHandle = context.getGraph().getHandle(owlClass.getProperties().get("Name"));
-			HGHandle valueAtom = hg.findOne(context.getGraph(), hg.eq(lemma));
-			if (valueAtom == null)
-				valueAtom = context.getGraph().add(lemma);
-			context.getGraph().add(new OWLPropertyInstance(indHandle, valueAtom), propHandle);
+			}
+			final OWLClass cl = owlClass;
+			final String name = lemma;
+			final boolean [] created = new boolean[1];
+			indHandle = context.getGraph().getTransactionManager().ensureTransaction(new Callable<HGHandle>() {
+				public HGHandle call()
+				{
+					HGHandle h = findIndividual(cl, name);
+					created[0] = h == null;
+					if (!created[0])
+						return h;
+					OWLIndividual owlInd = new OWLIndividual(cl);					
+					owlInd.setLocalName(name);
+					h = context.getGraph().add(owlInd, context.getGraph().getHandle(cl));
+					HGHandle propHandle = context.getGraph().getHandle(cl.getProperties().get("Name"));
+					HGHandle valueAtom = hg.findOne(context.getGraph(), hg.eq(name));
+					if (valueAtom == null)
+						valueAtom = context.getGraph().add(name);
+					context.getGraph().add(new OWLPropertyInstance(h, valueAtom), propHandle);
+					return h;
+				}
+			});
+			cache.put(EntityResolutionCache.ONTOLOGY, eInfo.getType(), lemma, indHandle, created[0]);
 			return indHandle;
 		}
 		
+		HGHandle findIndividual(OWLClass owlClass, String lemma)
+		{
+			return hg.findOne(graph, 
+							  hg.and(hg.type(graph.getHandle(owlClass)), 
+									 hg.eq("localName", lemma)));
+		}
+		
 		HGHandle getGenericEntity(String lemma, EntityInfo eInfo)
 		{
-			NamedEntity n = new NamedEntity(lemma, eInfo.getType());
-			HGHandle result = hg.findOne(context.getGraph(), hg.eq(n));
-			if (result == null)
-				result = context.getGraph().add(n);
+			HGHandle result = cache.get(EntityResolutionCache.GENERIC, eInfo.getType(), lemma);
+			if (result != null && result != EntityResolutionCache.MISSING)
+				return result;
+			final NamedEntity n = new NamedEntity(lemma, eInfo.getType());
+			result = hg.findOne(context.getGraph(), hg.eq(n));
+			if (result != null)
+			{
+				cache.put(EntityResolutionCache.GENERIC, eInfo.getType(), lemma, result, false);
+				return result;
+			}
+			final boolean [] created = new boolean[1];
+			result = context.getGraph().getTransactionManager().ensureTransaction(new Callable<HGHandle>() {
+				public HGHandle call()
+				{
+					HGHandle h = hg.findOne(context.getGraph(), hg.eq(n));
+					created[0] = h == null;
+					return created[0] ? context.getGraph().add(n) : h;
+				}
+			});
+			cache.put(EntityResolutionCache.GENERIC, eInfo.getType(), lemma, result, created[0]);
 			return result;
 		}
 	}
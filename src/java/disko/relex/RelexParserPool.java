@@ -0,0 +1,1038 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.relex;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.linkgrammar.LGConfig;
+import org.linkgrammar.LGService;
+
+import disko.utils.LatencyHistogram;
+
+import relex.algs.SentenceAlgorithmApplier;
+import relex.concurrent.RelexContext;
+import relex.concurrent.RelexTask;
+import relex.concurrent.RelexTaskResult;
+import relex.entity.EntityMaintainer;
+import relex.morphy.Morphy;
+import relex.morphy.MorphyFactory;
+import relex.parser.IParser;
+import relex.parser.LGParser;
+import relex.parser.LocalLGParser;
+import relex.parser.RemoteLGParser;
+
+/**
+ * <p>
+ * A long-lived pool of Link Grammar parsers (wrapped in Relex contexts) together
+ * with the threads that run Relex tasks on them. Pools are meant to outlive a
+ * single document or a single dataflow network run: use the {@link #getShared}
+ * factory method to obtain the pool for a given configuration - all processors
+ * configured identically end up sharing the same parsers and link grammar
+ * server connections.
+ * </p>
+ *
+ * <p>
+ * Remote parsers are health-checked periodically and whenever a parse comes back
+ * empty. A parser that fails its check is taken out of circulation and
+ * re-created (i.e. reconnected) on subsequent checks. All parsers are warmed up
+ * by parsing a short sentence when the pool is created.
+ * </p>
+ *
+ * <p>
+ * The pool keeps simple statistics: number of acquisitions, time spent waiting
+ * for a parser and time parsers spent busy, from which the utilization is
+ * computed, and a histogram of the time each sentence took to parse.
+ * </p>
+ *
+ * <p>
+ * Submitted sentences wait in a small reordering window until a parser is free, and
+ * the sentence expected to be cheapest (see {@link ParseCostModel}) goes first, so short
+ * sentences don't queue up behind very long ones. A sentence is overtaken at most
+ * {@link #getReorderWindow()}<code> - 1</code> times, and since every submission has its
+ * own future, clients still consume results in submission order. Sentences the cost
+ * model considers pathological are parsed with a reduced budget (fewer linkages and a
+ * shorter timeout) instead of holding a parser for the full timeout. Their results are
+ * cached under the reduced budget, so they are never served for a full budget request.
+ * </p>
+ *
+ * <p>
+ * Results are cached in a {@link RelexResultCache} (in memory only, unless a directory
+ * is set on it), so a sentence submitted again with the same entities doesn't take up
+ * a parser. Use {@link #setResultCache(RelexResultCache)} with <code>null</code> to
+ * disable caching.
+ * </p>
+ */
+public class RelexParserPool
+{
+    private static Log log = LogFactory.getLog("org.disco");
+
+    public static final String DEFAULT_WARMUP_SENTENCE = "This is a test.";
+    public static final long DEFAULT_HEALTH_CHECK_INTERVAL = 60*1000;
+    public static final int DEFAULT_REORDER_WINDOW = 16;
+    public static final int DEFAULT_DEGRADED_PARSES = 1;
+    public static final int DEFAULT_DEGRADED_PARSE_SECONDS = 10;
+
+    private static final Map<String, RelexParserPool> shared = new HashMap<String, RelexParserPool>();
+
+    /**
+     * A parser endpoint: either a host/port of a link grammar server or
+     * <code>null</code> host for an in-process parser.
+     */
+    public static class Endpoint
+    {
+        public final String host;
+        public final int port;
+
+        public Endpoint(String host, int port)
+        {
+            this.host = host;
+            this.port = port;
+        }
+
+        public boolean isRemote()
+        {
+            return host != null;
+        }
+
+        public String toString()
+        {
+            return isRemote() ? host + ":" + port : "local";
+        }
+    }
+
+    private final String key;
+    private final List<Endpoint> endpoints;
+    private final int maxParses, maxCost, maxParseSeconds;
+    private final Map<RelexContext, Endpoint> contextEndpoints = new ConcurrentHashMap<RelexContext, Endpoint>();
+    private final List<Endpoint> failed = new ArrayList<Endpoint>();
+    private BlockingQueue<RelexContext> available;
+    private ExecutorService exec;
+    private ExecutorService submitters;
+    private ScheduledExecutorService checker;
+    private Morphy morphy;
+    private SentenceAlgorithmApplier sentenceAlgorithmApplier;
+    private String warmupSentence = DEFAULT_WARMUP_SENTENCE;
+    private long healthCheckInterval = DEFAULT_HEALTH_CHECK_INTERVAL;
+    private volatile RelexResultCache resultCache = new RelexResultCache();
+    private int refCount = 0;
+
+    // Submitted tasks waiting for a parser, in submission order.
+    private final List<PendingTask> pending = new ArrayList<PendingTask>();
+    private ExecutorService dispatcher;
+    private int reorderWindow = DEFAULT_REORDER_WINDOW;
+    private volatile ParseCostModel costModel = new ParseCostModel();
+    private volatile int degradedParses = DEFAULT_DEGRADED_PARSES;
+    private volatile int degradedParseSeconds = DEFAULT_DEGRADED_PARSE_SECONDS;
+
+    private final long createdAt = System.nanoTime();
+    private final AtomicLong acquisitions = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+    private final AtomicLong reordered = new AtomicLong();
+    private final AtomicLong degraded = new AtomicLong();
+    private final LatencyHistogram parseTimes = new LatencyHistogram();
+    private final LatencyHistogram degradedParseTimes = new LatencyHistogram();
+
+    /**
+     * A submitted sentence. It runs on a parsing thread once the dispatcher has
+     * assigned it a parser, and gives the parser back when done.
+     */
+    private class PendingTask implements Callable<RelexTaskResult>
+    {
+        final int index;
+        final String sentence;
+        final EntityMaintainer em;
+        final RelexResultCache cache;
+        final String cacheKey;
+        final double cost;
+        final boolean degrade;
+        // the linkages and timeout of a degraded parse
+        final int degradedLinkages, degradedSeconds;
+        final long submittedAt = System.nanoTime();
+        final FutureTask<RelexTaskResult> future = new FutureTask<RelexTaskResult>(this);
+        int overtaken = 0;
+        volatile RelexContext context;
+        // Set when the task can't be run, the future then fails with it.
+        volatile Exception failure = null;
+        private final AtomicBoolean released = new AtomicBoolean();
+        private int [] budget = null;
+
+        PendingTask(int index, String sentence, EntityMaintainer em)
+        {
+            this.index = index;
+            this.sentence = sentence;
+            this.em = em;
+            ParseCostModel model = costModel;
+            this.cost = model == null ? 0 : model.cost(sentence);
+            this.degrade = model != null && model.isPathological(sentence, cost);
+            this.degradedLinkages = degradedParses;
+            this.degradedSeconds = degradedParseSeconds;
+            this.cache = resultCache;
+            if (cache == null)
+                this.cacheKey = null;
+            else if (degrade)
+                this.cacheKey = RelexResultCache.key(sentence, em, 
+                                                     limit(maxParses, degradedLinkages), 
+                                                     maxCost, 
+                                                     limit(maxParseSeconds, degradedSeconds));
+            else
+                this.cacheKey = RelexResultCache.key(sentence, em, maxParses, maxCost, maxParseSeconds);
+        }
+
+        public RelexTaskResult call() throws Exception
+        {
+            if (failure != null)
+                throw failure;
+            long start = System.nanoTime();
+            RelexTaskResult result;
+            try
+            {
+                if (degrade)
+                {
+                    degraded.incrementAndGet();
+                    budget = degradeBudget(context, degradedLinkages, degradedSeconds);
+                }
+                // The task hands the parser back to its own queue, we return it to
+                // the pool ourselves once its budget is restored.
+                RelexTask task = new RelexTask(index,
+                                               sentence,
+                                               em,
+                                               sentenceAlgorithmApplier,
+                                               null /* phraseMarkup */,
+                                               context,
+                                               new ArrayBlockingQueue<RelexContext>(1));
+                result = task.call();
+            }
+            finally
+            {
+                release();
+            }
+            long elapsed = System.nanoTime() - start;
+            busyNanos.addAndGet(elapsed);
+            parseTimes.record(elapsed);
+            if (degrade)
+                degradedParseTimes.record(elapsed);
+            if (result.result == null || result.result.getParses().isEmpty())
+                suspect(context);
+            else if (cache != null)
+                cache.put(cacheKey, result);
+            return result;
+        }
+
+        void release()
+        {
+            if (context != null && released.compareAndSet(false, true))
+            {
+                if (budget != null)
+                    restoreBudget(context, budget);
+                available.offer(context);
+            }
+        }
+
+        public String toString()
+        {
+            return "RelexTask " + index + ": " + sentence;
+        }
+    }
+
+    private static ThreadFactory daemonFactory(final String name)
+    {
+        final ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        return new ThreadFactory()
+        {
+            int count = 0;
+            public synchronized Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, name + "-" + (count++));
+                t.setContextClassLoader(loader);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    private static String makeKey(List<Endpoint> endpoints, int maxParses, int maxCost, int maxParseSeconds)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (Endpoint e : endpoints)
+            sb.append(e).append(',');
+        sb.append(maxParses).append(',').append(maxCost).append(',').append(maxParseSeconds);
+        return sb.toString();
+    }
+
+    /**
+     * <p>
+     * Return the shared pool for the given configuration, creating and starting it
+     * if necessary. Each call must be balanced by a call to {@link #release()}; the
+     * pool is kept alive even after the last release so that subsequent documents
+     * find it warm - call {@link #shutdownAll()} to dispose of all shared pools.
+     * </p>
+     */
+    public static RelexParserPool getShared(List<Endpoint> endpoints,
+                                            int maxParses,
+                                            int maxCost,
+                                            int maxParseSeconds)
+    {
+        String key = makeKey(endpoints, maxParses, maxCost, maxParseSeconds);
+        synchronized (shared)
+        {
+            RelexParserPool pool = shared.get(key);
+            if (pool == null)
+            {
+                pool = new RelexParserPool(key, endpoints, maxParses, maxCost, maxParseSeconds);
+                pool.start();
+                shared.put(key, pool);
+            }
+            pool.refCount++;
+            return pool;
+        }
+    }
+
+    /**
+     * <p>Shutdown and forget all shared pools.</p>
+     */
+    public static void shutdownAll()
+    {
+        synchronized (shared)
+        {
+            for (RelexParserPool pool : shared.values())
+                pool.shutdown();
+            shared.clear();
+        }
+    }
+
+    public RelexParserPool(List<Endpoint> endpoints, int maxParses, int maxCost, int maxParseSeconds)
+    {
+        this(makeKey(endpoints, maxParses, maxCost, maxParseSeconds),
+             endpoints, maxParses, maxCost, maxParseSeconds);
+    }
+
+    private RelexParserPool(String key, List<Endpoint> endpoints, int maxParses, int maxCost, int maxParseSeconds)
+    {
+        this.key = key;
+        this.endpoints = new ArrayList<Endpoint>(endpoints);
+        this.maxParses = maxParses;
+        this.maxCost = maxCost;
+        this.maxParseSeconds = maxParseSeconds;
+    }
+
+    /**
+     * Return the configurations governing a parser: a remote parser's requests carry
+     * the configuration of its link grammar client, not its own.
+     */
+    private static List<LGConfig> parserConfigs(IParser parser)
+    {
+        List<LGConfig> configs = new ArrayList<LGConfig>();
+        if (parser instanceof LGParser)
+            configs.add(((LGParser)parser).getConfig());
+        if (parser instanceof RemoteLGParser)
+        {
+            LGConfig client = ((RemoteLGParser)parser).getLinkGrammarClient().getConfig();
+            if (!configs.contains(client))
+                configs.add(client);
+        }
+        return configs;
+    }
+
+    private void configureParser(LGParser parser)
+    {
+        for (LGConfig config : parserConfigs(parser))
+        {
+            config.setAllowSkippedWords(true);
+            if (maxParses > -1)
+                config.setMaxLinkages(maxParses);
+            if (maxCost > -1)
+                config.setMaxCost(maxCost);
+            if (maxParseSeconds > -1)
+                config.setMaxParseSeconds(maxParseSeconds);
+        }
+    }
+
+    private static int limit(int configured, int degraded)
+    {
+        // a configured value below 0 means the parser's default, presumably larger
+        return configured < 0 ? degraded : Math.min(configured, degraded);
+    }
+
+    /**
+     * Lower the number of linkages and the timeout of a parser for one sentence and
+     * return the previous values. Must be called on the thread that will parse, since
+     * an in-process parser's options are per thread.
+     */
+    private int [] degradeBudget(RelexContext context, int linkages, int seconds)
+    {
+        List<LGConfig> configs = parserConfigs(context.getParser());
+        int [] previous = new int[configs.size() * 2];
+        for (int i = 0; i < configs.size(); i++)
+        {
+            LGConfig config = configs.get(i);
+            previous[2*i] = config.getMaxLinkages();
+            previous[2*i + 1] = config.getMaxParseSeconds();
+            config.setMaxLinkages(Math.min(config.getMaxLinkages(), linkages));
+            config.setMaxParseSeconds(Math.min(config.getMaxParseSeconds(), seconds));
+        }
+        if (context.getParser() instanceof LocalLGParser)
+            LGService.configure(configs.get(0));
+        return previous;
+    }
+
+    private void restoreBudget(RelexContext context, int [] previous)
+    {
+        List<LGConfig> configs = parserConfigs(context.getParser());
+        for (int i = 0; i < configs.size(); i++)
+        {
+            configs.get(i).setMaxLinkages(previous[2*i]);
+            configs.get(i).setMaxParseSeconds(previous[2*i + 1]);
+        }
+        if (context.getParser() instanceof LocalLGParser)
+            LGService.configure(configs.get(0));
+    }
+
+    private RelexContext newContext(Endpoint endpoint)
+    {
+        LGParser parser;
+        if (endpoint.isRemote())
+        {
+            RemoteLGParser remote = new RemoteLGParser();
+            remote.getLinkGrammarClient().setHostname(endpoint.host);
+            remote.getLinkGrammarClient().setPort(endpoint.port);
+            parser = remote;
+        }
+        else
+            parser = new LocalLGParser();
+        configureParser(parser);
+        RelexContext context = new RelexContext(parser, morphy);
+        contextEndpoints.put(context, endpoint);
+        return context;
+    }
+
+    /**
+     * Return <code>true</code> if the parser behind the context is functional. Local
+     * parsers are always considered healthy.
+     */
+    private boolean isHealthy(RelexContext context)
+    {
+        if (!(context.getParser() instanceof RemoteLGParser))
+            return true;
+        try
+        {
+            return ((RemoteLGParser)context.getParser()).getLinkGrammarClient().getVersion() != null;
+        }
+        catch (Throwable t)
+        {
+            log.warn("Link grammar server " + contextEndpoints.get(context) + " failed health check: " + t);
+            return false;
+        }
+    }
+
+    private void warmUp(RelexContext context)
+    {
+        try
+        {
+            context.getParser().parse(warmupSentence);
+        }
+        catch (Throwable t)
+        {
+            log.warn("Failed to warm up parser " + contextEndpoints.get(context) + ": " + t);
+        }
+    }
+
+    private void takeOut(RelexContext context)
+    {
+        Endpoint endpoint = contextEndpoints.remove(context);
+        if (endpoint != null)
+            synchronized (failed)
+            {
+                failed.add(endpoint);
+            }
+    }
+
+    /**
+     * Try to bring back all parsers that previously failed and check all
+     * idle remote parsers.
+     */
+    private void checkHealth()
+    {
+        List<Endpoint> retry;
+        synchronized (failed)
+        {
+            retry = new ArrayList<Endpoint>(failed);
+            failed.clear();
+        }
+        for (Endpoint endpoint : retry)
+        {
+            RelexContext context = newContext(endpoint);
+            if (isHealthy(context))
+            {
+                log.info("Reconnected to link grammar server " + endpoint);
+                reconnects.incrementAndGet();
+                available.offer(context);
+            }
+            else
+                takeOut(context);
+        }
+        int idle = available.size();
+        for (int i = 0; i < idle; i++)
+        {
+            RelexContext context = available.poll();
+            if (context == null)
+                break;
+            else if (isHealthy(context))
+                available.offer(context);
+            else
+                takeOut(context);
+        }
+    }
+
+    /**
+     * Called after a parser produced an empty result: make sure the parser is still
+     * alive, and if not, take it out of circulation until it comes back.
+     */
+    private void suspect(RelexContext context)
+    {
+        if (!(context.getParser() instanceof RemoteLGParser))
+            return;
+        // Only check if the context is still idle, otherwise whoever took it
+        // will report back if it's still broken.
+        if (available.remove(context))
+        {
+            if (isHealthy(context))
+                available.offer(context);
+            else
+                takeOut(context);
+        }
+    }
+
+    /**
+     * <p>
+     * Create all parsers, warm them up and start the parsing threads. Called
+     * automatically for pools obtained from {@link #getShared}.
+     * </p>
+     */
+    public synchronized void start()
+    {
+        if (exec != null)
+            return;
+        long startTime = System.currentTimeMillis();
+        sentenceAlgorithmApplier = new SentenceAlgorithmApplier();
+        morphy = MorphyFactory.getImplementation();
+        available = new ArrayBlockingQueue<RelexContext>(Math.max(1, endpoints.size()));
+        exec = Executors.newFixedThreadPool(Math.max(1, endpoints.size()), daemonFactory("relex-parser"));
+        submitters = Executors.newCachedThreadPool(daemonFactory("relex-submitter"));
+        List<Future<?>> warmups = new ArrayList<Future<?>>();
+        for (Endpoint endpoint : endpoints)
+        {
+            final RelexContext context = newContext(endpoint);
+            warmups.add(exec.submit(new Runnable()
+            {
+                public void run()
+                {
+                    if (isHealthy(context))
+                    {
+                        warmUp(context);
+                        available.offer(context);
+                    }
+                    else
+                        takeOut(context);
+                }
+            }));
+        }
+        for (Future<?> f : warmups)
+        {
+            try { f.get(); }
+            catch (Exception ex) { log.error("While warming up parser pool.", ex); }
+        }
+        dispatcher = Executors.newSingleThreadExecutor(daemonFactory("relex-dispatcher"));
+        dispatcher.submit(new Callable<Object>()
+        {
+            public Object call()
+            {
+                try { dispatch(); }
+                catch (InterruptedException ex) { }
+                catch (Throwable t) { log.error("Parser pool dispatcher failed.", t); }
+                return null;
+            }
+        });
+        if (healthCheckInterval > 0)
+        {
+            checker = Executors.newSingleThreadScheduledExecutor(daemonFactory("relex-health"));
+            checker.scheduleWithFixedDelay(new Runnable()
+            {
+                public void run()
+                {
+                    try { checkHealth(); }
+                    catch (Throwable t) { log.error("Parser pool health check failed.", t); }
+                }
+            }, healthCheckInterval, healthCheckInterval, TimeUnit.MILLISECONDS);
+        }
+        log.info("Parser pool " + key + " started with " + available.size() + "/" +
+                 endpoints.size() + " parsers in " + (System.currentTimeMillis() - startTime) + "ms");
+    }
+
+    /**
+     * <p>Stop all threads of this pool. Running tasks are interrupted.</p>
+     */
+    public synchronized void shutdown()
+    {
+        if (checker != null)
+        {
+            checker.shutdownNow();
+            checker = null;
+        }
+        if (submitters != null)
+        {
+            submitters.shutdownNow();
+            submitters = null;
+        }
+        if (dispatcher != null)
+        {
+            dispatcher.shutdownNow();
+            dispatcher = null;
+        }
+        synchronized (pending)
+        {
+            for (PendingTask task : pending)
+                task.future.cancel(false);
+            pending.clear();
+            pending.notifyAll();
+        }
+        if (exec != null)
+        {
+            exec.shutdownNow();
+            exec = null;
+        }
+        if (available != null)
+            available.clear();
+        contextEndpoints.clear();
+    }
+
+    /**
+     * <p>
+     * Signal that a client obtained through {@link #getShared} no longer needs
+     * the pool. The pool remains alive for future clients.
+     * </p>
+     */
+    public void release()
+    {
+        synchronized (shared)
+        {
+            if (refCount > 0)
+                refCount--;
+        }
+    }
+
+    /**
+     * <p>
+     * Run some background activity on behalf of a pool client (e.g. a loop
+     * submitting parse tasks). Those are kept separate from the parsing threads
+     * so that several clients can share the pool without starving it.
+     * </p>
+     */
+    public <T> Future<T> submitBackground(Callable<T> callable)
+    {
+        return submitters.submit(callable);
+    }
+
+    /**
+     * <p>
+     * Submit a Relex task for the given sentence, waiting while the reordering window
+     * is full. The returned future's result is never <code>null</code>. A sentence found
+     * in the result cache is answered right away, without waiting for a parser. If the
+     * pool has no functional parser, the future fails with an
+     * <code>IllegalStateException</code>.
+     * </p>
+     */
+    public Future<RelexTaskResult> submit(int index, String sentence, EntityMaintainer em)
+        throws InterruptedException
+    {
+        PendingTask task = new PendingTask(index, sentence, em);
+        final RelexTaskResult cached = task.cache == null ? null : task.cache.get(task.cacheKey, index, sentence, em);
+        if (cached != null)
+        {
+            FutureTask<RelexTaskResult> done = new FutureTask<RelexTaskResult>(new Callable<RelexTaskResult>()
+            {
+                public RelexTaskResult call() { return cached; }
+            });
+            done.run();
+            return done;
+        }
+        if (getSize() == 0)
+        {
+            task.failure = noParsers();
+            task.future.run();
+            return task.future;
+        }
+        synchronized (pending)
+        {
+            while (pending.size() >= Math.max(1, reorderWindow))
+                pending.wait();
+            pending.add(task);
+            pending.notifyAll();
+        }
+        return task.future;
+    }
+
+    /**
+     * Pick the next task to run among the pending ones: the cheapest, unless the
+     * oldest was already overtaken as often as the window allows. Must be called with
+     * the pending lock held.
+     */
+    private PendingTask next()
+    {
+        for (Iterator<PendingTask> i = pending.iterator(); i.hasNext(); )
+            if (i.next().future.isDone()) // cancelled while waiting
+                i.remove();
+        if (pending.isEmpty())
+            return null;
+        int best = 0;
+        if (pending.get(0).overtaken < reorderWindow - 1)
+            for (int i = 1; i < pending.size(); i++)
+                if (pending.get(i).cost < pending.get(best).cost)
+                    best = i;
+        for (int i = 0; i < best; i++)
+            pending.get(i).overtaken++;
+        if (best > 0)
+            reordered.incrementAndGet();
+        return pending.remove(best);
+    }
+
+    private IllegalStateException noParsers()
+    {
+        return new IllegalStateException("No functional link grammar parser in pool " + key);
+    }
+
+    /**
+     * Fail all pending tasks with the given exception.
+     */
+    private void failPending(Exception failure)
+    {
+        List<PendingTask> failed;
+        synchronized (pending)
+        {
+            failed = new ArrayList<PendingTask>(pending);
+            pending.clear();
+            pending.notifyAll();
+        }
+        for (PendingTask task : failed)
+        {
+            task.failure = failure;
+            task.future.run();
+        }
+    }
+
+    /**
+     * Assign free parsers to pending tasks, until interrupted. If all parsers are
+     * out of order, pending tasks fail instead of waiting for one to come back.
+     */
+    private void dispatch() throws InterruptedException
+    {
+        while (true)
+        {
+            synchronized (pending)
+            {
+                while (pending.isEmpty())
+                    pending.wait();
+            }
+            RelexContext context = available.poll(1, TimeUnit.SECONDS);
+            if (context == null)
+            {
+                if (getSize() == 0)
+                {
+                    log.error("No functional parser in pool " + key + ", failing pending tasks.");
+                    failPending(noParsers());
+                }
+                continue;
+            }
+            final PendingTask task;
+            synchronized (pending)
+            {
+                task = next();
+                pending.notifyAll();
+            }
+            if (task == null)
+            {
+                available.offer(context);
+                continue;
+            }
+            long waited = System.nanoTime() - task.submittedAt;
+            acquisitions.incrementAndGet();
+            waitNanos.addAndGet(waited);
+            for (long max = maxWaitNanos.get(); waited > max && !maxWaitNanos.compareAndSet(max, waited); )
+                max = maxWaitNanos.get();
+            task.context = context;
+            exec.execute(new Runnable()
+            {
+                public void run()
+                {
+                    task.future.run();
+                    task.release(); // in case it was cancelled before it could run
+                }
+                public String toString() { return task.toString(); }
+            });
+        }
+    }
+
+    /**
+     * <p>Return the number of functional parsers in the pool.</p>
+     */
+    public int getSize()
+    {
+        return contextEndpoints.size();
+    }
+
+    /**
+     * <p>Return the number of configured parsers, including the ones currently
+     * out of order.</p>
+     */
+    public int getConfiguredSize()
+    {
+        return endpoints.size();
+    }
+
+    /**
+     * <p>Return the number of parsers currently idle.</p>
+     */
+    public int getAvailableCount()
+    {
+        return available == null ? 0 : available.size();
+    }
+
+    public long getAcquisitionCount()
+    {
+        return acquisitions.get();
+    }
+
+    /**
+     * <p>Return the average time (in milliseconds) clients waited for a parser.</p>
+     */
+    public double getAverageWaitTime()
+    {
+        long n = acquisitions.get();
+        return n == 0 ? 0.0 : waitNanos.get() / (n * 1000000.0);
+    }
+
+    /**
+     * <p>Return the longest time (in milliseconds) a client waited for a parser.</p>
+     */
+    public double getMaxWaitTime()
+    {
+        return maxWaitNanos.get() / 1000000.0;
+    }
+
+    /**
+     * <p>Return the fraction of parsers currently busy.</p>
+     */
+    public double getCurrentUtilization()
+    {
+        int size = getSize();
+        return size == 0 ? 0.0 : (double)(size - getAvailableCount()) / size;
+    }
+
+    /**
+     * <p>Return the fraction of the pool's total parser time spent parsing since
+     * the pool was created.</p>
+     */
+    public double getUtilization()
+    {
+        long elapsed = (System.nanoTime() - createdAt) * Math.max(1, endpoints.size());
+        return elapsed <= 0 ? 0.0 : (double)busyNanos.get() / elapsed;
+    }
+
+    /**
+     * <p>Return the number of sentences submitted but not yet assigned a parser.</p>
+     */
+    public int getPendingCount()
+    {
+        synchronized (pending)
+        {
+            return pending.size();
+        }
+    }
+
+    /**
+     * <p>Return how many times a sentence was given a parser ahead of an earlier one.</p>
+     */
+    public long getReorderedCount()
+    {
+        return reordered.get();
+    }
+
+    /**
+     * <p>Return the number of sentences parsed with a reduced budget.</p>
+     */
+    public long getDegradedCount()
+    {
+        return degraded.get();
+    }
+
+    /**
+     * <p>Return the histogram of the time each sentence took to parse and process,
+     * not counting the time it waited for a parser.</p>
+     */
+    public LatencyHistogram getParseTimes()
+    {
+        return parseTimes;
+    }
+
+    /**
+     * <p>Return the parse time histogram of the sentences parsed with a reduced budget.</p>
+     */
+    public LatencyHistogram getDegradedParseTimes()
+    {
+        return degradedParseTimes;
+    }
+
+    public long getReconnectCount()
+    {
+        return reconnects.get();
+    }
+
+    public int getClientCount()
+    {
+        synchronized (shared)
+        {
+            return refCount;
+        }
+    }
+
+    /**
+     * <p>Return the cache of parse results, <code>null</code> if caching is disabled.</p>
+     */
+    public RelexResultCache getResultCache()
+    {
+        return resultCache;
+    }
+
+    public void setResultCache(RelexResultCache resultCache)
+    {
+        this.resultCache = resultCache;
+    }
+
+    public int getReorderWindow()
+    {
+        synchronized (pending)
+        {
+            return reorderWindow;
+        }
+    }
+
+    /**
+     * <p>
+     * Set how many submitted sentences may wait for a parser, and thus be reordered,
+     * at the same time. A window of 1 parses sentences in submission order.
+     * </p>
+     */
+    public void setReorderWindow(int reorderWindow)
+    {
+        synchronized (pending)
+        {
+            this.reorderWindow = Math.max(1, reorderWindow);
+            pending.notifyAll();
+        }
+    }
+
+    public ParseCostModel getCostModel()
+    {
+        return costModel;
+    }
+
+    /**
+     * <p>Set the model estimating parse costs, <code>null</code> to treat all sentences
+     * alike.</p>
+     */
+    public void setCostModel(ParseCostModel costModel)
+    {
+        this.costModel = costModel;
+    }
+
+    public int getDegradedParses()
+    {
+        return degradedParses;
+    }
+
+    /**
+     * <p>Set the maximum number of linkages for pathological sentences.</p>
+     */
+    public void setDegradedParses(int degradedParses)
+    {
+        this.degradedParses = degradedParses;
+    }
+
+    public int getDegradedParseSeconds()
+    {
+        return degradedParseSeconds;
+    }
+
+    /**
+     * <p>Set the parse timeout, in seconds, for pathological sentences.</p>
+     */
+    public void setDegradedParseSeconds(int degradedParseSeconds)
+    {
+        this.degradedParseSeconds = degradedParseSeconds;
+    }
+
+    public String getWarmupSentence()
+    {
+        return warmupSentence;
+    }
+
+    public void setWarmupSentence(String warmupSentence)
+    {
+        this.warmupSentence = warmupSentence;
+    }
+
+    public long getHealthCheckInterval()
+    {
+        return healthCheckInterval;
+    }
+
+    /**
+     * <p>
+     * Set the interval in milliseconds between health checks of remote parsers. A
+     * value <= 0 disables periodic checks. Must be set before the pool is started.
+     * </p>
+     */
+    public void setHealthCheckInterval(long healthCheckInterval)
+    {
+        this.healthCheckInterval = healthCheckInterval;
+    }
+
+    public String toString()
+    {
+        return "RelexParserPool[" + key + ", size=" + getSize() +
+               ", available=" + getAvailableCount() +
+               ", avgWait=" + getAverageWaitTime() + "ms" +
+               ", utilization=" + getUtilization() +
+               ", parseTimes=[" + parseTimes + "]]";
+    }
+}
@@ -0,0 +1,418 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.relex;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import relex.concurrent.RelexTaskResult;
+import relex.entity.EntityInfo;
+import relex.entity.EntityMaintainer;
+
+/**
+ * <p>
+ * A cache of Relex task results (link grammar parses with the Relex algorithms applied),
+ * so that a sentence seen before, such as the navigation, footers and disclaimers repeated
+ * on every page of a site, is neither parsed nor processed again. A result is keyed on the
+ * sentence text with all whitespace characters turned into plain spaces, the entities
+ * (type and position) of its {@link EntityMaintainer} and the parser options it was
+ * obtained with.
+ * </p>
+ *
+ * <p>
+ * Results are kept serialized and compressed, and every lookup returns a fresh copy:
+ * downstream processors modify the parses they get, and the copy also carries the index
+ * and the text of the sentence looked up. Recently used results are kept in memory, up to
+ * {@link #getMaxMemoryBytes()}. If a directory is set, results are also saved there, one
+ * file per result, up to {@link #getMaxDiskBytes()}, and found again after a restart. Only
+ * results with at least one parse are cached.
+ * </p>
+ */
+public class RelexResultCache
+{
+    private static Log log = LogFactory.getLog("org.disco");
+
+    public static final long DEFAULT_MAX_MEMORY_BYTES = 64L*1024L*1024L;
+    public static final long DEFAULT_MAX_DISK_BYTES = 1024L*1024L*1024L;
+    /** Longer sentences are rarely repeated and are not cached. */
+    public static final int MAX_SENTENCE_LENGTH = 2048;
+    private static final int SEGMENTS = 16;
+
+    // Serialized results of one segment, least recently used first.
+    private static class Segment
+    {
+        final LinkedHashMap<String, byte[]> results = new LinkedHashMap<String, byte[]>(256, 0.75f, true);
+        long bytes = 0;
+    }
+
+    private final Segment [] segments = new Segment[SEGMENTS];
+    private volatile long maxMemoryBytes;
+    private long maxDiskBytes = DEFAULT_MAX_DISK_BYTES;
+    private File directory;
+    private volatile ResultStore disk;
+    private final AtomicLong hits = new AtomicLong(), diskHits = new AtomicLong(), misses = new AtomicLong();
+    private final AtomicLong stores = new AtomicLong(), evictions = new AtomicLong();
+
+    public RelexResultCache()
+    {
+        this(DEFAULT_MAX_MEMORY_BYTES);
+    }
+
+    public RelexResultCache(long maxMemoryBytes)
+    {
+        this.maxMemoryBytes = maxMemoryBytes;
+        for (int i = 0; i < SEGMENTS; i++)
+            segments[i] = new Segment();
+    }
+
+    public RelexResultCache(long maxMemoryBytes, File directory, long maxDiskBytes)
+    {
+        this(maxMemoryBytes);
+        this.maxDiskBytes = maxDiskBytes;
+        setDirectory(directory);
+    }
+
+    /**
+     * <p>
+     * Return the key of a sentence's result, or <code>null</code> if the sentence is too
+     * long to be cached. The key includes the parsing budget, so that results of a parse
+     * with fewer linkages or a shorter timeout are kept apart. Whitespace characters are
+     * replaced one for one so that entity positions remain valid.
+     * </p>
+     */
+    public static String key(String sentence, 
+                             EntityMaintainer em, 
+                             int maxParses, 
+                             int maxCost, 
+                             int maxParseSeconds)
+    {
+        if (sentence == null || sentence.length() > MAX_SENTENCE_LENGTH)
+            return null;
+        StringBuilder sb = new StringBuilder(sentence.length() + 64);
+        sb.append(maxParses).append(',').append(maxCost).append(',').append(maxParseSeconds).append('|');
+        if (em != null && em.getEntities() != null)
+            for (EntityInfo ei : em.getEntities())
+                sb.append(ei.getType()).append(':')
+                  .append(ei.getFirstCharIndex()).append('-')
+                  .append(ei.getLastCharIndex()).append(';');
+        sb.append('|');
+        for (int i = 0; i < sentence.length(); i++)
+        {
+            char c = sentence.charAt(i);
+            sb.append(Character.isWhitespace(c) ? ' ' : c);
+        }
+        return sb.toString();
+    }
+
+    private Segment segment(String key)
+    {
+        int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    private static byte [] serialize(RelexTaskResult result) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8*1024);
+        ObjectOutputStream out = new ObjectOutputStream(new GZIPOutputStream(bytes));
+        try
+        {
+            out.writeObject(result);
+        }
+        finally
+        {
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static RelexTaskResult deserialize(InputStream in) throws IOException, ClassNotFoundException
+    {
+        ObjectInputStream oin = new ObjectInputStream(new GZIPInputStream(in));
+        try
+        {
+            return (RelexTaskResult)oin.readObject();
+        }
+        finally
+        {
+            oin.close();
+        }
+    }
+
+    private void putInMemory(String key, byte [] data)
+    {
+        Segment segment = segment(key);
+        long budget = maxMemoryBytes / SEGMENTS;
+        synchronized (segment)
+        {
+            byte [] old = segment.results.put(key, data);
+            segment.bytes += data.length - (old == null ? 0 : old.length);
+            for (Iterator<byte[]> i = segment.results.values().iterator();
+                 segment.bytes > budget && i.hasNext(); )
+            {
+                segment.bytes -= i.next().length;
+                i.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private byte [] getFromMemory(String key)
+    {
+        Segment segment = segment(key);
+        synchronized (segment)
+        {
+            return segment.results.get(key);
+        }
+    }
+
+    private byte [] getFromDisk(String key)
+    {
+        ResultStore disk = this.disk;
+        return disk == null ? null : disk.get(key);
+    }
+
+    /**
+     * <p>
+     * Return a copy of the cached result for a key obtained from {@link #key}, with the given
+     * index, sentence and original sentence of the entity maintainer, or <code>null</code> if
+     * there is none.
+     * </p>
+     */
+    public RelexTaskResult get(String key, int index, String sentence, EntityMaintainer em)
+    {
+        if (key == null)
+            return null;
+        byte [] data = getFromMemory(key);
+        if (data == null)
+        {
+            data = getFromDisk(key);
+            if (data == null)
+            {
+                misses.incrementAndGet();
+                return null;
+            }
+            diskHits.incrementAndGet();
+            putInMemory(key, data);
+        }
+        else
+            hits.incrementAndGet();
+        try
+        {
+            RelexTaskResult result = deserialize(new ByteArrayInputStream(data));
+            result.index = index;
+            result.sentence = sentence;
+            if (em != null && result.entityMaintainer != null)
+                result.entityMaintainer.setOriginalSentence(em.getOriginalSentence());
+            return result;
+        }
+        catch (Exception ex)
+        {
+            log.warn("Discarding unreadable cached Relex result for '" + sentence + "': " + ex);
+            remove(key);
+            return null;
+        }
+    }
+
+    /**
+     * <p>
+     * Cache the result of a sentence under a key obtained from {@link #key}. The result
+     * is serialized right away, so it may be modified as soon as this method returns.
+     * </p>
+     */
+    public void put(String key, RelexTaskResult result)
+    {
+        if (key == null || result == null || result.result == null || result.result.getParses().isEmpty())
+            return;
+        byte [] data;
+        try
+        {
+            data = serialize(result);
+        }
+        catch (Throwable t) // including a StackOverflowError on a very deep feature structure
+        {
+            log.warn("Couldn't cache the Relex result for '" + result.sentence + "': " + t);
+            return;
+        }
+        stores.incrementAndGet();
+        putInMemory(key, data);
+        ResultStore disk = this.disk;
+        if (disk != null)
+        {
+            try
+            {
+                disk.put(key, data);
+            }
+            catch (IOException ex)
+            {
+                log.warn("Couldn't save the Relex result for '" + result.sentence + "': " + ex);
+            }
+        }
+    }
+
+    public void remove(String key)
+    {
+        Segment segment = segment(key);
+        synchronized (segment)
+        {
+            byte [] old = segment.results.remove(key);
+            if (old != null)
+                segment.bytes -= old.length;
+        }
+        ResultStore disk = this.disk;
+        if (disk != null)
+            disk.remove(key);
+    }
+
+    /**
+     * <p>Forget all results, in memory and on disk.</p>
+     */
+    public void clear()
+    {
+        for (Segment segment : segments)
+            synchronized (segment)
+            {
+                segment.results.clear();
+                segment.bytes = 0;
+            }
+        ResultStore disk = this.disk;
+        if (disk != null)
+            disk.clear();
+    }
+
+    /**
+     * <p>Return the number of results held in memory.</p>
+     */
+    public int size()
+    {
+        int size = 0;
+        for (Segment segment : segments)
+            synchronized (segment)
+            {
+                size += segment.results.size();
+            }
+        return size;
+    }
+
+    /**
+     * <p>Return the size of the serialized results held in memory.</p>
+     */
+    public long getMemoryBytes()
+    {
+        long bytes = 0;
+        for (Segment segment : segments)
+            synchronized (segment)
+            {
+                bytes += segment.bytes;
+            }
+        return bytes;
+    }
+
+    /**
+     * <p>Return the number of lookups answered from memory.</p>
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * <p>Return the number of lookups answered from the disk tier.</p>
+     */
+    public long getDiskHits()
+    {
+        return diskHits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    public double getHitRatio()
+    {
+        long h = hits.get() + diskHits.get(), total = h + misses.get();
+        return total == 0 ? 0 : (double)h / total;
+    }
+
+    public long getStores()
+    {
+        return stores.get();
+    }
+
+    /**
+     * <p>Return the number of results evicted from memory (they may still be on disk).</p>
+     */
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+
+    public long getMaxMemoryBytes()
+    {
+        return maxMemoryBytes;
+    }
+
+    /**
+     * <p>Set the memory budget, which takes effect as results are added.</p>
+     */
+    public void setMaxMemoryBytes(long maxMemoryBytes)
+    {
+        this.maxMemoryBytes = maxMemoryBytes;
+    }
+
+    public synchronized long getMaxDiskBytes()
+    {
+        return maxDiskBytes;
+    }
+
+    public synchronized void setMaxDiskBytes(long maxDiskBytes)
+    {
+        this.maxDiskBytes = maxDiskBytes;
+        if (disk != null)
+            disk.setMaxBytes(maxDiskBytes);
+    }
+
+    public synchronized File getDirectory()
+    {
+        return directory;
+    }
+
+    /**
+     * <p>Set the directory of the disk tier, <code>null</code> to keep results in memory
+     * only.</p>
+     */
+    public synchronized void setDirectory(File directory)
+    {
+        this.directory = directory;
+        disk = directory == null ? null : new ResultStore(directory, maxDiskBytes);
+    }
+
+    public String toString()
+    {
+        return "RelexResultCache[size=" + size() + ", hits=" + getHits() +
+               ", diskHits=" + getDiskHits() + ", misses=" + getMisses() + "]";
+    }
+}
@@ -0,0 +1,260 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.relex;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * The disk tier of a {@link RelexResultCache}: a size bounded store of byte arrays keyed
+ * by string, one file per key. A file is named after a 64-bit hash of its key and starts
+ * with the key itself, so that a hash collision reads as a miss (the colliding keys then
+ * replace each other). Files are written to a temporary file that is then renamed, so a
+ * file is always complete.
+ * </p>
+ *
+ * <p>
+ * There is no index to save: the sizes of the files are read from the directory when the
+ * store is first used, so nothing is lost if the application doesn't shut down cleanly.
+ * When the total size exceeds the budget, the least recently used files are deleted until
+ * the store is back to 90% of it. After a restart, the files are ordered by the time they
+ * were written.
+ * </p>
+ */
+class ResultStore
+{
+    private static final int MAGIC = 0x52525331;
+    private static final String SUFFIX = ".res";
+
+    private final File directory;
+    private long maxBytes;
+    // file name -> size, least recently used first
+    private LinkedHashMap<String, Long> files = null;
+    private long totalBytes = 0;
+
+    ResultStore(File directory, long maxBytes)
+    {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    // FNV-1a
+    private static String fileName(String key)
+    {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++)
+        {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        String hex = Long.toHexString(h);
+        while (hex.length() < 16)
+            hex = "0" + hex;
+        return hex.substring(0, 2) + "/" + hex + SUFFIX;
+    }
+
+    private void ensureOpen()
+    {
+        if (files != null)
+            return;
+        files = new LinkedHashMap<String, Long>(1024, 0.75f, true);
+        totalBytes = 0;
+        List<File> found = new ArrayList<File>();
+        File [] dirs = directory.listFiles();
+        for (File dir : dirs == null ? new File[0] : dirs)
+        {
+            if (!dir.isDirectory() || dir.getName().length() != 2)
+                continue;
+            File [] contents = dir.listFiles();
+            for (File f : contents == null ? new File[0] : contents)
+            {
+                if (f.getName().endsWith(".tmp")) // left over by a crash
+                    f.delete();
+                else if (f.getName().endsWith(SUFFIX))
+                    found.add(f);
+            }
+        }
+        final Map<File, Long> modified = new HashMap<File, Long>();
+        for (File f : found)
+            modified.put(f, f.lastModified());
+        Collections.sort(found, new Comparator<File>() {
+            public int compare(File a, File b)
+            {
+                long x = modified.get(a), y = modified.get(b);
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        for (File f : found)
+        {
+            files.put(f.getParentFile().getName() + "/" + f.getName(), f.length());
+            totalBytes += f.length();
+        }
+    }
+
+    private void delete(String name)
+    {
+        Long size = files.remove(name);
+        if (size != null)
+            totalBytes -= size;
+        new File(directory, name).delete();
+    }
+
+    private void evict()
+    {
+        if (totalBytes <= maxBytes)
+            return;
+        long target = maxBytes - maxBytes / 10;
+        for (Iterator<Map.Entry<String, Long>> i = files.entrySet().iterator();
+             i.hasNext() && totalBytes > target; )
+        {
+            Map.Entry<String, Long> e = i.next();
+            totalBytes -= e.getValue();
+            new File(directory, e.getKey()).delete();
+            i.remove();
+        }
+    }
+
+    /**
+     * <p>Return the bytes stored under the key, <code>null</code> if there are none.</p>
+     */
+    byte [] get(String key)
+    {
+        String name = fileName(key);
+        synchronized (this)
+        {
+            ensureOpen();
+            if (files.get(name) == null) // also most recently used now
+                return null;
+        }
+        try
+        {
+            DataInputStream in = new DataInputStream(new FileInputStream(new File(directory, name)));
+            try
+            {
+                if (in.readInt() != MAGIC)
+                    return null;
+                byte [] storedKey = new byte[in.readInt()];
+                in.readFully(storedKey);
+                if (!Arrays.equals(storedKey, key.getBytes("UTF-8")))
+                    return null;
+                byte [] data = new byte[in.readInt()];
+                in.readFully(data);
+                return data;
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException ex)
+        {
+            // deleted, or truncated by a crash
+            return null;
+        }
+    }
+
+    /**
+     * <p>Store the bytes under the key, replacing those stored before.</p>
+     */
+    void put(String key, byte [] data) throws IOException
+    {
+        synchronized (this)
+        {
+            ensureOpen(); // before the temporary file, which ensureOpen() would delete
+        }
+        String name = fileName(key);
+        File target = new File(directory, name);
+        target.getParentFile().mkdirs();
+        File tmp = File.createTempFile("res", ".tmp", target.getParentFile());
+        try
+        {
+            byte [] keyBytes = key.getBytes("UTF-8");
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 16*1024));
+            try
+            {
+                out.writeInt(MAGIC);
+                out.writeInt(keyBytes.length);
+                out.write(keyBytes);
+                out.writeInt(data.length);
+                out.write(data);
+            }
+            finally
+            {
+                out.close();
+            }
+            synchronized (this)
+            {
+                long size = tmp.length();
+                if (size > maxBytes)
+                {
+                    delete(name);
+                    return;
+                }
+                // Atomic on POSIX file systems, elsewhere the target has to go first.
+                if (!tmp.renameTo(target))
+                {
+                    target.delete();
+                    if (!tmp.renameTo(target))
+                        throw new IOException("Couldn't rename " + tmp + " to " + target);
+                }
+                Long old = files.put(name, size);
+                totalBytes += size - (old == null ? 0 : old);
+                evict();
+            }
+        }
+        finally
+        {
+            tmp.delete(); // a no-op once renamed
+        }
+    }
+
+    synchronized void remove(String key)
+    {
+        ensureOpen();
+        delete(fileName(key));
+    }
+
+    synchronized void clear()
+    {
+        ensureOpen();
+        for (String name : new ArrayList<String>(files.keySet()))
+            delete(name);
+    }
+
+    synchronized long getTotalBytes()
+    {
+        ensureOpen();
+        return totalBytes;
+    }
+
+    synchronized void setMaxBytes(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+        if (files != null)
+            evict();
+    }
+}
@@ -14,18 +14,22 @@ package disko.saca;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.SortedSet;
 import org.hypergraphdb.HGHandle;
 import org.hypergraphdb.HGIndex;
 import org.hypergraphdb.HGLink;
 import org.hypergraphdb.HGPersistentHandle;
+import org.hypergraphdb.HGQuery.hg;
 import org.hypergraphdb.HGSearchResult;
 import org.hypergraphdb.HyperGraph;
 import org.hypergraphdb.app.wordnet.data.Word;
@@ -52,6 +56,9 @@ public class DiskoSearch
 	private ArrayList<SearchSet> population;
 	private int totalScopesFound;
 	private HashSet<Signature> examined = new HashSet<Signature>();
+	private long timeBudget = 0;
+	private long deadline;
+	private boolean partial = false;
 
 	private double score(Signature s)
 	{
@@ -280,6 +287,208 @@ public class DiskoSearch
 		return result;
 	}
 	
+	private boolean expired()
+	{
+		if (timeBudget > 0 && System.nanoTime() > deadline)
+			partial = true;
+		return partial;
+	}
+	
+	/**
+	 * <p>
+	 * Return the <code>maxResults</code> best scoring documents. This gives the same document
+	 * scores as {@link #search(HyperGraph, int)}: a sentence scores with all query relations it
+	 * contains and a document with all its sentences. But rather than intersecting relation sets
+	 * over several generations, it reads each relation set once, most selective (i.e. smallest)
+	 * first, to collect the sentence scores. Sentences are then attributed to their documents in
+	 * decreasing score order, keeping the best documents in a bounded heap, until the score of the
+	 * sentences left can't move any other document into the top <code>maxResults</code>. Finally,
+	 * the scores of the selected documents are completed with their remaining sentences.
+	 * </p>
+	 * 
+	 * <p>
+	 * If a time budget is set (see {@link #setTimeBudget(long)}) and it runs out, the search
+	 * stops and returns the best documents found so far with the scores accumulated so far.
+	 * {@link #isPartial()} tells whether that happened.  
+	 * </p>
+	 */
+	public SortedSet<Result> searchTopK(int maxResults)
+	{
+		if (maxResults < 1)
+			throw new IllegalArgumentException("maxResults must be at least 1.");
+		deadline = System.nanoTime() + timeBudget*1000000L;
+		partial = false;
+		
+		// Collect the relations of each sentence, most selective relations first.
+		SearchSet [] bySelectivity = population.subList(0, relations.length).toArray(new SearchSet[relations.length]);
+		Arrays.sort(bySelectivity, new Comparator<SearchSet>() {
+			public int compare(SearchSet x, SearchSet y) { return x.count() - y.count(); }
+		});
+		Map<HGHandle, Signature> sentences = new HashMap<HGHandle, Signature>();
+		int steps = 0;
+		collect: for (SearchSet set : bySelectivity)
+		{
+			if (expired())
+				break;
+			HGSearchResult<HGHandle> rs = set.set.getSearchResult();
+			try
+			{
+				while (rs.hasNext())
+				{
+					HGHandle sentenceHandle = rs.next();
+					Signature current = sentences.get(sentenceHandle);
+					sentences.put(sentenceHandle, current == null ? 
+												  set.signature : new Signature(current, set.signature));
+					if (++steps % 256 == 0 && expired())
+						break collect;
+				}
+			}
+			finally
+			{
+				rs.close();
+			}
+		}
+		
+		// Attribute sentences to documents, best sentences first, until the top results are settled.
+		ArrayList<Map.Entry<HGHandle, Signature>> ranked = new ArrayList<Map.Entry<HGHandle, Signature>>(sentences.entrySet());
+		final Map<HGHandle, Double> sentenceScores = new HashMap<HGHandle, Double>();
+		double remaining = 0.0;
+		for (Map.Entry<HGHandle, Signature> e : ranked)
+		{
+			double score = score(e.getValue());
+			sentenceScores.put(e.getKey(), score);
+			remaining += score;
+		}
+		Collections.sort(ranked, new Comparator<Map.Entry<HGHandle, Signature>>() {
+			public int compare(Map.Entry<HGHandle, Signature> x, Map.Entry<HGHandle, Signature> y) 
+			{ 
+				return Double.compare(sentenceScores.get(y.getKey()), sentenceScores.get(x.getKey())); 
+			}
+		});
+		Map<HGHandle, Result> results = new HashMap<HGHandle, Result>();
+		PriorityQueue<Result> best = null;
+		int attributed = 0;
+		for (int i = 0; i < ranked.size(); i++)
+		{
+			Map.Entry<HGHandle, Signature> e = ranked.get(i);
+			HGHandle docHandle = scopeIndex.findFirst(graph.getPersistentHandle(e.getKey()));
+			addSentence(results, docHandle, e.getKey(), e.getValue(), sentenceScores.get(e.getKey()));
+			remaining -= sentenceScores.get(e.getKey());
+			attributed++;
+			if ((i + 1) % 64 == 0 || i == ranked.size() - 1)
+			{
+				best = topResults(results.values(), maxResults + 1);
+				if (settled(best, maxResults, remaining) || expired())
+					break;
+			}
+		}
+		if (best == null)
+			best = topResults(results.values(), maxResults + 1);
+		while (best.size() > maxResults)
+			best.poll();
+		
+		// Complete the scores of the selected documents with the sentences not attributed yet.
+		for (Result R : best)
+		{
+			if (attributed == ranked.size() || expired())
+				break;
+			List<HGHandle> scoped = hg.findAll(graph, hg.apply(hg.targetAt(graph, 1), 
+					hg.and(hg.type(scopeLinkType), hg.orderedLink(R.resource, hg.anyHandle()))));
+			for (HGHandle sentenceHandle : scoped)
+			{
+				Signature signature = sentences.get(sentenceHandle);
+				if (signature != null && !R.subScopes.contains(sentenceHandle))
+					addSentence(results, R.resource, sentenceHandle, signature, sentenceScores.get(sentenceHandle));
+			}
+		}
+		
+		Result [] RSET = best.toArray(new Result[best.size()]);
+		Arrays.sort(RSET);
+		return new ArrayBasedSet<Result>(RSET);
+	}
+	
+	private void addSentence(Map<HGHandle, Result> results, 
+							 HGHandle docHandle, 
+							 HGHandle sentenceHandle, 
+							 Signature signature, 
+							 double score)
+	{
+		Result R = results.get(docHandle);
+		if (R == null)
+		{
+			R = new Result();
+			R.resource = docHandle;
+			results.put(docHandle, R);
+		}
+		R.score += score;
+		for (int idx : signature.A)
+			R.relations.add(this.relations[idx]);
+		R.subScopes.add(sentenceHandle);
+	}
+	
+	/**
+	 * Return a min-heap with the (at most) <code>n</code> best results.
+	 */
+	private PriorityQueue<Result> topResults(Collection<Result> results, int n)
+	{
+		PriorityQueue<Result> heap = new PriorityQueue<Result>(n, new Comparator<Result>() {
+			public int compare(Result x, Result y) { return Double.compare(x.score, y.score); }
+		});
+		for (Result R : results)
+		{
+			if (heap.size() < n)
+				heap.add(R);
+			else if (R.score > heap.peek().score)
+			{
+				heap.poll();
+				heap.add(R);
+			}
+		}
+		return heap;
+	}
+	
+	/**
+	 * The top <code>k</code> documents are settled when no other document, even one
+	 * not seen yet, could overtake the k-th best one with all the remaining sentence score. 
+	 * <code>best</code> holds the best <code>k+1</code> results.
+	 */
+	private boolean settled(PriorityQueue<Result> best, int k, double remaining)
+	{
+		if (best.size() < k)
+			return remaining <= 0.0;
+		ArrayList<Result> sorted = new ArrayList<Result>(best);
+		Collections.sort(sorted);
+		double kth = sorted.get(k - 1).score;
+		double outside = best.size() > k ? sorted.get(k).score : 0.0;
+		return kth >= outside + remaining;
+	}
+	
+	/**
+	 * <p>Return the time budget of {@link #searchTopK(int)}, in milliseconds.</p> 
+	 */
+	public long getTimeBudget()
+	{
+		return timeBudget;
+	}
+
+	/**
+	 * <p>Set the time budget of {@link #searchTopK(int)}, in milliseconds. 0, the default,
+	 * means no limit.</p> 
+	 */
+	public void setTimeBudget(long timeBudget)
+	{
+		this.timeBudget = timeBudget;
+	}
+
+	/**
+	 * <p>Return <code>true</code> if the last {@link #searchTopK(int)} ran out of time and
+	 * returned partial results.</p>
+	 */
+	public boolean isPartial()
+	{
+		return partial;
+	}
+	
 	static class Signature
 	{
 		int [] A;
@@ -13,50 +13,169 @@ package disko.saca;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Iterator;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+import disko.DU;
 
+/**
+ * <p>
+ * Dispatches Saca searches to the least loaded of several servers. A server is picked with
+ * the "power of two choices": two available servers are drawn at random and the one with the
+ * lower expected response time (EWMA latency times requests in progress, see {@link ServerInfo})
+ * gets the request. Selection and accounting use the servers' atomic counters only, so callers
+ * don't contend on a common lock. When all servers are busy, callers wait on a condition,
+ * signaled whenever a request completes, for at most <code>maxWait</code> milliseconds.
+ * </p>
+ * 
+ * <p>
+ * Servers failing <code>maxFailures</code> times in a row, or responding more than
+ * <code>outlierFactor</code> times slower than the average of the others, are ejected for
+ * <code>ejectionTime</code> milliseconds, doubling with each consecutive ejection up to
+ * <code>maxEjectionTime</code>. The last available server is never ejected.
+ * </p>
+ */
 public class LoadBalancedSacaClient
 {
-	private SortedSet<ServerInfo> servers = new TreeSet<ServerInfo>();
+	private final CopyOnWriteArrayList<ServerInfo> servers = new CopyOnWriteArrayList<ServerInfo>();
+	private final Random random = new Random();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition released = lock.newCondition();
+	private final AtomicInteger waiting = new AtomicInteger();
+	private final Object ejectLock = new Object();
+	
+	private long maxWait = 30000;
+	private int maxFailures = 3;
+	private double outlierFactor = 3.0;
+	private int outlierMinRequests = 20;
+	private long ejectionTime = 1000;
+	private long maxEjectionTime = 60000;
+	
+	/**
+	 * <p>Pick a server with the power of two choices and reserve a request slot on it,
+	 * return <code>null</code> if none is available.</p>
+	 */
+	private ServerInfo tryAcquire()
+	{
+		long now = System.currentTimeMillis();
+		ServerInfo [] candidates = servers.toArray(new ServerInfo[0]);
+		int n = 0;
+		for (int i = 0; i < candidates.length; i++)
+			if (candidates[i].isAvailable(now))
+				candidates[n++] = candidates[i];
+		while (n > 0)
+		{
+			int a = random.nextInt(n), b = n > 1 ? random.nextInt(n - 1) : a;
+			if (n > 1 && b >= a)
+				b++;
+			ServerInfo best = candidates[a].getLoad() <= candidates[b].getLoad() ? candidates[a] : candidates[b];
+			if (best.acquire())
+				return best;
+			// became busy in the meantime, drop it from the candidates
+			int i = best == candidates[a] ? a : b;
+			candidates[i] = candidates[--n];
+		}
+		return null;
+	}
 	
-	private ServerInfo getLeastLoadedServer()
+	private ServerInfo acquireServer() throws InterruptedException
 	{
-		ServerInfo result = null;
-		synchronized (servers)
+		ServerInfo result = tryAcquire();
+		if (result != null)
+			return result;
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWait);
+		lock.lock();
+		waiting.incrementAndGet();
+		try
 		{
-			while (result == null)
-				for (Iterator<ServerInfo> i = servers.iterator(); i.hasNext(); )
-				{
-					ServerInfo si = i.next();
-					if (si.currentRequests < si.maxRequests && si.isActive())
-					{
-						result = si;
-						i.remove();
-						break;
-					}
-				}
-			synchronized (result)
+			// Ejected servers come back without a signal, hence the wait in short slices.
+			for (result = tryAcquire(); result == null; result = tryAcquire())
 			{
-				result.currentRequests++;
-				servers.add(result);
+				long left = deadline - System.nanoTime();
+				if (left <= 0)
+					throw new RuntimeException("No Saca server available after " + maxWait + "ms");
+				released.await(Math.min(left, TimeUnit.MILLISECONDS.toNanos(100)), TimeUnit.NANOSECONDS);
 			}
+			return result;
+		}
+		finally
+		{
+			waiting.decrementAndGet();
+			lock.unlock();
+		}
+	}
+	
+	private void releaseServer(ServerInfo server)
+	{
+		server.currentRequests.decrementAndGet();
+		if (waiting.get() > 0)
+		{
+			lock.lock();
+			try { released.signalAll(); }
+			finally { lock.unlock(); }
 		}
-		return result;
+	}
+	
+	private boolean isOnlyAvailable(ServerInfo server)
+	{
+		long now = System.currentTimeMillis();
+		for (ServerInfo si : servers)
+			if (si != server && si.active && now >= si.ejectedUntil)
+				return false;
+		return true;
+	}
+	
+	private void eject(ServerInfo server, String reason)
+	{
+		// Two servers failing at the same time mustn't both see the other as available.
+		synchronized (ejectLock)
+		{
+			if (server.isEjected() || isOnlyAvailable(server))
+				return;
+			server.eject(ejectionTime, maxEjectionTime, System.currentTimeMillis());
+		}
+		DU.log.info("Ejecting " + server + " until " + new Date(server.ejectedUntil) + ": " + reason);
+	}
+	
+	/**
+	 * <p>Eject the server if its latency is an outlier and return whether it is.</p>
+	 */
+	private boolean checkOutlier(ServerInfo server)
+	{
+		if (server.getTotalRequests() < outlierMinRequests)
+			return false;
+		double total = 0;
+		int count = 0;
+		for (ServerInfo si : servers)
+			if (si != server && si.getTotalRequests() >= outlierMinRequests)
+			{
+				total += si.getEwmaTime();
+				count++;
+			}
+		if (count > 0 && server.getEwmaTime() > outlierFactor*total/count)
+		{
+			eject(server, "latency " + server.getEwmaTime() + "ms vs. " + total/count + "ms");
+			return true;
+		}
+		return false;
 	}
 	
 	public void addAllServers(Collection<ServerInfo> srvs)
 	{
-		synchronized (servers) { servers.addAll(srvs); }
+		for (ServerInfo si : srvs)
+			addServer(si);
 	}
 	
 	public void addServer(ServerInfo si)
 	{
-		synchronized (servers) { servers.add(si); }
+		servers.addIfAbsent(si);
 	}
 	
 	public void addServer(String hostname, int port, int maxRequests)
@@ -65,60 +184,48 @@ public class LoadBalancedSacaClient
 		info.host = hostname;
 		info.port = port;
 		info.maxRequests = maxRequests;
-		synchronized (servers)
-		{
-			servers.add(info);
-		}
+		addServer(info);
 	}
 	
 	public void removeServer(String hostname, int port)
 	{
-		ServerInfo si = new ServerInfo();
-		si.host = hostname;
-		si.port = port;
-		synchronized (servers)
-		{
-			servers.remove(si);
-		}
+		servers.remove(new ServerInfo(hostname, port));
 	}
 
 	public ServerInfo getServer(String hostname, int port)
 	{
 		ServerInfo si = new ServerInfo(hostname, port);
-		synchronized (servers)
-		{
-			for (ServerInfo x : servers)
-				if (si.equals(x)) { si = x; break; }
-		}
+		for (ServerInfo x : servers)
+			if (si.equals(x)) { si = x; break; }
 		return si;
 	}
 	
 	public List<ServerInfo> getAllServers()
 	{
-		ArrayList<ServerInfo> L = new ArrayList<ServerInfo>();
-		synchronized (servers) { L.addAll(servers); }		
-		return L;
+		return new ArrayList<ServerInfo>(servers);
 	}
 	
 	public Object search(String question) throws InterruptedException
 	{
-		ServerInfo server = getLeastLoadedServer();
+		ServerInfo server = acquireServer();
 		SacaClient client = new SacaClient(server.host, server.port);
 		Object answer = null;
-		long startTime = System.currentTimeMillis();
+		long startTime = System.nanoTime();
 		try
 		{
 			answer = client.search(question);
 		}
 		finally
 		{
-			synchronized (server) { server.currentRequests--; }
-		}
-		long endTime = System.currentTimeMillis();
-		synchronized (server)
-		{
-			server.totalRequests++;
-			server.totalProcessingTime += (endTime - startTime);
+			if (answer != null)
+			{
+				server.succeeded(System.nanoTime() - startTime);
+				if (!checkOutlier(server))
+					server.recovered();
+			}
+			else if (server.failed() >= maxFailures)
+				eject(server, server.getConsecutiveFailures() + " consecutive failures");
+			releaseServer(server);
 		}
 		return answer;
 	}
@@ -130,4 +237,72 @@ public class LoadBalancedSacaClient
 		Map<String, Object> result = (Map<String, Object>)client.ping();
 		return result == null ? null : (String)result.get(SacaService.ACT);
 	}
+
+	public long getMaxWait()
+	{
+		return maxWait;
+	}
+
+	/**
+	 * <p>Set how long, in milliseconds, a search waits for a server when all are busy
+	 * before failing.</p>
+	 */
+	public void setMaxWait(long maxWait)
+	{
+		this.maxWait = maxWait;
+	}
+
+	public int getMaxFailures()
+	{
+		return maxFailures;
+	}
+
+	public void setMaxFailures(int maxFailures)
+	{
+		this.maxFailures = maxFailures;
+	}
+
+	public double getOutlierFactor()
+	{
+		return outlierFactor;
+	}
+
+	public void setOutlierFactor(double outlierFactor)
+	{
+		this.outlierFactor = outlierFactor;
+	}
+
+	public int getOutlierMinRequests()
+	{
+		return outlierMinRequests;
+	}
+
+	/**
+	 * <p>Set the number of requests a server must have completed before its latency
+	 * is compared to the others'.</p>
+	 */
+	public void setOutlierMinRequests(int outlierMinRequests)
+	{
+		this.outlierMinRequests = outlierMinRequests;
+	}
+
+	public long getEjectionTime()
+	{
+		return ejectionTime;
+	}
+
+	public void setEjectionTime(long ejectionTime)
+	{
+		this.ejectionTime = ejectionTime;
+	}
+
+	public long getMaxEjectionTime()
+	{
+		return maxEjectionTime;
+	}
+
+	public void setMaxEjectionTime(long maxEjectionTime)
+	{
+		this.maxEjectionTime = maxEjectionTime;
+	}
 }
@@ -0,0 +1,289 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.saca;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HyperGraph;
+import org.hypergraphdb.event.HGAtomAddedEvent;
+import org.hypergraphdb.event.HGAtomRemovedEvent;
+import org.hypergraphdb.event.HGEvent;
+import org.hypergraphdb.event.HGListener;
+import org.hypergraphdb.util.Mapping;
+
+import disko.ScopeLink;
+
+/**
+ * <p>
+ * A bounded cache of search results, keyed by the normalized query text and the search
+ * parameters. Entries are evicted in LRU order once the cache is full and expire after a
+ * time to live. Concurrent requests for the same key are coalesced: the first one computes
+ * the result and the others wait for it, so a burst of identical queries runs the search
+ * pipeline once.
+ * </p>
+ *
+ * <p>
+ * Every entry is stamped with the cache's <em>generation</em>, which is incremented
+ * whenever a {@link ScopeLink} is added to the graph (i.e. when new documents or sentences are
+ * saved and become searchable) and whenever an atom is removed. Entries from an older
+ * generation are ignored, so the whole cache is invalidated at once without being scanned.
+ * Changes made by other processes are not seen by the graph's event manager, for those the time
+ * to live bounds how long stale results can be served.
+ * </p>
+ *
+ * <p>
+ * The text is normalized by trimming it and collapsing white space. Case is kept, since it
+ * matters to entity detection.
+ * </p>
+ */
+public class QueryResultCache
+{
+	public static final int DEFAULT_CAPACITY = 10000;
+	public static final long DEFAULT_TTL = 10*60*1000;
+
+	private static class Entry
+	{
+		final Object value;
+		final long generation;
+		final long expires;
+
+		Entry(Object value, long generation, long expires)
+		{
+			this.value = value;
+			this.generation = generation;
+			this.expires = expires;
+		}
+	}
+
+	private final Map<String, Entry> entries;
+	private final ConcurrentHashMap<String, FutureTask<Object>> inFlight = new ConcurrentHashMap<String, FutureTask<Object>>();
+	private final AtomicLong generation = new AtomicLong();
+	private final HGHandle scopeLinkType;
+	private final long ttl;
+	private Mapping<Object, Boolean> cacheable = null;
+	private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), coalesced = new AtomicLong(),
+							 evictions = new AtomicLong(), expirations = new AtomicLong();
+
+	/**
+	 * @param graph The graph whose changes invalidate the cache.
+	 * @param capacity The maximum number of entries.
+	 * @param ttl The time to live of entries, in milliseconds.
+	 */
+	public QueryResultCache(HyperGraph graph, final int capacity, long ttl)
+	{
+		this.ttl = ttl;
+		entries = new LinkedHashMap<String, Entry>(256, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+			protected boolean removeEldestEntry(Map.Entry<String, QueryResultCache.Entry> eldest)
+			{
+				if (size() <= capacity)
+					return false;
+				evictions.incrementAndGet();
+				return true;
+			}
+		};
+		scopeLinkType = graph.getTypeSystem().getTypeHandle(ScopeLink.class);
+		graph.getEventManager().addListener(HGAtomAddedEvent.class, new HGListener()
+		{
+			public Result handle(HyperGraph graph, HGEvent event)
+			{
+				HGHandle type = graph.getType(((HGAtomAddedEvent)event).getAtomHandle());
+				if (scopeLinkType.equals(type))
+					invalidate();
+				return Result.ok;
+			}
+		});
+		graph.getEventManager().addListener(HGAtomRemovedEvent.class, new HGListener()
+		{
+			public Result handle(HyperGraph graph, HGEvent event)
+			{
+				invalidate();
+				return Result.ok;
+			}
+		});
+	}
+
+	/**
+	 * <p>Return the cache key of a query: the normalized text followed by the search
+	 * parameters.</p>
+	 */
+	public static String key(String question, Object...parameters)
+	{
+		StringBuilder sb = new StringBuilder(question.trim().replaceAll("\\s+", " "));
+		for (Object p : parameters)
+			sb.append('\u0000').append(p);
+		return sb.toString();
+	}
+
+	private Object lookup(String key)
+	{
+		synchronized (entries)
+		{
+			Entry e = entries.get(key);
+			if (e == null)
+				return null;
+			if (e.generation != generation.get() || System.currentTimeMillis() > e.expires)
+			{
+				entries.remove(key);
+				expirations.incrementAndGet();
+				return null;
+			}
+			return e.value;
+		}
+	}
+
+	/**
+	 * <p>
+	 * Return the cached result for <code>key</code> or compute it with <code>computation</code>.
+	 * If the same key is being computed by another thread, wait for that result instead.
+	 * Exceptions thrown by the computation are passed on to all waiting callers and nothing
+	 * is cached.
+	 * </p>
+	 */
+	public Object get(final String key, Callable<Object> computation) throws InterruptedException, ExecutionException
+	{
+		Object value = lookup(key);
+		if (value != null)
+		{
+			hits.incrementAndGet();
+			return value;
+		}
+		FutureTask<Object> task = new FutureTask<Object>(computation);
+		FutureTask<Object> running = inFlight.putIfAbsent(key, task);
+		if (running != null)
+		{
+			coalesced.incrementAndGet();
+			return running.get();
+		}
+		misses.incrementAndGet();
+		long startGeneration = generation.get();
+		try
+		{
+			task.run();
+			value = task.get();
+			// Results computed while the graph changed may already be stale.
+			if (value != null && startGeneration == generation.get() && isCacheable(value))
+				synchronized (entries)
+				{
+					entries.put(key, new Entry(value, startGeneration, System.currentTimeMillis() + ttl));
+				}
+			return value;
+		}
+		finally
+		{
+			inFlight.remove(key, task);
+		}
+	}
+
+	private boolean isCacheable(Object value)
+	{
+		Mapping<Object, Boolean> f = cacheable;
+		return f == null || Boolean.TRUE.equals(f.eval(value));
+	}
+
+	/**
+	 * <p>Set a filter deciding which computed results are cached, e.g. to leave out partial
+	 * results. By default all non-null results are cached.</p>
+	 */
+	public void setCacheable(Mapping<Object, Boolean> cacheable)
+	{
+		this.cacheable = cacheable;
+	}
+
+	/**
+	 * <p>Invalidate all entries by starting a new generation.</p>
+	 */
+	public void invalidate()
+	{
+		generation.incrementAndGet();
+	}
+
+	public void clear()
+	{
+		synchronized (entries)
+		{
+			entries.clear();
+		}
+	}
+
+	public int size()
+	{
+		synchronized (entries)
+		{
+			return entries.size();
+		}
+	}
+
+	public long getGeneration()
+	{
+		return generation.get();
+	}
+
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	/**
+	 * <p>Return the number of requests that waited for the result of an identical request
+	 * in progress.</p>
+	 */
+	public long getCoalesced()
+	{
+		return coalesced.get();
+	}
+
+	public long getEvictions()
+	{
+		return evictions.get();
+	}
+
+	/**
+	 * <p>Return the number of entries dropped because they had expired or belonged to an
+	 * older generation.</p>
+	 */
+	public long getExpirations()
+	{
+		return expirations.get();
+	}
+
+	/**
+	 * <p>Return the fraction of requests that didn't run a search, i.e. cache hits and
+	 * coalesced requests.</p>
+	 */
+	public double getHitRatio()
+	{
+		long h = hits.get() + coalesced.get();
+		long total = h + misses.get();
+		return total == 0 ? 0.0 : (double)h / total;
+	}
+
+	public String toString()
+	{
+		return "QueryResultCache[size=" + size() + ", hits=" + getHits() + ", coalesced=" + getCoalesced() +
+			   ", misses=" + getMisses() + ", evictions=" + getEvictions() + ", expirations=" + getExpirations() +
+			   ", generation=" + getGeneration() + String.format(", hitRatio=%.3f]", getHitRatio());
+	}
+}
@@ -11,6 +11,9 @@
  ******************************************************************************/
 package disko.saca;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.InputStreamReader;
 
 import java.io.OutputStream;
@@ -34,6 +37,40 @@ import org.hypergraphdb.storage.BAUtils;
  */
 public class Saca
 {
+	/**
+	 * <p>
+	 * Sent by a client in place of the length of the first message to open a persistent
+	 * connection and echoed back by servers that support it. Being negative, it can't be
+	 * mistaken for the length of a one-shot message.
+	 * </p>
+	 */
+	public static final int PROTOCOL_MAGIC = 0xCACA0002;
+	
+	/**
+	 * <p>The largest frame accepted on a persistent connection.</p>
+	 */
+	public static final int MAX_FRAME_SIZE = 64*1024*1024;
+	
+	/**
+	 * <p>
+	 * A message on a persistent connection, tagged with the id of the request it belongs to
+	 * so that several requests can be in flight on the same connection and answered in any
+	 * order. On the wire, a frame is the request id and the length of the message, both as
+	 * 4-byte big-endian integers, followed by the message as UTF-8 encoded JSON.
+	 * </p>
+	 */
+	public static class Frame
+	{
+		public final int requestId;
+		public final Object msg;
+		
+		public Frame(int requestId, Object msg)
+		{
+			this.requestId = requestId;
+			this.msg = msg;
+		}
+	}
+	
 	/**
 	 * <p>
 	 * 
@@ -64,15 +101,22 @@ public class Saca
 				hg.and(hg.type(BoostLink.class), hg.orderedLink(resourceHandle, hg.anyHandle())));				
 	}
 
-    @SuppressWarnings("unchecked")
     public static <T> T readMsg(Socket socket) throws java.io.IOException
+    {
+        byte [] lengthBuf = new byte[4];
+        socket.getInputStream().read(lengthBuf);
+        return Saca.<T>readMsg(socket, BAUtils.readInt(lengthBuf, 0));
+    }
+    
+    /**
+     * <p>Read a one-shot message whose length has already been read from the socket.</p>
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T readMsg(Socket socket, int expectedSize) throws java.io.IOException
     {
         InputStreamReader in = new InputStreamReader(socket.getInputStream());        
         StringBuffer data = new StringBuffer();
         char[] buf = new char[1024];
-        byte [] lengthBuf = new byte[4];
-        socket.getInputStream().read(lengthBuf);
-        int expectedSize = BAUtils.readInt(lengthBuf, 0);
         int count = 0;
         for (count = in.read(buf, 0, buf.length); count > -1; 
              count = in.read(buf, 0, buf.length))
@@ -103,4 +147,28 @@ public class Saca
 //        out.close();
         socket.getInputStream().read(); // read 666 ack
     }	
+
+    public static void writeFrame(DataOutputStream out, Frame frame) throws IOException
+    {
+        byte [] data = new JSONWriter().write(frame.msg).getBytes("UTF-8");
+        out.writeInt(frame.requestId);
+        out.writeInt(data.length);
+        out.write(data);
+        out.flush();
+    }
+    
+    /**
+     * <p>Read the next frame from a persistent connection. An <code>EOFException</code>
+     * is thrown when the connection has been closed by the other end.</p>
+     */
+    public static Frame readFrame(DataInputStream in) throws IOException
+    {
+        int requestId = in.readInt();
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_SIZE)
+            throw new IOException("Invalid Saca frame length " + length);
+        byte [] data = new byte[length];
+        in.readFully(data);
+        return new Frame(requestId, new JSONReader().read(new String(data, "UTF-8")));
+    }
 }
@@ -13,9 +13,19 @@ package disko.saca;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import org.hypergraphdb.peer.Structs;
 
+/**
+ * <p>
+ * Client of a {@link SacaService}. By default, requests go through persistent connections
+ * from a shared {@link SacaConnectionPool}. Services that don't support them are called
+ * with the one-shot protocol instead, one connection per request.
+ * </p>
+ *
+ * @author Borislav Iordanov
+ */
 public class SacaClient
 {
     private String host;
@@ -23,12 +33,66 @@ public class SacaClient
     private int requestRetryCount = 1;
     private int connectRetryCount = 5;
     private long connectRetryWait = 1000l;
+    private boolean persistent = true;
+    private long requestTimeout = 0;
+    private SacaConnectionPool connectionPool = SacaConnectionPool.getDefault();
     
     private Object callSaca(Object request) throws InterruptedException, IOException
     {
         if (host == null || host.length() == 0 || port <= 1024)
             throw new RuntimeException("No hostname for remote saca client or invalid port number < 1024");
-        
+        if (persistent && !connectionPool.isLegacy(host, port))
+        {
+            SacaConnection connection = null;
+            for (int i = 0; i < connectRetryCount && connection == null; i++)
+            {
+                try
+                {
+                    connection = connectionPool.get(host, port);
+                }
+                catch (UnknownHostException ex)
+                {
+                    throw new RuntimeException("Host '" + host + "' not found.");
+                }
+                catch (SacaConnection.ProtocolNotSupportedException ex)
+                {
+                    break;
+                }
+                catch (IOException ex)
+                {
+                    // ignore, retry...
+                	ex.printStackTrace();
+                }
+                if (connection == null && !connectionPool.isLegacy(host, port))
+                    Thread.sleep(connectRetryWait);
+            }
+            if (connection != null)
+            {
+                try
+                {
+                    return connection.call(request, requestTimeout);
+                }
+                catch (SocketTimeoutException ex)
+                {
+                    throw ex;
+                }
+                catch (IOException ex)
+                {
+                    // The service may have dropped the connection while it was idle in
+                    // the pool, before even reading the request: retry once on a new one.
+                    if (connection.isOpen())
+                        throw ex;
+                    return connectionPool.reconnect(host, port).call(request, requestTimeout);
+                }
+            }
+            if (!connectionPool.isLegacy(host, port))
+                throw new RuntimeException("Failed to connect to " + host + ":" + port);
+        }
+        return callSacaOneShot(request);
+    }
+    
+    private Object callSacaOneShot(Object request) throws InterruptedException, IOException
+    {
         //
         // Connect:
         //
@@ -169,5 +233,43 @@ public class SacaClient
     public void setConnectRetryWait(long connectRetryWait)
     {
         this.connectRetryWait = connectRetryWait;
+    }
+
+    public boolean isPersistent()
+    {
+        return persistent;
+    }
+
+    /**
+     * <p>Specify whether to use persistent connections (the default) or a new connection
+     * for every request.</p>
+     */
+    public void setPersistent(boolean persistent)
+    {
+        this.persistent = persistent;
+    }
+
+    public long getRequestTimeout()
+    {
+        return requestTimeout;
+    }
+
+    /**
+     * <p>Set how long to wait, in milliseconds, for the response to a request made on a
+     * persistent connection. 0, the default, means no limit.</p>
+     */
+    public void setRequestTimeout(long requestTimeout)
+    {
+        this.requestTimeout = requestTimeout;
+    }
+
+    public SacaConnectionPool getConnectionPool()
+    {
+        return connectionPool;
+    }
+
+    public void setConnectionPool(SacaConnectionPool connectionPool)
+    {
+        this.connectionPool = connectionPool;
     }    
 }
@@ -0,0 +1,300 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ * 
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.saca;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import disko.DU;
+
+/**
+ * <p>
+ * A persistent connection to a {@link SacaService}. Requests are sent as {@link Saca.Frame}s
+ * tagged with a request id, so several threads can have requests in flight on the same
+ * connection (pipelining) and the service may answer them in any order. A reader thread
+ * hands each response to the request waiting for it.
+ * </p>
+ * 
+ * <p>
+ * The connection is opened with a handshake: the client sends {@link Saca#PROTOCOL_MAGIC}
+ * and expects it back. Services that only know the one-shot protocol don't answer, in which
+ * case a {@link ProtocolNotSupportedException} is thrown and the caller should fall back to
+ * one-shot requests.
+ * </p>
+ */
+public class SacaConnection
+{
+    /**
+     * <p>Thrown when the service doesn't support persistent connections.</p>
+     */
+    public static class ProtocolNotSupportedException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+        public ProtocolNotSupportedException(String msg) { super(msg); }
+    }
+    
+    private class Reply implements Future<Object>
+    {
+        final int requestId;
+        CountDownLatch done = new CountDownLatch(1);
+        volatile Object value;
+        volatile Throwable error;
+        
+        Reply(int requestId)
+        {
+            this.requestId = requestId;
+        }
+        
+        void set(Object value)
+        {
+            this.value = value;
+            done.countDown();
+        }
+        
+        void fail(Throwable error)
+        {
+            this.error = error;
+            done.countDown();
+        }
+        
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            return false;
+        }
+
+        public boolean isCancelled()
+        {
+            return false;
+        }
+
+        public boolean isDone()
+        {
+            return done.getCount() == 0;
+        }
+
+        public Object get() throws InterruptedException, ExecutionException
+        {
+            done.await();
+            if (error != null)
+                throw new ExecutionException(error);
+            return value;
+        }
+
+        public Object get(long timeout, TimeUnit unit) throws InterruptedException, 
+                                                              ExecutionException, 
+                                                              TimeoutException
+        {
+            if (!done.await(timeout, unit))
+                throw new TimeoutException();
+            if (error != null)
+                throw new ExecutionException(error);
+            return value;
+        }
+    }
+    
+    private final String host;
+    private final int port;
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private final Map<Integer, Reply> pending = new ConcurrentHashMap<Integer, Reply>();
+    private volatile boolean open = true;
+    private volatile long lastActive = System.currentTimeMillis();
+    
+    public SacaConnection(String host, int port, int connectTimeout, int handshakeTimeout) throws IOException
+    {
+        this.host = host;
+        this.port = port;
+        socket = new Socket();
+        try
+        {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(new InetSocketAddress(host, port), connectTimeout);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out.writeInt(Saca.PROTOCOL_MAGIC);
+            out.flush();
+            socket.setSoTimeout(handshakeTimeout);
+            try
+            {
+                if (in.readInt() != Saca.PROTOCOL_MAGIC)
+                    throw new ProtocolNotSupportedException("Unexpected handshake from " + host + ":" + port);
+            }
+            catch (SocketTimeoutException ex)
+            {
+                throw new ProtocolNotSupportedException("No handshake from " + host + ":" + port);
+            }
+            socket.setSoTimeout(0);
+        }
+        catch (IOException ex)
+        {
+            try { socket.close(); } catch (Throwable t) { }
+            throw ex;
+        }
+        Thread reader = new Thread(new Runnable() { public void run() { readResponses(); } }, 
+                                   "saca-connection-" + host + ":" + port);
+        reader.setDaemon(true);
+        reader.start();
+    }
+    
+    private void readResponses()
+    {
+        IOException failure = null;
+        try
+        {
+            while (open)
+            {
+                Saca.Frame frame = Saca.readFrame(in);
+                lastActive = System.currentTimeMillis();
+                Reply reply = pending.remove(frame.requestId);
+                if (reply != null)
+                    reply.set(frame.msg);
+            }
+        }
+        catch (IOException ex)
+        {
+            failure = ex;
+        }
+        catch (Throwable t)
+        {
+            failure = new IOException(t.toString());
+        }
+        if (open)
+            DU.log.info("Saca connection to " + host + ":" + port + " lost: " + failure);
+        close(failure == null ? new IOException("Connection closed.") : failure);
+    }
+    
+    private void close(IOException reason)
+    {
+        open = false;
+        try { socket.close(); } catch (Throwable t) { }
+        List<Reply> failed = new ArrayList<Reply>(pending.values());
+        pending.clear();
+        for (Reply reply : failed)
+            reply.fail(reason);
+    }
+    
+    /**
+     * <p>Send a request and return the future response. Failures, including the loss
+     * of the connection, are reported as an <code>IOException</code> cause of the
+     * <code>ExecutionException</code> thrown by the future.</p>
+     */
+    public Future<Object> submit(Object request) throws IOException
+    {
+        return send(request);
+    }
+    
+    private Reply send(Object request) throws IOException
+    {
+        if (!open)
+            throw new IOException("Saca connection to " + host + ":" + port + " is closed.");
+        int requestId = nextRequestId.incrementAndGet();
+        Reply reply = new Reply(requestId);
+        pending.put(requestId, reply);
+        lastActive = System.currentTimeMillis();
+        try
+        {
+            synchronized (out)
+            {
+                Saca.writeFrame(out, new Saca.Frame(requestId, request));
+            }
+        }
+        catch (IOException ex)
+        {
+            pending.remove(requestId);
+            close(ex);
+            throw ex;
+        }
+        return reply;
+    }
+    
+    /**
+     * <p>Send a request and wait for its response, at most <code>timeout</code> milliseconds
+     * (0 means no limit).</p>
+     */
+    public Object call(Object request, long timeout) throws IOException, InterruptedException
+    {
+        Reply reply = send(request);
+        try
+        {
+            return timeout > 0 ? reply.get(timeout, TimeUnit.MILLISECONDS) : reply.get(); 
+        }
+        catch (TimeoutException ex)
+        {
+            pending.remove(reply.requestId);
+            throw new SocketTimeoutException("No response from " + host + ":" + port + 
+                                             " after " + timeout + "ms");
+        }
+        catch (ExecutionException ex)
+        {
+            if (ex.getCause() instanceof IOException)
+                throw (IOException)ex.getCause();
+            throw new IOException(ex.getCause().toString());
+        }
+    }
+
+    /**
+     * <p>Return the number of requests sent and not answered yet.</p>
+     */
+    public int getPendingCount()
+    {
+        return pending.size();
+    }
+
+    public boolean isOpen()
+    {
+        return open;
+    }
+    
+    /**
+     * <p>Return the number of milliseconds since the last request or response, or 0
+     * if there are requests in flight.</p>
+     */
+    public long getIdleTime()
+    {
+        return pending.isEmpty() ? System.currentTimeMillis() - lastActive : 0;
+    }
+    
+    public void close()
+    {
+        if (open)
+            close(new IOException("Connection closed."));
+    }
+    
+    public String getHost()
+    {
+        return host;
+    }
+
+    public int getPort()
+    {
+        return port;
+    }
+}
@@ -0,0 +1,280 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ * 
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.saca;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Keeps persistent {@link SacaConnection}s to Saca services so that clients reuse sockets
+ * instead of connecting for every request. Up to <code>connectionsPerServer</code>
+ * connections are opened to a given service and requests go to the one with the fewest
+ * requests in flight. Closed connections are replaced on demand, and connections idle
+ * for longer than <code>maxIdleTime</code> are closed before the service drops them
+ * (see the <code>-keepalive</code> option of {@link SacaService}).
+ * </p>
+ * 
+ * <p>
+ * Services that don't support persistent connections are remembered, so that clients
+ * can go straight to the one-shot protocol with them, see {@link #isLegacy(String, int)}.
+ * A service that didn't answer a handshake may only have been busy, so this is forgotten
+ * after <code>legacyExpiry</code> milliseconds and persistent connections are tried again.
+ * </p>
+ */
+public class SacaConnectionPool
+{
+    private static SacaConnectionPool defaultPool = null;
+    
+    private int connectionsPerServer = 2;
+    private int connectTimeout = 5000;
+    private int handshakeTimeout = 2000;
+    private long maxIdleTime = 240000;
+    private long legacyExpiry = 600000;
+    private Map<String, List<SacaConnection>> connections = new HashMap<String, List<SacaConnection>>();
+    private Map<String, Long> legacy = new HashMap<String, Long>();
+    
+    private static String key(String host, int port)
+    {
+        return host + ":" + port;
+    }
+    
+    /**
+     * <p>Return the pool shared by all {@link SacaClient}s by default.</p>
+     */
+    public static synchronized SacaConnectionPool getDefault()
+    {
+        if (defaultPool == null)
+            defaultPool = new SacaConnectionPool();
+        return defaultPool;
+    }
+    
+    /**
+     * <p>
+     * Return an open connection to the service at <code>host:port</code>, opening a new one
+     * if fewer than <code>connectionsPerServer</code> are open and all of them are busy.
+     * </p>
+     * 
+     * @throws SacaConnection.ProtocolNotSupportedException if the service only supports
+     * one-shot requests.
+     */
+    public SacaConnection get(String host, int port) throws IOException
+    {
+        String key = key(host, port);
+        List<SacaConnection> L;
+        SacaConnection best = null;
+        int connectTimeout, handshakeTimeout;
+        synchronized (this)
+        {
+            connectTimeout = this.connectTimeout;
+            handshakeTimeout = this.handshakeTimeout;
+            if (isLegacy(key))
+                throw new SacaConnection.ProtocolNotSupportedException(key + " doesn't support persistent connections.");
+            L = connections.get(key);
+            if (L == null)
+                connections.put(key, L = new ArrayList<SacaConnection>());
+            for (int i = L.size() - 1; i >= 0; i--)
+            {
+                SacaConnection c = L.get(i);
+                if (c.isOpen() && maxIdleTime > 0 && c.getIdleTime() > maxIdleTime)
+                    c.close();
+                if (!c.isOpen())
+                    L.remove(i);
+                else if (best == null || c.getPendingCount() < best.getPendingCount())
+                    best = c;
+            }
+            if (best != null && (best.getPendingCount() == 0 || L.size() >= connectionsPerServer))
+                return best;
+        }
+        return connect(key, host, port, L, best, connectTimeout, handshakeTimeout);
+    }
+    
+    /**
+     * <p>
+     * Open a new connection to the service at <code>host:port</code> and add it to the pool.
+     * This is meant for retrying a request whose pooled connection was lost, when the other
+     * pooled connections may have been dropped by the service as well.
+     * </p>
+     */
+    public SacaConnection reconnect(String host, int port) throws IOException
+    {
+        String key = key(host, port);
+        List<SacaConnection> L;
+        int connectTimeout, handshakeTimeout;
+        synchronized (this)
+        {
+            connectTimeout = this.connectTimeout;
+            handshakeTimeout = this.handshakeTimeout;
+            L = connections.get(key);
+            if (L == null)
+                connections.put(key, L = new ArrayList<SacaConnection>());
+        }
+        return connect(key, host, port, L, null, connectTimeout, handshakeTimeout);
+    }
+    
+    private SacaConnection connect(String key, 
+                                   String host, 
+                                   int port, 
+                                   List<SacaConnection> L, 
+                                   SacaConnection best,
+                                   int connectTimeout,
+                                   int handshakeTimeout) throws IOException
+    {
+        // Connect outside of the lock, it may take a while. 
+        SacaConnection c;
+        try
+        {
+            c = new SacaConnection(host, port, connectTimeout, handshakeTimeout);
+        }
+        catch (SacaConnection.ProtocolNotSupportedException ex)
+        {
+            synchronized (this) { legacy.put(key, System.currentTimeMillis()); }
+            throw ex;
+        }
+        catch (IOException ex)
+        {
+            if (best != null)
+                return best;
+            throw ex;
+        }
+        synchronized (this)
+        {
+            L.add(c);
+        }
+        return c;
+    }
+    
+    /**
+     * <p>Return <code>true</code> if the service at <code>host:port</code> is known to support
+     * only one-shot requests.</p>
+     */
+    public synchronized boolean isLegacy(String host, int port)
+    {
+        return isLegacy(key(host, port));
+    }
+    
+    private boolean isLegacy(String key)
+    {
+        Long since = legacy.get(key);
+        if (since == null)
+            return false;
+        if (legacyExpiry > 0 && System.currentTimeMillis() - since > legacyExpiry)
+        {
+            legacy.remove(key);
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * <p>Forget that a service doesn't support persistent connections, e.g. after it has been
+     * upgraded.</p>
+     */
+    public synchronized void resetLegacy(String host, int port)
+    {
+        legacy.remove(key(host, port));
+    }
+    
+    /**
+     * <p>Close all connections to the given service.</p>
+     */
+    public void close(String host, int port)
+    {
+        List<SacaConnection> L;
+        synchronized (this)
+        {
+            L = connections.remove(key(host, port));
+        }
+        if (L != null)
+            for (SacaConnection c : L)
+                c.close();
+    }
+    
+    public void closeAll()
+    {
+        List<SacaConnection> all = new ArrayList<SacaConnection>();
+        synchronized (this)
+        {
+            for (List<SacaConnection> L : connections.values())
+                all.addAll(L);
+            connections.clear();
+        }
+        for (SacaConnection c : all)
+            c.close();
+    }
+    
+    public synchronized int getConnectionsPerServer()
+    {
+        return connectionsPerServer;
+    }
+
+    public synchronized void setConnectionsPerServer(int connectionsPerServer)
+    {
+        this.connectionsPerServer = connectionsPerServer;
+    }
+
+    public synchronized int getConnectTimeout()
+    {
+        return connectTimeout;
+    }
+
+    public synchronized void setConnectTimeout(int connectTimeout)
+    {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public synchronized int getHandshakeTimeout()
+    {
+        return handshakeTimeout;
+    }
+
+    /**
+     * <p>Set how long, in milliseconds, to wait for a service to acknowledge a persistent
+     * connection before concluding that it only supports one-shot requests.</p>
+     */
+    public synchronized void setHandshakeTimeout(int handshakeTimeout)
+    {
+        this.handshakeTimeout = handshakeTimeout;
+    }
+
+    public synchronized long getMaxIdleTime()
+    {
+        return maxIdleTime;
+    }
+
+    /**
+     * <p>Set how long, in milliseconds, a connection may stay unused before it is closed
+     * instead of reused. It should be shorter than the service's keep-alive. 0 means no 
+     * limit.</p>
+     */
+    public synchronized void setMaxIdleTime(long maxIdleTime)
+    {
+        this.maxIdleTime = maxIdleTime;
+    }
+
+    public synchronized long getLegacyExpiry()
+    {
+        return legacyExpiry;
+    }
+
+    /**
+     * <p>Set how long, in milliseconds, a service that failed the handshake is called with
+     * one-shot requests before persistent connections are tried again. 0 means forever.</p>
+     */
+    public synchronized void setLegacyExpiry(long legacyExpiry)
+    {
+        this.legacyExpiry = legacyExpiry;
+    }
+}
@@ -11,19 +11,30 @@
  ******************************************************************************/
 package disko.saca;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.SortedSet;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.hypergraphdb.HGEnvironment;
+import org.hypergraphdb.HGHandle;
 import org.hypergraphdb.HyperGraph;
 import org.hypergraphdb.peer.Structs;
 import org.hypergraphdb.util.Mapping;
@@ -35,6 +46,8 @@ import disko.AnalysisContext;
 import disko.DU;
 import disko.StringTextDocument;
 import disko.TextDocument;
+import disko.flow.metrics.PipelineMetrics;
+import disko.flow.networks.NetworkPool;
 import disko.flow.networks.SearchQueryNetwork;
 
 public class SacaService
@@ -65,10 +78,23 @@ public class SacaService
     private int lgMaxParses;
     @Option(name = "-lgseconds", usage="the maximum number of seconds for LinkGrammar processing")
     private int lgMaxSeconds;
+    @Option(name = "-budget", usage="the time budget of a search in milliseconds, 0 for no limit")
+    private long searchBudget = 0;
+    @Option(name = "-keepalive", usage="seconds after which an idle persistent client connection is closed")
+    private int keepAlive = 300;
+    @Option(name = "-cache", usage="the maximum number of cached query results, 0 to disable caching")
+    private int cacheSize = QueryResultCache.DEFAULT_CAPACITY;
+    @Option(name = "-cachettl", usage="the number of seconds query results are cached")
+    private int cacheTtl = (int)(QueryResultCache.DEFAULT_TTL/1000);
     
     private HyperGraph graph;
     private Mapping<Object, Object> postProcessor = null;
     private volatile boolean running = false;
+    private NetworkPool<AnalysisContext<TextDocument>, SearchQueryNetwork> networks;
+    private QueryResultCache cache = null;
+    private AtomicLong queryCount = new AtomicLong();
+    
+    private static final int MAX_RESULTS = 20;
     
     public static void main(String [] argv)
     {
@@ -104,12 +130,28 @@ public class SacaService
             try { postProcessor = (Mapping<Object, Object>)Class.forName(postProcessorClassName).newInstance(); }
             catch (Exception ex) { throw new RuntimeException(ex); }
         }
+        if (cacheSize > 0)
+        {
+            cache = new QueryResultCache(graph, cacheSize, cacheTtl*1000L);
+            // Partial results from an exhausted time budget are not worth keeping.
+            cache.setCacheable(new Mapping<Object, Boolean>() {
+                public Boolean eval(Object x) { return !Boolean.TRUE.equals(((Map<?, ?>)x).get("partial")); }
+            });
+        }
         
+        // One warm search network per client handling thread.
+        networks = new NetworkPool<AnalysisContext<TextDocument>, SearchQueryNetwork>(
+        		new Callable<SearchQueryNetwork>() {
+        			public SearchQueryNetwork call() { return createSearchNetwork(); }
+        		}, 
+        		threadPoolSize);
         ThreadPoolExecutor threadPool = new ThreadPoolExecutor(threadPoolSize, 
                                                                threadPoolSize,
                                                                Long.MAX_VALUE, 
                                                                TimeUnit.SECONDS,
                                                                new LinkedBlockingQueue<Runnable>());
+        // Connections are read by their own threads, requests are processed by the thread pool.
+        ExecutorService connections = Executors.newCachedThreadPool();
         try
         {            
             ServerSocket serverSocket = new ServerSocket(port);
@@ -120,7 +162,8 @@ public class SacaService
                 try
                 {
                     final Socket clientSocket = serverSocket.accept();              
-                    threadPool.submit(new Runnable() { public void run() { handleClient(clientSocket); } });
+                    final ExecutorService workers = threadPool;
+                    connections.submit(new Runnable() { public void run() { handleConnection(clientSocket, workers); } });
                 }
                 catch (SocketTimeoutException ex)
                 {
@@ -136,7 +179,9 @@ public class SacaService
         finally
         {
             running = false;
+            connections.shutdownNow();
             threadPool.shutdownNow();
+            networks.shutdown();
         }
     }
 
@@ -200,31 +245,57 @@ public class SacaService
         this.graphLocation = graphLocation;
     }
     
-    private SearchQueryNetwork getSearchNetwork(String question)
+    private SearchQueryNetwork createSearchNetwork()
     {
         SearchQueryNetwork network = new SearchQueryNetwork(); 
-        network.setContext(new AnalysisContext<TextDocument>(graph, 
-                                                             new StringTextDocument(question)));
         network.setUseOpenNlpEntityDetection(true);
         network.setDebug(true);
+        network.setDaemon(true);
         network.create();
+        network.getAccumulator().setAutoClear(true);
         network.getLinkGrammarProcessor().setHost(lgHost);
         network.getLinkGrammarProcessor().setPort(lgPort);
         network.getLinkGrammarProcessor().getConfig().setMaxLinkages(lgMaxParses);
         network.getLinkGrammarProcessor().getConfig().setMaxParseSeconds(lgMaxSeconds);
+        PipelineMetrics metrics = PipelineMetrics.fromSystemProperties("saca");
+        if (metrics != null)
+            metrics.instrument(network);
         return network;
     }
      
     private Object doSearch(Map<String, String> query) throws InterruptedException, ExecutionException
     {
-        String question = query.get("question");
+        final String question = query.get("question");
         if (question == null)
-            throw new RuntimeException("Missing question parameter from search query.");        
-        SearchQueryNetwork net = getSearchNetwork(question);
-        Future<?> future = net.start();
-        future.get();
-        DiskoSearch search = new DiskoSearch(graph, net.getAccumulator().getData());
-        SortedSet<DiskoSearch.Result> resultSet = search.search(graph, 20);       
+            throw new RuntimeException("Missing question parameter from search query.");
+        if (cache == null)
+            return search(question);
+        if (queryCount.incrementAndGet() % 1000 == 0)
+            DU.log.info(cache.toString());
+        try
+        {
+            return cache.get(QueryResultCache.key(question, MAX_RESULTS, searchBudget), new Callable<Object>() {
+                public Object call() throws Exception { return search(question); }
+            });
+        }
+        catch (ExecutionException ex)
+        {
+            if (ex.getCause() instanceof RuntimeException)
+                throw (RuntimeException)ex.getCause();
+            throw ex;
+        }
+    }
+    
+    private Object search(String question) throws InterruptedException, ExecutionException
+    {
+        SearchQueryNetwork net = networks.acquire();
+        // A failed run discards the network, so it's only released after a successful one. 
+        networks.run(net, new AnalysisContext<TextDocument>(graph, new StringTextDocument(question)));
+        ArrayList<HGHandle> data = new ArrayList<HGHandle>(net.getAccumulator().getData());
+        networks.release(net);
+        DiskoSearch search = new DiskoSearch(graph, data);
+        search.setTimeBudget(searchBudget);
+        SortedSet<DiskoSearch.Result> resultSet = search.searchTopK(MAX_RESULTS);
         ArrayList<Object> L = new ArrayList<Object>();
         for (DiskoSearch.Result R : resultSet)
         {
@@ -235,36 +306,139 @@ public class SacaService
             
             L.add(x);
         }
+        if (search.isPartial())
+        {
+            DU.log.info("Search time budget exceeded, returning partial results for: " + question);
+            return Structs.struct(ACT, QUERY_RESPONSE, "result-list", L, "partial", true);
+        }
         return Structs.struct(ACT, QUERY_RESPONSE, "result-list", L);
     }
     
-    private void handleClient(Socket clientSocket)
+    /**
+     * <p>Return the query result cache or <code>null</code> if caching is disabled.</p>
+     */
+    public QueryResultCache getQueryCache()
+    {
+        return cache;
+    }
+    
+    private Object handleRequest(Map<String, String> msg, Socket clientSocket)
+    {
+        if (verbose)
+            DU.log.debug("Received msg '" + msg + "' from "
+                         + clientSocket.getInetAddress());
+        String act = msg.get(ACT);
+        if (QUERY_REQUEST.equals(act))
+        {
+            try
+            {                    
+                return doSearch(msg);
+            }
+            catch (Throwable t)
+            {
+            	t.printStackTrace(System.err);
+                return Structs.struct(ACT, FAILURE, REASON, t.toString());
+            }
+        }
+        else
+            return Structs.struct(ACT, FAILURE, REASON, "unknown act '" + act + "'");
+    }
+    
+    /**
+     * Read the first 4 bytes of a new connection to tell a persistent connection handshake 
+     * from the length of a one-shot message.  
+     */
+    private void handleConnection(final Socket clientSocket, ExecutorService workers)
     {
         try
         {
             DU.log.info("Connection accepted from : "
                         + clientSocket.getInetAddress());
-            Map<String, String> msg = Saca.readMsg(clientSocket);
-            if (verbose)
-                DU.log.debug("Received msg '" + msg + "' from "
-                             + clientSocket.getInetAddress());
-            String act = msg.get(ACT);
-            if (QUERY_REQUEST.equals(act))
+            final int first = new DataInputStream(clientSocket.getInputStream()).readInt();
+            if (first == Saca.PROTOCOL_MAGIC)
+            	serveConnection(clientSocket, workers);
+            else
+            	workers.submit(new Runnable() { public void run() { handleClient(clientSocket, first); } });
+        }
+        catch (Throwable t)
+        {
+            DU.log.error(t);
+            try { clientSocket.close(); } catch (Throwable t2) { }
+        }
+    }
+    
+    /**
+     * Serve a persistent connection: requests are processed concurrently by the worker
+     * pool and each response is written back as soon as it's ready, tagged with the id
+     * of its request. The connection is closed by the client, or by the service after 
+     * <code>keepAlive</code> seconds without requests.
+     */
+    private void serveConnection(final Socket clientSocket, ExecutorService workers) throws IOException
+    {
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
+        DataInputStream in = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+        final AtomicInteger inFlight = new AtomicInteger();
+        try
+        {
+            clientSocket.setTcpNoDelay(true);
+            out.writeInt(Saca.PROTOCOL_MAGIC);
+            out.flush();
+            clientSocket.setSoTimeout(keepAlive*1000);
+            while (running)
             {
+                final Saca.Frame request;
                 try
-                {                    
-                    Saca.writeMsg(clientSocket, doSearch(msg));
+                {
+                    request = Saca.readFrame(in);
                 }
-                catch (Throwable t)
+                catch (SocketTimeoutException ex)
                 {
-                	t.printStackTrace(System.err);
-                    Saca.writeMsg(clientSocket, Structs.struct(ACT, FAILURE, REASON, t.toString()));
+                    if (inFlight.get() == 0)
+                        break;
+                    continue;
                 }
+                catch (EOFException ex)
+                {
+                    break;
+                }
+                inFlight.incrementAndGet();
+                workers.submit(new Runnable() {
+                    @SuppressWarnings("unchecked")
+                    public void run()
+                    {
+                        try
+                        {
+                            Object response = handleRequest((Map<String, String>)request.msg, clientSocket);
+                            synchronized (out)
+                            {
+                                Saca.writeFrame(out, new Saca.Frame(request.requestId, response));
+                            }
+                        }
+                        catch (Throwable t)
+                        {
+                            DU.log.error(t);
+                        }
+                        finally
+                        {
+                            inFlight.decrementAndGet();
+                        }
+                    }
+                });
             }
-            else
-            {
-                Saca.writeMsg(clientSocket, Structs.struct(ACT, FAILURE, REASON, "unknown act '" + act + "'"));
-            }
+        }
+        finally
+        {
+            DU.log.info("Closing persistent connection from " + clientSocket.getInetAddress());
+            try { clientSocket.close(); } catch (Throwable t) { }
+        }
+    }
+    
+    private void handleClient(Socket clientSocket, int length)
+    {
+        try
+        {
+            Map<String, String> msg = Saca.readMsg(clientSocket, length);
+            Saca.writeMsg(clientSocket, handleRequest(msg, clientSocket));
             DU.log.info("Response written to " + clientSocket.getInetAddress()
                   + ", closing client connection...");
         }
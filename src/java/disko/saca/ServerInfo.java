@@ -14,18 +14,46 @@
  */
 package disko.saca;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.hypergraphdb.util.HGUtils;
 
+import disko.utils.LatencyHistogram;
+
+/**
+ * <p>
+ * A Saca server known to a {@link LoadBalancedSacaClient}, with its load and latency
+ * statistics. All counters are atomic so that the load balancer can read and update them
+ * without locking. The latency estimate is an exponentially weighted moving average (EWMA)
+ * of response times, where each new response counts for <code>EWMA_WEIGHT</code>.
+ * </p>
+ * 
+ * <p>
+ * A server that fails repeatedly, or whose latency is far above the others', is ejected
+ * for a while: it isn't picked by the load balancer until <code>ejectedUntil</code>. The
+ * ejection period doubles with each consecutive ejection and is reset by a successful request
+ * with a latency that isn't an outlier.
+ * </p>
+ */
 public class ServerInfo implements Comparable<ServerInfo>
 {
+	public static final double EWMA_WEIGHT = 0.2;
+	
 	String host;
 	int port;
 	int maxRequests;
-	boolean active;
+	volatile boolean active;
 	
-	int totalRequests = 0;
-	long totalProcessingTime = 0;
-	int currentRequests = 0;
+	final AtomicInteger totalRequests = new AtomicInteger();
+	final AtomicLong totalProcessingTime = new AtomicLong();
+	final AtomicInteger currentRequests = new AtomicInteger();
+	final AtomicInteger consecutiveFailures = new AtomicInteger();
+	final AtomicInteger ejections = new AtomicInteger();
+	volatile long ejectedUntil = 0;
+	// the bits of the EWMA latency in milliseconds, as a double
+	private final AtomicLong ewma = new AtomicLong(Double.doubleToLongBits(0.0));
+	private final LatencyHistogram latencies = new LatencyHistogram();
 		
 	public ServerInfo()
 	{		
@@ -37,6 +65,78 @@ public class ServerInfo implements Comparable<ServerInfo>
 		this.port = port;
 	}
 	
+	/**
+	 * <p>Try to reserve a request slot, return <code>false</code> if the server is already
+	 * processing <code>maxRequests</code> requests.</p>
+	 */
+	boolean acquire()
+	{
+		for (int current = currentRequests.get(); current < maxRequests; current = currentRequests.get())
+			if (currentRequests.compareAndSet(current, current + 1))
+				return true;
+		return false;
+	}
+	
+	boolean isAvailable(long now)
+	{
+		return active && now >= ejectedUntil && currentRequests.get() < maxRequests;
+	}
+	
+	/**
+	 * <p>Record a successful request that took <code>nanos</code> nanoseconds.</p>
+	 */
+	void succeeded(long nanos)
+	{
+		double millis = nanos / 1000000.0;
+		for (long bits = ewma.get(); ; bits = ewma.get())
+		{
+			double current = Double.longBitsToDouble(bits);
+			double next = totalRequests.get() == 0 ? millis : current + EWMA_WEIGHT*(millis - current);
+			if (ewma.compareAndSet(bits, Double.doubleToLongBits(next)))
+				break;
+		}
+		latencies.record(nanos);
+		totalRequests.incrementAndGet();
+		totalProcessingTime.addAndGet(nanos / 1000000);
+		consecutiveFailures.set(0);
+	}
+	
+	/**
+	 * <p>Record that the server is healthy again, so that its next ejection is for the
+	 * base period.</p>
+	 */
+	void recovered()
+	{
+		ejections.set(0);
+	}
+	
+	/**
+	 * <p>Record a failed request and return the number of consecutive failures.</p>
+	 */
+	int failed()
+	{
+		return consecutiveFailures.incrementAndGet();
+	}
+	
+	/**
+	 * <p>Take the server out of rotation for <code>baseMillis</code> milliseconds, doubled 
+	 * for each previous consecutive ejection up to <code>maxMillis</code>.</p>
+	 */
+	void eject(long baseMillis, long maxMillis, long now)
+	{
+		int n = Math.min(ejections.getAndIncrement(), 20);
+		ejectedUntil = now + Math.min(baseMillis << n, maxMillis);
+	}
+	
+	/**
+	 * <p>Return the expected time to serve one more request: the EWMA latency times the
+	 * number of requests that would then be in progress.</p>
+	 */
+	double getLoad()
+	{
+		return Math.max(getEwmaTime(), 1.0)*(currentRequests.get() + 1);
+	}
+	
 	public String getHost()
 	{
 		return host;
@@ -69,32 +169,32 @@ public class ServerInfo implements Comparable<ServerInfo>
 
 	public int getTotalRequests()
 	{
-		return totalRequests;
+		return totalRequests.get();
 	}
 
 	public void setTotalRequests(int totalRequests)
 	{
-		this.totalRequests = totalRequests;
+		this.totalRequests.set(totalRequests);
 	}
 
 	public long getTotalProcessingTime()
 	{
-		return totalProcessingTime;
+		return totalProcessingTime.get();
 	}
 
 	public void setTotalProcessingTime(long totalProcessingTime)
 	{
-		this.totalProcessingTime = totalProcessingTime;
+		this.totalProcessingTime.set(totalProcessingTime);
 	}
 
 	public int getCurrentRequests()
 	{
-		return currentRequests;
+		return currentRequests.get();
 	}
 
 	public void setCurrentRequests(int currentRequests)
 	{
-		this.currentRequests = currentRequests;
+		this.currentRequests.set(currentRequests);
 	}
 
 	public boolean isActive()
@@ -119,17 +219,49 @@ public class ServerInfo implements Comparable<ServerInfo>
 	
 	public double getAvgTime()
 	{
-		return totalRequests == 0 ? 0 : (double)totalProcessingTime / (double)totalRequests;	
+		int n = totalRequests.get();
+		return n == 0 ? 0 : (double)totalProcessingTime.get() / (double)n;	
+	}
+	
+	/**
+	 * <p>Return the moving average of response times in milliseconds.</p>
+	 */
+	public double getEwmaTime()
+	{
+		return Double.longBitsToDouble(ewma.get());
+	}
+	
+	/**
+	 * <p>Return (an upper bound of) the given response time percentile, in milliseconds.</p>
+	 */
+	public double getPercentile(double p)
+	{
+		return latencies.getPercentile(p);
+	}
+	
+	public LatencyHistogram getLatencies()
+	{
+		return latencies;
+	}
+	
+	public int getConsecutiveFailures()
+	{
+		return consecutiveFailures.get();
+	}
+	
+	public boolean isEjected()
+	{
+		return System.currentTimeMillis() < ejectedUntil;
+	}
+	
+	public long getEjectedUntil()
+	{
+		return ejectedUntil;
 	}
 	
 	public int compareTo(ServerInfo si)
 	{
-		// TODO - perhaps maxRequests should be incorporated into this formula?
-		// because different values of maxRequests may reflect different capacities of the 
-		// corresponding servers...
-		double w1 = getAvgTime()*currentRequests;
-		double w2 = si.getAvgTime()*si.currentRequests;
-		return Double.compare(w1, w2);
+		return Double.compare(getLoad(), si.getLoad());
 	}
 	
 	public int hashCode() { return HGUtils.hashThem(host, port); }
@@ -0,0 +1,470 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.saca.trie;
+
+import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * <p>
+ * A read-only trie with the same <code>topN</code>/<code>bestMatch</code> API as {@link Trie},
+ * stored in a handful of flat primitive arrays instead of a graph of node objects.
+ * </p>
+ *
+ * <p>
+ * Nodes are numbered in breadth-first order, so the children of a node are consecutive
+ * and sorted by their label: the children of node <code>n</code> are the nodes
+ * <code>firstChild[n]</code> to <code>firstChild[n+1] - 1</code> and a child is found
+ * by binary search over their labels. Each node stores the label of the edge leading to it,
+ * its parent (to spell out words), the weight of the word ending at it (<code>NaN</code> if
+ * none) and the maximum word weight in its subtree. The latter makes {@link #topN} a
+ * best-first search that never looks at subtrees lighter than the results already found.
+ * </p>
+ *
+ * <p>
+ * A compact trie is built from a {@link Trie} and can be saved to a binary file which
+ * {@link #load(File)} memory maps instead of reading, so that even a large vocabulary
+ * is available instantly and shared between processes through the OS page cache.
+ * The file holds a header (magic number, version, case sensitivity, node and word count)
+ * followed by the weight, max weight, first child, parent and label arrays in big-endian
+ * order. Instances are immutable and safe to use from multiple threads.
+ * </p>
+ */
+public class CompactTrie
+{
+    public static final int MAGIC = 0x54524945; // "TRIE"
+    public static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 24;
+
+    private final boolean caseSensitive;
+    private final int nodes;
+    private final int size;
+    private final DoubleBuffer weight;
+    private final DoubleBuffer maxWeight;
+    private final IntBuffer firstChild;
+    private final IntBuffer parent;
+    private final CharBuffer label;
+
+    private CompactTrie(boolean caseSensitive,
+                        int nodes,
+                        int size,
+                        DoubleBuffer weight,
+                        DoubleBuffer maxWeight,
+                        IntBuffer firstChild,
+                        IntBuffer parent,
+                        CharBuffer label)
+    {
+        this.caseSensitive = caseSensitive;
+        this.nodes = nodes;
+        this.size = size;
+        this.weight = weight;
+        this.maxWeight = maxWeight;
+        this.firstChild = firstChild;
+        this.parent = parent;
+        this.label = label;
+    }
+
+    /**
+     * <p>Build a compact copy of the given trie. Later changes to the trie are not
+     * reflected in the copy.</p>
+     */
+    public CompactTrie(Trie trie)
+    {
+        // Breadth-first numbering of the internal nodes, the NIL leaves become the
+        // word weights of their parents.
+        List<InternalNode> order = new ArrayList<InternalNode>();
+        List<Integer> parents = new ArrayList<Integer>();
+        List<Character> labels = new ArrayList<Character>();
+        order.add(trie.root);
+        parents.add(-1);
+        labels.add(Trie.NIL);
+        int [] first = new int[1];
+        for (int n = 0; n < order.size(); n++)
+        {
+            if (first.length < order.size() + 1)
+                first = Arrays.copyOf(first, Math.max(order.size() + 1, first.length*2));
+            first[n] = order.size();
+            TreeMap<Character, Node> children = new TreeMap<Character, Node>(order.get(n).children);
+            children.remove(Trie.NIL);
+            for (Map.Entry<Character, Node> e : children.entrySet())
+            {
+                order.add((InternalNode)e.getValue());
+                parents.add(n);
+                labels.add(e.getKey());
+            }
+        }
+        this.caseSensitive = trie.caseSensitive;
+        this.nodes = order.size();
+        double [] w = new double[nodes];
+        double [] mw = new double[nodes];
+        int [] fc = Arrays.copyOf(first, nodes + 1);
+        fc[nodes] = nodes;
+        int [] p = new int[nodes];
+        char [] l = new char[nodes];
+        int words = 0;
+        for (int n = 0; n < nodes; n++)
+        {
+            Node leaf = order.get(n).children.get(Trie.NIL);
+            w[n] = leaf == null ? Double.NaN : leaf.weight;
+            if (leaf != null)
+                words++;
+            p[n] = parents.get(n);
+            l[n] = labels.get(n);
+        }
+        // Children always come after their parent, so a reverse scan sees a complete subtree.
+        for (int n = nodes - 1; n >= 0; n--)
+        {
+            double max = Double.isNaN(w[n]) ? Double.NEGATIVE_INFINITY : w[n];
+            for (int c = fc[n]; c < fc[n + 1]; c++)
+                max = Math.max(max, mw[c]);
+            mw[n] = max;
+        }
+        this.size = words;
+        this.weight = DoubleBuffer.wrap(w);
+        this.maxWeight = DoubleBuffer.wrap(mw);
+        this.firstChild = IntBuffer.wrap(fc);
+        this.parent = IntBuffer.wrap(p);
+        this.label = CharBuffer.wrap(l);
+    }
+
+    /**
+     * <p>
+     * Build a compact trie from a file of weighted terms, one <code>term,weight</code>
+     * per line such as the <code>searchterms.txt.weighted</code> file.
+     * </p>
+     */
+    public static CompactTrie fromWeightedTerms(File file, boolean caseSensitive) throws IOException
+    {
+        Trie trie = new Trie(caseSensitive);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try
+        {
+            for (String line = reader.readLine(); line != null; line = reader.readLine())
+            {
+                int comma = line.lastIndexOf(',');
+                if (comma <= 0)
+                    continue;
+                trie.insert(line.substring(0, comma).trim(),
+                            Double.parseDouble(line.substring(comma + 1).trim()));
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        return new CompactTrie(trie);
+    }
+
+    /**
+     * <p>Memory map a trie previously written with {@link #save(File)}. The file must
+     * not be modified while the trie is in use.</p>
+     */
+    public static CompactTrie load(File file) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.capacity() < HEADER_SIZE || buf.getInt(0) != MAGIC)
+                throw new IOException("Not a compact trie file: " + file);
+            if (buf.getInt(4) != VERSION)
+                throw new IOException("Unsupported compact trie version " + buf.getInt(4) + " in " + file);
+            boolean caseSensitive = buf.getInt(8) != 0;
+            int nodes = buf.getInt(12);
+            int size = buf.getInt(16);
+            long expected = HEADER_SIZE + 16L*nodes + 4L*(nodes + 1) + 4L*nodes + 2L*nodes;
+            if (buf.capacity() != expected)
+                throw new IOException("Truncated or corrupt compact trie file: " + file);
+            int pos = HEADER_SIZE;
+            DoubleBuffer weight = slice(buf, pos, 8*nodes).asDoubleBuffer();
+            pos += 8*nodes;
+            DoubleBuffer maxWeight = slice(buf, pos, 8*nodes).asDoubleBuffer();
+            pos += 8*nodes;
+            IntBuffer firstChild = slice(buf, pos, 4*(nodes + 1)).asIntBuffer();
+            pos += 4*(nodes + 1);
+            IntBuffer parent = slice(buf, pos, 4*nodes).asIntBuffer();
+            pos += 4*nodes;
+            CharBuffer label = slice(buf, pos, 2*nodes).asCharBuffer();
+            return new CompactTrie(caseSensitive, nodes, size, weight, maxWeight, firstChild, parent, label);
+        }
+        finally
+        {
+            // the mapping stays valid after the channel is closed
+            raf.close();
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buf, int pos, int length)
+    {
+        ByteBuffer dup = buf.duplicate();
+        dup.position(pos);
+        dup.limit(pos + length);
+        return dup.slice();
+    }
+
+    /**
+     * <p>Write this trie in the binary format read by {@link #load(File)}.</p>
+     */
+    public void save(File file) throws IOException
+    {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64*1024));
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(caseSensitive ? 1 : 0);
+            out.writeInt(nodes);
+            out.writeInt(size);
+            out.writeInt(0); // padding, keeps the double arrays 8-byte aligned
+            for (int n = 0; n < nodes; n++)
+                out.writeDouble(weight.get(n));
+            for (int n = 0; n < nodes; n++)
+                out.writeDouble(maxWeight.get(n));
+            for (int n = 0; n <= nodes; n++)
+                out.writeInt(firstChild.get(n));
+            for (int n = 0; n < nodes; n++)
+                out.writeInt(parent.get(n));
+            for (int n = 0; n < nodes; n++)
+                out.writeChar(label.get(n));
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private int child(int node, char c)
+    {
+        int lo = firstChild.get(node), hi = firstChild.get(node + 1) - 1;
+        while (lo <= hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            char x = label.get(mid);
+            if (x < c)
+                lo = mid + 1;
+            else if (x > c)
+                hi = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    private int find(String s)
+    {
+        int node = 0;
+        for (int i = 0; i < s.length() && node >= 0; i++)
+            node = child(node, s.charAt(i));
+        return node;
+    }
+
+    private String word(int node)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (; node > 0; node = parent.get(node))
+            sb.append(label.get(node));
+        return sb.reverse().toString();
+    }
+
+    private boolean isWord(int node)
+    {
+        return !Double.isNaN(weight.get(node));
+    }
+
+    /**
+     * <p>Return the (at most) <code>N</code> heaviest words starting with <code>prefix</code>,
+     * heaviest first.</p>
+     */
+    public List<String> topN(String prefix, int N)
+    {
+        ArrayList<String> L = new ArrayList<String>();
+        int node = find(caseSensitive ? prefix : prefix.toLowerCase());
+        if (node < 0) // no match
+            return L;
+        PriorityQueue<Candidate> toexplore = new PriorityQueue<Candidate>();
+        toexplore.add(new Candidate(node, maxWeight.get(node), false));
+        while (L.size() < N && !toexplore.isEmpty())
+        {
+            Candidate x = toexplore.remove();
+            if (x.word)
+            {
+                L.add(word(x.node));
+                continue;
+            }
+            if (isWord(x.node))
+                toexplore.add(new Candidate(x.node, weight.get(x.node), true));
+            for (int c = firstChild.get(x.node); c < firstChild.get(x.node + 1); c++)
+                toexplore.add(new Candidate(c, maxWeight.get(c), false));
+        }
+        return L;
+    }
+
+    public double weight(String word)
+    {
+        if (word == null || word.length() == 0)
+            return 0;
+        int node = find(caseSensitive ? word : word.toLowerCase());
+        return node < 0 || !isWord(node) ? 0.0 : weight.get(node);
+    }
+
+    public boolean contains(String word)
+    {
+        if (word == null || word.length() == 0)
+            return false;
+        int node = find(caseSensitive ? word : word.toLowerCase());
+        return node >= 0 && isWord(node);
+    }
+
+    /**
+     * <p>Return the number of words in the trie.</p>
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * <p>Return the number of nodes (distinct prefixes, including the empty one).</p>
+     */
+    public int getNodeCount()
+    {
+        return nodes;
+    }
+
+    public boolean isCaseSensitive()
+    {
+        return caseSensitive;
+    }
+
+    /**
+     * <p>
+     * Return the (at most) <code>N</code> words within edit distance <code>maxDistance</code>
+     * of <code>word</code>, closest first and heavier first among equally close words.
+     * Transpositions of adjacent characters count as a single edit.
+     * </p>
+     */
+    public List<String> suggest(String word, int maxDistance, int N)
+    {
+        return suggest(word, maxDistance, N, true);
+    }
+
+    public List<String> suggest(String word, int maxDistance, int N, boolean transpositions)
+    {
+        FuzzyMatcher matcher = new FuzzyMatcher(caseSensitive ? word : word.toLowerCase(),
+                                                maxDistance, N, transpositions);
+        if (N > 0)
+            walk(0, 0, matcher);
+        return matcher.getWords();
+    }
+
+    private void walk(int node, int depth, FuzzyMatcher matcher)
+    {
+        for (int c = firstChild.get(node); c < firstChild.get(node + 1); c++)
+        {
+            if (!matcher.push(depth + 1, label.get(c)))
+                continue;
+            if (isWord(c))
+                matcher.word(depth + 1, weight.get(c));
+            walk(c, depth + 1, matcher);
+        }
+    }
+
+    /**
+     * <p>
+     * Return the word closest to <code>word</code> in edit distance (with transpositions),
+     * the heaviest one among equally close words, or the empty string if the trie is empty.
+     * </p>
+     */
+    public String bestMatch(String word)
+    {
+        // Any word is within max(word.length(), its own length) edits, so this terminates.
+        for (int bound = 1; size > 0; bound *= 2)
+        {
+            List<String> L = suggest(word, bound, 1);
+            if (!L.isEmpty())
+                return L.get(0);
+        }
+        return "";
+    }
+
+    /**
+     * @deprecated Kept for compatibility with {@link Trie#bestMatch(String, long)}, the time
+     * limit is ignored. Use {@link #bestMatch(String)} instead.
+     */
+    @Deprecated
+    public String bestMatch(String word, long max_time)
+    {
+        return bestMatch(word);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "CompactTrie[words=" + size + ", nodes=" + nodes + "]";
+    }
+
+    /**
+     * <p>Build a compact trie from a weighted terms file and save it:
+     * <code>CompactTrie terms-file trie-file [-casesensitive]</code>.</p>
+     */
+    public static void main(String [] argv) throws IOException
+    {
+        if (argv.length < 2)
+        {
+            System.out.println("Usage: CompactTrie terms-file trie-file [-casesensitive]");
+            System.exit(-1);
+        }
+        boolean caseSensitive = argv.length > 2 && "-casesensitive".equals(argv[2]);
+        CompactTrie trie = fromWeightedTerms(new File(argv[0]), caseSensitive);
+        trie.save(new File(argv[1]));
+        System.out.println("Saved " + trie + " to " + argv[1]);
+    }
+
+    private static class Candidate implements Comparable<Candidate>
+    {
+        int node;
+        double weight;
+        boolean word;
+
+        Candidate(int node, double weight, boolean word)
+        {
+            this.node = node;
+            this.weight = weight;
+            this.word = word;
+        }
+
+        public int compareTo(Candidate o)
+        {
+            return -Double.compare(weight, o.weight);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.saca.trie;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * <p>
+ * Collects the words of a trie closest to a query in edit distance during a depth-first
+ * walk of the trie. For every node on the current path the matcher keeps one row of the
+ * edit distance matrix between the path and the query, computed incrementally from the row
+ * of the parent as the walk goes down, so a node costs <code>O(query length)</code> instead
+ * of a full distance computation. When transpositions are enabled, the distance is the optimal
+ * string alignment (restricted Damerau-Levenshtein) distance where swapping two adjacent
+ * characters costs 1.
+ * </p>
+ *
+ * <p>
+ * A subtree is pruned as soon as no word in it can be within the distance bound, which
+ * shrinks to the distance of the worst result once <code>N</code> results are collected.
+ * Results are ranked by distance, then by decreasing weight and then alphabetically, so
+ * the outcome doesn't depend on the order in which the trie is walked.
+ * </p>
+ *
+ * <p>
+ * The walk is driven by the trie: for each node on the way down, call {@link #push}
+ * with the node's depth and label and descend only if it returns <code>true</code>;
+ * call {@link #word} for nodes where a word ends.
+ * </p>
+ */
+class FuzzyMatcher
+{
+    private final char [] query;
+    private final boolean transpositions;
+    private final int N;
+    private int bound;
+    // rows[d] is the distance row of the path prefix of length d
+    private int [][] rows;
+    private int [] rowMin;
+    private char [] path;
+    private final PriorityQueue<Suggestion> results;
+
+    static class Suggestion
+    {
+        final String word;
+        final int distance;
+        final double weight;
+
+        Suggestion(String word, int distance, double weight)
+        {
+            this.word = word;
+            this.distance = distance;
+            this.weight = weight;
+        }
+
+        public String toString()
+        {
+            return word + ":" + distance;
+        }
+    }
+
+    static final Comparator<Suggestion> RANKING = new Comparator<Suggestion>()
+    {
+        public int compare(Suggestion a, Suggestion b)
+        {
+            if (a.distance != b.distance)
+                return a.distance - b.distance;
+            int c = Double.compare(b.weight, a.weight);
+            return c != 0 ? c : a.word.compareTo(b.word);
+        }
+    };
+
+    FuzzyMatcher(String query, int maxDistance, int N, boolean transpositions)
+    {
+        this.query = query.toCharArray();
+        this.bound = maxDistance;
+        this.N = N;
+        this.transpositions = transpositions;
+        this.results = new PriorityQueue<Suggestion>(N + 1, Collections.reverseOrder(RANKING));
+        this.rows = new int[16][];
+        this.rowMin = new int[16];
+        this.path = new char[16];
+        int [] first = new int[this.query.length + 1];
+        for (int j = 0; j < first.length; j++)
+            first[j] = j;
+        rows[0] = first;
+        rowMin[0] = 0;
+    }
+
+    /**
+     * <p>
+     * Move to the node at <code>depth</code> (at least 1) reached by <code>label</code>
+     * and return whether any word below it can still be within the distance bound.
+     * </p>
+     */
+    boolean push(int depth, char label)
+    {
+        if (depth >= rows.length)
+        {
+            rows = Arrays.copyOf(rows, rows.length*2);
+            rowMin = Arrays.copyOf(rowMin, rowMin.length*2);
+            path = Arrays.copyOf(path, path.length*2);
+        }
+        path[depth - 1] = label;
+        int [] prev = rows[depth - 1];
+        int [] row = rows[depth];
+        if (row == null)
+            row = rows[depth] = new int[query.length + 1];
+        row[0] = depth;
+        int min = depth;
+        for (int j = 1; j <= query.length; j++)
+        {
+            int cost = query[j - 1] == label ? 0 : 1;
+            int d = Math.min(Math.min(prev[j] + 1, row[j - 1] + 1), prev[j - 1] + cost);
+            if (transpositions && depth > 1 && j > 1
+                    && query[j - 1] == path[depth - 2] && query[j - 2] == label)
+                d = Math.min(d, rows[depth - 2][j - 2] + 1);
+            row[j] = d;
+            if (d < min)
+                min = d;
+        }
+        rowMin[depth] = min;
+        // The next row is built from this one and, for transpositions, from the previous one.
+        int lower = min;
+        if (transpositions)
+            lower = Math.min(lower, rowMin[depth - 1] + 1);
+        return lower <= bound;
+    }
+
+    /**
+     * <p>Offer the word spelled by the current path of length <code>depth</code>.</p>
+     */
+    void word(int depth, double weight)
+    {
+        int distance = rows[depth][query.length];
+        if (distance > bound)
+            return;
+        Suggestion s = new Suggestion(new String(path, 0, depth), distance, weight);
+        if (results.size() == N)
+        {
+            if (RANKING.compare(s, results.peek()) >= 0)
+                return;
+            results.poll();
+        }
+        results.add(s);
+        if (results.size() == N)
+            bound = Math.min(bound, results.peek().distance);
+    }
+
+    List<Suggestion> getSuggestions()
+    {
+        List<Suggestion> L = new ArrayList<Suggestion>(results);
+        Collections.sort(L, RANKING);
+        return L;
+    }
+
+    List<String> getWords()
+    {
+        List<String> L = new ArrayList<String>();
+        for (Suggestion s : getSuggestions())
+            L.add(s.word);
+        return L;
+    }
+}
@@ -0,0 +1,67 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ * 
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.saca.trie;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A prefix in a {@link Trie}, with a child per next character.
+ */
+class InternalNode extends Node
+{
+    private static final long serialVersionUID = -7596138719551893096L;
+    Map<Character, Node> children = new HashMap<Character, Node>();    
+
+    double insert(String s, double weight, int pos)
+    {
+        char c = s.charAt(pos);
+        InternalNode n = (InternalNode)children.get(c);
+
+        // make sure we have a child with char c
+        if (n == null)
+        {
+            n = new InternalNode();
+            n.weight = weight;
+            children.put(c, n);
+        }
+
+        // if we are the last node in the sequence of chars
+        // that make up the string
+        if (pos == s.length() - 1)
+        {
+            LeafNode leaf = (LeafNode)n.children.get(Trie.NIL);
+            if (leaf != null) // if already insert, just update the weight...
+                leaf.weight = weight;
+            else
+            {
+                leaf = new LeafNode(s, weight);
+                n.children.put(Trie.NIL, leaf);
+            }
+            return leaf.weight;
+        }
+        else
+            return this.weight = Math.max(n.insert(s, weight, pos + 1), this.weight);
+    }    
+    
+    Node lookup(String s, int pos)
+    {
+        char c = s.charAt(pos);
+        InternalNode n = (InternalNode)children.get(c);
+        if (n == null)
+            return null;
+        if (pos == s.length() - 1)
+            return n.children.get(Trie.NIL);
+        else
+            return n.lookup(s, pos + 1);
+    }
+}
@@ -0,0 +1,22 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ * 
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.saca.trie;
+
+/**
+ * The end of a word in a {@link Trie}, with the word itself and its frequency.
+ */
+class LeafNode extends Node
+{
+    private static final long serialVersionUID = -6855349641641196938L;
+    String data;
+    LeafNode(String data, double weight) { this.data = data; this.weight = weight; }
+}
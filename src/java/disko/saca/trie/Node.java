@@ -0,0 +1,27 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ * 
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.saca.trie;
+
+/**
+ * A node of a {@link Trie}, weighted by the highest frequency of the words below it.
+ */
+class Node implements Comparable<Node>, java.io.Serializable
+{
+    private static final long serialVersionUID = 1872955823127195350L;
+    
+    double weight = 0.0;
+
+    public int compareTo(Node o)
+    {
+        return -Double.compare(weight, o.weight);
+    }    
+}
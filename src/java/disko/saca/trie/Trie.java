@@ -12,7 +12,6 @@
 package disko.saca.trie;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
@@ -107,6 +106,66 @@ public class Trie implements java.io.Serializable
         return root.toString();
     }
 
+    /**
+     * <p>
+     * Return the (at most) <code>N</code> words within edit distance <code>maxDistance</code>
+     * of <code>word</code>, closest first and heavier first among equally close words.
+     * Transpositions of adjacent characters count as a single edit.
+     * </p>
+     */
+    public List<String> suggest(String word, int maxDistance, int N)
+    {
+        return suggest(word, maxDistance, N, true);
+    }
+
+    public List<String> suggest(String word, int maxDistance, int N, boolean transpositions)
+    {
+        FuzzyMatcher matcher = new FuzzyMatcher(caseSensitive ? word : word.toLowerCase(),
+                                                maxDistance, N, transpositions);
+        if (N > 0)
+            walk(root, 0, matcher);
+        return matcher.getWords();
+    }
+
+    private void walk(InternalNode node, int depth, FuzzyMatcher matcher)
+    {
+        for (Map.Entry<Character, Node> e : node.children.entrySet())
+        {
+            if (NIL.equals(e.getKey()) || !matcher.push(depth + 1, e.getKey()))
+                continue;
+            InternalNode child = (InternalNode)e.getValue();
+            Node leaf = child.children.get(NIL);
+            if (leaf != null)
+                matcher.word(depth + 1, leaf.weight);
+            walk(child, depth + 1, matcher);
+        }
+    }
+
+    /**
+     * <p>
+     * Return the word closest to <code>word</code> in edit distance (with transpositions),
+     * the heaviest one among equally close words, or the empty string if the trie is empty.
+     * The search is exact and its result doesn't depend on timing.
+     * </p>
+     */
+    public String bestMatch(String word)
+    {
+        // Any word is within max(word.length(), its own length) edits, so this terminates.
+        for (int bound = 1; size > 0; bound *= 2)
+        {
+            List<String> L = suggest(word, bound, 1);
+            if (!L.isEmpty())
+                return L.get(0);
+        }
+        return "";
+    }
+
+    /**
+     * @deprecated The result of this method depends on how much of the trie could be
+     * explored within <code>max_time</code>. Use {@link #bestMatch(String)} or
+     * {@link #suggest(String, int, int)} instead.
+     */
+    @Deprecated
     public String bestMatch(String word, long max_time)
     {
 
@@ -166,74 +225,6 @@ public class Trie implements java.io.Serializable
     }
 }
 
-class Node implements Comparable<Node>, java.io.Serializable
-{
-    private static final long serialVersionUID = 1872955823127195350L;
-    
-    double weight = 0.0;
-
-    public int compareTo(Node o)
-    {
-        return -Double.compare(weight, o.weight);
-    }    
-}
-
-class LeafNode extends Node
-{
-    private static final long serialVersionUID = -6855349641641196938L;
-    String data;
-    LeafNode(String data, double weight) { this.data = data; this.weight = weight; }
-}
-    
-class InternalNode extends Node
-{
-    private static final long serialVersionUID = -7596138719551893096L;
-    Map<Character, Node> children = new HashMap<Character, Node>();    
-
-    double insert(String s, double weight, int pos)
-    {
-        char c = s.charAt(pos);
-        InternalNode n = (InternalNode)children.get(c);
-
-        // make sure we have a child with char c
-        if (n == null)
-        {
-            n = new InternalNode();
-            n.weight = weight;
-            children.put(c, n);
-        }
-
-        // if we are the last node in the sequence of chars
-        // that make up the string
-        if (pos == s.length() - 1)
-        {
-            LeafNode leaf = (LeafNode)n.children.get(Trie.NIL);
-            if (leaf != null) // if already insert, just update the weight...
-                leaf.weight = weight;
-            else
-            {
-                leaf = new LeafNode(s, weight);
-                n.children.put(Trie.NIL, leaf);
-            }
-            return leaf.weight;
-        }
-        else
-            return this.weight = Math.max(n.insert(s, weight, pos + 1), this.weight);
-    }    
-    
-    Node lookup(String s, int pos)
-    {
-        char c = s.charAt(pos);
-        InternalNode n = (InternalNode)children.get(c);
-        if (n == null)
-            return null;
-        if (pos == s.length() - 1)
-            return n.children.get(Trie.NIL);
-        else
-            return n.lookup(s, pos + 1);
-    }
-}
-
 /**
  * Utility class for finding a best match to a word.
  * 
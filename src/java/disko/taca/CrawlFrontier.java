@@ -0,0 +1,354 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.taca;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+
+import org.hypergraphdb.HGIndex;
+import org.hypergraphdb.HGRandomAccessResult;
+import org.hypergraphdb.HyperGraph;
+import org.hypergraphdb.storage.BAtoString;
+import org.hypergraphdb.storage.ByteArrayConverter;
+
+import disko.DU;
+import disko.utils.BloomFilter;
+
+/**
+ * <p>
+ * The persistent state of the crawl of one {@link CrawlRoot}: a FIFO queue of the URLs
+ * still to visit and the set of URLs already queued. Both live in HyperGraph storage indices
+ * (named after the root URL), so the crawler's memory use doesn't grow with the size of the
+ * site and a crawl interrupted by a stop, a restart or a crash continues where it left off.
+ * </p>
+ *
+ * <p>
+ * The queue is keyed by a sequence number. A URL stays at the head of the queue until
+ * it has been visited and is removed with {@link #remove(CrawlResult, Collection)}, which
+ * queues the links found on its page in the same transaction. Every step of the crawl is
+ * thus a checkpoint: on resume, the page being visited when the crawl stopped is visited
+ * again and nothing is lost.
+ * </p>
+ *
+ * <p>
+ * Seen URLs are stored as 64-bit fingerprints rather than strings. An optional Bloom
+ * filter in front of them answers most lookups of new URLs without going to disk. It is
+ * rebuilt from the stored fingerprints when the frontier is opened.
+ * </p>
+ */
+public class CrawlFrontier
+{
+	static final ByteArrayConverter<Long> LONG_CONVERTER = new ByteArrayConverter<Long>()
+	{
+		public byte[] toByteArray(Long x)
+		{
+			byte [] B = new byte[8];
+			long v = x;
+			for (int i = 7; i >= 0; i--, v >>>= 8)
+				B[i] = (byte)v;
+			return B;
+		}
+
+		public Long fromByteArray(byte [] B)
+		{
+			long v = 0;
+			for (int i = 0; i < 8; i++)
+				v = (v << 8) | (B[i] & 0xff);
+			return v;
+		}
+	};
+
+	private static final Long SEEN = 0L;
+
+	// The meta-data key under which a queued CrawlResult carries its sequence number.
+	static final String SEQUENCE = "disko.taca.frontier.sequence";
+
+	private final HyperGraph graph;
+	private final CrawlRoot root;
+	private final String queueName, seenName;
+	private HGIndex<Long, String> queue;
+	private HGIndex<Long, Long> seen;
+	private BloomFilter bloom;
+	private long nextSequence = 0;
+	// the last sequence number handed out by next()
+	private long cursor = -1;
+	private long bloomSkips = 0;
+
+	/**
+	 * <p>Return a 64-bit fingerprint of a URL (FNV-1a over its characters, mixed).</p>
+	 */
+	public static long fingerprint(String url)
+	{
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < url.length(); i++)
+		{
+			h ^= url.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return BloomFilter.mix(h);
+	}
+
+	/**
+	 * @param graph The graph whose storage holds the frontier.
+	 * @param root The crawl root.
+	 * @param bloomFilterBits The size of the in-memory Bloom filter in bits, 0 for none.
+	 */
+	public CrawlFrontier(HyperGraph graph, CrawlRoot root, long bloomFilterBits)
+	{
+		this.graph = graph;
+		this.root = root;
+		String id = Long.toHexString(fingerprint(root.getUrl()));
+		this.queueName = "disko.taca.frontier." + id;
+		this.seenName = "disko.taca.seen." + id;
+		if (bloomFilterBits > 0)
+			bloom = new BloomFilter(bloomFilterBits, 7);
+		open();
+	}
+
+	private synchronized void open()
+	{
+		queue = graph.getStore().getIndex(queueName, LONG_CONVERTER, BAtoString.getInstance(), null, true);
+		seen = graph.getStore().getIndex(seenName, LONG_CONVERTER, LONG_CONVERTER, null, true);
+		HGRandomAccessResult<Long> keys = queue.scanKeys();
+		try
+		{
+			keys.goAfterLast();
+			if (keys.hasPrev())
+				nextSequence = keys.prev() + 1;
+		}
+		finally
+		{
+			keys.close();
+		}
+		if (bloom != null)
+		{
+			bloom.clear();
+			HGRandomAccessResult<Long> fingerprints = seen.scanKeys();
+			try
+			{
+				while (fingerprints.hasNext())
+					bloom.add(fingerprints.next());
+			}
+			finally
+			{
+				fingerprints.close();
+			}
+		}
+	}
+
+	private boolean isSeen(long fp)
+	{
+		if (bloom != null && !bloom.mightContain(fp))
+		{
+			bloomSkips++;
+			return false;
+		}
+		return seen.findFirst(fp) != null;
+	}
+
+	private boolean doPush(CrawlResult cr)
+	{
+		long fp = fingerprint(cr.getUrl());
+		if (isSeen(fp))
+			return false;
+		seen.addEntry(fp, SEEN);
+		if (bloom != null)
+			bloom.add(fp);
+		queue.addEntry(nextSequence++, cr.getDepth() + " " + cr.getUrl());
+		return true;
+	}
+
+	/**
+	 * <p>Queue a URL unless it was queued before during this crawl. Return <code>true</code>
+	 * if it was queued.</p>
+	 */
+	public synchronized boolean push(final CrawlResult cr)
+	{
+		return graph.getTransactionManager().ensureTransaction(new Callable<Boolean>()
+		{
+			public Boolean call()
+			{
+				return doPush(cr);
+			}
+		});
+	}
+
+	/**
+	 * <p>Queue all URLs not seen before in a single transaction and return how many were
+	 * queued.</p>
+	 */
+	public synchronized int pushAll(final Collection<CrawlResult> results)
+	{
+		return graph.getTransactionManager().ensureTransaction(new Callable<Integer>()
+		{
+			public Integer call()
+			{
+				int count = 0;
+				for (CrawlResult cr : results)
+					if (doPush(cr))
+						count++;
+				return count;
+			}
+		});
+	}
+
+	/**
+	 * <p>Return the URL at the head of the queue without removing it, or <code>null</code>
+	 * if the queue is empty.</p>
+	 */
+	public synchronized CrawlResult peek()
+	{
+		HGRandomAccessResult<Long> keys = queue.scanKeys();
+		try
+		{
+			if (!keys.hasNext())
+				return null;
+			return entry(keys.next());
+		}
+		finally
+		{
+			keys.close();
+		}
+	}
+
+	/**
+	 * <p>
+	 * Return the next URL of the queue not returned by a previous call, or <code>null</code>
+	 * if there is none. Like {@link #peek()}, this doesn't remove the URL from the queue, so
+	 * several URLs can be visited concurrently and a crawl that stops before they are removed
+	 * visits them again when resumed.
+	 * </p>
+	 */
+	public synchronized CrawlResult next()
+	{
+		HGRandomAccessResult<Long> keys = queue.scanKeys();
+		try
+		{
+			Long seq = null;
+			if (cursor < 0)
+				seq = keys.hasNext() ? keys.next() : null;
+			else switch (keys.goTo(cursor, false))
+			{
+				case found: // positioned on the cursor itself, take the following key
+					seq = keys.hasNext() ? keys.next() : null;
+					break;
+				case close: // the cursor was removed, positioned on the first key after it
+					seq = keys.current();
+					break;
+				default:
+					break;
+			}
+			if (seq == null)
+				return null;
+			cursor = seq;
+			return entry(cursor);
+		}
+		finally
+		{
+			keys.close();
+		}
+	}
+
+	private CrawlResult entry(long seq)
+	{
+		String entry = queue.findFirst(seq);
+		int space = entry.indexOf(' ');
+		CrawlResult cr = new CrawlResult(entry.substring(space + 1),
+										 Integer.parseInt(entry.substring(0, space)),
+										 root);
+		cr.getMetaData().put(SEQUENCE, seq);
+		return cr;
+	}
+
+	/**
+	 * <p>Remove a visited URL obtained from {@link #peek()} or {@link #next()} from the queue, together with
+	 * the links found on its page, in one transaction.</p>
+	 */
+	public synchronized void remove(final CrawlResult visited, final Collection<CrawlResult> links)
+	{
+		graph.getTransactionManager().ensureTransaction(new Callable<Object>()
+		{
+			public Object call()
+			{
+				for (CrawlResult cr : links)
+					doPush(cr);
+				Long seq = (Long)visited.getMetaData().get(SEQUENCE);
+				if (seq != null)
+					queue.removeAllEntries(seq);
+				return null;
+			}
+		});
+	}
+
+	public void remove(CrawlResult visited)
+	{
+		remove(visited, Collections.<CrawlResult>emptyList());
+	}
+
+	public synchronized boolean isEmpty()
+	{
+		HGRandomAccessResult<Long> keys = queue.scanKeys();
+		try
+		{
+			return !keys.hasNext();
+		}
+		finally
+		{
+			keys.close();
+		}
+	}
+
+	/**
+	 * <p>Return the number of URLs waiting in the queue.</p>
+	 */
+	public synchronized long size()
+	{
+		return queue.count();
+	}
+
+	/**
+	 * <p>Return the number of URLs queued so far during this crawl.</p>
+	 */
+	public synchronized long getSeenCount()
+	{
+		return seen.count();
+	}
+
+	/**
+	 * <p>Return how many seen-URL lookups the Bloom filter answered without going to storage.</p>
+	 */
+	public synchronized long getBloomSkips()
+	{
+		return bloomSkips;
+	}
+
+	/**
+	 * <p>Forget the queue and all seen URLs, e.g. when a crawl is complete and the next one
+	 * should start from scratch.</p>
+	 */
+	public synchronized void clear()
+	{
+		graph.getStore().removeIndex(queueName);
+		graph.getStore().removeIndex(seenName);
+		nextSequence = 0;
+		cursor = -1;
+		bloomSkips = 0;
+		open();
+		DU.log.debug("Cleared crawl frontier of " + root.getUrl());
+	}
+
+	public CrawlRoot getRoot()
+	{
+		return root;
+	}
+}
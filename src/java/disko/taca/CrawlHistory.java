@@ -0,0 +1,233 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.taca;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.hypergraphdb.HGIndex;
+import org.hypergraphdb.HyperGraph;
+import org.hypergraphdb.storage.BAtoString;
+
+import disko.DU;
+import disko.utils.BloomFilter;
+
+/**
+ * <p>
+ * What the crawler knows about the pages of one {@link CrawlRoot} from previous crawls:
+ * for each URL processed, its <code>ETag</code> and <code>Last-Modified</code> validators,
+ * a hash of its content and the links found on it. With this, a re-crawl can request pages
+ * conditionally and recognize unchanged ones, skipping their analysis while still following
+ * their links. Unlike the {@link CrawlFrontier}, the history is kept from one crawl to the
+ * next. It is stored in a HyperGraph storage index named after the root URL.
+ * </p>
+ */
+public class CrawlHistory
+{
+	/**
+	 * <p>The recorded state of one page.</p>
+	 */
+	public static class Entry
+	{
+		private String url;
+		private String etag;
+		private String lastModified;
+		private long contentHash;
+		private List<String> links = new ArrayList<String>();
+
+		public Entry(String url, String etag, String lastModified, long contentHash, Collection<String> links)
+		{
+			this.url = url;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.contentHash = contentHash;
+			if (links != null)
+				this.links.addAll(links);
+		}
+
+		public String getUrl()
+		{
+			return url;
+		}
+
+		public String getEtag()
+		{
+			return etag;
+		}
+
+		/**
+		 * <p>Return the <code>Last-Modified</code> header exactly as the server sent it.</p>
+		 */
+		public String getLastModified()
+		{
+			return lastModified;
+		}
+
+		public long getContentHash()
+		{
+			return contentHash;
+		}
+
+		/**
+		 * <p>Return the absolute URLs of the links found on the page.</p>
+		 */
+		public List<String> getLinks()
+		{
+			return links;
+		}
+
+		/**
+		 * <p>Return the headers making a request for the page conditional on it having
+		 * changed, empty if the server provided no validators.</p>
+		 */
+		public Map<String, String> getConditionalHeaders()
+		{
+			Map<String, String> headers = new HashMap<String, String>();
+			if (etag != null)
+				headers.put("If-None-Match", etag);
+			if (lastModified != null)
+				headers.put("If-Modified-Since", lastModified);
+			return headers;
+		}
+	}
+
+	private final HyperGraph graph;
+	private final CrawlRoot root;
+	private final String indexName;
+	private HGIndex<Long, String> index;
+
+	/**
+	 * <p>Return a 64-bit hash of a page's content (FNV-1a over its bytes, mixed).</p>
+	 */
+	public static long contentHash(byte [] data)
+	{
+		long h = 0xcbf29ce484222325L;
+		for (byte b : data)
+		{
+			h ^= b & 0xff;
+			h *= 0x100000001b3L;
+		}
+		return BloomFilter.mix(h);
+	}
+
+	public CrawlHistory(HyperGraph graph, CrawlRoot root)
+	{
+		this.graph = graph;
+		this.root = root;
+		this.indexName = "disko.taca.history." + Long.toHexString(CrawlFrontier.fingerprint(root.getUrl()));
+		open();
+	}
+
+	private synchronized void open()
+	{
+		index = graph.getStore().getIndex(indexName, CrawlFrontier.LONG_CONVERTER, BAtoString.getInstance(), null, true);
+	}
+
+	// The fields of an entry on separate lines: URL, ETag, Last-Modified, hash, then the links.
+	private static String encode(Entry e)
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append(e.url).append('\n');
+		sb.append(e.etag == null ? "" : e.etag).append('\n');
+		sb.append(e.lastModified == null ? "" : e.lastModified).append('\n');
+		sb.append(Long.toHexString(e.contentHash));
+		for (String l : e.links)
+			sb.append('\n').append(l);
+		return sb.toString();
+	}
+
+	private static Entry decode(String s)
+	{
+		String [] lines = s.split("\n", -1);
+		List<String> links = new ArrayList<String>();
+		for (int i = 4; i < lines.length; i++)
+			links.add(lines[i]);
+		return new Entry(lines[0],
+						 lines[1].length() == 0 ? null : lines[1],
+						 lines[2].length() == 0 ? null : lines[2],
+						 Long.parseLong(lines[3], 16),
+						 links);
+	}
+
+	/**
+	 * <p>Return the recorded state of a page, <code>null</code> if the page wasn't
+	 * processed before.</p>
+	 */
+	public synchronized Entry get(String url)
+	{
+		String s = index.findFirst(CrawlFrontier.fingerprint(url));
+		if (s == null)
+			return null;
+		Entry e = decode(s);
+		return url.equals(e.getUrl()) ? e : null; // fingerprint collision
+	}
+
+	/**
+	 * <p>Record the state of a page, replacing the previous one.</p>
+	 */
+	public synchronized void put(final Entry entry)
+	{
+		// Links must fit on a line, a URL with a line break wouldn't be valid anyway.
+		for (String l : entry.links)
+			if (l.indexOf('\n') > -1)
+				throw new IllegalArgumentException("Invalid link '" + l + "'");
+		graph.getTransactionManager().ensureTransaction(new Callable<Object>()
+		{
+			public Object call()
+			{
+				long fp = CrawlFrontier.fingerprint(entry.getUrl());
+				index.removeAllEntries(fp);
+				index.addEntry(fp, encode(entry));
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * <p>Forget a page, so that it is processed again on the next crawl.</p>
+	 */
+	public synchronized void remove(final String url)
+	{
+		graph.getTransactionManager().ensureTransaction(new Callable<Object>()
+		{
+			public Object call()
+			{
+				index.removeAllEntries(CrawlFrontier.fingerprint(url));
+				return null;
+			}
+		});
+	}
+
+	public synchronized long size()
+	{
+		return index.count();
+	}
+
+	/**
+	 * <p>Forget all pages, so that the next crawl processes the whole site again.</p>
+	 */
+	public synchronized void clear()
+	{
+		graph.getStore().removeIndex(indexName);
+		open();
+		DU.log.debug("Cleared crawl history of " + root.getUrl());
+	}
+
+	public CrawlRoot getRoot()
+	{
+		return root;
+	}
+}
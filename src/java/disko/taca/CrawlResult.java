@@ -15,16 +15,21 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 
+import disko.UrlTextDocument;
+
 public class CrawlResult
 {
     public static final String MIME = "mime";
     public static final String ENCODING = "encoding";
     public static final String LAST_MODIFIED = "last-modified";
+    public static final String ETAG = "etag";
+    public static final String CONTENT_HASH = "content-hash";
     
 	private String url;
 	private int depth;
 	private CrawlRoot from;
 	private Map<String, Object> metaData = new HashMap<String, Object>();
+	private FetchedPage page;
 	
 	public CrawlResult()
 	{	    
@@ -75,4 +80,24 @@ public class CrawlResult
     {
         return (Date)metaData.get(LAST_MODIFIED);
     }
+    /**
+     * <p>Return the downloaded page, once the crawler has visited the URL.</p>
+     */
+    public FetchedPage getPage()
+    {
+        return page;
+    }
+    public void setPage(FetchedPage page)
+    {
+        this.page = page;
+    }
+    /**
+     * <p>Return the page as a document, built from the downloaded content without fetching
+     * it again. Return <code>null</code> if the page hasn't been fetched or its type isn't
+     * supported.</p>
+     */
+    public UrlTextDocument getDocument()
+    {
+        return page == null ? null : page.getDocument();
+    }
 }
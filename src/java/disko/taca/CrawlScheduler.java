@@ -0,0 +1,533 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.taca;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import disko.DU;
+
+/**
+ * <p>
+ * Schedules page fetches of all crawl roots on a shared pool of fetcher threads while
+ * being polite to every host. Jobs are queued per host (<code>protocol://host:port</code>);
+ * a host gets at most {@link #getMaxConnectionsPerHost()} fetches at a time and consecutive
+ * fetches from a host start at least {@link #getHostDelay()} milliseconds apart (or the
+ * host's <code>Crawl-delay</code>, if larger). Throughput thus grows with the number of
+ * distinct hosts rather than with the number of roots.
+ * </p>
+ *
+ * <p>
+ * Among the hosts that may be fetched from, the next job is the one with the lowest
+ * priority value - the crawler uses the crawling interval of the root, so frequently
+ * refreshed roots go first - and, among equals, the one waiting longest.
+ * </p>
+ *
+ * <p>
+ * When robots.txt handling is enabled, the rules of each host are fetched once and cached
+ * for {@link #getRobotsTtl()} milliseconds. Jobs for disallowed URLs are not run, their
+ * {@link Job#denied()} method is called instead. A site without a robots.txt, or whose
+ * robots.txt can't be fetched, may be crawled entirely.
+ * </p>
+ */
+public class CrawlScheduler
+{
+	/**
+	 * <p>A unit of work for the scheduler, normally fetching and processing one page.</p>
+	 */
+	public static abstract class Job
+	{
+		private final URL url;
+		private final long priority;
+		private long sequence;
+
+		public Job(URL url, long priority)
+		{
+			this.url = url;
+			this.priority = priority;
+		}
+
+		public URL getUrl()
+		{
+			return url;
+		}
+
+		public long getPriority()
+		{
+			return priority;
+		}
+
+		/**
+		 * <p>Do the work, called from a fetcher thread when the host permits.</p>
+		 */
+		public abstract void run();
+
+		/**
+		 * <p>Called instead of {@link #run()} when robots.txt disallows the URL.</p>
+		 */
+		public void denied()
+		{
+		}
+
+		/**
+		 * <p>Called instead of {@link #run()} when the scheduler is shut down with the job
+		 * still queued.</p>
+		 */
+		public void cancelled()
+		{
+		}
+	}
+
+	private static class Host
+	{
+		final String key;
+		final PriorityQueue<Job> queue = new PriorityQueue<Job>(11, new Comparator<Job>()
+		{
+			public int compare(Job a, Job b)
+			{
+				if (a.priority != b.priority)
+					return a.priority < b.priority ? -1 : 1;
+				return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+			}
+		});
+		int active = 0;
+		long nextStart = 0;
+		long delay;
+
+		Host(String key, long delay)
+		{
+			this.key = key;
+			this.delay = delay;
+		}
+	}
+
+	private final PageFetcher fetcher;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+	private final Map<String, Host> hosts = new HashMap<String, Host>();
+	private final ConcurrentHashMap<String, FutureTask<RobotsRules>> robots =
+		new ConcurrentHashMap<String, FutureTask<RobotsRules>>();
+	private final Map<String, Long> robotsExpiry = new ConcurrentHashMap<String, Long>();
+	private final Map<String, Long> crawlDelays = new ConcurrentHashMap<String, Long>();
+	private final List<Thread> threads = new ArrayList<Thread>();
+	private volatile boolean shutdown = false;
+	private long sequence = 0;
+	private int queued = 0;
+
+	private long hostDelay = 1000;
+	private int maxConnectionsPerHost = 1;
+	private boolean respectRobots = true;
+	private long robotsTtl = 24*60*60*1000L;
+	private long maxCrawlDelay = 60*1000L;
+
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong denied = new AtomicLong();
+
+	public CrawlScheduler(PageFetcher fetcher, int nThreads)
+	{
+		if (nThreads < 1)
+			throw new IllegalArgumentException("The crawl scheduler needs at least one thread.");
+		this.fetcher = fetcher;
+		for (int i = 0; i < nThreads; i++)
+		{
+			Thread t = new Thread(new Runnable() {
+				public void run() { work(); }
+			}, "disko-crawl-fetcher-" + (i + 1));
+			t.setDaemon(true);
+			threads.add(t);
+		}
+		for (Thread t : this.threads)
+			t.start();
+	}
+
+	static String hostKey(URL url)
+	{
+		int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+		return url.getProtocol() + "://" + url.getHost().toLowerCase() + ":" + port;
+	}
+
+	/**
+	 * <p>Queue a job for its host.</p>
+	 */
+	public void submit(Job job)
+	{
+		lock.lock();
+		try
+		{
+			if (shutdown)
+				throw new IllegalStateException("The crawl scheduler is shut down.");
+			String key = hostKey(job.getUrl());
+			Host host = hosts.get(key);
+			if (host == null)
+				hosts.put(key, host = new Host(key, delayOf(key)));
+			job.sequence = sequence++;
+			host.queue.add(job);
+			queued++;
+			changed.signal();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	private long delayOf(String key)
+	{
+		Long crawlDelay = crawlDelays.get(key);
+		return crawlDelay == null ? hostDelay : Math.max(hostDelay, crawlDelay);
+	}
+
+	// Pick the next job whose host may be fetched from now, or return the time to wait.
+	private Job next(long [] wait)
+	{
+		long now = System.currentTimeMillis();
+		Host best = null;
+		long earliest = Long.MAX_VALUE;
+		for (Iterator<Host> i = hosts.values().iterator(); i.hasNext(); )
+		{
+			Host h = i.next();
+			if (h.queue.isEmpty())
+			{
+				// forget idle hosts, their delay has passed
+				if (h.active == 0 && h.nextStart <= now)
+					i.remove();
+				continue;
+			}
+			if (h.active >= maxConnectionsPerHost)
+				continue;
+			if (h.nextStart > now)
+			{
+				earliest = Math.min(earliest, h.nextStart);
+				continue;
+			}
+			if (best == null)
+				best = h;
+			else
+			{
+				Job a = h.queue.peek(), b = best.queue.peek();
+				if (a.priority < b.priority || (a.priority == b.priority && a.sequence < b.sequence))
+					best = h;
+			}
+		}
+		if (best == null)
+		{
+			wait[0] = earliest == Long.MAX_VALUE ? -1 : earliest - now;
+			return null;
+		}
+		Job job = best.queue.poll();
+		best.active++;
+		best.nextStart = now + best.delay;
+		queued--;
+		return job;
+	}
+
+	private void done(Job job)
+	{
+		lock.lock();
+		try
+		{
+			Host host = hosts.get(hostKey(job.getUrl()));
+			if (host != null)
+				host.active--;
+			changed.signal();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	private void work()
+	{
+		long [] wait = new long[1];
+		while (!shutdown)
+		{
+			Job job;
+			lock.lock();
+			try
+			{
+				job = next(wait);
+				if (job == null)
+				{
+					if (wait[0] < 0)
+						changed.await();
+					else
+						changed.await(wait[0], TimeUnit.MILLISECONDS);
+					continue;
+				}
+			}
+			catch (InterruptedException ex)
+			{
+				break;
+			}
+			finally
+			{
+				lock.unlock();
+			}
+			try
+			{
+				if (respectRobots && !isAllowed(job.getUrl()))
+				{
+					denied.incrementAndGet();
+					job.denied();
+				}
+				else
+					job.run();
+			}
+			catch (Throwable t)
+			{
+				DU.log.error("Crawl job for '" + job.getUrl() + "' failed.", t);
+			}
+			finally
+			{
+				completed.incrementAndGet();
+				done(job);
+			}
+		}
+	}
+
+	private RobotsRules robotsFor(final URL url) throws InterruptedException
+	{
+		final String key = hostKey(url);
+		Long expiry = robotsExpiry.get(key);
+		if (expiry != null && expiry < System.currentTimeMillis())
+		{
+			robots.remove(key);
+			robotsExpiry.remove(key);
+		}
+		FutureTask<RobotsRules> task = robots.get(key);
+		if (task == null)
+		{
+			FutureTask<RobotsRules> newTask = new FutureTask<RobotsRules>(new Callable<RobotsRules>()
+			{
+				public RobotsRules call() throws Exception
+				{
+					return fetchRobots(url);
+				}
+			});
+			task = robots.putIfAbsent(key, newTask);
+			if (task == null)
+			{
+				task = newTask;
+				robotsExpiry.put(key, System.currentTimeMillis() + robotsTtl);
+				task.run();
+			}
+		}
+		try
+		{
+			return task.get();
+		}
+		catch (ExecutionException ex)
+		{
+			return RobotsRules.ALLOW_ALL;
+		}
+	}
+
+	private RobotsRules fetchRobots(URL url)
+	{
+		try
+		{
+			FetchedPage page = fetcher.fetch(new URL(url, "/robots.txt"));
+			if (page.getStatus() >= 200 && page.getStatus() < 300)
+			{
+				RobotsRules rules = RobotsRules.parse(page.getText(), fetcher.getUserAgent());
+				if (rules.getCrawlDelay() > 0)
+				{
+					String key = hostKey(url);
+					crawlDelays.put(key, Math.min(rules.getCrawlDelay(), maxCrawlDelay));
+					lock.lock();
+					try
+					{
+						Host host = hosts.get(key);
+						if (host != null)
+						{
+							// the delay also applies to the fetch that was started with the old one
+							host.delay = delayOf(key);
+							host.nextStart = Math.max(host.nextStart, System.currentTimeMillis() + host.delay);
+						}
+					}
+					finally
+					{
+						lock.unlock();
+					}
+				}
+				return rules;
+			}
+		}
+		catch (Exception ex)
+		{
+			DU.log.warn("Couldn't fetch robots.txt of '" + hostKey(url) + "'", ex);
+		}
+		// No robots.txt or unreachable - allow everything, retry in a while.
+		robotsExpiry.put(hostKey(url), System.currentTimeMillis() + Math.min(robotsTtl, 10*60*1000L));
+		return RobotsRules.ALLOW_ALL;
+	}
+
+	/**
+	 * <p>Return whether robots.txt allows fetching the URL, fetching the rules for its host
+	 * if they are not cached.</p>
+	 */
+	public boolean isAllowed(URL url) throws InterruptedException
+	{
+		String path = url.getPath();
+		if (url.getQuery() != null)
+			path += "?" + url.getQuery();
+		return robotsFor(url).isAllowed(path);
+	}
+
+	/**
+	 * <p>Stop the fetcher threads. Jobs still queued are not run, their <code>cancelled</code>
+	 * method is called. Jobs being run are left to complete.</p>
+	 */
+	public void shutdown()
+	{
+		List<Job> dropped = new ArrayList<Job>();
+		lock.lock();
+		try
+		{
+			shutdown = true;
+			for (Host h : hosts.values())
+				dropped.addAll(h.queue);
+			hosts.clear();
+			queued = 0;
+			changed.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		for (Job job : dropped)
+			job.cancelled();
+	}
+
+	public boolean isShutdown()
+	{
+		return shutdown;
+	}
+
+	/**
+	 * <p>Return the number of jobs waiting for their host.</p>
+	 */
+	public int getQueuedCount()
+	{
+		lock.lock();
+		try
+		{
+			return queued;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * <p>Return the number of hosts with queued or running jobs.</p>
+	 */
+	public int getHostCount()
+	{
+		lock.lock();
+		try
+		{
+			return hosts.size();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	public long getCompletedCount()
+	{
+		return completed.get();
+	}
+
+	/**
+	 * <p>Return the number of jobs not run because robots.txt disallowed their URL.</p>
+	 */
+	public long getDeniedCount()
+	{
+		return denied.get();
+	}
+
+	public long getHostDelay()
+	{
+		return hostDelay;
+	}
+
+	/**
+	 * <p>Set the minimum time in milliseconds between the starts of two fetches from the
+	 * same host. Applies to hosts seen after the call.</p>
+	 */
+	public void setHostDelay(long hostDelay)
+	{
+		this.hostDelay = hostDelay;
+	}
+
+	public int getMaxConnectionsPerHost()
+	{
+		return maxConnectionsPerHost;
+	}
+
+	public void setMaxConnectionsPerHost(int maxConnectionsPerHost)
+	{
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+	}
+
+	public boolean isRespectRobots()
+	{
+		return respectRobots;
+	}
+
+	public void setRespectRobots(boolean respectRobots)
+	{
+		this.respectRobots = respectRobots;
+	}
+
+	public long getRobotsTtl()
+	{
+		return robotsTtl;
+	}
+
+	public void setRobotsTtl(long robotsTtl)
+	{
+		this.robotsTtl = robotsTtl;
+	}
+
+	public long getMaxCrawlDelay()
+	{
+		return maxCrawlDelay;
+	}
+
+	/**
+	 * <p>Set the maximum <code>Crawl-delay</code> honored, so that a site can't stall
+	 * its crawl roots indefinitely.</p>
+	 */
+	public void setMaxCrawlDelay(long maxCrawlDelay)
+	{
+		this.maxCrawlDelay = maxCrawlDelay;
+	}
+}
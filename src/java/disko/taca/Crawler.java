@@ -13,20 +13,24 @@ package disko.taca;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLConnection;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.hypergraphdb.HGGraphHolder;
 import org.hypergraphdb.HGHandle;
@@ -34,35 +38,43 @@ import org.hypergraphdb.HyperGraph;
 import org.hypergraphdb.HGQuery.hg;
 import org.hypergraphdb.peer.HyperGraphPeer;
 import org.hypergraphdb.util.Mapping;
-import org.hypergraphdb.util.SimpleStack;
+import org.hypergraphdb.util.Pair;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 
-import disko.Ann;
 import disko.DU;
-import disko.DefaultTextDocument;
-import disko.HTMLDocument;
-import disko.MarkupAnn;
-import disko.PDFDocument;
-import disko.data.MimeType;
-import disko.utils.DiscoProxySettings;
-
-import au.id.jericho.lib.html.HTMLElementName;
 
 public class Crawler implements HGGraphHolder
 {
 	private HyperGraph graph;
 	private Mapping<CrawlResult, Boolean> callback;
-	@Option(name = "-threads", required = true, usage="The number of threads to use.")
+	@Option(name = "-threads", required = true, usage="The number of fetcher threads to use.")
 	private int nThreads = 4;
 	private ExecutorService executorService;
+	private CrawlScheduler scheduler;
+	@Option(name = "-hostDelay", required = false, usage="The minimum delay in milliseconds between two requests to the same host.")
+	private long hostDelay = 1000;
+	@Option(name = "-maxPerHost", required = false, usage="The maximum number of concurrent requests to the same host.")
+	private int maxConnectionsPerHost = 1;
+	@Option(name = "-ignoreRobots", required = false, usage="Don't obey robots.txt files.")
+	private boolean ignoreRobots = false;
+	private int maxPendingPerRoot = 100;
 	private Map<CrawlRoot, TimerTask> tasks = new HashMap<CrawlRoot, TimerTask>();
 	
 	@Option(name = "-f", required = true, usage="A HyperGraphPeer JSON configuration file.")
 	private String configurationFile = null;
 	@Option(name = "-urlHandler", required = true, usage="The class name of the CrawlResult processor.")
 	private String callbackClassname = null;
+	private PageFetcher fetcher = new PageFetcher();
+	private LocalDocumentCache documentCache = null;
+	@Option(name = "-bloomBits", required = false, usage="The size in bits of the Bloom filter in front of the seen URLs of each root, 0 to disable.")
+	private long bloomFilterBits = 8*1024*1024;
+	@Option(name = "-full", required = false, usage="Process every page on each crawl, even the ones unchanged since the previous crawl.")
+	private boolean fullRecrawl = false;
+	private final AtomicLong changedCount = new AtomicLong();
+	private final AtomicLong unchangedCount = new AtomicLong();
+	private final AtomicLong notModifiedCount = new AtomicLong();
 	
 	@SuppressWarnings("unchecked")
 	public static void main(String [] argv)
@@ -211,11 +223,158 @@ public class Crawler implements HGGraphHolder
 		nThreads = threads;
 	}
 
+	public long getBloomFilterBits()
+	{
+		return bloomFilterBits;
+	}
+
+	/**
+	 * <p>Set the size of the in-memory Bloom filter that each crawl root keeps in front of
+	 * its persistent set of seen URLs (1MB per root by default). Use 0 to always look
+	 * seen URLs up in storage.</p>
+	 */
+	public void setBloomFilterBits(long bloomFilterBits)
+	{
+		this.bloomFilterBits = bloomFilterBits;
+	}
+
+	public PageFetcher getFetcher()
+	{
+		return fetcher;
+	}
+
+	public void setFetcher(PageFetcher fetcher)
+	{
+		this.fetcher = fetcher;
+	}
+
+	public LocalDocumentCache getDocumentCache()
+	{
+		return documentCache;
+	}
+
+	/**
+	 * <p>Set a cache where every downloaded page of a supported MIME type is stored, or
+	 * <code>null</code> for none (the default).</p>
+	 */
+	public void setDocumentCache(LocalDocumentCache documentCache)
+	{
+		this.documentCache = documentCache;
+	}
+
+	public long getHostDelay()
+	{
+		return hostDelay;
+	}
+
+	/**
+	 * <p>Set the minimum delay in milliseconds between two requests to the same host, the
+	 * host's robots.txt <code>Crawl-delay</code> is used if larger. Takes effect on the
+	 * next start.</p>
+	 */
+	public void setHostDelay(long hostDelay)
+	{
+		this.hostDelay = hostDelay;
+	}
+
+	public int getMaxConnectionsPerHost()
+	{
+		return maxConnectionsPerHost;
+	}
+
+	public void setMaxConnectionsPerHost(int maxConnectionsPerHost)
+	{
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+	}
+
+	public boolean isIgnoreRobots()
+	{
+		return ignoreRobots;
+	}
+
+	public void setIgnoreRobots(boolean ignoreRobots)
+	{
+		this.ignoreRobots = ignoreRobots;
+	}
+
+	public int getMaxPendingPerRoot()
+	{
+		return maxPendingPerRoot;
+	}
+
+	/**
+	 * <p>Set the maximum number of URLs of a crawl root that are queued in the scheduler
+	 * or being fetched at any time.</p>
+	 */
+	public void setMaxPendingPerRoot(int maxPendingPerRoot)
+	{
+		this.maxPendingPerRoot = maxPendingPerRoot;
+	}
+
+	public boolean isFullRecrawl()
+	{
+		return fullRecrawl;
+	}
+
+	/**
+	 * <p>
+	 * Set whether every page is passed to the callback on each crawl. By default, pages are
+	 * requested conditionally using the <code>ETag</code> and <code>Last-Modified</code> headers
+	 * of the previous crawl, and pages whose content hasn't changed are not passed to the
+	 * callback again (their links are still followed).
+	 * </p>
+	 */
+	public void setFullRecrawl(boolean fullRecrawl)
+	{
+		this.fullRecrawl = fullRecrawl;
+	}
+
+	/**
+	 * <p>Return the number of pages passed to the callback because they were new or their
+	 * content changed.</p>
+	 */
+	public long getChangedCount()
+	{
+		return changedCount.get();
+	}
+
+	/**
+	 * <p>Return the number of pages skipped because they didn't change since the previous
+	 * crawl, whether the server said so or the content hash did.</p>
+	 */
+	public long getUnchangedCount()
+	{
+		return unchangedCount.get();
+	}
+
+	/**
+	 * <p>Return the number of unchanged pages that the server didn't send again
+	 * (HTTP 304 Not Modified), included in {@link #getUnchangedCount()}.</p>
+	 */
+	public long getNotModifiedCount()
+	{
+		return notModifiedCount.get();
+	}
+
+	/**
+	 * <p>Return the scheduler of the running crawler, <code>null</code> if not started.</p>
+	 */
+	public CrawlScheduler getScheduler()
+	{
+		return scheduler;
+	}
+
 	public synchronized void start()
 	{
 		if (executorService != null && !executorService.isTerminated())
 			throw new IllegalStateException("The DISCO Crawler is already running (or wasn't properly shut down).");
-		executorService = Executors.newFixedThreadPool(nThreads);
+		// The crawling threads only coordinate the frontier of their root, the work is done
+		// by the scheduler's fetcher threads.
+		executorService = Executors.newCachedThreadPool();
+		scheduler = new CrawlScheduler(fetcher, nThreads);
+		scheduler.setHostDelay(hostDelay);
+		scheduler.setMaxConnectionsPerHost(maxConnectionsPerHost);
+		scheduler.setRespectRobots(!ignoreRobots);
 		Timer timer = DU.getTimer();
 		for (CrawlRoot root : getRoots())
 		{
@@ -244,8 +403,11 @@ public class Crawler implements HGGraphHolder
 		    ((CrawlingTask)task).getCrawlingThread().stopRunning();
 			task.cancel();
 		}
+		scheduler.shutdown();
 		executorService.shutdownNow();
 		tasks.clear();		
+		if (documentCache != null)
+			documentCache.flush();
 	}
 	
 	public boolean isRunning()
@@ -261,9 +423,50 @@ public class Crawler implements HGGraphHolder
 	private class CrawlingThread implements Runnable
 	{
 		private volatile boolean running = true;
+		private final AtomicBoolean inProgress = new AtomicBoolean(false);
 		private CrawlRoot root;
-		private Set<String> examined = new HashSet<String>();
-		private SimpleStack<CrawlResult> remaining = new SimpleStack<CrawlResult>();	
+		private CrawlFrontier frontier;
+		private CrawlHistory history;
+		// Visited URLs with the links found on them, or null links when not visited.
+		private final LinkedBlockingQueue<Pair<CrawlResult, List<CrawlResult>>> visited = 
+		    new LinkedBlockingQueue<Pair<CrawlResult, List<CrawlResult>>>();
+		
+		private class VisitJob extends CrawlScheduler.Job
+		{
+		    CrawlResult cr;
+		    
+		    VisitJob(CrawlResult cr) throws MalformedURLException
+		    {
+		        super(new URL(cr.getUrl()), root.getCrawlingInterval());
+		        this.cr = cr;
+		    }
+		    
+		    public void run()
+		    {
+		        List<CrawlResult> links = Collections.emptyList();
+		        try
+		        {
+		            links = visit(cr);
+		        }
+		        catch (Throwable t)
+		        {
+		            DU.log.error("While visiting '" + cr.getUrl() + "'" + 
+		                         " within root '" + root.getUrl() + "'", t);
+		        }
+		        visited.add(new Pair<CrawlResult, List<CrawlResult>>(cr, links));
+		    }
+		    
+		    public void denied()
+		    {
+		        DU.log.debug("Not visiting '" + cr.getUrl() + "', disallowed by robots.txt");
+		        visited.add(new Pair<CrawlResult, List<CrawlResult>>(cr, Collections.<CrawlResult>emptyList()));
+		    }
+		    
+		    public void cancelled()
+		    {
+		        visited.add(new Pair<CrawlResult, List<CrawlResult>>(cr, null));
+		    }
+		}
 		
 		private boolean shouldExamine(URL url)
 		{
@@ -283,91 +486,43 @@ public class Crawler implements HGGraphHolder
 		        return true;
 		}
 		
-		private Map<String, Object> collectMetaData(URL url)
+		private Map<String, Object> collectMetaData(FetchedPage page)
 		{
 		    Map<String, Object> result = new HashMap<String, Object>();
-		    try
+		    if (page.getMime() != null)
+		        result.put(CrawlResult.MIME, page.getMime());
+		    result.put(CrawlResult.ENCODING, page.getCharset() != null ? 
+		                                     page.getCharset() : page.getHeader("content-encoding"));
+		    String lastModified = page.getHeader("last-modified");
+		    if (lastModified != null)
 		    {
-		        URLConnection conn = DiscoProxySettings.newConnection(url);
-		        String contentType = conn.getContentType();
-		        if (contentType != null)
+		        try
 		        {
-		            String [] parts = contentType.split(";");
-		            for (String x : parts)
-		            {
-		                String [] nameValue = x.split("=");
-		                if (nameValue.length > 1)
-		                {
-		                    String name = nameValue[0].trim();
-		                    String value = nameValue[1].trim();
-		                    if ("mime".equals(name))
-		                        result.put(CrawlResult.MIME, value);
-		                    else if ("charset".equals(name))
-		                        result.put(CrawlResult.ENCODING, value);
-		                }
-		                else
-		                    result.put(CrawlResult.MIME, x.trim());       
-		            }		            
+		            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		            result.put(CrawlResult.LAST_MODIFIED, format.parse(lastModified));
 		        }
-		        if (!result.containsKey(CrawlResult.ENCODING))
-		            result.put(CrawlResult.ENCODING, conn.getContentEncoding());
-		    }
-		    catch (IOException ex)
-		    {
-		        DU.log.warn("Failed to open url '" + url.toExternalForm() + "'", ex);
+		        catch (ParseException ex) { } // ignore invalid dates
 		    }
 		    return result;
 		}
-
-        private Set<String> detectLinks(String plainText)
-        {
-            Set<String> result = new HashSet<String>();
-            // We only need to identify a potential URL here, so the regex is very simple!
-            String regex ="http(s)?://\\S*";
-            Pattern pat = Pattern.compile(regex);
-            Matcher matcher = pat.matcher(plainText);
-            while (matcher.find())
-                result.add(plainText.substring(matcher.start(), matcher.end() + 1));
-            return result;
-        }
-        
-		private Set<String> collectLinks(CrawlResult cr)
+		
+		private void follow(CrawlResult cr, List<String> links, List<CrawlResult> next)
 		{
-		    Set<String> result = new HashSet<String>();
-		    if (MimeType.HTML.toString().equals(cr.getMime()))
-		    {
-		        HTMLDocument doc = new HTMLDocument(DU.toUrl(cr.getUrl()));
-		        doc.getDesiredTags().clear();
-		        doc.getDesiredTags().add(HTMLElementName.A);
-		        doc.getDesiredAttributes().clear();
-		        doc.getDesiredAttributes().add("href");
-		        doc.load();
-		        for (Ann ann : doc.getAnnotations())
-		        {
-		            if (! (ann instanceof MarkupAnn) ) continue;
-		            MarkupAnn mann = (MarkupAnn)ann;
-		            String href = mann.getAttributes().get("href");
-		            if (!DU.isEmpty(href))
-		                result.add(href);
-		        }
-		    }
-		    else if (MimeType.PLAIN.toString().equals(cr.getMime()))
-		    {		        
-		        DefaultTextDocument doc = new DefaultTextDocument(DU.toUrl(cr.getUrl()));
-		        String text = doc.getFullText();
-		        result.addAll(detectLinks(text));
-		    }
-		    else if (MimeType.PDF.toString().equals(cr.getMime()))
+		    if (cr.getDepth() >= root.getDepth())
+		        return;
+		    for (String l : links)
 		    {
-                PDFDocument doc = new PDFDocument(DU.toUrl(cr.getUrl()));
-                String text = doc.getFullText();
-                result.addAll(detectLinks(text));		        
+		        URL link = null;
+		        try { link = new URL(l); }
+		        catch (MalformedURLException e) { continue; }
+		        if (shouldExamine(link))
+		            next.add(new CrawlResult(l, cr.getDepth()+1, root));
 		    }
-		    return result;
 		}
 		
-		private void visit(CrawlResult cr)
+		private List<CrawlResult> visit(CrawlResult cr)
 		{		    
+		    List<CrawlResult> next = new ArrayList<CrawlResult>();
 		    URL url = null;		     
 		    try 
 		    { 
@@ -377,33 +532,70 @@ public class Crawler implements HGGraphHolder
 		    {                        
 		        DU.log.error("Malformed URL '" + cr.getUrl() + 
 		                     "'  while crawling '" + root.getUrl() + "'");
-		        return; 
-		    }		    
-		    Map<String, Object> meta = collectMetaData(url);
-		    if (meta == null)
-		        return;
-		    cr.getMetaData().putAll(meta);
+		        return next; 
+		    }
+		    CrawlHistory.Entry previous = fullRecrawl ? null : history.get(cr.getUrl());
+		    FetchedPage page;
+		    try
+		    {
+		        page = fetcher.fetch(url, previous == null ? null : previous.getConditionalHeaders());
+		    }
+		    catch (IOException ex)
+		    {
+		        DU.log.warn("Failed to open url '" + url.toExternalForm() + "'", ex);
+		        return next;
+		    }
+		    if (page.getStatus() == HttpURLConnection.HTTP_NOT_MODIFIED && previous != null)
+		    {
+		        notModifiedCount.incrementAndGet();
+		        unchangedCount.incrementAndGet();
+		        follow(cr, previous.getLinks(), next);
+		        return next;
+		    }
+		    if (page.getStatus() >= 400)
+		    {
+		        DU.log.warn("Got HTTP " + page.getStatus() + " for '" + url.toExternalForm() + "'");
+		        return next;
+		    }
+		    cr.setPage(page);
+		    cr.getMetaData().putAll(collectMetaData(page));
 		    if (cr.getMime() == null) // we ignore unknown MIME types.
-		        return;
-		    if (root.getMimesToReturn().contains(cr.getMime()))		    
-		        callback.eval(cr);
+		        return next;
+		    long hash = CrawlHistory.contentHash(page.getBody());
+		    cr.getMetaData().put(CrawlResult.CONTENT_HASH, hash);
+		    if (page.getHeader("etag") != null)
+		        cr.getMetaData().put(CrawlResult.ETAG, page.getHeader("etag"));
+		    if (previous == null || previous.getContentHash() != hash)
+		    {
+		        changedCount.incrementAndGet();
+    		    if (documentCache != null)
+    		        documentCache.cacheUrl(cr.getUrl(), page.getBody(), cr.getMime());
+    		    if (root.getMimesToReturn().contains(cr.getMime()))		    
+    		        callback.eval(cr);
+		    }
+		    else
+		        unchangedCount.incrementAndGet();
+		    List<String> links = new ArrayList<String>();
 		    if (cr.getDepth() < root.getDepth() && root.getMimesToFollow().contains(cr.getMime()))
 		    {
-    		    Set<String> links = collectLinks(cr);
-    		    for (String l : links)
+    		    for (String l : page.getLinks())
     		    {   
-    		        URL link = null;    		        
-    		        try { link = new URL(url, l); } 
+    		        if (l.indexOf('\n') > -1)
+    		            continue;
+    		        // relative to the final URL in case of a redirect
+    		        try { links.add(new URL(page.getUrl(), l).toExternalForm()); } 
     		        catch (Throwable e) { continue; }
-    		        
-    		        l = link.toExternalForm();
-    		        if (!examined.contains(l) && shouldExamine(link))
-    		        {
-    		            examined.add(l);
-    		            remaining.push(new CrawlResult(l, cr.getDepth()+1, root));
-    		        }
     		    }
 		    }
+		    // Recorded only once the callback is done with the page, a failed page is 
+		    // processed again on the next crawl.
+		    history.put(new CrawlHistory.Entry(cr.getUrl(), 
+		                                       page.getHeader("etag"), 
+		                                       page.getHeader("last-modified"), 
+		                                       hash, 
+		                                       links));
+		    follow(cr, links, next);
+		    return next;
 		}
 		
 		public CrawlingThread(CrawlRoot root)
@@ -414,29 +606,70 @@ public class Crawler implements HGGraphHolder
 		public void run()
 		{
 			String name = Thread.currentThread().getName();
+			boolean complete = false;
 			try
 			{				
 				Thread.currentThread().setName("Crawling " + root.getUrl());
-				remaining.push(new CrawlResult(root.getUrl(), 0, root));
-				while (!remaining.isEmpty() && running)
+				if (frontier == null)
 				{
-				    CrawlResult next = remaining.pop();
-				    try
-				    {
-				        visit(next);
-				    }
-				    catch (Throwable t)
+				    frontier = new CrawlFrontier(graph, root, bloomFilterBits);
+				    history = new CrawlHistory(graph, root);
+				}
+				if (frontier.isEmpty())
+				{
+				    frontier.clear();
+				    frontier.push(new CrawlResult(root.getUrl(), 0, root));
+				}
+				else
+				    DU.log.info("Resuming crawl of '" + root.getUrl() + "' with " + 
+				                frontier.size() + " URLs left.");
+				int pending = 0;
+				while (true)
+				{
+				    for (CrawlResult next = null; 
+				         running && pending < maxPendingPerRoot && (next = frontier.next()) != null; )
 				    {
-				        DU.log.error("While visiting '" + next.getUrl() + "'" + 
-				                     " within root '" + root.getUrl() + "'", t);
+				        try
+				        {
+				            scheduler.submit(new VisitJob(next));
+				            pending++;
+				        }
+				        catch (MalformedURLException ex)
+				        {
+    				        DU.log.error("Malformed URL '" + next.getUrl() + 
+    				                     "'  while crawling '" + root.getUrl() + "'");
+    				        frontier.remove(next);
+				        }
+				        catch (IllegalStateException ex) // scheduler shut down
+				        {
+				            running = false;
+				        }
 				    }
+				    if (pending == 0)
+				        break;
+				    Pair<CrawlResult, List<CrawlResult>> done = visited.take();
+				    pending--;
+				    if (done.getSecond() != null)
+				        frontier.remove(done.getFirst(), done.getSecond());
 				}
+				complete = running && frontier.isEmpty();
+				if (complete)
+				    frontier.clear();
+			}
+			catch (InterruptedException ex)
+			{
+			    // stopped, the frontier is resumed on the next start
 			}
 			finally
 			{
 				Thread.currentThread().setName(name);
-				root.setLastCrawlTimestamp(System.currentTimeMillis());
-				graph.update(root);
+				inProgress.set(false);
+				// An interrupted crawl keeps its timestamp so that it's resumed on the next start.
+				if (complete)
+				{
+				    root.setLastCrawlTimestamp(System.currentTimeMillis());
+				    graph.update(root);
+				}
 			}
 		}
 		
@@ -469,7 +702,9 @@ public class Crawler implements HGGraphHolder
 	    
         public void run()
         {
-            executorService.submit(crawlingThread);
+            // Don't start a new crawl of the root while the previous one is still running.
+            if (crawlingThread.inProgress.compareAndSet(false, true))
+                executorService.submit(crawlingThread);
         }	    
         
         public CrawlRoot getCrawlRoot()
@@ -0,0 +1,273 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.taca;
+
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import au.id.jericho.lib.html.HTMLElementName;
+import au.id.jericho.lib.html.Source;
+import au.id.jericho.lib.html.StartTag;
+
+import disko.DefaultTextDocument;
+import disko.HTMLDocument;
+import disko.PDFDocument;
+import disko.UrlTextDocument;
+import disko.data.MimeType;
+
+/**
+ * <p>
+ * A page downloaded by the {@link PageFetcher}: the response headers, the MIME type and
+ * character set determined from the headers and the content itself, and the buffered body.
+ * Everything the crawler does with a page - extracting links, caching it, handing it to the
+ * {@link CrawlResult} callback as a document - works from the buffered body, so the page is
+ * downloaded only once.
+ * </p>
+ */
+public class FetchedPage
+{
+	private static final Pattern META_CHARSET = Pattern.compile(
+		"<meta[^>]+charset\\s*=\\s*[\"']?([\\w\\-:.]+)", Pattern.CASE_INSENSITIVE);
+	private static final Pattern LINK = Pattern.compile("https?://\\S+");
+	private static final int SNIFF_LENGTH = 1024;
+
+	private URL url;
+	private int status;
+	private Map<String, String> headers = new HashMap<String, String>();
+	private byte [] body;
+	private String mime;
+	private String charset;
+	private String text;
+	private UrlTextDocument document;
+
+	FetchedPage(URL url, int status, Map<String, String> headers, byte [] body)
+	{
+		this.url = url;
+		this.status = status;
+		this.headers = headers;
+		this.body = body;
+		String contentType = getHeader("content-type");
+		if (contentType != null)
+		{
+			for (String part : contentType.split(";"))
+			{
+				String [] nameValue = part.split("=", 2);
+				if (nameValue.length > 1)
+				{
+					if ("charset".equalsIgnoreCase(nameValue[0].trim()))
+						charset = nameValue[1].trim().replace("\"", "");
+				}
+				else if (part.indexOf('/') > 0)
+					mime = part.trim().toLowerCase();
+			}
+		}
+		// Servers often get the type of static files wrong, trust the content for the
+		// types we know how to process.
+		String sniffed = sniffMime(body);
+		if (sniffed != null && (mime == null ||
+								"application/octet-stream".equals(mime) ||
+								MimeType.PLAIN.toString().equals(mime)))
+			mime = sniffed;
+		if (charset == null)
+			charset = sniffCharset(body, mime);
+	}
+
+	/**
+	 * <p>Guess the MIME type from the first bytes of a document, <code>null</code> if the
+	 * content isn't recognized.</p>
+	 */
+	public static String sniffMime(byte [] data)
+	{
+		int i = 0;
+		if (data.length >= 3 && (data[0] & 0xff) == 0xef && (data[1] & 0xff) == 0xbb && (data[2] & 0xff) == 0xbf)
+			i = 3;
+		while (i < data.length && Character.isWhitespace((char)data[i]))
+			i++;
+		if (startsWith(data, i, "%PDF-"))
+			return MimeType.PDF.toString();
+		String head = new String(data, i, Math.min(SNIFF_LENGTH, data.length - i), Charset.forName("ISO-8859-1")).toLowerCase();
+		if (head.startsWith("<!doctype html") || head.startsWith("<html") ||
+			head.contains("<head") || head.contains("<body"))
+			return MimeType.HTML.toString();
+		for (int j = i; j < Math.min(data.length, i + SNIFF_LENGTH); j++)
+			if (data[j] == 0)
+				return null; // binary
+		return data.length > i ? MimeType.PLAIN.toString() : null;
+	}
+
+	private static boolean startsWith(byte [] data, int offset, String prefix)
+	{
+		if (data.length - offset < prefix.length())
+			return false;
+		for (int i = 0; i < prefix.length(); i++)
+			if (data[offset + i] != prefix.charAt(i))
+				return false;
+		return true;
+	}
+
+	private static String sniffCharset(byte [] data, String mime)
+	{
+		if (data.length >= 3 && (data[0] & 0xff) == 0xef && (data[1] & 0xff) == 0xbb && (data[2] & 0xff) == 0xbf)
+			return "UTF-8";
+		if (data.length >= 2 && (data[0] & 0xff) == 0xfe && (data[1] & 0xff) == 0xff)
+			return "UTF-16BE";
+		if (data.length >= 2 && (data[0] & 0xff) == 0xff && (data[1] & 0xff) == 0xfe)
+			return "UTF-16LE";
+		if (MimeType.HTML.toString().equals(mime))
+		{
+			String head = new String(data, 0, Math.min(data.length, 4*SNIFF_LENGTH), Charset.forName("ISO-8859-1"));
+			Matcher m = META_CHARSET.matcher(head);
+			if (m.find() && Charset.isSupported(m.group(1)))
+				return m.group(1);
+		}
+		return null;
+	}
+
+	public URL getUrl()
+	{
+		return url;
+	}
+
+	public int getStatus()
+	{
+		return status;
+	}
+
+	/**
+	 * <p>Return the value of a response header, the name is case insensitive.</p>
+	 */
+	public String getHeader(String name)
+	{
+		return headers.get(name.toLowerCase());
+	}
+
+	public Map<String, String> getHeaders()
+	{
+		return headers;
+	}
+
+	public byte [] getBody()
+	{
+		return body;
+	}
+
+	public String getMime()
+	{
+		return mime;
+	}
+
+	/**
+	 * <p>Return the character set of a textual page as declared in the headers, a BOM or
+	 * an HTML <code>meta</code> tag, <code>null</code> if none was found.</p>
+	 */
+	public String getCharset()
+	{
+		return charset;
+	}
+
+	/**
+	 * <p>
+	 * Return the body decoded as text. Without a declared character set, the body is decoded
+	 * as UTF-8 if it is valid UTF-8 and as ISO-8859-1 otherwise.
+	 * </p>
+	 */
+	public synchronized String getText()
+	{
+		if (text != null)
+			return text;
+		if (charset != null && Charset.isSupported(charset))
+			return text = new String(body, Charset.forName(charset));
+		try
+		{
+			text = Charset.forName("UTF-8").newDecoder()
+						.onMalformedInput(CodingErrorAction.REPORT)
+						.onUnmappableCharacter(CodingErrorAction.REPORT)
+						.decode(ByteBuffer.wrap(body)).toString();
+		}
+		catch (CharacterCodingException ex)
+		{
+			text = new String(body, Charset.forName("ISO-8859-1"));
+		}
+		return text;
+	}
+
+	/**
+	 * <p>
+	 * Return the page as a document of the type corresponding to its MIME type, built
+	 * from the buffered body: an {@link HTMLDocument}, a {@link PDFDocument} or a
+	 * {@link DefaultTextDocument} for plain text. Return <code>null</code> for other types.
+	 * </p>
+	 */
+	public synchronized UrlTextDocument getDocument()
+	{
+		if (document != null)
+			return document;
+		if (MimeType.HTML.toString().equals(mime))
+			document = new HTMLDocument(url, getText());
+		else if (MimeType.PDF.toString().equals(mime))
+			document = new PDFDocument(url, body);
+		else if (MimeType.PLAIN.toString().equals(mime))
+			document = new DefaultTextDocument(url, getText());
+		if (document != null && charset != null)
+			document.setCharset(charset);
+		return document;
+	}
+
+	/**
+	 * <p>
+	 * Return the links found on the page, as they appear there (possibly relative).
+	 * HTML pages are scanned for anchors, other documents for anything that looks
+	 * like an HTTP URL in their text.
+	 * </p>
+	 */
+	@SuppressWarnings("unchecked")
+	public Set<String> getLinks()
+	{
+		Set<String> result = new LinkedHashSet<String>();
+		if (MimeType.HTML.toString().equals(mime))
+		{
+			Source source = new Source(getText());
+			source.setLogger(null);
+			for (StartTag tag : (List<StartTag>)source.findAllStartTags())
+			{
+				if (!HTMLElementName.A.equals(tag.getName()))
+					continue;
+				String href = tag.getAttributeValue("href");
+				if (href != null && href.trim().length() > 0)
+					result.add(href.trim());
+			}
+		}
+		else if (MimeType.PLAIN.toString().equals(mime) || MimeType.PDF.toString().equals(mime))
+		{
+			// We only need to identify a potential URL here, so the regex is very simple!
+			Matcher matcher = LINK.matcher(getDocument().getFullText());
+			while (matcher.find())
+				result.add(matcher.group());
+		}
+		return result;
+	}
+
+	public String toString()
+	{
+		return "FetchedPage[" + url + ", " + status + ", " + mime + ", " + body.length + " bytes]";
+	}
+}
@@ -4,80 +4,339 @@
  * are made available under the terms of the GNU Lesser Public License v2.1
  * which accompanies this distribution, and is available at
  * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
- * 
+ *
  * Contributors:
  *     Borislav Iordanov - initial API and implementation
  *     Murilo Saraiva de Queiroz - initial API and implementation
  ******************************************************************************/
 package disko.taca;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.URL;
-import java.net.URLEncoder;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import disko.DU;
 import disko.utils.DiscoProxySettings;
 
+/**
+ * <p>
+ * A size bounded cache of downloaded documents on the local file system. Every document is
+ * stored in its own file, named after a fingerprint of its URL, under the cache directory.
+ * An index of the cached URLs with their file, size, content type, last access time and
+ * number of accesses is kept in memory and saved in the directory (see {@link #flush()}),
+ * so lookups never probe the file system and the cache survives restarts.
+ * </p>
+ *
+ * <p>
+ * When the total size of the documents exceeds {@link #getMaxBytes()}, the least recently
+ * used ({@link Policy#LRU}) or least frequently used ({@link Policy#LFU}) documents are
+ * evicted until the cache is back to 90% of its budget. Documents are written to a
+ * temporary file that is then renamed, so a document file is always complete, and the
+ * index is saved the same way. After a crash, files unknown to the index are deleted and
+ * entries whose file is gone are forgotten the next time the cache is opened.
+ * </p>
+ *
+ * <p>
+ * The cache is thread-safe. A file returned by {@link #getCachedUrl(String)} may be
+ * evicted or replaced afterwards, so it should be read promptly.
+ * </p>
+ *
+ * <p>
+ * The index is only saved every so many insertions and removals, so lookups never write
+ * to disk: the access statistics they update are saved along with the next change or by
+ * {@link #flush()}. Whoever owns the cache must call {@link #flush()} when done with it
+ * (the {@link Crawler} does when it is stopped). Otherwise the documents cached since the
+ * last save are forgotten and their files deleted the next time the cache is opened.
+ * </p>
+ *
+ * @author Borislav Iordanov
+ */
 public class LocalDocumentCache
 {
+    /**
+     * <p>The eviction policy of the cache.</p>
+     */
+    public enum Policy { LRU, LFU }
+
+    private static final String INDEX_FILE = "cache.index";
+    private static final int INDEX_MAGIC = 0x44434958;
+    private static final int INDEX_VERSION = 1;
+    private static final int TRANSFER_SIZE = 1024*1024;
+    // the index is saved after this many insertions, removals and evictions, in addition
+    // to flush(); lookups only update the access statistics in memory
+    private static final int FLUSH_EVERY = 1000;
+
+    private static class Entry
+    {
+        String url;
+        String file;
+        long size;
+        long lastAccess;
+        int accessCount;
+        String contentType;
+    }
+
     private File directory;
-    
-    private File getFileForUrl(String url)
+    private long maxBytes = 1024L*1024L*1024L;
+    private Policy policy = Policy.LRU;
+    // in access order, least recent first, for LRU eviction
+    private LinkedHashMap<String, Entry> index = null;
+    private Map<String, String> urlByFile = new HashMap<String, String>();
+    private long totalBytes = 0;
+    private int changes = 0;
+
+    private long hits = 0, misses = 0, evictions = 0, evictedBytes = 0;
+
+    public LocalDocumentCache()
+    {
+    }
+
+    public LocalDocumentCache(File directory, long maxBytes)
     {
-        URL uu = null;
-        try { uu = new URL(url); }
-        catch (Exception ex) { throw new RuntimeException(ex); }
-        String subdir = uu.getPort() == -1 ? uu.getHost() : uu.getHost() + "_" + uu.getPort();
-        File result = new File(directory, uu.getProtocol() + File.separator + subdir);
-        if (!DU.isEmpty(uu.getPath()))
-            result = new File(result, uu.getPath());
-        if (!DU.isEmpty(uu.getQuery()))
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    private static String fileName(String url)
+    {
+        String hex = Long.toHexString(CrawlFrontier.fingerprint(url));
+        while (hex.length() < 16)
+            hex = "0" + hex;
+        return hex.substring(0, 2) + "/" + hex + ".cache";
+    }
+
+    private File file(Entry e)
+    {
+        return new File(directory, e.file);
+    }
+
+    private void ensureOpen()
+    {
+        if (index != null)
+            return;
+        if (directory == null)
+            throw new IllegalStateException("No directory set for the document cache.");
+        index = new LinkedHashMap<String, Entry>(1024);
+        urlByFile.clear();
+        totalBytes = 0;
+        File indexFile = new File(directory, INDEX_FILE);
+        if (indexFile.exists())
         {
-            String query = URLEncoder.encode(uu.getQuery());
-            for (int i = 0; i < query.length(); )
+            try
             {
-                String part = query.substring(i, Math.min(query.length(), i+200));
-                result = new File(result, part);
-                i+=200;
+                readIndex(indexFile);
             }
-        }        
-        return new File(result.getParentFile(), result.getName() + ".cache");
+            catch (IOException ex)
+            {
+                DU.log.warn("Couldn't read the document cache index '" + indexFile + "', starting empty.", ex);
+                index.clear();
+                urlByFile.clear();
+                totalBytes = 0;
+            }
+        }
+        reconcile();
     }
-    
-    public void cacheUrl(String url)
+
+    private void readIndex(File indexFile) throws IOException
     {
-        InputStream in = null; 
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), 64*1024));
         try
-        {       
-            in = DiscoProxySettings.newConnection(new URL(url)).getInputStream();
-            cacheUrl(url, in);
+        {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION)
+                throw new IOException("Not a document cache index: " + indexFile);
+            int count = in.readInt();
+            List<Entry> entries = new ArrayList<Entry>(count);
+            for (int i = 0; i < count; i++)
+            {
+                Entry e = new Entry();
+                e.url = in.readUTF();
+                e.file = in.readUTF();
+                e.size = in.readLong();
+                e.lastAccess = in.readLong();
+                e.accessCount = in.readInt();
+                e.contentType = in.readUTF();
+                if (e.contentType.length() == 0)
+                    e.contentType = null;
+                entries.add(e);
+            }
+            // restore the access order
+            Collections.sort(entries, new Comparator<Entry>() {
+                public int compare(Entry a, Entry b)
+                {
+                    return a.lastAccess < b.lastAccess ? -1 : (a.lastAccess == b.lastAccess ? 0 : 1);
+                }
+            });
+            for (Entry e : entries)
+            {
+                index.put(e.url, e);
+                urlByFile.put(e.file, e.url);
+                totalBytes += e.size;
+            }
         }
-        catch (Exception ex)
+        finally
         {
-            throw new RuntimeException(ex);
+            in.close();
+        }
+    }
+
+    // Drop the entries whose file is gone and the files not in the index.
+    private void reconcile()
+    {
+        for (Iterator<Entry> i = index.values().iterator(); i.hasNext(); )
+        {
+            Entry e = i.next();
+            File f = file(e);
+            if (!f.isFile())
+            {
+                i.remove();
+                urlByFile.remove(e.file);
+                totalBytes -= e.size;
+            }
+            else if (f.length() != e.size)
+            {
+                totalBytes += f.length() - e.size;
+                e.size = f.length();
+            }
+        }
+        File [] dirs = directory.listFiles();
+        if (dirs == null)
+            return;
+        for (File dir : dirs)
+        {
+            if (dir.isFile() && dir.getName().endsWith(".index.tmp"))
+                dir.delete();
+            if (!dir.isDirectory() || dir.getName().length() != 2)
+                continue;
+            File [] files = dir.listFiles();
+            for (File f : files == null ? new File[0] : files)
+            {
+                String name = dir.getName() + "/" + f.getName();
+                if (f.getName().endsWith(".tmp") ||
+                    (f.getName().endsWith(".cache") && !urlByFile.containsKey(name)))
+                    f.delete();
+            }
+        }
+    }
+
+    private void writeIndex() throws IOException
+    {
+        directory.mkdirs();
+        File tmp = File.createTempFile("cache", ".index.tmp", directory);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 64*1024));
+        try
+        {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeInt(index.size());
+            for (Entry e : index.values())
+            {
+                out.writeUTF(e.url);
+                out.writeUTF(e.file);
+                out.writeLong(e.size);
+                out.writeLong(e.lastAccess);
+                out.writeInt(e.accessCount);
+                out.writeUTF(e.contentType == null ? "" : e.contentType);
+            }
         }
         finally
         {
-            if (in != null) try { in.close(); } catch (Throwable t) { }
-        }         
+            out.close();
+        }
+        rename(tmp, new File(directory, INDEX_FILE));
+        changes = 0;
     }
-    
-    public void cacheUrl(String url, InputStream in)
+
+    private static void rename(File from, File to) throws IOException
     {
-        File f = getFileForUrl(url);
-        OutputStream out = null;
+        // Atomic on POSIX file systems, elsewhere the target has to go first.
+        if (!from.renameTo(to))
+        {
+            to.delete();
+            if (!from.renameTo(to))
+            {
+                from.delete();
+                throw new IOException("Couldn't rename " + from + " to " + to);
+            }
+        }
+    }
+
+    private void changed()
+    {
+        if (++changes >= FLUSH_EVERY)
+        {
+            try
+            {
+                writeIndex();
+            }
+            catch (IOException ex)
+            {
+                DU.log.warn("Couldn't save the document cache index in " + directory, ex);
+            }
+        }
+    }
+
+    private void removeEntry(Entry e)
+    {
+        index.remove(e.url);
+        urlByFile.remove(e.file);
+        totalBytes -= e.size;
+        file(e).delete();
+    }
+
+    // Evict down to 90% of the budget, so that eviction doesn't run on every insertion.
+    private void evict()
+    {
+        if (totalBytes <= maxBytes)
+            return;
+        long target = maxBytes - maxBytes / 10;
+        List<Entry> victims = new ArrayList<Entry>(index.values());
+        if (policy == Policy.LFU)
+            Collections.sort(victims, new Comparator<Entry>() {
+                public int compare(Entry a, Entry b)
+                {
+                    if (a.accessCount != b.accessCount)
+                        return a.accessCount < b.accessCount ? -1 : 1;
+                    return a.lastAccess < b.lastAccess ? -1 : (a.lastAccess == b.lastAccess ? 0 : 1);
+                }
+            });
+        for (Iterator<Entry> i = victims.iterator(); i.hasNext() && totalBytes > target; )
+        {
+            Entry e = i.next();
+            removeEntry(e);
+            evictions++;
+            evictedBytes += e.size;
+        }
+        changed();
+    }
+
+    public void cacheUrl(String url)
+    {
+        InputStream in = null;
         try
-        {       
-            f.getParentFile().mkdirs();
-            out = new FileOutputStream(f);
-            int len = 4096;
-            byte [] A = new byte [len];
-            for (int read = in.read(A, 0, len); read > -1; read = in.read(A, 0, len))
-                out.write(A, 0, read);
+        {
+            URLConnection conn = DiscoProxySettings.newConnection(new URL(url));
+            in = conn.getInputStream();
+            cacheUrl(url, in, conn.getContentType());
         }
         catch (Exception ex)
         {
@@ -85,27 +344,240 @@ public class LocalDocumentCache
         }
         finally
         {
-            if (out != null) try { out.close(); } catch (Throwable t) { }
-        }           
+            if (in != null) try { in.close(); } catch (Throwable t) { }
+        }
     }
-    
+
+    public void cacheUrl(String url, InputStream in)
+    {
+        cacheUrl(url, in, null);
+    }
+
+    /**
+     * <p>Cache the content read from the stream (which is not closed) under the URL, with
+     * the given content type (may be <code>null</code>).</p>
+     */
+    public void cacheUrl(String url, InputStream in, String contentType)
+    {
+        cacheUrl(url, Channels.newChannel(in), null, contentType);
+    }
+
     public void cacheUrl(String url, String data)
     {
         cacheUrl(url, data.getBytes());
     }
-    
+
     public void cacheUrl(String url, byte [] data)
     {
-        cacheUrl(url, new ByteArrayInputStream(data));
+        cacheUrl(url, data, null);
+    }
+
+    public void cacheUrl(String url, byte [] data, String contentType)
+    {
+        cacheUrl(url, null, data, contentType);
     }
-    
-    public File getCachedUrl(String url)
+
+    private void cacheUrl(String url, ReadableByteChannel in, byte [] data, String contentType)
     {
-        File f = this.getFileForUrl(url);
-        if (f.exists())
-            return f;
-        else
+        synchronized (this)
+        {
+            ensureOpen();
+        }
+        String name = fileName(url);
+        File target = new File(directory, name);
+        File tmp = null;
+        long size = 0;
+        try
+        {
+            target.getParentFile().mkdirs();
+            tmp = File.createTempFile("doc", ".tmp", target.getParentFile());
+            FileOutputStream out = new FileOutputStream(tmp);
+            try
+            {
+                FileChannel channel = out.getChannel();
+                if (data != null)
+                {
+                    ByteBuffer buf = ByteBuffer.wrap(data);
+                    while (buf.hasRemaining())
+                        channel.write(buf);
+                }
+                else
+                {
+                    for (long n = channel.transferFrom(in, 0, TRANSFER_SIZE); n > 0;
+                         n = channel.transferFrom(in, channel.size(), TRANSFER_SIZE))
+                        ;
+                }
+                size = channel.size();
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        catch (Exception ex)
+        {
+            if (tmp != null)
+                tmp.delete();
+            throw new RuntimeException(ex);
+        }
+        synchronized (this)
+        {
+            ensureOpen();
+            if (size > maxBytes)
+            {
+                // would evict everything else and itself
+                tmp.delete();
+                Entry old = index.get(url);
+                if (old != null)
+                    removeEntry(old);
+                return;
+            }
+            try
+            {
+                rename(tmp, target);
+            }
+            catch (IOException ex)
+            {
+                throw new RuntimeException(ex);
+            }
+            Entry e = index.remove(url);
+            if (e == null)
+            {
+                String other = urlByFile.get(name);
+                if (other != null) // fingerprint collision, the file now belongs to this URL
+                {
+                    Entry o = index.remove(other);
+                    totalBytes -= o.size;
+                }
+                e = new Entry();
+                e.url = url;
+                e.file = name;
+                urlByFile.put(name, url);
+            }
+            else
+                totalBytes -= e.size;
+            index.put(url, e);
+            e.size = size;
+            e.contentType = contentType;
+            e.lastAccess = System.currentTimeMillis();
+            totalBytes += size;
+            changed();
+            evict();
+        }
+    }
+
+    /**
+     * <p>Return the file holding the cached content of the URL, <code>null</code> if it
+     * is not cached.</p>
+     */
+    public synchronized File getCachedUrl(String url)
+    {
+        ensureOpen();
+        Entry e = index.remove(url);
+        if (e == null)
+        {
+            misses++;
             return null;
+        }
+        index.put(url, e); // most recently used now
+        hits++;
+        e.lastAccess = System.currentTimeMillis();
+        e.accessCount++;
+        return file(e);
+    }
+
+    /**
+     * <p>Return the content type the URL was cached with, <code>null</code> if unknown or
+     * not cached. This doesn't count as an access.</p>
+     */
+    public synchronized String getContentType(String url)
+    {
+        ensureOpen();
+        Entry e = index.get(url);
+        return e == null ? null : e.contentType;
+    }
+
+    /**
+     * <p>Remove the URL from the cache.</p>
+     */
+    public synchronized void remove(String url)
+    {
+        ensureOpen();
+        Entry e = index.get(url);
+        if (e != null)
+        {
+            removeEntry(e);
+            changed();
+        }
+    }
+
+    /**
+     * <p>Remove all documents from the cache.</p>
+     */
+    public synchronized void clear()
+    {
+        ensureOpen();
+        for (Entry e : new ArrayList<Entry>(index.values()))
+            removeEntry(e);
+        flush();
+    }
+
+    /**
+     * <p>Save the index. This is done regularly as the cache changes, but should also be
+     * done before the application exits.</p>
+     */
+    public synchronized void flush()
+    {
+        if (index == null)
+            return;
+        try
+        {
+            writeIndex();
+        }
+        catch (IOException ex)
+        {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    public synchronized int getEntryCount()
+    {
+        ensureOpen();
+        return index.size();
+    }
+
+    /**
+     * <p>Return the total size in bytes of the cached documents.</p>
+     */
+    public synchronized long getTotalBytes()
+    {
+        ensureOpen();
+        return totalBytes;
+    }
+
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+
+    public synchronized long getEvictedBytes()
+    {
+        return evictedBytes;
+    }
+
+    public synchronized double getHitRatio()
+    {
+        return hits + misses == 0 ? 0 : (double)hits / (hits + misses);
     }
 
     public File getDirectory()
@@ -113,8 +585,39 @@ public class LocalDocumentCache
         return directory;
     }
 
-    public void setDirectory(File directory)
+    /**
+     * <p>Set the cache directory. The index of the previous directory, if any, is saved
+     * and the one of the new directory is loaded on first use.</p>
+     */
+    public synchronized void setDirectory(File directory)
     {
+        flush();
         this.directory = directory;
-    }    
+        index = null;
+    }
+
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    /**
+     * <p>Set the maximum total size of the cached documents in bytes (1GB by default).</p>
+     */
+    public synchronized void setMaxBytes(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+        if (index != null)
+            evict();
+    }
+
+    public Policy getPolicy()
+    {
+        return policy;
+    }
+
+    public synchronized void setPolicy(Policy policy)
+    {
+        this.policy = policy;
+    }
 }
@@ -4,29 +4,67 @@
  * are made available under the terms of the GNU Lesser Public License v2.1
  * which accompanies this distribution, and is available at
  * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
- * 
+ *
  * Contributors:
  *     Borislav Iordanov - initial API and implementation
  *     Murilo Saraiva de Queiroz - initial API and implementation
  ******************************************************************************/
 package disko.taca;
 
-import java.io.File;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.GZIPInputStream;
 
-import opennlp.maxent.io.SuffixSensitiveGISModelReader;
+import opennlp.maxent.io.BinaryGISModelReader;
+import opennlp.maxent.io.PlainTextGISModelReader;
 import opennlp.tools.sentdetect.SentenceDetector;
 import opennlp.tools.sentdetect.SentenceDetectorME;
 
 import relex.corpus.DocSplitter;
 import relex.corpus.TextInterval;
 
+/**
+ * <p>
+ * Sentence splitting with the OpenNLP maximum entropy sentence detector.
+ * </p>
+ *
+ * <p>
+ * {@link #process(String)} and {@link #split(String)} are thread-safe, so one instance
+ * may split many documents in parallel. Neither the OpenNLP detector nor its model can be
+ * used by several threads at once (the model keeps scratch state during evaluation), so
+ * detectors are pooled: the model file is read once per JVM and every thread borrows a
+ * detector with its own copy of the model for the duration of a call. The pool grows to
+ * the number of threads splitting at the same time.
+ * </p>
+ *
+ * <p>
+ * The FIFO mode ({@link #addText(String)} and {@link #getNextSentence()}) buffers text in
+ * the instance and is meant to be used by one thread at a time. Only a window of the
+ * buffer large enough to contain the next sentence is examined on each call, so draining
+ * a long buffer takes time proportional to its length.
+ * </p>
+ */
 public class OpenNLPSentenceDetector implements DocSplitter
 {
 	private static final int DEBUG = 0;
 	private static final String DEFAULT_ENGLISH_FILENAME =
 	        "data/sentence-detector/EnglishSD.bin.gz";
+	// The first window of FIFO text examined, and how far past a sentence end the window
+	// must go for the end to be trusted (the detector looks at the following text).
+	private static final int WINDOW = 4096;
+	private static final int LOOKAHEAD = 256;
+	// Compact the FIFO buffer once this much of it is consumed.
+	private static final int COMPACT_THRESHOLD = 64*1024;
 
 	private static HashSet<String> capitalizedUnacceptableSentenceEnds;
 
@@ -39,52 +77,140 @@ public class OpenNLPSentenceDetector implements DocSplitter
 		capitalizedUnacceptableSentenceEnds.add("MR.");
 	}
 
-	private static SentenceDetector detector;
+	/**
+	 * <p>The detectors of one model file. The file is read once and each detector gets
+	 * its own model built from the bytes read.</p>
+	 */
+	private static class DetectorPool
+	{
+		final String filename;
+		final byte [] model;
+		final ConcurrentLinkedQueue<SentenceDetector> idle = new ConcurrentLinkedQueue<SentenceDetector>();
+
+		DetectorPool(String filename, byte [] model)
+		{
+			this.filename = filename;
+			this.model = model;
+		}
+
+		static DetectorPool load(String filename) throws IOException
+		{
+			InputStream in = new FileInputStream(filename);
+			try
+			{
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				byte [] buf = new byte[64*1024];
+				for (int read = in.read(buf); read > -1; read = in.read(buf))
+					out.write(buf, 0, read);
+				return new DetectorPool(filename, out.toByteArray());
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+
+		SentenceDetector borrow() throws IOException
+		{
+			SentenceDetector detector = idle.poll();
+			if (detector == null)
+			{
+				InputStream in = new ByteArrayInputStream(model);
+				if (filename.endsWith(".gz"))
+					in = new GZIPInputStream(in);
+				if (filename.endsWith(".txt") || filename.endsWith(".txt.gz"))
+					detector = new SentenceDetectorME(new PlainTextGISModelReader(
+						new BufferedReader(new InputStreamReader(in))).getModel());
+				else
+					detector = new SentenceDetectorME(new BinaryGISModelReader(new DataInputStream(in)).getModel());
+			}
+			return detector;
+		}
+
+		void release(SentenceDetector detector)
+		{
+			idle.offer(detector);
+		}
+	}
 
-	// Returned values
-	private ArrayList<TextInterval> lst;
-	private ArrayList<String> snl;
+	private static final ConcurrentHashMap<String, DetectorPool> pools =
+		new ConcurrentHashMap<String, DetectorPool>();
 
-	// Buffered text, for FIFO mode.
-	private String buffer;
+	// The model file couldn't be loaded.
+	private static final DetectorPool NO_POOL = new DetectorPool(null, null);
+
+	// Buffered text, for FIFO mode: the text not returned yet starts at bufferStart.
+	private StringBuilder buffer = new StringBuilder();
+	private int bufferStart = 0;
 
 	// parameters
 	private String englishModelFilename;
+	private volatile DetectorPool pool;
 
 	/* --------------------------------------------------------------- */
 	public OpenNLPSentenceDetector()
 	{
-		buffer = "";
 	}
 
-	private void initialize()
+	private DetectorPool initialize()
 	{
-		if (detector == null)
+		DetectorPool p = pool;
+		if (p != null)
+			return p;
+		String filename = englishModelFilename;
+		if (filename == null)
+			filename = System.getProperty("EnglishModelFilename");
+		if (filename == null || filename.length() == 0)
 		{
-			try
+		    String home = System.getProperty("disko.home");
+		    if (home == null)
+		        home = "";
+			filename = home + DEFAULT_ENGLISH_FILENAME;
+		}
+		p = pools.get(filename);
+		if (p == null)
+		{
+			synchronized (pools)
 			{
-				if (englishModelFilename == null)
-					englishModelFilename = System.getProperty("EnglishModelFilename");
-				if (englishModelFilename == null || englishModelFilename.length() == 0)
+				p = pools.get(filename);
+				if (p == null)
 				{
-				    String home = System.getProperty("disko.home");
-				    if (home == null)
-				        home = "";
-					englishModelFilename = home + DEFAULT_ENGLISH_FILENAME;
+					try
+					{
+						p = DetectorPool.load(filename);
+					}
+					catch (Exception e)
+					{
+						e.printStackTrace();
+						p = NO_POOL;
+					}
+					pools.put(filename, p);
 				}
-				detector = new SentenceDetectorME(new SuffixSensitiveGISModelReader(new File(englishModelFilename)).getModel());
-			}
-			catch (Exception e)
-			{
-				e.printStackTrace();
 			}
 		}
+		return pool = p;
+	}
+
+	private SentenceDetector borrow(DetectorPool p)
+	{
+		if (p == NO_POOL)
+			return null;
+		try
+		{
+			return p.borrow();
+		}
+		catch (IOException ex)
+		{
+			ex.printStackTrace();
+			return null;
+		}
 	}
 
 	/* --------------------------------------------------------------- */
 	public void setEnglishModelFilename(String emf)
 	{
 		englishModelFilename = emf;
+		pool = null;
 	}
 
 	public String getEnglishModelFilename()
@@ -104,7 +230,7 @@ public class OpenNLPSentenceDetector implements DocSplitter
 		{
 			int len = endString.length();
 			if (end >= start + len && s.substring(end - len, end).toUpperCase().equals(endString)
-			    && (end == start + len || Character.isWhitespace(s.charAt(end - len - 1)))) 
+			    && (end == start + len || Character.isWhitespace(s.charAt(end - len - 1))))
 			{
 				return false;
 			}
@@ -112,6 +238,31 @@ public class OpenNLPSentenceDetector implements DocSplitter
 		return true;
 	}
 
+	/**
+	 * Return the interval of the text between start and end trimmed like
+	 * String.trim(), or null if it's blank.
+	 */
+	private static TextInterval trim(String docText, int start, int end)
+	{
+		while (start < end && docText.charAt(start) <= ' ')
+			start++;
+		while (end > start && docText.charAt(end - 1) <= ' ')
+			end--;
+		return start == end ? null : new TextInterval(start, end);
+	}
+
+	/**
+	 * Return the trimmed interval of a sentence between start and end, or null
+	 * if it's blank or doesn't end at an acceptable break.
+	 */
+	private TextInterval foundSentence(String docText, int start, int end)
+	{
+		TextInterval ivl = trim(docText, start, end);
+		if (ivl == null || !acceptableBreak(docText, ivl.getStart(), ivl.getEnd()))
+			return null;
+		return ivl;
+	}
+
 	/* --------------------------------------------------------------- */
 	/**
 	 * Add more text to the buffer.
@@ -120,7 +271,7 @@ public class OpenNLPSentenceDetector implements DocSplitter
 	 */
 	public void addText(String newText)
 	{
-		buffer += newText;
+		buffer.append(newText);
 	}
 
 	/**
@@ -128,7 +279,8 @@ public class OpenNLPSentenceDetector implements DocSplitter
 	 */
 	public void clearBuffer()
 	{
-		buffer = "";
+		buffer.setLength(0);
+		bufferStart = 0;
 	}
 
 	/**
@@ -137,43 +289,47 @@ public class OpenNLPSentenceDetector implements DocSplitter
 	 */
 	public String getNextSentence()
 	{
-        initialize();
-        
+		DetectorPool p = initialize();
+		SentenceDetector detector = borrow(p);
 		// punt if no sentence detector
 		if (detector == null)
 		{
-			String rc = buffer;
-			buffer = "";
+			String rc = buffer.substring(bufferStart);
+			clearBuffer();
 			return rc;
 		}
-
-		int[] sentenceEnds = detector.sentPosDetect(buffer);
-		if (0 == sentenceEnds.length) return null;
-
-		start = 0;
-		end = sentenceEnds[0];
-		if (!foundSentence(buffer)) return null;
-
-		buffer = buffer.substring(trimmedEnd);
-		return trimmedSentence;
-	}
-
-	/* --------------------------------------------------------------- */
-	int start;
-	int end;
-	int trimmedStart;
-	int trimmedEnd;
-	String trimmedSentence;
-
-	private Boolean foundSentence(String docText)
-	{
-		trimmedSentence = docText.substring(start, end).trim();
-		if (trimmedSentence == null || trimmedSentence.length() == 0)
-			return false;
-
-		trimmedStart = docText.indexOf(trimmedSentence.charAt(0), start);
-		trimmedEnd = trimmedStart + trimmedSentence.length();
-		return acceptableBreak(docText, trimmedStart, trimmedEnd);
+		try
+		{
+			int available = buffer.length() - bufferStart;
+			for (int window = WINDOW; ; window *= 2)
+			{
+				boolean whole = window >= available;
+				String text = buffer.substring(bufferStart, bufferStart + Math.min(window, available));
+				int start = 0;
+				for (int sentenceEnd : detector.sentPosDetect(text))
+				{
+					// too close to the end of a partial window to be sure
+					if (!whole && sentenceEnd > text.length() - LOOKAHEAD)
+						break;
+					TextInterval ivl = foundSentence(text, start, sentenceEnd);
+					if (ivl == null)
+						continue; // merge with the next one
+					bufferStart += ivl.getEnd();
+					if (bufferStart > COMPACT_THRESHOLD && bufferStart > buffer.length() / 2)
+					{
+						buffer.delete(0, bufferStart);
+						bufferStart = 0;
+					}
+					return text.substring(ivl.getStart(), ivl.getEnd());
+				}
+				if (whole)
+					return null;
+			}
+		}
+		finally
+		{
+			p.release(detector);
+		}
 	}
 
 	/* --------------------------------------------------------------- */
@@ -183,7 +339,8 @@ public class OpenNLPSentenceDetector implements DocSplitter
 	 */
 	public ArrayList<TextInterval> process(String docText)
 	{
-		_process(docText);
+		ArrayList<TextInterval> lst = new ArrayList<TextInterval>();
+		_process(docText, lst, null);
 		return lst;
 	}
 
@@ -193,59 +350,59 @@ public class OpenNLPSentenceDetector implements DocSplitter
 	 */
 	public ArrayList<String> split(String docText)
 	{
-		_process(docText);
+		ArrayList<String> snl = new ArrayList<String>();
+		_process(docText, null, snl);
 		return snl;
 	}
 
-	private void _process(String docText)
+	private void _process(String docText, ArrayList<TextInterval> lst, ArrayList<String> snl)
 	{
-        initialize();
-        
-		lst = new ArrayList<TextInterval>();
-		snl = new ArrayList<String>();
 		if (docText == null) return;
-
-		int[] sentenceEnds = detector.sentPosDetect(docText);
+		DetectorPool p = initialize();
+		SentenceDetector detector = borrow(p);
+		if (detector == null) return;
+		int [] sentenceEnds;
+		try
+		{
+			sentenceEnds = detector.sentPosDetect(docText);
+		}
+		finally
+		{
+			p.release(detector);
+		}
 
 		// The detector chokes on single sentences for some reason.
 		if (sentenceEnds.length == 0)
 		{
-	        trimmedSentence = docText.trim();
-	        if (trimmedSentence != null && trimmedSentence.length() > 0)
-	        {
-    	        trimmedStart = docText.indexOf(trimmedSentence.charAt(0), start);
-    	        trimmedEnd = trimmedStart + trimmedSentence.length();
-                lst.add(new TextInterval(trimmedStart, trimmedEnd));
-                snl.add(trimmedSentence);
-	        }
-            return;
-		}
-		
-		start = 0;
-		end = 0;
+			TextInterval ivl = trim(docText, 0, docText.length());
+			if (ivl != null)
+				add(docText, ivl, lst, snl);
+			return;
+		}
+
+		int start = 0;
 		for (int sentenceEnd : sentenceEnds)
 		{
-			int prevstart = start;
-			start = end; // from previous loop iteration
-			end = sentenceEnd;
-
-			if (!foundSentence(docText))
-			{
-				// go back to previous start
-				start = prevstart;
-				end = prevstart;
+			TextInterval ivl = foundSentence(docText, start, sentenceEnd);
+			// otherwise keep the start, the text goes with the next sentence
+			if (ivl == null)
 				continue;
-			}
-
-			if (DEBUG > 0) System.out.println(start + "," + end + ": " + trimmedSentence);
-			lst.add(new TextInterval(trimmedStart, trimmedEnd));
-			snl.add(trimmedSentence);
+			if (DEBUG > 0) System.out.println(start + "," + sentenceEnd + ": " + docText.substring(ivl.getStart(), ivl.getEnd()));
+			add(docText, ivl, lst, snl);
+			start = sentenceEnd;
 		}
 	}
-	
+
+	private static void add(String docText, TextInterval ivl, ArrayList<TextInterval> lst, ArrayList<String> snl)
+	{
+		if (lst != null)
+			lst.add(ivl);
+		if (snl != null)
+			snl.add(docText.substring(ivl.getStart(), ivl.getEnd()));
+	}
+
     public boolean operational()
     {
-        if (detector == null) return false;
-        return true;
-    }	
+        return initialize() != NO_POOL;
+    }
 }
@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.taca;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import disko.utils.DiscoProxySettings;
+
+/**
+ * <p>
+ * Downloads pages for the crawler in a single request each: the headers and the whole
+ * body (up to {@link #getMaxBytes()}) are read into a {@link FetchedPage}, which the
+ * crawler then uses for everything else. Connections go through the
+ * {@link DiscoProxySettings}. The fetcher is thread-safe.
+ * </p>
+ */
+public class PageFetcher
+{
+	private int connectTimeout = 30000;
+	private int readTimeout = 60000;
+	private int maxBytes = 16*1024*1024;
+	private String userAgent = "disko-taca/1.0";
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+
+	/**
+	 * <p>
+	 * Download a page. HTTP error responses don't throw an exception, they result in a
+	 * page with the error status and whatever body the server sent. Bodies larger than
+	 * the maximum size are truncated.
+	 * </p>
+	 */
+	public FetchedPage fetch(URL url) throws IOException
+	{
+		return fetch(url, null);
+	}
+
+	/**
+	 * <p>Download a page with additional request headers.</p>
+	 */
+	public FetchedPage fetch(URL url, Map<String, String> requestHeaders) throws IOException
+	{
+		URLConnection conn = DiscoProxySettings.newConnection(url);
+		conn.setConnectTimeout(connectTimeout);
+		conn.setReadTimeout(readTimeout);
+		conn.setRequestProperty("User-Agent", userAgent);
+		if (requestHeaders != null)
+			for (Map.Entry<String, String> e : requestHeaders.entrySet())
+				conn.setRequestProperty(e.getKey(), e.getValue());
+		requests.incrementAndGet();
+		int status = 200;
+		InputStream in;
+		if (conn instanceof HttpURLConnection)
+		{
+			HttpURLConnection http = (HttpURLConnection)conn;
+			status = http.getResponseCode();
+			in = status >= 400 ? http.getErrorStream() : http.getInputStream();
+		}
+		else
+			in = conn.getInputStream();
+		Map<String, String> headers = new HashMap<String, String>();
+		for (Map.Entry<String, List<String>> e : conn.getHeaderFields().entrySet())
+			if (e.getKey() != null && !e.getValue().isEmpty())
+				headers.put(e.getKey().toLowerCase(), e.getValue().get(0));
+		byte [] body = in == null ? new byte[0] : read(in, conn.getContentLength());
+		bytes.addAndGet(body.length);
+		// after redirects
+		return new FetchedPage(conn.getURL(), status, headers, body);
+	}
+
+	private byte [] read(InputStream in, int contentLength) throws IOException
+	{
+		try
+		{
+			ByteArrayOutputStream out = new ByteArrayOutputStream(
+				contentLength > 0 ? Math.min(contentLength, maxBytes) : 64*1024);
+			byte [] buf = new byte[64*1024];
+			for (int read = in.read(buf); read > -1 && out.size() < maxBytes; read = in.read(buf))
+				out.write(buf, 0, Math.min(read, maxBytes - out.size()));
+			return out.toByteArray();
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * <p>Return the number of requests made so far.</p>
+	 */
+	public long getRequestCount()
+	{
+		return requests.get();
+	}
+
+	/**
+	 * <p>Return the number of body bytes downloaded so far.</p>
+	 */
+	public long getByteCount()
+	{
+		return bytes.get();
+	}
+
+	public int getConnectTimeout()
+	{
+		return connectTimeout;
+	}
+
+	public void setConnectTimeout(int connectTimeout)
+	{
+		this.connectTimeout = connectTimeout;
+	}
+
+	public int getReadTimeout()
+	{
+		return readTimeout;
+	}
+
+	public void setReadTimeout(int readTimeout)
+	{
+		this.readTimeout = readTimeout;
+	}
+
+	public int getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	public void setMaxBytes(int maxBytes)
+	{
+		this.maxBytes = maxBytes;
+	}
+
+	public String getUserAgent()
+	{
+		return userAgent;
+	}
+
+	public void setUserAgent(String userAgent)
+	{
+		this.userAgent = userAgent;
+	}
+}
@@ -0,0 +1,170 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.taca;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * The rules of a <code>robots.txt</code> file that apply to one user agent. The group
+ * for the most specific matching <code>User-agent</code> line is used, or the <code>*</code>
+ * group if none matches. A path is allowed unless the longest matching rule is a
+ * <code>Disallow</code>; rules may contain <code>*</code> wildcards and end with <code>$</code>.
+ * The <code>Crawl-delay</code> of the group, if any, is available as well.
+ * </p>
+ */
+public class RobotsRules
+{
+	/** Rules allowing everything, used when a site has no <code>robots.txt</code>. */
+	public static final RobotsRules ALLOW_ALL = new RobotsRules();
+
+	private static class Rule
+	{
+		String pattern;
+		boolean allow;
+		Rule(String pattern, boolean allow) { this.pattern = pattern; this.allow = allow; }
+	}
+
+	private List<Rule> rules = new ArrayList<Rule>();
+	private long crawlDelay = -1;
+
+	private RobotsRules()
+	{
+	}
+
+	/**
+	 * <p>Parse the content of a <code>robots.txt</code> file for the given user agent
+	 * (its product token, e.g. <code>disko-taca</code>, is matched case insensitively).</p>
+	 */
+	public static RobotsRules parse(String robotsTxt, String userAgent)
+	{
+		String agent = userAgent.toLowerCase();
+		int slash = agent.indexOf('/');
+		if (slash > 0)
+			agent = agent.substring(0, slash);
+		RobotsRules specific = null, any = null, current = null;
+		int specificLength = -1;
+		boolean inAgents = false;
+		for (String line : robotsTxt.split("\r\n|\r|\n"))
+		{
+			int hash = line.indexOf('#');
+			if (hash > -1)
+				line = line.substring(0, hash);
+			int colon = line.indexOf(':');
+			if (colon < 0)
+				continue;
+			String field = line.substring(0, colon).trim().toLowerCase();
+			String value = line.substring(colon + 1).trim();
+			if ("user-agent".equals(field))
+			{
+				if (!inAgents)
+				{
+					current = new RobotsRules();
+					inAgents = true;
+				}
+				String name = value.toLowerCase();
+				if ("*".equals(name))
+				{
+					if (any == null)
+						any = current;
+				}
+				else if (name.length() > 0 && agent.contains(name) && name.length() > specificLength)
+				{
+					specific = current;
+					specificLength = name.length();
+				}
+				continue;
+			}
+			inAgents = false;
+			if (current == null)
+				continue;
+			if ("disallow".equals(field))
+			{
+				if (value.length() > 0) // an empty Disallow allows everything
+					current.rules.add(new Rule(value, false));
+			}
+			else if ("allow".equals(field))
+			{
+				if (value.length() > 0)
+					current.rules.add(new Rule(value, true));
+			}
+			else if ("crawl-delay".equals(field))
+			{
+				try
+				{
+					current.crawlDelay = (long)(Double.parseDouble(value) * 1000);
+				}
+				catch (NumberFormatException ex) { }
+			}
+		}
+		RobotsRules result = specific != null ? specific : any;
+		return result != null ? result : ALLOW_ALL;
+	}
+
+	/**
+	 * <p>Return whether the path (with query string, if any) may be crawled.</p>
+	 */
+	public boolean isAllowed(String path)
+	{
+		if (path == null || path.length() == 0)
+			path = "/";
+		int bestLength = -1;
+		boolean allowed = true;
+		for (Rule r : rules)
+		{
+			if (!matches(r.pattern, path))
+				continue;
+			int length = r.pattern.length();
+			if (length > bestLength || (length == bestLength && r.allow))
+			{
+				bestLength = length;
+				allowed = r.allow;
+			}
+		}
+		return allowed;
+	}
+
+	static boolean matches(String pattern, String path)
+	{
+		boolean anchored = pattern.endsWith("$");
+		if (anchored)
+			pattern = pattern.substring(0, pattern.length() - 1);
+		return matches(pattern, 0, path, 0, anchored);
+	}
+
+	private static boolean matches(String pattern, int p, String path, int i, boolean anchored)
+	{
+		for (; p < pattern.length(); p++, i++)
+		{
+			char c = pattern.charAt(p);
+			if (c == '*')
+			{
+				for (int j = i; j <= path.length(); j++)
+					if (matches(pattern, p + 1, path, j, anchored))
+						return true;
+				return false;
+			}
+			if (i >= path.length() || path.charAt(i) != c)
+				return false;
+		}
+		return !anchored || i == path.length();
+	}
+
+	/**
+	 * <p>Return the crawl delay requested by the site in milliseconds, -1 if none.</p>
+	 */
+	public long getCrawlDelay()
+	{
+		return crawlDelay;
+	}
+}
@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.utils;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * A fixed size Bloom filter over 64-bit fingerprints. The <code>k</code> bit positions
+ * of a fingerprint are derived from its two 32-bit halves by double hashing, so the
+ * fingerprints should already be well mixed (see {@link #mix(long)}). A negative answer
+ * from {@link #mightContain(long)} is definite, a positive one is wrong with a probability
+ * that depends on the number of elements added and on the size of the filter.
+ * </p>
+ *
+ * <p>
+ * The filter is thread-safe: bits are set with synchronized access to the underlying array
+ * word and read without locking (a concurrent <code>add</code> may or may not be seen).
+ * </p>
+ */
+public class BloomFilter
+{
+	private final long [] bits;
+	private final long size;
+	private final int k;
+
+	/**
+	 * <p>Return a filter sized for <code>expected</code> elements at the given false
+	 * positive rate.</p>
+	 */
+	public static BloomFilter create(long expected, double falsePositiveRate)
+	{
+		long m = (long)Math.ceil(-expected * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+		int k = (int)Math.max(1, Math.round((double)m / expected * Math.log(2)));
+		return new BloomFilter(m, k);
+	}
+
+	public BloomFilter(long sizeInBits, int hashes)
+	{
+		if (sizeInBits < 64 || hashes < 1)
+			throw new IllegalArgumentException("Bloom filter needs at least 64 bits and 1 hash function.");
+		this.bits = new long[(int)((sizeInBits + 63) / 64)];
+		this.size = bits.length * 64L;
+		this.k = hashes;
+	}
+
+	/**
+	 * <p>The 64-bit finalizer of MurmurHash3: spreads the bits of a weak hash such as
+	 * <code>String.hashCode</code> or FNV over the whole word.</p>
+	 */
+	public static long mix(long h)
+	{
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private long position(long fingerprint, int i)
+	{
+		long h1 = fingerprint & 0xffffffffL, h2 = fingerprint >>> 32;
+		long combined = h1 + i*h2;
+		return (combined & Long.MAX_VALUE) % size;
+	}
+
+	public void add(long fingerprint)
+	{
+		for (int i = 0; i < k; i++)
+		{
+			long p = position(fingerprint, i);
+			int word = (int)(p >>> 6);
+			synchronized (bits)
+			{
+				bits[word] |= 1L << (p & 63);
+			}
+		}
+	}
+
+	public boolean mightContain(long fingerprint)
+	{
+		for (int i = 0; i < k; i++)
+		{
+			long p = position(fingerprint, i);
+			if ((bits[(int)(p >>> 6)] & (1L << (p & 63))) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	public void clear()
+	{
+		synchronized (bits)
+		{
+			Arrays.fill(bits, 0);
+		}
+	}
+
+	public long getSizeInBits()
+	{
+		return size;
+	}
+
+	public int getHashCount()
+	{
+		return k;
+	}
+}
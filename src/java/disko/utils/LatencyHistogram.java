@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package disko.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * A lock-free histogram of durations with exponential buckets: bucket <code>i</code>
+ * holds the durations in the <code>[2^(i-1), 2^i)</code> microseconds range (bucket 0
+ * holds everything under a microsecond). Percentiles are therefore approximate - they
+ * are reported as the upper bound of the bucket where they fall.
+ * </p>
+ */
+public class LatencyHistogram
+{
+	private static final int BUCKETS = 40;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	private static int bucketOf(long micros)
+	{
+		int b = 64 - Long.numberOfLeadingZeros(micros);
+		return Math.min(b, BUCKETS - 1);
+	}
+
+	/**
+	 * <p>Record a duration given in nanoseconds.</p>
+	 */
+	public void record(long nanos)
+	{
+		if (nanos < 0)
+			nanos = 0;
+		buckets.incrementAndGet(bucketOf(nanos / 1000));
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+		for (long m = max.get(); nanos > m && !max.compareAndSet(m, nanos); )
+			m = max.get();
+	}
+
+	/**
+	 * <p>Record the time elapsed since <code>startNanos</code>, a value obtained
+	 * from <code>System.nanoTime()</code>.</p>
+	 */
+	public void recordSince(long startNanos)
+	{
+		record(System.nanoTime() - startNanos);
+	}
+
+	public long getCount()
+	{
+		return count.get();
+	}
+
+	/**
+	 * <p>Return the average duration in milliseconds.</p>
+	 */
+	public double getMean()
+	{
+		long n = count.get();
+		return n == 0 ? 0.0 : total.get() / (n * 1000000.0);
+	}
+
+	/**
+	 * <p>Return the longest recorded duration in milliseconds.</p>
+	 */
+	public double getMax()
+	{
+		return max.get() / 1000000.0;
+	}
+
+	/**
+	 * <p>Return (an upper bound of) the given percentile, between 0 and 100, in
+	 * milliseconds.</p>
+	 */
+	public double getPercentile(double p)
+	{
+		long n = count.get();
+		if (n == 0)
+			return 0.0;
+		long rank = (long)Math.ceil(n * p / 100.0);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			seen += buckets.get(i);
+			if (seen >= rank)
+				return Math.min((1L << i) / 1000.0, getMax());
+		}
+		return getMax();
+	}
+
+	/**
+	 * <p>Return the number of durations recorded in each bucket.</p>
+	 */
+	public long [] getBuckets()
+	{
+		long [] result = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+			result[i] = buckets.get(i);
+		return result;
+	}
+
+	public void reset()
+	{
+		for (int i = 0; i < BUCKETS; i++)
+			buckets.set(i, 0);
+		count.set(0);
+		total.set(0);
+		max.set(0);
+	}
+
+	public String toString()
+	{
+		return String.format("n=%d mean=%.3fms p50=%.3fms p90=%.3fms p99=%.3fms max=%.3fms",
+							 getCount(), getMean(), getPercentile(50), getPercentile(90),
+							 getPercentile(99), getMax());
+	}
+}
@@ -0,0 +1,194 @@
+/*******************************************************************************
+ * Copyright (c) 2005, Kobrix Software, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser Public License v2.1
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/old-licenses/gpl-2.0.html
+ *
+ * Contributors:
+ *     Borislav Iordanov - initial API and implementation
+ *     Murilo Saraiva de Queiroz - initial API and implementation
+ ******************************************************************************/
+package test.disco.taca;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.hypergraphdb.HGEnvironment;
+import org.hypergraphdb.HyperGraph;
+import org.hypergraphdb.util.Mapping;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import disko.Disko;
+import disko.UrlTextDocument;
+import disko.taca.CrawlResult;
+import disko.taca.CrawlRoot;
+import disko.taca.Crawler;
+import disko.taca.LocalDocumentCache;
+
+/**
+ * <p>
+ * Crawls a small site served by a local HTTP server with a {@link Crawler}, robots.txt
+ * included. The server counts the requests for each path: every page and the robots.txt
+ * must have been requested exactly once, and the path disallowed by robots.txt never.
+ * Every returned page must have a document and be in the document cache.
+ * </p>
+ *
+ * <p>
+ * Syntax: PageFetchDriver [workDirectory]
+ * </p>
+ *
+ * <p>
+ * The crawl history lives in a HyperGraph created under the work directory, so the
+ * native storage libraries must be on the library path.
+ * </p>
+ */
+public class PageFetchDriver
+{
+	static final String [][] site = new String [][] {
+		{ "/robots.txt", "text/plain",
+		  "User-agent: *\nDisallow: /private/\n" },
+		{ "/", "text/html",
+		  "<html><head><title>Home</title></head><body><p>Welcome home.</p>" +
+		  "<a href=\"/notes.txt\">notes</a> <a href=\"/old.html\">old</a> " +
+		  "<a href=\"/private/secret.html\">secret</a> " +
+		  "<a href=\"/missing\">missing</a> <a href=\"/\">home</a></body></html>" },
+		{ "/notes.txt", "text/plain",
+		  "Plain notes, see http://localhost:@PORT@/old.html again." },
+		// HTML served as plain text, with its charset in a meta tag
+		{ "/old.html", "text/plain",
+		  "<html><head><meta http-equiv=\"Content-Type\" content=\"text/html; charset=ISO-8859-1\">" +
+		  "</head><body><p>Caf\u00e9 au lait.</p><a href=\"/\">back</a></body></html>" },
+		{ "/private/secret.html", "text/html",
+		  "<html><body><p>Not for crawlers.</p></body></html>" }
+	};
+
+	// Paths the crawler must request exactly once, the others must not be requested.
+	static final Set<String> expected = new HashSet<String>(Arrays.asList(
+		"/robots.txt", "/", "/notes.txt", "/old.html", "/missing"));
+
+	public static void main(String [] argv) throws Exception
+	{
+		File workDir = argv.length > 0 ? new File(argv[0]) :
+			new File(System.getProperty("java.io.tmpdir"), "disko-crawl-driver");
+		Disko.deleteDirectory(workDir);
+		workDir.mkdirs();
+		HyperGraph graph = HGEnvironment.get(new File(workDir, "graph").getAbsolutePath());
+		final Map<String, Integer> requests = new HashMap<String, Integer>();
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		final int port = server.getAddress().getPort();
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException
+			{
+				String path = exchange.getRequestURI().getPath();
+				synchronized (requests)
+				{
+					Integer n = requests.get(path);
+					requests.put(path, n == null ? 1 : n + 1);
+				}
+				for (String [] page : site)
+					if (page[0].equals(path))
+					{
+						String charset = page[0].equals("/old.html") ? "ISO-8859-1" : "UTF-8";
+						byte [] body = page[2].replace("@PORT@", Integer.toString(port)).getBytes(charset);
+						exchange.getResponseHeaders().set("Content-Type", page[1]);
+						exchange.sendResponseHeaders(200, body.length);
+						OutputStream out = exchange.getResponseBody();
+						out.write(body);
+						out.close();
+						return;
+					}
+				exchange.sendResponseHeaders(404, -1);
+				exchange.close();
+			}
+		});
+		server.start();
+
+		final LocalDocumentCache cache = new LocalDocumentCache(new File(workDir, "cache"), 1024*1024);
+		final Set<String> returned = new HashSet<String>();
+		final boolean [] ok = new boolean [] { true };
+		Crawler crawler = new Crawler(graph);
+		try
+		{
+			String rootUrl = "http://localhost:" + port + "/";
+			CrawlRoot root = new CrawlRoot();
+			root.setUrl(rootUrl);
+			root.setActive(true);
+			root.setDepth(3);
+			root.setDomainRestricted(true);
+			root.setCrawlingInterval(60*60*1000);
+			root.getMimesToFollow().addAll(Arrays.asList("text/html", "text/plain"));
+			root.getMimesToReturn().addAll(Arrays.asList("text/html", "text/plain"));
+			crawler.addRoot(root);
+			crawler.setDocumentCache(cache);
+			crawler.setHostDelay(10);
+			crawler.setCallback(new Mapping<CrawlResult, Boolean>() {
+				public Boolean eval(CrawlResult cr)
+				{
+					UrlTextDocument doc = cr.getDocument();
+					System.out.println(cr.getUrl() + " -> " + cr.getMime() + ": " +
+									   (doc == null ? "no document" : doc.getFullText().trim()));
+					synchronized (returned)
+					{
+						returned.add(cr.getUrl());
+						if (doc == null || cache.getCachedUrl(cr.getUrl()) == null)
+							ok[0] = false;
+					}
+					return Boolean.TRUE;
+				}
+			});
+			crawler.start();
+			// A complete crawl of the root records its timestamp.
+			long deadline = System.currentTimeMillis() + 60*1000;
+			while (crawler.findRoot(rootUrl).getLastCrawlTimestamp() == 0)
+			{
+				if (System.currentTimeMillis() > deadline)
+				{
+					System.out.println("The crawl didn't complete in time.");
+					ok[0] = false;
+					break;
+				}
+				Thread.sleep(100);
+			}
+			crawler.stop();
+			for (String path : new String [] { "/", "/notes.txt", "/old.html" })
+				if (!returned.contains("http://localhost:" + port + path))
+				{
+					System.out.println("Not returned: " + path);
+					ok[0] = false;
+				}
+		}
+		finally
+		{
+			if (crawler.getScheduler() != null && crawler.isRunning())
+				crawler.stop();
+			server.stop(0);
+			graph.close();
+		}
+
+		for (String path : expected)
+			if (!requests.containsKey(path))
+			{
+				System.out.println("Never requested: " + path);
+				ok[0] = false;
+			}
+		for (Map.Entry<String, Integer> e : requests.entrySet())
+		{
+			System.out.println(e.getKey() + " requested " + e.getValue() + " time(s)");
+			if (!expected.contains(e.getKey()) || e.getValue() != 1)
+				ok[0] = false;
+		}
+		System.out.println(ok[0] ? "OK" : "FAILED");
+		System.exit(ok[0] ? 0 : -1);
+	}
+}